@@ -46,12 +46,15 @@ either expressed or implied, of the Regents of The University of Michigan.
 #include "common/zarray.h"
 #include "common/matd.h"
 #include "common/homography.h"
+#include "common/arena.h"
 #include "common/timeprofile.h"
 #include "common/math_util.h"
 #include "common/g2d.h"
 #include "common/floats.h"
 
 #include "apriltag_math.h"
+#include "apriltag_decoder.h"
+#include "apriltag_reconcile.h"
 
 #include "common/postscript_utils.h"
 
@@ -60,7 +63,8 @@ either expressed or implied, of the Regents of The University of Michigan.
 #endif
 
 extern zarray_t *apriltag_quad_gradient(apriltag_detector_t *td, image_u8_t *im);
-extern zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im);
+extern zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im,
+                                      const struct quad *covered, int ncovered);
 
 // Regresses a model of the form:
 // intensity(x,y) = C0*x + C1*y + CC2
@@ -116,195 +120,57 @@ struct quick_decode_entry
     uint8_t rotation; // number of rotations [0, 3]
 };
 
-struct quick_decode
+// A 3x3 matrix in arena, valid until the end of the frame
+static matd_t *scratch_mat33(arena_t *arena)
 {
-    int nentries;
-    struct quick_decode_entry *entries;
-};
-
-/** if the bits in w were arranged in a d*d grid and that grid was
- * rotated, what would the new bits in w be?
- * The bits are organized like this (for d = 3):
- *
- *  8 7 6       2 5 8      0 1 2
- *  5 4 3  ==>  1 4 7 ==>  3 4 5    (rotate90 applied twice)
- *  2 1 0       0 3 6      6 7 8
- **/
-static uint64_t rotate90(uint64_t w, uint32_t d)
-{
-    uint64_t wr = 0;
-
-    for (int32_t r = d-1; r >=0; r--) {
-        for (int32_t c = 0; c < d; c++) {
-            int32_t b = r + d*c;
-
-            wr = wr << 1;
-
-            if ((w & (((uint64_t) 1) << b))!=0)
-                wr |= 1;
-        }
-    }
-
-    return wr;
-}
-
-void quad_destroy(struct quad *quad)
-{
-    if (!quad)
-        return;
-
-    matd_destroy(quad->H);
-    matd_destroy(quad->Hinv);
-    free(quad);
+    matd_t *m = arena_alloc(arena, sizeof(matd_t) + 9*sizeof(double));
+    m->nrows = 3;
+    m->ncols = 3;
+    return m;
 }
 
-struct quad *quad_copy(struct quad *quad)
+// Copy a quad, with its homographies, into arena.
+struct quad *quad_copy(arena_t *arena, struct quad *quad)
 {
-    struct quad *q = calloc(1, sizeof(struct quad));
+    struct quad *q = arena_alloc(arena, sizeof(struct quad));
     memcpy(q, quad, sizeof(struct quad));
-    if (quad->H)
-        q->H = matd_copy(quad->H);
-    if (quad->Hinv)
-        q->Hinv = matd_copy(quad->Hinv);
-    return q;
-}
-
-void quick_decode_add(struct quick_decode *qd, uint64_t code, int id, int hamming)
-{
-    uint32_t bucket = code % qd->nentries;
-
-    while (qd->entries[bucket].rcode != UINT64_MAX) {
-        bucket = (bucket + 1) % qd->nentries;
+    if (quad->H) {
+        q->H = scratch_mat33(arena);
+        memcpy(q->H->data, quad->H->data, 9*sizeof(double));
     }
-
-    qd->entries[bucket].rcode = code;
-    qd->entries[bucket].id = id;
-    qd->entries[bucket].hamming = hamming;
+    if (quad->Hinv) {
+        q->Hinv = scratch_mat33(arena);
+        memcpy(q->Hinv->data, quad->Hinv->data, 9*sizeof(double));
+    }
+    return q;
 }
 
 void quick_decode_uninit(apriltag_family_t *fam)
 {
-    if (!fam->impl)
-        return;
-
-    struct quick_decode *qd = (struct quick_decode*) fam->impl;
-    free(qd->entries);
-    free(qd);
+    apriltag_decoder_destroy((apriltag_decoder_t*) fam->impl);
     fam->impl = NULL;
 }
 
-void quick_decode_init(apriltag_family_t *family, int maxhamming)
+void quick_decode_init(apriltag_family_t *family, int maxhamming, int decoder_type)
 {
     assert(family->impl == NULL);
-    assert(family->ncodes < 65535);
-
-    struct quick_decode *qd = calloc(1, sizeof(struct quick_decode));
-    int capacity = family->ncodes;
-
-    int nbits = family->d * family->d;
-
-    if (maxhamming >= 1)
-        capacity += family->ncodes * nbits;
-
-    if (maxhamming >= 2)
-        capacity += family->ncodes * nbits * (nbits-1);
-
-    if (maxhamming >= 3)
-        capacity += family->ncodes * nbits * (nbits-1) * (nbits-2);
-
-    qd->nentries = capacity * 3;
-
-//    printf("capacity %d, size: %.0f kB\n",
-//           capacity, qd->nentries * sizeof(struct quick_decode_entry) / 1024.0);
-
-    qd->entries = calloc(qd->nentries, sizeof(struct quick_decode_entry));
-    if (qd->entries == NULL) {
-        printf("apriltag.c: failed to allocate hamming decode table. Reduce max hamming size.\n");
-        exit(-1);
-    }
-
-    for (int i = 0; i < qd->nentries; i++)
-        qd->entries[i].rcode = UINT64_MAX;
-
-    for (int i = 0; i < family->ncodes; i++) {
-        uint64_t code = family->codes[i];
-
-        // add exact code (hamming = 0)
-        quick_decode_add(qd, code, i, 0);
-
-        if (maxhamming >= 1) {
-            // add hamming 1
-            for (int j = 0; j < nbits; j++)
-                quick_decode_add(qd, code ^ (1L << j), i, 1);
-        }
 
-        if (maxhamming >= 2) {
-            // add hamming 2
-            for (int j = 0; j < nbits; j++)
-                for (int k = 0; k < j; k++)
-                    quick_decode_add(qd, code ^ (1L << j) ^ (1L << k), i, 2);
-        }
-
-        if (maxhamming >= 3) {
-            // add hamming 3
-            for (int j = 0; j < nbits; j++)
-                for (int k = 0; k < j; k++)
-                    for (int m = 0; m < k; m++)
-                        quick_decode_add(qd, code ^ (1L << j) ^ (1L << k) ^ (1L << m), i, 3);
-        }
-
-        if (maxhamming > 3) {
-            printf("apriltag.c: maxhamming beyond 3 not supported\n");
-        }
-    }
-
-    family->impl = qd;
-
-    if (0) {
-        int longest_run = 0;
-        int run = 0;
-        int run_sum = 0;
-        int run_count = 0;
-
-        // This accounting code doesn't check the last possible run that
-        // occurs at the wrap-around. That's pretty insignificant.
-        for (int i = 0; i < qd->nentries; i++) {
-            if (qd->entries[i].rcode == UINT64_MAX) {
-                if (run > 0) {
-                    run_sum += run;
-                    run_count ++;
-                }
-                run = 0;
-            } else {
-                run ++;
-                longest_run = imax(longest_run, run);
-            }
-        }
-
-        printf("quick decode: longest run: %d, average run %.3f\n", longest_run, 1.0 * run_sum / run_count);
-    }
+    family->impl = apriltag_decoder_create(family, decoder_type, maxhamming);
 }
 
 // returns an entry with hamming set to 255 if no decode was found.
 static void quick_decode_codeword(apriltag_family_t *tf, uint64_t rcode,
                                   struct quick_decode_entry *entry)
 {
-    struct quick_decode *qd = (struct quick_decode*) tf->impl;
-
-    for (int ridx = 0; ridx < 4; ridx++) {
-
-        for (int bucket = rcode % qd->nentries;
-             qd->entries[bucket].rcode != UINT64_MAX;
-             bucket = (bucket + 1) % qd->nentries) {
-
-            if (qd->entries[bucket].rcode == rcode) {
-                *entry = qd->entries[bucket];
-                entry->rotation = ridx;
-                return;
-            }
-        }
-
-        rcode = rotate90(rcode, tf->d);
+    const apriltag_decoder_t *dec = (const apriltag_decoder_t*) tf->impl;
+    int id, hamming, rotation;
+
+    if (dec->decode(dec, rcode, &id, &hamming, &rotation)) {
+        entry->rcode = rcode;
+        entry->id = id;
+        entry->hamming = hamming;
+        entry->rotation = rotation;
+        return;
     }
 
     entry->rcode = 0;
@@ -328,11 +194,17 @@ void apriltag_detector_remove_family(apriltag_detector_t *td, apriltag_family_t
 }
 
 void apriltag_detector_add_family_bits(apriltag_detector_t *td, apriltag_family_t *fam, int bits_corrected)
+{
+    apriltag_detector_add_family_decoder(td, fam, bits_corrected, APRILTAG_DECODER_AUTO);
+}
+
+void apriltag_detector_add_family_decoder(apriltag_detector_t *td, apriltag_family_t *fam,
+                                          int bits_corrected, int decoder_type)
 {
     zarray_add(td->tag_families, &fam);
 
     if (!fam->impl)
-        quick_decode_init(fam, bits_corrected);
+        quick_decode_init(fam, bits_corrected, decoder_type);
 }
 
 void apriltag_detector_clear_families(apriltag_detector_t *td)
@@ -352,9 +224,12 @@ apriltag_detector_t *apriltag_detector_create()
     td->nthreads = 1;
     td->quad_decimate = 1.0;
     td->quad_sigma = 0.0;
+    td->pyramid_levels = 1;
 
     td->qtp.max_nmaxima = 10;
     td->qtp.min_cluster_pixels = 5;
+    td->qtp.min_cluster_side = 0;
+    td->qtp.max_cluster_aspect = 0;
 
     td->qtp.max_line_fit_mse = 10.0;
     td->qtp.critical_rad = 10 * M_PI / 180;
@@ -371,6 +246,9 @@ apriltag_detector_t *apriltag_detector_create()
     td->refine_pose = 0;
     td->refine_decode = 0;
 
+    td->min_border_contrast = 0;
+    td->ambiguous_bit_margin = 0;
+
     td->debug = 0;
 
     // NB: defer initialization of td->wp so that the user can
@@ -412,42 +290,195 @@ struct evaluate_quad_ret
     struct quick_decode_entry e;
 };
 
-// returns non-zero if an error occurs (i.e., H has no inverse)
-int quad_update_homographies(struct quad *quad)
+// returns non-zero if an error occurs (i.e., H has no inverse). H and
+// Hinv are allocated in arena if the quad has none yet.
+int quad_update_homographies(arena_t *arena, struct quad *quad)
 {
-    zarray_t *correspondences = zarray_create(sizeof(float[4]));
+    double corr[4][4];
 
     for (int i = 0; i < 4; i++) {
-        float corr[4];
-
         // At this stage of the pipeline, we have not attempted to decode the
         // quad into an oriented tag. Thus, just act as if the quad is facing
         // "up" with respect to our desired corners. We'll fix the rotation
         // later.
         // [-1, -1], [1, -1], [1, 1], [-1, 1]
-        corr[0] = (i==0 || i==3) ? -1 : 1;
-        corr[1] = (i==0 || i==1) ? -1 : 1;
+        corr[i][0] = (i==0 || i==3) ? -1 : 1;
+        corr[i][1] = (i==0 || i==1) ? -1 : 1;
+
+        corr[i][2] = quad->p[i][0];
+        corr[i][3] = quad->p[i][1];
+    }
+
+    // Four points determine the homography exactly, so solve for it
+    // directly instead of by least squares.
+    double H[9], Hinv[9];
+    if (homography_compute4(corr, H) || mat33_inv(H, Hinv))
+        return -1;
+
+    if (!quad->H)
+        quad->H = scratch_mat33(arena);
+    if (!quad->Hinv)
+        quad->Hinv = scratch_mat33(arena);
+
+    memcpy(quad->H->data, H, sizeof(H));
+    memcpy(quad->Hinv->data, Hinv, sizeof(Hinv));
+    return 0;
+}
+
+// Steps through evenly spaced samples along a line, projecting each
+// through a homography: the homogeneous coordinates of sample i are
+// p0 + i*dp, so the homography is read once per line and each sample
+// costs three additions and one division.
+struct homography_stepper
+{
+    double x, y, w;
+    double dx, dy, dw;
+};
+
+// Start at (x, y) and step by (dx, dy), before projection.
+static inline void homography_stepper_init(struct homography_stepper *s, const double *H,
+                                           double x, double y, double dx, double dy)
+{
+    s->x = H[0]*x + H[1]*y + H[2];
+    s->y = H[3]*x + H[4]*y + H[5];
+    s->w = H[6]*x + H[7]*y + H[8];
+    s->dx = H[0]*dx + H[1]*dy;
+    s->dy = H[3]*dx + H[4]*dy;
+    s->dw = H[6]*dx + H[7]*dy;
+}
+
+// Project the current sample, then step to the next one.
+static inline void homography_stepper_next(struct homography_stepper *s, double *px, double *py)
+{
+    double iw = 1 / s->w;
+
+    *px = s->x * iw;
+    *py = s->y * iw;
+
+    s->x += s->dx;
+    s->y += s->dy;
+    s->w += s->dw;
+}
+
+// Project a single point through the homography H, with one division.
+static inline void homography_project_once(const double *H, double x, double y, double *px, double *py)
+{
+    double iw = 1 / (H[6]*x + H[7]*y + H[8]);
+
+    *px = (H[0]*x + H[1]*y + H[2]) * iw;
+    *py = (H[3]*x + H[4]*y + H[5]) * iw;
+}
 
-        corr[2] = quad->p[i][0];
-        corr[3] = quad->p[i][1];
+// The x range where the horizontal line at y crosses the convex
+// polygon p. Returns 0, with an empty range at 0, if it misses.
+static int polygon_row_span(double p[4][2], double y, double *x0, double *x1)
+{
+    int hit = 0;
+    double lo = 0, hi = 0;
+
+    for (int i = 0; i < 4; i++) {
+        const double *a = p[i], *b = p[(i + 1) & 3];
+        if ((a[1] > y) == (b[1] > y))
+            continue;
 
-        zarray_add(correspondences, &corr);
+        double x = a[0] + (y - a[1]) * (b[0] - a[0]) / (b[1] - a[1]);
+        if (!hit || x < lo)
+            lo = x;
+        if (!hit || x > hi)
+            hi = x;
+        hit = 1;
     }
 
-    if (quad->H)
-        matd_destroy(quad->H);
-    if (quad->Hinv)
-        matd_destroy(quad->Hinv);
+    *x0 = lo;
+    *x1 = hi;
+    return hit;
+}
 
-    // XXX Tunable
-    quad->H = homography_compute(correspondences, HOMOGRAPHY_COMPUTE_FLAG_SVD);
-    quad->Hinv = matd_inverse(quad->H);
-    zarray_destroy(correspondences);
+// The tag square of half-width r, projected into the image. Returns
+// non-zero if it is not a convex quad, i.e., it crosses the horizon.
+static int project_square(const double *H, double r, double p[4][2])
+{
+    int npos = 0;
 
-    if (quad->H && quad->Hinv)
-        return 0;
+    for (int i = 0; i < 4; i++) {
+        double tx = (i == 0 || i == 3) ? -r : r;
+        double ty = (i == 0 || i == 1) ? -r : r;
+        double w = H[6]*tx + H[7]*ty + H[8];
+
+        npos += w > 0;
+        p[i][0] = (H[0]*tx + H[1]*ty + H[2]) / w;
+        p[i][1] = (H[3]*tx + H[4]*ty + H[5]) / w;
+    }
+
+    return npos != 0 && npos != 4;
+}
+
+// Sums of the pixels in the white and the black border of a quad
+struct border_sums
+{
+    int64_t W1, B1, Wn, Bn;
+};
+
+// Add pixels x0..x1 of row y, all in one border, to the sums.
+static void border_sums_add(struct border_sums *sums, const image_u8_t *im, int y, int x0, int x1,
+                            int white)
+{
+    const uint8_t *row = &im->buf[y*im->stride];
+    int64_t acc = 0;
+
+    for (int x = x0; x <= x1; x++)
+        acc += row[x];
+
+    if (white) {
+        sums->W1 += acc;
+        sums->Wn += x1 - x0 + 1;
+    } else {
+        sums->B1 += acc;
+        sums->Bn += x1 - x0 + 1;
+    }
+}
+
+// Add pixels x0..x1 of row y to the sums of the border each is in,
+// found by projecting the pixel center into tag coordinates.
+static void border_sums_classify(struct border_sums *sums, const image_u8_t *im, const double *Hinv,
+                                 int y, int x0, int x1, float wsz, float bsz)
+{
+    // we'll incrementally compute the homography
+    // projections. Begin by evaluating the homogeneous position
+    // [(x0 + .5), (y + .5), 1]. Then, we'll update as we stride in
+    // the +x direction.
+    struct homography_stepper s;
+    homography_stepper_init(&s, Hinv, x0 + .5, y + .5, 1, 0);
+
+    for (int x = x0; x <= x1; x++) {
+        // project the pixel center.
+        double tx, ty;
+        homography_stepper_next(&s, &tx, &ty);
+
+        float txa = fabsf((float) tx), tya = fabsf((float) ty);
+        float xymax = fmaxf(txa, tya);
+
+        if (xymax >= 1 + wsz)
+            continue;
+
+        uint8_t v = im->buf[y*im->stride + x];
+
+        // it's within the white border?
+        if (xymax >= 1) {
+            sums->W1 += v;
+            sums->Wn ++;
+            continue;
+        }
 
-    return -1;
+        // it's within the black border?
+        if (xymax >= 1 - bsz) {
+            sums->B1 += v;
+            sums->Bn ++;
+            continue;
+        }
+
+        // it must be a data bit. We don't do anything with these.
+    }
 }
 
 // compute a "score" for a quad that is independent of tag family
@@ -465,7 +496,6 @@ double quad_goodness(apriltag_family_t *family, image_u8_t *im, struct quad *qua
 
     // in tag coordinates, how big is each bit cell?
     double bit_size = 2.0 / (2*family->black_border + family->d);
-//    double inv_bit_size = 1.0 / bit_size;
 
     int32_t xmin = INT32_MAX, xmax = 0, ymin = INT32_MAX, ymax = 0;
 
@@ -487,84 +517,86 @@ double quad_goodness(apriltag_family_t *family, image_u8_t *im, struct quad *qua
     ymin = imax(0, ymin);
     ymax = imin(im->height-1, ymax);
 
-//    int nbits = family->d * family->d;
-
-    int64_t W1 = 0, B1 = 0, Wn = 0, Bn = 0;
+    struct border_sums sums = { 0, 0, 0, 0 };
 
     float wsz = bit_size*white_border;
     float bsz = bit_size*family->black_border;
 
-    matd_t *Hinv = quad->Hinv;
-//    matd_t *H = quad->H;
+    const double *Hinv = quad->Hinv->data;
+
+    // The white border, the black border and the data bits lie
+    // between squares in tag coordinates. A pixel near one of those
+    // squares must be projected to tell which side it is on, so each
+    // square is bracketed by one grown and one shrunk by a little.
+    // Between the brackets, every pixel is known to be white border,
+    // black border or data bit, and the border ones are just summed.
+    // The squares are projected into the image once per quad, and
+    // each row is split where it crosses them.
+    enum { CLASSIFY, WHITE, BLACK };
+    // what lies inside square k but outside square k+1. Inside the
+    // last square are the data bits, which we don't score.
+    static const int zones[5] = { CLASSIFY, WHITE, CLASSIFY, BLACK, CLASSIFY };
+
+    const double grow = 1e-3;
+    float boundaries[3] = { 1 + wsz, 1, 1 - bsz };
+    double squares[6][4][2];
+    int split = wsz > 2*grow && bsz > 2*grow && boundaries[2] > grow;
+    for (int k = 0; k < 6 && split; k++)
+        split = !project_square(quad->H->data, boundaries[k/2] + ((k & 1) ? -grow : grow), squares[k]);
 
     // iterate over all the pixels in the tag. (Iterating in pixel space)
     for (int y = ymin; y <= ymax; y++) {
+        if (!split) {
+            border_sums_classify(&sums, im, Hinv, y, xmin, xmax, wsz, bsz);
+            continue;
+        }
 
-        // we'll incrementally compute the homography
-        // projections. Begin by evaluating the homogeneous position
-        // [(xmin - .5f), y, 1]. Then, we'll update as we stride in
-        // the +x direction.
-        double Hx = MATD_EL(Hinv, 0, 0) * (.5 + (int) xmin) +
-            MATD_EL(Hinv, 0, 1) * (y + .5) + MATD_EL(Hinv, 0, 2);
-        double Hy = MATD_EL(Hinv, 1, 0) * (.5 + (int) xmin) +
-            MATD_EL(Hinv, 1, 1) * (y + .5) + MATD_EL(Hinv, 1, 2);
-        double Hh = MATD_EL(Hinv, 2, 0) * (.5 + (int) xmin) +
-            MATD_EL(Hinv, 2, 1) * (y + .5) + MATD_EL(Hinv, 2, 2);
-
-        for (int x = xmin; x <= xmax;  x++) {
-            // project the pixel center.
-            double tx, ty;
-
-            // divide by homogeneous coordinate
-            tx = Hx / Hh;
-            ty = Hy / Hh;
-
-            // if we move x one pixel to the right, here's what
-            // happens to our three pre-normalized coordinates.
-            Hx += MATD_EL(Hinv, 0, 0);
-            Hy += MATD_EL(Hinv, 1, 0);
-            Hh += MATD_EL(Hinv, 2, 0);
-
-            float txa = fabsf((float) tx), tya = fabsf((float) ty);
-            float xymax = fmaxf(txa, tya);
-
-//            if (txa >= 1 + wsz || tya >= 1 + wsz)
-            if (xymax >= 1 + wsz)
-                continue;
-
-            uint8_t v = im->buf[y*im->stride + x];
+        // the pixels of the row inside each square, which nest
+        int x0[6], x1[6], nsquares = 0;
+        for (; nsquares < 6; nsquares++) {
+            double sx0, sx1;
+            if (!polygon_row_span(squares[nsquares], y + .5, &sx0, &sx1))
+                break;
+            x0[nsquares] = imax(xmin, (int) ceil(sx0 - .5));
+            x1[nsquares] = imin(xmax, (int) floor(sx1 - .5));
+        }
 
-            // it's within the white border?
-//            if (txa >= 1 || tya >= 1) {
-            if (xymax >= 1) {
-                W1 += v;
-                Wn ++;
-                continue;
+        for (int k = 0; k < 5 && k < nsquares; k++) {
+            // the pixels left and right of square k+1
+            int pieces[2][2] = { { x0[k], x1[k] }, { 1, 0 } };
+            if (k + 1 < nsquares) {
+                pieces[0][1] = imin(x1[k], x0[k+1] - 1);
+                pieces[1][0] = imax(x0[k], x1[k+1] + 1);
+                pieces[1][1] = x1[k];
             }
 
-            // it's within the black border?
-//            if (txa >= 1 - bsz || tya >= 1 - bsz) {
-            if (xymax >= 1 - bsz) {
-                B1 += v;
-                Bn ++;
-                continue;
+            for (int p = 0; p < 2; p++) {
+                if (pieces[p][0] > pieces[p][1])
+                    continue;
+                if (zones[k] == CLASSIFY)
+                    border_sums_classify(&sums, im, Hinv, y, pieces[p][0], pieces[p][1], wsz, bsz);
+                else
+                    border_sums_add(&sums, im, y, pieces[p][0], pieces[p][1], zones[k] == WHITE);
             }
-
-            // it must be a data bit. We don't do anything with these.
-            continue;
         }
     }
 
-
     // score = average margin between white and black pixels near border.
-    double margin = 1.0 * W1 / Wn - 1.0 * B1 / Bn;
-//    printf("margin %f: W1 %f, B1 %f\n", margin, W1, B1);
+    double margin = 1.0 * sums.W1 / sums.Wn - 1.0 * sums.B1 / sums.Bn;
 
     return margin;
 }
 
-// returns the decision margin. Return < 0 if the detection should be rejected.
-float quad_decode(apriltag_family_t *family, image_u8_t *im, struct quad *quad, struct quick_decode_entry *entry, image_u8_t *im_samples)
+// quad_decode's result when it stopped early because too many bits
+// were ambiguous.
+#define QUAD_DECODE_AMBIGUOUS -2
+
+// returns the decision margin. Return < 0 if the detection should be
+// rejected. With ambiguous_margin > 0, gives up once too many bits
+// are within ambiguous_margin of the threshold, as
+// td->ambiguous_bit_margin describes. Scratch is allocated in arena.
+float quad_decode(arena_t *arena, apriltag_family_t *family, image_u8_t *im, struct quad *quad,
+                  float ambiguous_margin, struct quick_decode_entry *entry, image_u8_t *im_samples)
 {
     // decode the tag binary contents by sampling the pixel
     // closest to the center of each bit cell.
@@ -624,6 +656,20 @@ float quad_decode(apriltag_family_t *family, image_u8_t *im, struct quad *quad,
         // XXX double-counts the corners.
     };
 
+    const double *H = quad->H->data;
+    int n = 2*family->black_border + family->d;
+
+    // in tag coordinates ([-1, 1]), how big is each bit cell, and
+    // where are the centers of the cells along each axis? (The border
+    // patterns have always placed theirs in single precision.)
+    double bit_size = 2.0 / n;
+    double *centers = arena_alloc(arena, 2 * n * sizeof(double));
+    double *pattern_centers = &centers[n];
+    for (int i = 0; i < n; i++) {
+        centers[i] = 2*((i + 0.5) / n - 0.5);
+        pattern_centers[i] = 2*((0.5f + i) / n - 0.5);
+    }
+
     struct graymodel whitemodel, blackmodel;
     graymodel_init(&whitemodel);
     graymodel_init(&blackmodel);
@@ -633,15 +679,18 @@ float quad_decode(apriltag_family_t *family, image_u8_t *im, struct quad *quad,
 
         int is_white = pattern[4];
 
-        for (int i = 0; i < 2*family->black_border + family->d; i++) {
-            double tagx01 = (pattern[0] + i*pattern[2]) / (2*family->black_border + family->d);
-            double tagy01 = (pattern[1] + i*pattern[3]) / (2*family->black_border + family->d);
+        // each pattern runs along the cell centers of one axis. Their
+        // rounded coordinates are not evenly spaced, so the samples
+        // are projected one by one rather than stepped to.
+        int along_x = pattern[2] != 0;
+        double fixed = 2*(pattern[along_x ? 1 : 0] / n - 0.5);
 
-            double tagx = 2*(tagx01-0.5);
-            double tagy = 2*(tagy01-0.5);
+        for (int i = 0; i < n; i++) {
+            double tagx = along_x ? pattern_centers[i] : fixed;
+            double tagy = along_x ? fixed : pattern_centers[i];
 
             double px, py;
-            homography_project(quad->H, tagx, tagy, &px, &py);
+            homography_project_once(H, tagx, tagy, &px, &py);
 
             // don't round
             int ix = px;
@@ -666,8 +715,11 @@ float quad_decode(apriltag_family_t *family, image_u8_t *im, struct quad *quad,
     graymodel_solve(&blackmodel);
 
     // XXX Tunable
-    if (graymodel_interpolate(&whitemodel, 0, 0) - graymodel_interpolate(&blackmodel, 0, 0) < 0)
+    if (graymodel_interpolate(&whitemodel, 0, 0) - graymodel_interpolate(&blackmodel, 0, 0) < 0) {
+        // no decode, as quick_decode_codeword reports it
+        *entry = (struct quick_decode_entry) { .rcode = 0, .id = 65535, .hamming = 255, .rotation = 0 };
         return -1;
+    }
 
     // compute the average decision margin (how far was each bit from
     // the decision boundary?
@@ -678,43 +730,57 @@ float quad_decode(apriltag_family_t *family, image_u8_t *im, struct quad *quad,
     float black_score = 0, white_score = 0;
     float black_score_count = 1, white_score_count = 1;
 
-    for (int bitidx = 0; bitidx < family->d * family->d; bitidx++) {
-        int bitx = bitidx % family->d;
-        int bity = bitidx / family->d;
+    // an ambiguous bit may well be read right, so a tag decodes with
+    // a few of them; beyond this many, the read is mostly guesswork.
+    // XXX Tunable
+    int max_ambiguous = ((apriltag_decoder_t*) family->impl)->maxhamming + family->d*family->d / 4;
+    int nambiguous = 0;
 
-        double tagx01 = (family->black_border + bitx + 0.5) / (2*family->black_border + family->d);
-        double tagy01 = (family->black_border + bity + 0.5) / (2*family->black_border + family->d);
+    // sample the center of each bit cell, a row of bits at a time
+    const double *bit_centers = &centers[family->black_border];
 
-        // scale to [-1, 1]
-        double tagx = 2*(tagx01-0.5);
-        double tagy = 2*(tagy01-0.5);
+    for (int bity = 0; bity < family->d; bity++) {
+        double tagy = bit_centers[bity];
 
-        double px, py;
-        homography_project(quad->H, tagx, tagy, &px, &py);
+        struct homography_stepper s;
+        homography_stepper_init(&s, H, bit_centers[0], tagy, bit_size, 0);
 
-        rcode = (rcode << 1);
+        for (int bitx = 0; bitx < family->d; bitx++) {
+            double tagx = bit_centers[bitx];
 
-        // don't round.
-        int ix = px;
-        int iy = py;
+            double px, py;
+            homography_stepper_next(&s, &px, &py);
 
-        if (ix < 0 || iy < 0 || ix >= im->width || iy >= im->height)
-            continue;
+            rcode = (rcode << 1);
 
-        int v = im->buf[iy*im->stride + ix];
+            // don't round.
+            int ix = px;
+            int iy = py;
 
-        double thresh = (graymodel_interpolate(&blackmodel, tagx, tagy) + graymodel_interpolate(&whitemodel, tagx, tagy)) / 2.0;
-        if (v > thresh) {
-            white_score += (v - thresh);
-            white_score_count ++;
-            rcode |= 1;
-        } else {
-            black_score += (thresh - v);
-            black_score_count ++;
-        }
+            if (ix < 0 || iy < 0 || ix >= im->width || iy >= im->height)
+                continue;
+
+            int v = im->buf[iy*im->stride + ix];
+
+            double thresh = (graymodel_interpolate(&blackmodel, tagx, tagy) + graymodel_interpolate(&whitemodel, tagx, tagy)) / 2.0;
+            if (v > thresh) {
+                white_score += (v - thresh);
+                white_score_count ++;
+                rcode |= 1;
+            } else {
+                black_score += (thresh - v);
+                black_score_count ++;
+            }
 
-        if (im_samples)
-            im_samples->buf[iy*im_samples->stride + ix] = (1 - (rcode & 1)) * 255;
+            if (im_samples)
+                im_samples->buf[iy*im_samples->stride + ix] = (1 - (rcode & 1)) * 255;
+
+            if (ambiguous_margin > 0 && fabs(v - thresh) < ambiguous_margin &&
+                ++nambiguous > max_ambiguous) {
+                *entry = (struct quick_decode_entry) { .rcode = 0, .id = 65535, .hamming = 255, .rotation = 0 };
+                return QUAD_DECODE_AMBIGUOUS;
+            }
+        }
     }
 
     quick_decode_codeword(family, rcode, entry);
@@ -727,23 +793,25 @@ double score_goodness(apriltag_family_t *family, image_u8_t *im, struct quad *qu
     return quad_goodness(family, im, quad);
 }
 
+// Always samples every bit, so that candidates are ranked by their
+// full decision margin. user is the arena_t for quad_decode's scratch.
 double score_decodability(apriltag_family_t *family, image_u8_t *im, struct quad *quad, void *user)
 {
     struct quick_decode_entry entry;
 
-    float decision_margin = quad_decode(family, im, quad, &entry, NULL);
+    float decision_margin = quad_decode(user, family, im, quad, 0, &entry, NULL);
 
     // hamming trumps decision margin; maximum value for decision_margin is 255.
     return decision_margin - entry.hamming*1000;
 }
 
-// returns score of best quad
-double optimize_quad_generic(apriltag_family_t *family, image_u8_t *im, struct quad *quad0,
+// returns score of best quad. The candidates are allocated in arena.
+double optimize_quad_generic(arena_t *arena, apriltag_family_t *family, image_u8_t *im, struct quad *quad0,
                              float *stepsizes, int nstepsizes,
                              double (*score)(apriltag_family_t *family, image_u8_t *im, struct quad *quad, void *user),
                              void *user)
 {
-    struct quad *best_quad = quad_copy(quad0);
+    struct quad *best_quad = quad_copy(arena, quad0);
     double best_score = score(family, im, best_quad, user);
 
     for (int stepsize_idx = 0; stepsize_idx < nstepsizes; stepsize_idx++)  {
@@ -777,27 +845,22 @@ double optimize_quad_generic(apriltag_family_t *family, image_u8_t *im, struct q
                         if (sx==0 && sy==0)
                             continue;
 
-                        struct quad *this_quad = quad_copy(best_quad);
+                        struct quad *this_quad = quad_copy(arena, best_quad);
                         this_quad->p[i][0] = best_quad->p[i][0] + sx*stepsize;
                         this_quad->p[i][1] = best_quad->p[i][1] + sy*stepsize;
-                        if (quad_update_homographies(this_quad))
+                        if (quad_update_homographies(arena, this_quad))
                             continue;
 
                         double this_score = score(family, im, this_quad, user);
 
                         if (this_score > this_best_score) {
-                            quad_destroy(this_best_quad);
-
                             this_best_quad = this_quad;
                             this_best_score = this_score;
-                        } else {
-                            quad_destroy(this_quad);
                         }
                     }
                 }
 
                 if (this_best_score > best_score) {
-                    quad_destroy(best_quad);
                     best_quad = this_best_quad;
                     best_score = this_best_score;
                     improved = 1;
@@ -806,10 +869,7 @@ double optimize_quad_generic(apriltag_family_t *family, image_u8_t *im, struct q
         }
     }
 
-    matd_destroy(quad0->H);
-    matd_destroy(quad0->Hinv);
     memcpy(quad0, best_quad, sizeof(struct quad)); // copy pointers
-    free(best_quad);
     return best_score;
 }
 
@@ -852,12 +912,12 @@ static void refine_edges(apriltag_detector_t *td, image_u8_t *im_orig, struct qu
             // XXX tunable: how far to search?  We want to search far
             // enough that we find the best edge, but not so far that
             // we hit other edges that aren't part of the tag. We
-            // shouldn't ever have to search more than quad_decimate,
+            // shouldn't ever have to search more than the quad's decimation,
             // since otherwise we would (ideally) have started our
             // search on another pixel in the first place. Likewise,
             // for very small tags, we don't want the range to be too
             // big.
-            double range = td->quad_decimate + 1;
+            double range = quad->decimate + 1;
 
             // XXX tunable step size.
             for (double n = -range; n <= range; n +=  0.25) {
@@ -955,117 +1015,238 @@ static void refine_edges(apriltag_detector_t *td, image_u8_t *im_orig, struct qu
     }
 }
 
-static void quad_decode_task(void *_u)
+// A quick check, before any refinement or decoding, that the quad
+// has a black border: at a few points along each side, the pixel half
+// a bit cell outside the black border minus the one half a bit cell
+// inside it. Returns the mean difference, which is positive for a tag.
+static float quad_border_contrast(apriltag_family_t *family, image_u8_t *im, struct quad *quad)
 {
-    struct quad_decode_task *task = (struct quad_decode_task*) _u;
-    apriltag_detector_t *td = task->td;
-    image_u8_t *im = task->im;
+    const double *H = quad->H->data;
+    double bit_size = 2.0 / (2*family->black_border + family->d);
+    double outside = 1 + bit_size / 2, inside = 1 - bit_size / 2;
 
-    for (int quadidx = task->i0; quadidx < task->i1; quadidx++) {
-        struct quad *quad_original;
-        zarray_get_volatile(task->quads, quadidx, &quad_original);
+    // the outward normal of each side, in tag coordinates
+    static const int normals[4][2] = { { 0, -1 }, { 1, 0 }, { 0, 1 }, { -1, 0 } };
+
+    // XXX Tunable. Where along each side to probe
+    static const double along[] = { -0.5, 0, 0.5 };
+
+    int sum = 0, count = 0;
+
+    for (int side = 0; side < 4; side++) {
+        int nx = normals[side][0], ny = normals[side][1];
+
+        for (int i = 0; i < sizeof(along)/sizeof(along[0]); i++) {
+            double ax = -ny * along[i], ay = nx * along[i];
+
+            double px0, py0, px1, py1;
+            homography_project_once(H, ax + nx*outside, ay + ny*outside, &px0, &py0);
+            homography_project_once(H, ax + nx*inside, ay + ny*inside, &px1, &py1);
 
-        // refine edges is not dependent upon the tag family, thus
-        // apply this optimization BEFORE the other work.
-        //if (td->quad_decimate > 1 && td->refine_edges) {
-        if (td->refine_edges) {
-            refine_edges(td, im, quad_original);
+            // don't round
+            int ix0 = px0, iy0 = py0, ix1 = px1, iy1 = py1;
+            if (ix0 < 0 || iy0 < 0 || ix0 >= im->width || iy0 >= im->height ||
+                ix1 < 0 || iy1 < 0 || ix1 >= im->width || iy1 >= im->height)
+                continue;
+
+            sum += im->buf[iy0*im->stride + ix0] - im->buf[iy1*im->stride + ix1];
+            count++;
         }
+    }
 
-        // make sure the homographies are computed...
-        if (quad_update_homographies(quad_original))
-            continue;
+    return count ? (float) sum / count : 0;
+}
 
-        for (int famidx = 0; famidx < zarray_size(td->tag_families); famidx++) {
-            apriltag_family_t *family;
-            zarray_get(td->tag_families, famidx, &family);
+// Decode one quad as each tag family, adding a detection to detections
+// for each family it decodes as, and counting each rejection in
+// nrejected. Edge refinement moves the quad's corners. Returns the
+// number of detections added.
+static int quad_decode_one(apriltag_detector_t *td, arena_t *arena, image_u8_t *im,
+                           struct quad *quad_original, image_u8_t *im_samples,
+                           uint32_t *nrejected, zarray_t *detections)
+{
+    int ndetections = 0;
 
-            double goodness = 0;
+    // refine edges is not dependent upon the tag family, thus
+    // apply this optimization BEFORE the other work.
+    //if (td->quad_decimate > 1 && td->refine_edges) {
+    if (td->refine_edges) {
+        refine_edges(td, im, quad_original);
+    }
 
-            // since the geometry of tag families can vary, start any
-            // optimization process over with the original quad.
-            struct quad *quad = quad_copy(quad_original);
+    // make sure the homographies are computed...
+    if (quad_update_homographies(arena, quad_original))
+        return 0;
 
-            // improve the quad corner positions by minimizing the
-            // variance within each intra-bit area.
-            if (td->refine_pose) {
-                // NB: We potentially step an integer
-                // number of times in each direction. To make each
-                // sample as useful as possible, the step sizes should
-                // not be integer multiples of each other. (I.e.,
-                // probably don't use 1, 0.5, 0.25, etc.)
+    for (int famidx = 0; famidx < zarray_size(td->tag_families); famidx++) {
+        apriltag_family_t *family;
+        zarray_get(td->tag_families, famidx, &family);
 
-                // XXX Tunable
-                float stepsizes[] = { 1, .4, .16, .064 };
-                int nstepsizes = sizeof(stepsizes)/sizeof(float);
+        double goodness = 0;
 
-                goodness = optimize_quad_generic(family, im, quad, stepsizes, nstepsizes, score_goodness, NULL);
-            }
+        // since the geometry of tag families can vary, start any
+        // optimization process over with the original quad. The
+        // copies are only needed for this family.
+        arena_mark_t mark = arena_mark(arena);
+        struct quad *quad = quad_copy(arena, quad_original);
 
-            if (td->refine_decode) {
-                // this optimizes decodability, but we don't report
-                // that value to the user.  (so discard return value.)
-                // XXX Tunable
-                float stepsizes[] = { .4 };
-                int nstepsizes = sizeof(stepsizes)/sizeof(float);
+        // most quads in a cluttered scene are not tags; don't
+        // spend refinement on those without a black border.
+        if (td->min_border_contrast > 0 &&
+            quad_border_contrast(family, im, quad) < td->min_border_contrast) {
+            nrejected[APRILTAG_REJECT_BORDER]++;
+            arena_release(arena, mark);
+            continue;
+        }
 
-                optimize_quad_generic(family, im, quad, stepsizes, nstepsizes, score_decodability, NULL);
-            }
+        // improve the quad corner positions by minimizing the
+        // variance within each intra-bit area.
+        if (td->refine_pose) {
+            // NB: We potentially step an integer
+            // number of times in each direction. To make each
+            // sample as useful as possible, the step sizes should
+            // not be integer multiples of each other. (I.e.,
+            // probably don't use 1, 0.5, 0.25, etc.)
 
-            struct quick_decode_entry entry;
+            // XXX Tunable
+            float stepsizes[] = { 1, .4, .16, .064 };
+            int nstepsizes = sizeof(stepsizes)/sizeof(float);
 
-            float decision_margin = quad_decode(family, im, quad, &entry, task->im_samples);
+            goodness = optimize_quad_generic(arena, family, im, quad, stepsizes, nstepsizes, score_goodness, NULL);
+        }
 
-            if (entry.hamming < 255 && decision_margin >= 0) {
-                apriltag_detection_t *det = calloc(1, sizeof(apriltag_detection_t));
+        if (td->refine_decode) {
+            // this optimizes decodability, but we don't report
+            // that value to the user.  (so discard return value.)
+            // XXX Tunable
+            float stepsizes[] = { .4 };
+            int nstepsizes = sizeof(stepsizes)/sizeof(float);
 
-                det->family = family;
-                det->id = entry.id;
-                det->hamming = entry.hamming;
-                det->goodness = goodness;
-                det->decision_margin = decision_margin;
+            optimize_quad_generic(arena, family, im, quad, stepsizes, nstepsizes, score_decodability, arena);
+        }
 
-                double theta = -entry.rotation * M_PI / 2.0;
-                double c = cos(theta), s = sin(theta);
+        struct quick_decode_entry entry;
 
-                // Fix the rotation of our homography to properly orient the tag
-                matd_t *R = matd_create(3,3);
-                MATD_EL(R, 0, 0) = c;
-                MATD_EL(R, 0, 1) = -s;
-                MATD_EL(R, 1, 0) = s;
-                MATD_EL(R, 1, 1) = c;
-                MATD_EL(R, 2, 2) = 1;
+        float decision_margin = quad_decode(arena, family, im, quad, td->ambiguous_bit_margin,
+                                            &entry, im_samples);
 
-                det->H = matd_op("M*M", quad->H, R);
+        if (entry.hamming < 255 && decision_margin >= 0) {
+            apriltag_detection_t *det = calloc(1, sizeof(apriltag_detection_t));
 
-                matd_destroy(R);
+            det->family = family;
+            det->id = entry.id;
+            det->hamming = entry.hamming;
+            det->goodness = goodness;
+            det->decision_margin = decision_margin;
 
-                homography_project(det->H, 0, 0, &det->c[0], &det->c[1]);
+            double theta = -entry.rotation * M_PI / 2.0;
+            double c = cos(theta), s = sin(theta);
 
-                // [-1, -1], [1, -1], [1, 1], [-1, 1], Desired points
-                // [-1, 1], [1, 1], [1, -1], [-1, -1], FLIP Y
-                // adjust the points in det->p so that they correspond to
-                // counter-clockwise around the quad, starting at -1,-1.
-                for (int i = 0; i < 4; i++) {
-                    int tcx = (i == 1 || i == 2) ? 1 : -1;
-                    int tcy = (i < 2) ? 1 : -1;
+            // Fix the rotation of our homography to properly orient the tag
+            double R[9] = { c, -s, 0,
+                            s,  c, 0,
+                            0,  0, 1 };
 
-                    double p[2];
+            det->H = matd_create(3, 3);
+            mat33_mul(quad->H->data, R, det->H->data);
 
-                    homography_project(det->H, tcx, tcy, &p[0], &p[1]);
+            homography_project(det->H, 0, 0, &det->c[0], &det->c[1]);
 
-                    det->p[i][0] = p[0];
-                    det->p[i][1] = p[1];
-                }
+            // [-1, -1], [1, -1], [1, 1], [-1, 1], Desired points
+            // [-1, 1], [1, 1], [1, -1], [-1, -1], FLIP Y
+            // adjust the points in det->p so that they correspond to
+            // counter-clockwise around the quad, starting at -1,-1.
+            for (int i = 0; i < 4; i++) {
+                int tcx = (i == 1 || i == 2) ? 1 : -1;
+                int tcy = (i < 2) ? 1 : -1;
+
+                double p[2];
+
+                homography_project(det->H, tcx, tcy, &p[0], &p[1]);
 
-                pthread_mutex_lock(&td->mutex);
-                zarray_add(task->detections, &det);
-                pthread_mutex_unlock(&td->mutex);
+                det->p[i][0] = p[0];
+                det->p[i][1] = p[1];
             }
 
-            quad_destroy(quad);
+            pthread_mutex_lock(&td->mutex);
+            zarray_add(detections, &det);
+            pthread_mutex_unlock(&td->mutex);
+            ndetections++;
+        } else if (decision_margin == QUAD_DECODE_AMBIGUOUS) {
+            nrejected[APRILTAG_REJECT_AMBIGUOUS]++;
+        } else {
+            nrejected[APRILTAG_REJECT_DECODE]++;
         }
+
+        arena_release(arena, mark);
+    }
+
+    return ndetections;
+}
+
+static void quad_decode_task(void *_u)
+{
+    struct quad_decode_task *task = (struct quad_decode_task*) _u;
+    apriltag_detector_t *td = task->td;
+    arena_t *arena = workerpool_get_arena(td->wp);
+
+    // added to td->nrejected once the task is done
+    uint32_t nrejected[APRILTAG_NREJECTS] = { 0 };
+
+    for (int quadidx = task->i0; quadidx < task->i1; quadidx++) {
+        struct quad *quad_original;
+        zarray_get_volatile(task->quads, quadidx, &quad_original);
+
+        quad_decode_one(td, arena, task->im, quad_original, task->im_samples, nrejected,
+                        task->detections);
     }
+
+    pthread_mutex_lock(&td->mutex);
+    for (int i = APRILTAG_REJECT_BORDER; i < APRILTAG_NREJECTS; i++)
+        td->nrejected[i] += nrejected[i];
+    pthread_mutex_unlock(&td->mutex);
+}
+
+// Tells which quads of a coarse pyramid level decode. Each is decoded
+// from a copy, so that refinement leaves the quad itself as found.
+struct quad_cover_task
+{
+    int i0, i1;
+    zarray_t *quads;
+    apriltag_detector_t *td;
+
+    image_u8_t *im;
+    uint8_t *decodes;
+};
+
+static void quad_cover_task(void *_u)
+{
+    struct quad_cover_task *task = (struct quad_cover_task*) _u;
+    apriltag_detector_t *td = task->td;
+    arena_t *arena = workerpool_get_arena(td->wp);
+
+    // only a trial: the quads are decoded again with the others
+    zarray_t *detections = zarray_create(sizeof(apriltag_detection_t*));
+    uint32_t nrejected[APRILTAG_NREJECTS] = { 0 };
+
+    for (int quadidx = task->i0; quadidx < task->i1; quadidx++) {
+        struct quad quad;
+        zarray_get(task->quads, quadidx, &quad);
+        quad.H = NULL;
+        quad.Hinv = NULL;
+
+        arena_mark_t mark = arena_mark(arena);
+        task->decodes[quadidx] = quad_decode_one(td, arena, task->im, &quad, NULL, nrejected,
+                                                 detections) > 0;
+        arena_release(arena, mark);
+    }
+
+    for (int i = 0; i < zarray_size(detections); i++) {
+        apriltag_detection_t *det;
+        zarray_get(detections, i, &det);
+        apriltag_detection_destroy(det);
+    }
+    zarray_destroy(detections);
 }
 
 void apriltag_detection_destroy(apriltag_detection_t *det)
@@ -1077,18 +1258,20 @@ void apriltag_detection_destroy(apriltag_detection_t *det)
     free(det);
 }
 
-int prefer_smaller(int pref, double q0, double q1)
+static void ensure_workerpool(apriltag_detector_t *td)
 {
-    if (pref)     // already prefer something? exit.
-        return pref;
-
-    if (q0 < q1)
-        return -1; // we now prefer q0
-    if (q1 < q0)
-        return 1; // we now prefer q1
+    if (td->wp == NULL || td->nthreads != workerpool_get_nthreads(td->wp)) {
+        workerpool_destroy(td->wp);
+        td->wp = workerpool_create(td->nthreads);
+        td->wp_pinned = 0;
+    }
 
-    // no preference
-    return 0;
+    if (td->pin_fast_cores != td->wp_pinned) {
+        int cpus[64];
+        int ncpus = td->pin_fast_cores ? workerpool_get_fast_cpus(cpus, 64) : 0;
+        workerpool_set_cpus(td->wp, cpus, ncpus);
+        td->wp_pinned = td->pin_fast_cores;
+    }
 }
 
 zarray_t *apriltag_detector_detect(apriltag_detector_t *td, image_u8_t *im_orig)
@@ -1099,24 +1282,66 @@ zarray_t *apriltag_detector_detect(apriltag_detector_t *td, image_u8_t *im_orig)
         return s;
     }
 
-    if (td->wp == NULL || td->nthreads != workerpool_get_nthreads(td->wp)) {
-        workerpool_destroy(td->wp);
-        td->wp = workerpool_create(td->nthreads);
-    }
-
     timeprofile_clear(td->tp);
     timeprofile_stamp(td->tp, "init");
 
-    ///////////////////////////////////////////////////////////
-    // Step 1. Detect quads according to requested image decimation
-    // and blurring parameters.
-    image_u8_t *quad_im = im_orig;
-    if (td->quad_decimate > 1) {
-        quad_im = image_u8_decimate(im_orig, td->quad_decimate);
+    zarray_t *quads = apriltag_detector_detect_quads(td, im_orig);
 
-        timeprofile_stamp(td->tp, "decimate");
+    return apriltag_detector_decode_quads(td, im_orig, quads);
+}
+
+// XXX tunable: the shortest side, in pixels of a coarse pyramid
+// level, of a quad kept from that level. A tag 8 bits across needs
+// about 1.5 pixels per bit to decode reliably.
+#define PYRAMID_MIN_COVER_SIDE 12
+
+// Length of the shortest side of a quad
+static float quad_min_side(const struct quad *q)
+{
+    float min = INFINITY;
+    for (int i = 0; i < 4; i++) {
+        int j = (i + 1) & 3;
+        float dx = q->p[j][0] - q->p[i][0], dy = q->p[j][1] - q->p[i][1];
+        min = fminf(min, sqrtf(dx*dx + dy*dy));
     }
+    return min;
+}
+
+// Remove the quads (in full-resolution pixels of im) that don't decode.
+static void remove_undecodable_quads(apriltag_detector_t *td, arena_t *arena, image_u8_t *im,
+                                     zarray_t *quads)
+{
+    int nquads = zarray_size(quads);
+    uint8_t *decodes = arena_alloc(arena, imax(nquads, 1));
+
+    int chunksize = 1 + nquads / (APRILTAG_TASKS_PER_THREAD_TARGET * td->nthreads);
+    struct quad_cover_task tasks[nquads / chunksize + 1];
+
+    int ntasks = 0;
+    for (int i = 0; i < nquads; i += chunksize) {
+        tasks[ntasks].i0 = i;
+        tasks[ntasks].i1 = imin(nquads, i + chunksize);
+        tasks[ntasks].quads = quads;
+        tasks[ntasks].td = td;
+        tasks[ntasks].im = im;
+        tasks[ntasks].decodes = decodes;
+
+        workerpool_add_task(td->wp, quad_cover_task, &tasks[ntasks]);
+        ntasks++;
+    }
+
+    workerpool_run(td->wp);
 
+    for (int i = nquads - 1; i >= 0; i--) {
+        if (!decodes[i])
+            zarray_remove_index(quads, i, 0);
+    }
+}
+
+// Blur or sharpen one level of the quad pyramid as td->quad_sigma
+// asks, into a new image.
+static image_u8_t *preprocess_level(apriltag_detector_t *td, arena_t *arena, image_u8_t *quad_im)
+{
     if (td->quad_sigma != 0) {
         // compute a reasonable kernel width by figuring that the
         // kernel should go out 2 std devs.
@@ -1134,60 +1359,136 @@ zarray_t *apriltag_detector_detect(apriltag_detector_t *td, image_u8_t *im_orig)
             ksz++;
 
         if (ksz > 1) {
-
-            if (td->quad_sigma > 0) {
-                // Apply a blur
-                image_u8_gaussian_blur(quad_im, sigma, ksz);
-            } else {
-                // SHARPEN the image by subtracting the low frequency components.
-                image_u8_t *orig = image_u8_copy(quad_im);
-                image_u8_gaussian_blur(quad_im, sigma, ksz);
-
-                for (int y = 0; y < orig->height; y++) {
-                    for (int x = 0; x < orig->width; x++) {
-                        int vorig = orig->buf[y*orig->stride + x];
-                        int vblur = quad_im->buf[y*quad_im->stride + x];
-
-                        int v = 2*vorig - vblur;
-                        if (v < 0)
-                            v = 0;
-                        if (v > 255)
-                            v = 255;
-
-                        quad_im->buf[y*quad_im->stride + x] = (uint8_t) v;
-                    }
-                }
-                image_u8_destroy(orig);
-            }
+            // never filter the caller's image in place; it may be a
+            // read-only camera buffer, and decoding needs the original.
+            // Filtering into a new image also lets bands of rows be
+            // filtered in parallel, and sharpening needs no copy.
+            image_u8_t *filtered = image_u8_create_arena(arena, quad_im->width, quad_im->height,
+                                                         ARENA_ALIGNMENT);
+            image_u8_gaussian_filter(quad_im, filtered, sigma, ksz, td->quad_sigma < 0, td->wp);
+            quad_im = filtered;
         }
     }
 
-    timeprofile_stamp(td->tp, "blur/sharp");
+    return quad_im;
+}
+
+zarray_t *apriltag_detector_detect_quads(apriltag_detector_t *td, image_u8_t *im_orig)
+{
+    ensure_workerpool(td);
+
+    for (int i = 0; i <= APRILTAG_REJECT_QUAD_FIT; i++)
+        td->nrejected[i] = 0;
 
-    if (td->debug)
-        image_u8_write_pnm(quad_im, "debug_preprocess.pnm");
+    // Scratch memory for this frame. It is reset, but kept, once the
+    // quads are found, so the images below reuse the same buffers
+    // from frame to frame.
+    arena_t *arena = workerpool_get_arena(td->wp);
 
-//    zarray_t *quads = apriltag_quad_gradient(td, im_orig);
-    zarray_t *quads = apriltag_quad_thresh(td, quad_im);
+    ///////////////////////////////////////////////////////////
+    // Step 1. Detect quads according to requested image decimation
+    // and blurring parameters.
 
-    // adjust centers of pixels so that they correspond to the
-    // original full-resolution image.
+    // Level 0 of the pyramid is decimated by quad_decimate, and each
+    // further level by 2 from the one before.
+    int nlevels = imax(1, td->pyramid_levels);
+    image_u8_t *levels[nlevels];
+    float decimates[nlevels];
+
+    levels[0] = im_orig;
+    decimates[0] = 1;
     if (td->quad_decimate > 1) {
-        for (int i = 0; i < zarray_size(quads); i++) {
+        int width, height;
+        image_u8_decimate_size(im_orig, td->quad_decimate, &width, &height);
+
+        levels[0] = image_u8_create_arena(arena, width, height, ARENA_ALIGNMENT);
+        image_u8_decimate_into(im_orig, td->quad_decimate, levels[0]);
+        decimates[0] = td->quad_decimate;
+    }
+
+    for (int l = 1; l < nlevels; l++) {
+        int width, height;
+        image_u8_decimate_size(levels[l-1], 2, &width, &height);
+
+        // XXX tunable: an image this small has no room for a tag
+        // that the finer levels would not find anyway.
+        if (width < 32 || height < 32) {
+            nlevels = l;
+            break;
+        }
+
+        levels[l] = image_u8_create_arena(arena, width, height, ARENA_ALIGNMENT);
+        image_u8_decimate_into(levels[l-1], 2, levels[l]);
+        decimates[l] = 2 * decimates[l-1];
+    }
+
+    if (td->quad_decimate > 1 || nlevels > 1)
+        timeprofile_stamp(td->tp, "decimate");
+
+    zarray_t *quads = NULL;
+
+    for (int l = nlevels - 1; l >= 0; l--) {
+        image_u8_t *quad_im = preprocess_level(td, arena, levels[l]);
+
+        timeprofile_stamp(td->tp, "blur/sharp");
+
+        if (td->debug && l == 0)
+            image_u8_write_pnm(quad_im, "debug_preprocess.pnm");
+
+        // the quads found at coarser levels, in this level's pixels.
+        int ncovered = quads ? zarray_size(quads) : 0;
+        struct quad *covered = arena_alloc(arena, sizeof(struct quad) * imax(ncovered, 1));
+        for (int i = 0; i < ncovered; i++) {
+            zarray_get(quads, i, &covered[i]);
+
+            for (int j = 0; j < 4; j++) {
+                covered[i].p[j][0] /= decimates[l];
+                covered[i].p[j][1] /= decimates[l];
+            }
+        }
+
+//        zarray_t *level_quads = apriltag_quad_gradient(td, im_orig);
+        zarray_t *level_quads = apriltag_quad_thresh(td, quad_im, covered, ncovered);
+
+        for (int i = zarray_size(level_quads) - 1; i >= 0; i--) {
             struct quad *q;
-            zarray_get_volatile(quads, i, &q);
+            zarray_get_volatile(level_quads, i, &q);
 
-            for (int i = 0; i < 4; i++) {
-                q->p[i][0] *= td->quad_decimate;
-                q->p[i][1] *= td->quad_decimate;
+            // above the finest level, keep only the quads large enough
+            // to decode at this resolution; smaller ones are left to be
+            // found at the finer levels.
+            if (l > 0 && quad_min_side(q) < PYRAMID_MIN_COVER_SIDE) {
+                zarray_remove_index(level_quads, i, 0);
+                continue;
+            }
+
+            // adjust centers of pixels so that they correspond to the
+            // original full-resolution image.
+            q->decimate = decimates[l];
+            if (decimates[l] > 1) {
+                for (int j = 0; j < 4; j++) {
+                    q->p[j][0] *= decimates[l];
+                    q->p[j][1] *= decimates[l];
+                }
             }
         }
-    }
 
-    if (quad_im != im_orig)
-        image_u8_destroy(quad_im);
+        // The finer levels don't search the regions of the quads kept
+        // from this one, so keep only those that decode. Any other
+        // (clutter, or a tag too blurred or sharpened at this scale)
+        // would hide whatever is in its region.
+        if (l > 0 && zarray_size(level_quads) > 0)
+            remove_undecodable_quads(td, arena, im_orig, level_quads);
 
-    zarray_t *detections = zarray_create(sizeof(apriltag_detection_t*));
+        if (quads == NULL) {
+            quads = level_quads;
+        } else {
+            zarray_add_all(quads, level_quads);
+            zarray_destroy(level_quads);
+        }
+    }
+
+    workerpool_reset_arenas(td->wp);
 
     td->nquads = zarray_size(quads);
 
@@ -1217,6 +1518,18 @@ zarray_t *apriltag_detector_detect(apriltag_detector_t *td, image_u8_t *im_orig)
         image_u8_destroy(im_quads);
     }
 
+    return quads;
+}
+
+zarray_t *apriltag_detector_decode_quads(apriltag_detector_t *td, image_u8_t *im_orig, zarray_t *quads)
+{
+    ensure_workerpool(td);
+
+    for (int i = APRILTAG_REJECT_BORDER; i < APRILTAG_NREJECTS; i++)
+        td->nrejected[i] = 0;
+
+    zarray_t *detections = zarray_create(sizeof(apriltag_detection_t*));
+
     ////////////////////////////////////////////////////////////////
     // Step 2. Decode tags from each quad.
     if (1) {
@@ -1274,79 +1587,14 @@ zarray_t *apriltag_detector_detect(apriltag_detector_t *td, image_u8_t *im_orig)
         image_u8_destroy(im_quads);
     }
 
+    td->ndecoded = zarray_size(detections);
+
     timeprofile_stamp(td->tp, "decode+refinement");
 
     ////////////////////////////////////////////////////////////////
     // Step 3. Reconcile detections--- don't report the same tag more
     // than once. (Allow non-overlapping duplicate detections.)
-    if (1) {
-        zarray_t *poly0 = g2d_polygon_create_zeros(4);
-        zarray_t *poly1 = g2d_polygon_create_zeros(4);
-
-        for (int i0 = 0; i0 < zarray_size(detections); i0++) {
-
-            apriltag_detection_t *det0;
-            zarray_get(detections, i0, &det0);
-
-            for (int k = 0; k < 4; k++)
-                zarray_set(poly0, k, det0->p[k], NULL);
-
-            for (int i1 = i0+1; i1 < zarray_size(detections); i1++) {
-
-                apriltag_detection_t *det1;
-                zarray_get(detections, i1, &det1);
-
-                if (det0->id != det1->id || det0->family != det1->family)
-                    continue;
-
-                for (int k = 0; k < 4; k++)
-                    zarray_set(poly1, k, det1->p[k], NULL);
-
-                if (g2d_polygon_overlaps_polygon(poly0, poly1)) {
-                    // the tags overlap. Delete one, keep the other.
-
-                    int pref = 0; // 0 means undecided which one we'll keep.
-                    pref = prefer_smaller(pref, det0->hamming, det1->hamming);     // want small hamming
-                    pref = prefer_smaller(pref, -det0->decision_margin, -det1->decision_margin);      // want bigger margins
-                    pref = prefer_smaller(pref, -det0->goodness, -det1->goodness); // want bigger goodness
-
-                    // if we STILL don't prefer one detection over the other, then pick
-                    // any deterministic criterion.
-                    for (int i = 0; i < 4; i++) {
-                        pref = prefer_smaller(pref, det0->p[i][0], det1->p[i][0]);
-                        pref = prefer_smaller(pref, det0->p[i][1], det1->p[i][1]);
-                    }
-
-                    if (pref == 0) {
-                        // at this point, we should only be undecided if the tag detections
-                        // are *exactly* the same. How would that happen?
-                        printf("uh oh, no preference for overlappingdetection\n");
-                    }
-
-                    if (pref < 0) {
-                        // keep det0, destroy det1
-                        apriltag_detection_destroy(det1);
-                        zarray_remove_index(detections, i1, 1);
-                        i1--; // retry the same index
-                        goto retry1;
-                    } else {
-                        // keep det1, destroy det0
-                        apriltag_detection_destroy(det0);
-                        zarray_remove_index(detections, i0, 1);
-                        i0--; // retry the same index.
-                        goto retry0;
-                    }
-                }
-
-              retry1: ;
-            }
-
-          retry0: ;
-        }
-
-        zarray_destroy(poly0);
-        zarray_destroy(poly1);
-    }
+    apriltag_reconcile_detections(detections);
 
     timeprofile_stamp(td->tp, "reconcile");
 
@@ -1473,14 +1721,9 @@ zarray_t *apriltag_detector_detect(apriltag_detector_t *td, image_u8_t *im_orig)
 
     timeprofile_stamp(td->tp, "debug output");
 
-    for (int i = 0; i < zarray_size(quads); i++) {
-        struct quad *quad;
-        zarray_get_volatile(quads, i, &quad);
-        matd_destroy(quad->H);
-        matd_destroy(quad->Hinv);
-    }
-
+    // the homographies of the quads were allocated in the arenas
     zarray_destroy(quads);
+    workerpool_reset_arenas(td->wp);
 
     zarray_sort(detections, detection_compare_function);
     timeprofile_stamp(td->tp, "cleanup");
@@ -1502,6 +1745,31 @@ void apriltag_detections_destroy(zarray_t *detections)
     zarray_destroy(detections);
 }
 
+void apriltag_detections_translate(zarray_t *detections, double dx, double dy)
+{
+    if (dx == 0 && dy == 0)
+        return;
+
+    for (int i = 0; i < zarray_size(detections); i++) {
+        apriltag_detection_t *det;
+        zarray_get(detections, i, &det);
+
+        det->c[0] += dx;
+        det->c[1] += dy;
+        for (int j = 0; j < 4; j++) {
+            det->p[j][0] += dx;
+            det->p[j][1] += dy;
+        }
+
+        // H' = T H, with T the translation by (dx, dy)
+        double *H = det->H->data;
+        for (int j = 0; j < 3; j++) {
+            H[0+j] += dx * H[6+j];
+            H[3+j] += dy * H[6+j];
+        }
+    }
+}
+
 image_u8_t *apriltag_to_image(apriltag_family_t *fam, int idx)
 {
     assert(fam != NULL);
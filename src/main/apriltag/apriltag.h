@@ -44,6 +44,7 @@ extern "C" {
 #include "common/zarray.h"
 #include "common/workerpool.h"
 #include "common/timeprofile.h"
+#include "apriltag_stats.h"
 #include <pthread.h>
 
 #define APRILTAG_TASKS_PER_THREAD_TARGET 10
@@ -52,6 +53,10 @@ struct quad
 {
     float p[4][2]; // corners
 
+    // decimation of the image the quad was found in, which bounds how
+    // far refine_edges searches for the true edges.
+    float decimate;
+
     // H: tag coordinates ([-1,1] at the black corners) to pixels
     // Hinv: pixels to tag
     matd_t *H, *Hinv;
@@ -94,6 +99,14 @@ struct apriltag_quad_thresh_params
     // reject quads containing too few pixels
     int min_cluster_pixels;
 
+    // Reject clusters, before a quad is fit to them, whose bounding
+    // box is under min_cluster_side pixels (of the image quads are
+    // searched in) on its shorter side, or more than
+    // max_cluster_aspect times as long as it is wide. Zero (the
+    // default) disables either check.
+    int min_cluster_side;
+    float max_cluster_aspect;
+
     // how many corner candidates to consider when segmenting a group
     // of pixels into a quad.
     int max_nmaxima;
@@ -132,12 +145,28 @@ struct apriltag_detector
     // How many threads should be used?
     int nthreads;
 
+    // When non-zero, worker threads are pinned to the fastest cores
+    // (the big cores of a big.LITTLE CPU), where the OS reports them.
+    int pin_fast_cores;
+
     // detection of quads can be done on a lower-resolution image,
     // improving speed at a cost of pose accuracy and a slight
     // decrease in detection rate. Decoding the binary payload is
     // still done at full resolution. .
     float quad_decimate;
 
+    // When greater than 1, quads are also searched for on coarser
+    // images, each decimated by twice as much as the next finer one,
+    // down to quad_decimate. The coarsest level is searched first and
+    // keeps only quads large enough to decode at its resolution that
+    // do decode (trying them costs a second decode of each tag found
+    // there); each finer level skips the regions of the quads already
+    // found. Large, near tags are thus segmented cheaply at low
+    // resolution while the finest level still finds small, far ones,
+    // and anything a coarse level finds but can't read is searched for
+    // again at the finer levels.
+    int pyramid_levels;
+
     // What Gaussian blur should be applied to the segmented image
     // (used for quad detection?)  Parameter is the standard deviation
     // in pixels.  Very noisy images benefit from non-zero values
@@ -170,6 +199,21 @@ struct apriltag_detector
     // computed.
     int refine_pose;
 
+    // When greater than zero, each quad is probed before it is
+    // refined or decoded: at a few points along each side, the pixel
+    // just outside the black border is compared with the one just
+    // inside it. Unless the outside is brighter by at least this many
+    // gray levels on average, the quad is rejected. Zero by default.
+    float min_border_contrast;
+
+    // When greater than zero, a bit whose sample is within this many
+    // gray levels of the decision threshold is ambiguous, and a quad
+    // is rejected as soon as more of its bits are ambiguous than the
+    // number of errors the family corrects plus a quarter of its
+    // bits, without sampling the rest. Refinement (refine_decode)
+    // still samples every bit. Zero by default.
+    float ambiguous_bit_margin;
+
     // When non-zero, write a variety of debugging images to the
     // current working directory at various stages through the
     // detection process. (Somewhat slow).
@@ -184,6 +228,13 @@ struct apriltag_detector
     uint32_t nedges;
     uint32_t nsegments;
     uint32_t nquads;
+    uint32_t ndecoded; // quads decoded as tags, before reconciliation
+
+    // candidates removed by each stage of the rejection cascade,
+    // indexed by APRILTAG_REJECT_*. Finding quads sets the counts of
+    // the stages up to APRILTAG_REJECT_QUAD_FIT, decoding them the
+    // rest.
+    uint32_t nrejected[APRILTAG_NREJECTS];
 
     ///////////////////////////////////////////////////////////////
     // Internal variables below
@@ -195,6 +246,7 @@ struct apriltag_detector
 
     // Used to manage multi-threading.
     workerpool_t *wp;
+    int wp_pinned; // pin_fast_cores as applied to wp
 
     // Used for thread safety.
     pthread_mutex_t mutex;
@@ -276,12 +328,32 @@ void apriltag_detector_destroy(apriltag_detector_t *td);
 // _detection_destroy and zarray_destroy yourself.
 zarray_t *apriltag_detector_detect(apriltag_detector_t *td, image_u8_t *im_orig);
 
+// The two stages of apriltag_detector_detect, for callers that want to
+// run them separately (e.g. overlapped across frames, see
+// apriltag_pipeline.h). detect_quads segments the image and returns
+// an array of struct quad; decode_quads decodes and reconciles them
+// and destroys the quads. im_orig must stay valid until decode_quads
+// returns. Unlike apriltag_detector_detect, neither clears td->tp.
+//
+// Both stages take their scratch memory from per-thread arenas of
+// td->wp and reset them before returning, so nothing else may use
+// that workerpool's arenas across the calls. The quads passed between
+// them have no homographies (H and Hinv are NULL); decode_quads
+// computes them in its arenas.
+zarray_t *apriltag_detector_detect_quads(apriltag_detector_t *td, image_u8_t *im_orig);
+zarray_t *apriltag_detector_decode_quads(apriltag_detector_t *td, image_u8_t *im_orig, zarray_t *quads);
+
 // Call this method on each of the tags returned by apriltag_detector_detect
 void apriltag_detection_destroy(apriltag_detection_t *det);
 
 // destroys the array AND the detections within it.
 void apriltag_detections_destroy(zarray_t *detections);
 
+// Move detections found in a crop of an image into the coordinates of
+// the whole image, the crop's top-left corner being at (dx, dy).
+// Corners, centers and homographies are all updated.
+void apriltag_detections_translate(zarray_t *detections, double dx, double dy);
+
 // Renders the apriltag with with 1px white border.
 // Caller is responsible for calling image_u8_destroy on the image
 image_u8_t *apriltag_to_image(apriltag_family_t *fam, int idx);
@@ -0,0 +1,125 @@
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag_batch.h"
+#include "common/timeprofile.h"
+#include "common/workerpool.h"
+
+struct batch
+{
+    image_u8_t **ims;
+    zarray_t **detections;
+    int n;
+
+    int next; // next frame to claim, advanced atomically
+};
+
+struct batch_worker
+{
+    struct batch *batch;
+    apriltag_detector_t *td;
+    apriltag_stats_t stats;
+};
+
+// A private detector with the parameters and tag families of td but
+// its own workerpool, timeprofile and mutex.
+static apriltag_detector_t *worker_detector_create(apriltag_detector_t *td, int nthreads)
+{
+    apriltag_detector_t *wtd = calloc(1, sizeof(apriltag_detector_t));
+    memcpy(wtd, td, sizeof(apriltag_detector_t));
+
+    wtd->nthreads = nthreads;
+    wtd->wp = NULL;
+    wtd->tp = timeprofile_create();
+    pthread_mutex_init(&wtd->mutex, NULL);
+
+    return wtd;
+}
+
+// unlike apriltag_detector_destroy, leaves the (shared) tag families alone.
+static void worker_detector_destroy(apriltag_detector_t *wtd)
+{
+    workerpool_destroy(wtd->wp);
+    timeprofile_destroy(wtd->tp);
+    pthread_mutex_destroy(&wtd->mutex);
+    free(wtd);
+}
+
+static void *worker_run(void *p)
+{
+    struct batch_worker *w = (struct batch_worker*) p;
+    struct batch *batch = w->batch;
+
+    while (1) {
+        int i = __atomic_fetch_add(&batch->next, 1, __ATOMIC_RELAXED);
+        if (i >= batch->n)
+            break;
+
+        batch->detections[i] = apriltag_detector_detect(w->td, batch->ims[i]);
+
+        apriltag_stats_add_profile(&w->stats, w->td->tp);
+        w->stats.nquads += w->td->nquads;
+        w->stats.ndecoded += w->td->ndecoded;
+        apriltag_stats_add_rejected(&w->stats, w->td->nrejected);
+        w->stats.ndetections += zarray_size(batch->detections[i]);
+    }
+
+    return NULL;
+}
+
+zarray_t **apriltag_detector_detect_batch(apriltag_detector_t *td, image_u8_t **ims, int n,
+                                          apriltag_stats_t *stats)
+{
+    struct batch batch = {
+        .ims = ims,
+        .detections = calloc(n > 0 ? n : 1, sizeof(zarray_t*)),
+        .n = n,
+        .next = 0,
+    };
+
+    if (stats)
+        apriltag_stats_clear(stats);
+    if (n <= 0)
+        return batch.detections;
+
+    int nthreads = td->nthreads > 0 ? td->nthreads : 1;
+    int nworkers = n < nthreads ? n : nthreads;
+
+    // The calling thread is worker 0.
+    struct batch_worker *workers = calloc(nworkers, sizeof(struct batch_worker));
+    pthread_t *threads = calloc(nworkers, sizeof(pthread_t));
+
+    for (int i = 0; i < nworkers; i++) {
+        // hand out the leftover threads one each to the first workers
+        int wthreads = nthreads / nworkers + (i < nthreads % nworkers ? 1 : 0);
+
+        workers[i].batch = &batch;
+        workers[i].td = worker_detector_create(td, wthreads);
+        apriltag_stats_clear(&workers[i].stats);
+    }
+
+    for (int i = 1; i < nworkers; i++)
+        pthread_create(&threads[i], NULL, worker_run, &workers[i]);
+    worker_run(&workers[0]);
+    for (int i = 1; i < nworkers; i++)
+        pthread_join(threads[i], NULL);
+
+    for (int i = 0; i < nworkers; i++) {
+        if (stats) {
+            for (int s = 0; s < APRILTAG_NSTAGES; s++)
+                stats->stage_ns[s] += workers[i].stats.stage_ns[s];
+            stats->nquads += workers[i].stats.nquads;
+            stats->ndecoded += workers[i].stats.ndecoded;
+            stats->ndetections += workers[i].stats.ndetections;
+            for (int r = 0; r < APRILTAG_NREJECTS; r++)
+                stats->nrejected[r] += workers[i].stats.nrejected[r];
+        }
+        worker_detector_destroy(workers[i].td);
+    }
+
+    free(threads);
+    free(workers);
+
+    return batch.detections;
+}
@@ -0,0 +1,31 @@
+#ifndef _APRILTAG_BATCH_H
+#define _APRILTAG_BATCH_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#include "apriltag.h"
+#include "apriltag_stats.h"
+
+// Detect tags in n independent frames, such as a recorded sequence.
+//
+// The td->nthreads threads are spread over frames first: up to
+// nthreads frames are detected at once, each by its own private
+// detector and workerpool, and the threads left over are used within
+// frames. On many frames this keeps every core busy on work that does
+// not need to synchronize, instead of splitting each frame into tasks.
+// Frames are independent, so tracking does not apply.
+//
+// td is only used for its parameters and shared tag families. Returns
+// an array of n detection lists, in frame order; destroy each with
+// apriltag_detections_destroy and free the array. If stats is not
+// NULL, it receives the timings and counts summed over all frames.
+zarray_t **apriltag_detector_detect_batch(apriltag_detector_t *td, image_u8_t **ims, int n,
+                                          apriltag_stats_t *stats);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
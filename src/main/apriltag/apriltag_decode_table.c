@@ -0,0 +1,392 @@
+#include <assert.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include "apriltag_decode_table.h"
+
+// Bump whenever the file layout or the hashing changes; older files
+// are then rebuilt.
+#define DECODE_TABLE_VERSION 1
+
+static const char decode_table_magic[8] = "ATDECTB";
+
+// One slot of the open-addressing table. Instead of the full codeword,
+// only the upper half of its hash is kept; a fingerprint match is
+// confirmed by counting the bits that differ from the code of id, so
+// lookups stay exact.
+struct decode_slot
+{
+    uint32_t fingerprint;
+    uint16_t id;        // UINT16_MAX if the slot is empty
+    uint8_t hamming;
+    uint8_t reserved;
+};
+
+// Start of a table file, followed by nslots slots. Fields are in the
+// byte order of the device, which is the only one that reads the file.
+struct decode_table_header
+{
+    char magic[8];
+    uint32_t version;
+    uint32_t nbits;
+    uint32_t ncodes;
+    uint32_t maxhamming;
+    uint64_t codes_hash;
+    uint64_t nslots;
+    uint64_t nentries;
+    uint8_t reserved[16];
+};
+
+struct apriltag_decode_table
+{
+    uint32_t nbits, ncodes, maxhamming;
+    uint64_t codes_hash;
+    uint64_t *codes;
+
+    uint64_t mask; // nslots - 1
+    const struct decode_slot *slots;
+
+    // the slots are either mapped from a file or owned on the heap
+    void *map;
+    size_t map_size;
+    struct decode_slot *heap;
+
+    int refcount;
+    apriltag_decode_table_t *next;
+};
+
+// Tables in use, and the cache directory; both guarded by mutex.
+static pthread_mutex_t mutex = PTHREAD_MUTEX_INITIALIZER;
+static apriltag_decode_table_t *tables;
+static char *cache_dir;
+
+static inline uint64_t mix64(uint64_t x)
+{
+    x ^= x >> 30;
+    x *= 0xbf58476d1ce4e5b9ULL;
+    x ^= x >> 27;
+    x *= 0x94d049bb133111ebULL;
+    x ^= x >> 31;
+    return x;
+}
+
+static uint64_t hash_codes(const apriltag_family_t *tf)
+{
+    uint64_t h = mix64(tf->d * tf->d) ^ mix64(tf->ncodes + 1);
+    for (int i = 0; i < tf->ncodes; i++)
+        h = mix64(h ^ tf->codes[i]) + i;
+    return h;
+}
+
+static uint64_t nchoosek(int n, int k)
+{
+    uint64_t r = 1;
+    for (int i = 1; i <= k; i++)
+        r = r * (n - k + i) / i;
+    return r;
+}
+
+static void table_add(struct decode_slot *slots, uint64_t mask, uint64_t code, int id, int hamming)
+{
+    uint64_t h = mix64(code);
+    uint64_t bucket = h & mask;
+
+    while (slots[bucket].id != UINT16_MAX)
+        bucket = (bucket + 1) & mask;
+
+    slots[bucket].fingerprint = h >> 32;
+    slots[bucket].id = id;
+    slots[bucket].hamming = hamming;
+}
+
+// Build the slots of table in memory. Entries are added in the same
+// order as the original quick_decode table, so when a codeword is
+// within maxhamming of two codes, the same one wins.
+static void table_build(apriltag_decode_table_t *table, uint64_t *nentries)
+{
+    int nbits = table->nbits;
+
+    uint64_t count = 0;
+    for (int k = 0; k <= table->maxhamming; k++)
+        count += nchoosek(nbits, k);
+    count *= table->ncodes;
+
+    // keep the load factor at or below 2/3
+    uint64_t nslots = 64;
+    while (nslots < count + count / 2)
+        nslots *= 2;
+
+    struct decode_slot *slots = malloc(nslots * sizeof(struct decode_slot));
+    if (slots == NULL) {
+        printf("apriltag_decode_table.c: failed to allocate hamming decode table. Reduce max hamming size.\n");
+        exit(-1);
+    }
+    memset(slots, 0xff, nslots * sizeof(struct decode_slot));
+
+    uint64_t mask = nslots - 1;
+
+    for (int i = 0; i < table->ncodes; i++) {
+        uint64_t code = table->codes[i];
+
+        table_add(slots, mask, code, i, 0);
+
+        if (table->maxhamming >= 1) {
+            for (int j = 0; j < nbits; j++)
+                table_add(slots, mask, code ^ (1ULL << j), i, 1);
+        }
+
+        if (table->maxhamming >= 2) {
+            for (int j = 0; j < nbits; j++)
+                for (int k = 0; k < j; k++)
+                    table_add(slots, mask, code ^ (1ULL << j) ^ (1ULL << k), i, 2);
+        }
+
+        if (table->maxhamming >= 3) {
+            for (int j = 0; j < nbits; j++)
+                for (int k = 0; k < j; k++)
+                    for (int m = 0; m < k; m++)
+                        table_add(slots, mask, code ^ (1ULL << j) ^ (1ULL << k) ^ (1ULL << m), i, 3);
+        }
+    }
+
+    table->heap = slots;
+    table->slots = slots;
+    table->mask = mask;
+    *nentries = count;
+}
+
+static char *table_path(const apriltag_decode_table_t *table, const apriltag_family_t *tf)
+{
+    const char *name = tf->name ? tf->name : "tag";
+    size_t len = strlen(cache_dir) + strlen(name) + 64;
+    char *path = malloc(len);
+    snprintf(path, len, "%s/%s-h%u-%016llx.qdt", cache_dir, name, table->maxhamming,
+             (unsigned long long) table->codes_hash);
+    return path;
+}
+
+// Map the table file at path if it matches table. Returns 0 on success.
+static int table_map(apriltag_decode_table_t *table, const char *path)
+{
+    int fd = open(path, O_RDONLY);
+    if (fd < 0)
+        return -1;
+
+    struct stat st;
+    if (fstat(fd, &st) != 0 || st.st_size < (off_t) sizeof(struct decode_table_header)) {
+        close(fd);
+        return -1;
+    }
+
+    void *map = mmap(NULL, st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+    close(fd);
+    if (map == MAP_FAILED)
+        return -1;
+
+    const struct decode_table_header *hdr = map;
+    uint64_t nslots = hdr->nslots;
+    if (memcmp(hdr->magic, decode_table_magic, sizeof(hdr->magic)) ||
+            hdr->version != DECODE_TABLE_VERSION ||
+            hdr->nbits != table->nbits ||
+            hdr->ncodes != table->ncodes ||
+            hdr->maxhamming != table->maxhamming ||
+            hdr->codes_hash != table->codes_hash ||
+            nslots == 0 || (nslots & (nslots - 1)) != 0 ||
+            st.st_size != sizeof(struct decode_table_header) + nslots * sizeof(struct decode_slot)) {
+        munmap(map, st.st_size);
+        return -1;
+    }
+
+    // lookups hit random slots; don't read ahead
+    madvise(map, st.st_size, MADV_RANDOM);
+
+    table->map = map;
+    table->map_size = st.st_size;
+    table->slots = (const struct decode_slot*) (hdr + 1);
+    table->mask = nslots - 1;
+    return 0;
+}
+
+static int write_all(int fd, const void *buf, size_t len)
+{
+    const char *p = buf;
+    while (len > 0) {
+        ssize_t n = write(fd, p, len);
+        if (n < 0) {
+            if (errno == EINTR)
+                continue;
+            return -1;
+        }
+        p += n;
+        len -= n;
+    }
+    return 0;
+}
+
+// Write the heap table to path. The file is written under a temporary
+// name and renamed into place, so readers never see a partial table.
+static int table_write(const apriltag_decode_table_t *table, const char *path, uint64_t nentries)
+{
+    size_t len = strlen(path) + 8;
+    char *tmp = malloc(len);
+    snprintf(tmp, len, "%s.XXXXXX", path);
+
+    int fd = mkstemp(tmp);
+    if (fd < 0) {
+        free(tmp);
+        return -1;
+    }
+
+    struct decode_table_header hdr;
+    memset(&hdr, 0, sizeof(hdr));
+    memcpy(hdr.magic, decode_table_magic, sizeof(hdr.magic));
+    hdr.version = DECODE_TABLE_VERSION;
+    hdr.nbits = table->nbits;
+    hdr.ncodes = table->ncodes;
+    hdr.maxhamming = table->maxhamming;
+    hdr.codes_hash = table->codes_hash;
+    hdr.nslots = table->mask + 1;
+    hdr.nentries = nentries;
+
+    int res = write_all(fd, &hdr, sizeof(hdr));
+    if (res == 0)
+        res = write_all(fd, table->heap, (table->mask + 1) * sizeof(struct decode_slot));
+    if (close(fd) != 0)
+        res = -1;
+    if (res == 0)
+        res = rename(tmp, path);
+    if (res != 0)
+        unlink(tmp);
+
+    free(tmp);
+    return res;
+}
+
+void apriltag_decode_table_set_cache_dir(const char *dir)
+{
+    pthread_mutex_lock(&mutex);
+    free(cache_dir);
+    cache_dir = (dir && dir[0]) ? strdup(dir) : NULL;
+    pthread_mutex_unlock(&mutex);
+}
+
+apriltag_decode_table_t *apriltag_decode_table_acquire(const apriltag_family_t *tf, int maxhamming)
+{
+    assert(tf->ncodes < UINT16_MAX);
+
+    if (maxhamming > 3) {
+        printf("apriltag_decode_table.c: maxhamming beyond 3 not supported\n");
+        maxhamming = 3;
+    }
+    if (maxhamming < 0)
+        maxhamming = 0;
+
+    uint64_t codes_hash = hash_codes(tf);
+
+    // Building under the lock keeps two detectors from building the
+    // same table at once.
+    pthread_mutex_lock(&mutex);
+
+    for (apriltag_decode_table_t *t = tables; t; t = t->next) {
+        if (t->codes_hash == codes_hash && t->maxhamming == maxhamming &&
+                t->nbits == tf->d * tf->d && t->ncodes == tf->ncodes &&
+                !memcmp(t->codes, tf->codes, tf->ncodes * sizeof(uint64_t))) {
+            t->refcount++;
+            pthread_mutex_unlock(&mutex);
+            return t;
+        }
+    }
+
+    apriltag_decode_table_t *table = calloc(1, sizeof(apriltag_decode_table_t));
+    table->nbits = tf->d * tf->d;
+    table->ncodes = tf->ncodes;
+    table->maxhamming = maxhamming;
+    table->codes_hash = codes_hash;
+    table->codes = malloc(tf->ncodes * sizeof(uint64_t));
+    memcpy(table->codes, tf->codes, tf->ncodes * sizeof(uint64_t));
+
+    char *path = cache_dir ? table_path(table, tf) : NULL;
+
+    if (path == NULL || table_map(table, path) != 0) {
+        uint64_t nentries;
+        table_build(table, &nentries);
+
+        // Swap the heap copy for the file, whose pages the kernel can
+        // drop and reload as needed.
+        if (path && table_write(table, path, nentries) == 0 && table_map(table, path) == 0) {
+            free(table->heap);
+            table->heap = NULL;
+        }
+    }
+    free(path);
+
+    table->refcount = 1;
+    table->next = tables;
+    tables = table;
+
+    pthread_mutex_unlock(&mutex);
+
+    return table;
+}
+
+void apriltag_decode_table_release(apriltag_decode_table_t *table)
+{
+    if (table == NULL)
+        return;
+
+    pthread_mutex_lock(&mutex);
+
+    if (--table->refcount > 0) {
+        pthread_mutex_unlock(&mutex);
+        return;
+    }
+
+    for (apriltag_decode_table_t **p = &tables; *p; p = &(*p)->next) {
+        if (*p == table) {
+            *p = table->next;
+            break;
+        }
+    }
+
+    pthread_mutex_unlock(&mutex);
+
+    if (table->map)
+        munmap(table->map, table->map_size);
+    free(table->heap);
+    free(table->codes);
+    free(table);
+}
+
+size_t apriltag_decode_table_memory(const apriltag_decode_table_t *table)
+{
+    return (table->mask + 1) * sizeof(struct decode_slot);
+}
+
+int apriltag_decode_table_lookup(const apriltag_decode_table_t *table, uint64_t rcode,
+                                 int *id, int *hamming)
+{
+    uint64_t h = mix64(rcode);
+    uint32_t fingerprint = h >> 32;
+
+    for (uint64_t bucket = h & table->mask;
+         table->slots[bucket].id != UINT16_MAX;
+         bucket = (bucket + 1) & table->mask) {
+
+        const struct decode_slot *slot = &table->slots[bucket];
+        if (slot->fingerprint == fingerprint &&
+                __builtin_popcountll(rcode ^ table->codes[slot->id]) == slot->hamming) {
+            *id = slot->id;
+            *hamming = slot->hamming;
+            return 1;
+        }
+    }
+
+    return 0;
+}
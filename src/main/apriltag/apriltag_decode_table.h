@@ -0,0 +1,46 @@
+#ifndef _APRILTAG_DECODE_TABLE_H
+#define _APRILTAG_DECODE_TABLE_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include "apriltag.h"
+
+// Lookup tables from every codeword within maxhamming bit errors of a
+// code of a tag family to that code's id and the number of errors.
+//
+// A table is immutable once built and is shared by every user of the
+// same family codes and maxhamming in the process. If a cache
+// directory is set, each table is built only once per device: it is
+// written there and later mapped read-only, so getting it costs a
+// file open instead of generating millions of entries on the heap.
+typedef struct apriltag_decode_table apriltag_decode_table_t;
+
+// Where table files are kept. NULL or "" (the default) keeps tables in
+// memory only. Affects tables acquired afterwards.
+void apriltag_decode_table_set_cache_dir(const char *dir);
+
+// Get the table for tf and maxhamming (at most 3): the one already in
+// use, else the one in the cache directory, else a newly built one.
+// Building may take seconds for maxhamming 3.
+apriltag_decode_table_t *apriltag_decode_table_acquire(const apriltag_family_t *tf, int maxhamming);
+
+void apriltag_decode_table_release(apriltag_decode_table_t *table);
+
+// Size of the table's slots in bytes, whether on the heap or mapped.
+size_t apriltag_decode_table_memory(const apriltag_decode_table_t *table);
+
+// If rcode is within the table's maxhamming of a code, set *id and
+// *hamming and return 1; otherwise return 0. Rotations are not tried.
+int apriltag_decode_table_lookup(const apriltag_decode_table_t *table, uint64_t rcode,
+                                 int *id, int *hamming);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
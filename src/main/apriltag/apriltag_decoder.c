@@ -0,0 +1,327 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag_decoder.h"
+#include "apriltag_decode_table.h"
+
+/** if the bits in w were arranged in a d*d grid and that grid was
+ * rotated, what would the new bits in w be?
+ * The bits are organized like this (for d = 3):
+ *
+ *  8 7 6       2 5 8      0 1 2
+ *  5 4 3  ==>  1 4 7 ==>  3 4 5    (rotate90 applied twice)
+ *  2 1 0       0 3 6      6 7 8
+ **/
+static uint64_t rotate90(uint64_t w, uint32_t d)
+{
+    uint64_t wr = 0;
+
+    for (int32_t r = d-1; r >=0; r--) {
+        for (int32_t c = 0; c < d; c++) {
+            int32_t b = r + d*c;
+
+            wr = wr << 1;
+
+            if ((w & (((uint64_t) 1) << b))!=0)
+                wr |= 1;
+        }
+    }
+
+    return wr;
+}
+
+// Codes in the order the decoders search them: rotcodes[k*ncodes + i]
+// is code i rotated so that it lines up with a codeword rotated k
+// times, i.e. rotated 4-k times. Comparing rcode against it is the same
+// as comparing rcode rotated k times against code i, so the codeword
+// never needs rotating at decode time.
+static uint64_t *rotated_codes_create(const apriltag_family_t *tf)
+{
+    uint64_t *rotcodes = malloc(4 * tf->ncodes * sizeof(uint64_t));
+
+    for (int i = 0; i < tf->ncodes; i++) {
+        uint64_t code = tf->codes[i];
+        rotcodes[i] = code;
+        for (int k = 3; k >= 1; k--) {
+            code = rotate90(code, tf->d);
+            rotcodes[k*tf->ncodes + i] = code;
+        }
+    }
+
+    return rotcodes;
+}
+
+////////////////////////////////////////////////////////////////
+// TABLE
+
+struct table_decoder
+{
+    apriltag_decoder_t base;
+    uint32_t d;
+    apriltag_decode_table_t *table;
+};
+
+static int table_decode(const apriltag_decoder_t *dec, uint64_t rcode,
+                        int *id, int *hamming, int *rotation)
+{
+    const struct table_decoder *td = (const struct table_decoder*) dec;
+
+    for (int ridx = 0; ridx < 4; ridx++) {
+        if (apriltag_decode_table_lookup(td->table, rcode, id, hamming)) {
+            *rotation = ridx;
+            return 1;
+        }
+
+        rcode = rotate90(rcode, td->d);
+    }
+
+    return 0;
+}
+
+static void table_destroy(apriltag_decoder_t *dec)
+{
+    struct table_decoder *td = (struct table_decoder*) dec;
+    apriltag_decode_table_release(td->table);
+    free(td);
+}
+
+static apriltag_decoder_t *table_create(const apriltag_family_t *tf, int maxhamming)
+{
+    struct table_decoder *td = calloc(1, sizeof(struct table_decoder));
+    td->base.type = APRILTAG_DECODER_TABLE;
+    td->base.maxhamming = maxhamming;
+    td->base.decode = table_decode;
+    td->base.destroy = table_destroy;
+    td->d = tf->d;
+    td->table = apriltag_decode_table_acquire(tf, maxhamming);
+    td->base.memory = sizeof(struct table_decoder) + apriltag_decode_table_memory(td->table);
+    return &td->base;
+}
+
+////////////////////////////////////////////////////////////////
+// SCAN
+
+struct scan_decoder
+{
+    apriltag_decoder_t base;
+    int ncodes;
+    uint64_t *rotcodes;
+};
+
+// Codes are compared 8 at a time without branching, which compilers
+// turn into vector popcounts where the CPU has them.
+#define SCAN_BLOCK 8
+
+static int scan_decode(const apriltag_decoder_t *dec, uint64_t rcode,
+                       int *id, int *hamming, int *rotation)
+{
+    const struct scan_decoder *sd = (const struct scan_decoder*) dec;
+    const int n = 4 * sd->ncodes;
+    const int maxhamming = dec->maxhamming;
+    const uint64_t *codes = sd->rotcodes;
+
+    int i = 0;
+    for (; i + SCAN_BLOCK <= n; i += SCAN_BLOCK) {
+        unsigned hits = 0;
+        for (int j = 0; j < SCAN_BLOCK; j++)
+            hits |= (__builtin_popcountll(rcode ^ codes[i + j]) <= maxhamming) << j;
+
+        if (hits) {
+            i += __builtin_ctz(hits);
+            break;
+        }
+    }
+    for (; i < n; i++) {
+        if (__builtin_popcountll(rcode ^ codes[i]) <= maxhamming)
+            break;
+    }
+
+    if (i >= n)
+        return 0;
+
+    *id = i % sd->ncodes;
+    *rotation = i / sd->ncodes;
+    *hamming = __builtin_popcountll(rcode ^ codes[i]);
+    return 1;
+}
+
+static void scan_destroy(apriltag_decoder_t *dec)
+{
+    struct scan_decoder *sd = (struct scan_decoder*) dec;
+    free(sd->rotcodes);
+    free(sd);
+}
+
+static apriltag_decoder_t *scan_create(const apriltag_family_t *tf, int maxhamming)
+{
+    struct scan_decoder *sd = calloc(1, sizeof(struct scan_decoder));
+    sd->base.type = APRILTAG_DECODER_SCAN;
+    sd->base.maxhamming = maxhamming;
+    sd->base.decode = scan_decode;
+    sd->base.destroy = scan_destroy;
+    sd->ncodes = tf->ncodes;
+    sd->rotcodes = rotated_codes_create(tf);
+    sd->base.memory = sizeof(struct scan_decoder) + 4 * tf->ncodes * sizeof(uint64_t);
+    return &sd->base;
+}
+
+////////////////////////////////////////////////////////////////
+// MIH
+
+// Substrings are at most this many bits, so that their indices stay
+// small for any maxhamming.
+#define MIH_MAX_SUBSTRING_BITS 16
+
+struct mih_substring
+{
+    int shift, bits;
+
+    // The rotated codes whose bits [shift, shift+bits) equal v are
+    // entries[offsets[v]] up to entries[offsets[v+1]], as indices into
+    // rotcodes in increasing order.
+    uint32_t *offsets;
+    uint32_t *entries;
+};
+
+struct mih_decoder
+{
+    apriltag_decoder_t base;
+    int ncodes;
+    uint64_t *rotcodes;
+
+    int nsubstrings;
+    struct mih_substring *substrings;
+};
+
+static int mih_decode(const apriltag_decoder_t *dec, uint64_t rcode,
+                      int *id, int *hamming, int *rotation)
+{
+    const struct mih_decoder *md = (const struct mih_decoder*) dec;
+    const int maxhamming = dec->maxhamming;
+
+    // Any code within maxhamming agrees with rcode on at least one
+    // substring. Look for the first one in search order.
+    uint32_t best = UINT32_MAX;
+
+    for (int s = 0; s < md->nsubstrings; s++) {
+        const struct mih_substring *sub = &md->substrings[s];
+        uint32_t v = (rcode >> sub->shift) & ((1u << sub->bits) - 1);
+
+        for (uint32_t p = sub->offsets[v]; p < sub->offsets[v+1]; p++) {
+            uint32_t c = sub->entries[p];
+            if (c >= best)
+                break;
+            if (__builtin_popcountll(rcode ^ md->rotcodes[c]) <= maxhamming) {
+                best = c;
+                break;
+            }
+        }
+    }
+
+    if (best == UINT32_MAX)
+        return 0;
+
+    *id = best % md->ncodes;
+    *rotation = best / md->ncodes;
+    *hamming = __builtin_popcountll(rcode ^ md->rotcodes[best]);
+    return 1;
+}
+
+static void mih_destroy(apriltag_decoder_t *dec)
+{
+    struct mih_decoder *md = (struct mih_decoder*) dec;
+    for (int s = 0; s < md->nsubstrings; s++) {
+        free(md->substrings[s].offsets);
+        free(md->substrings[s].entries);
+    }
+    free(md->substrings);
+    free(md->rotcodes);
+    free(md);
+}
+
+static apriltag_decoder_t *mih_create(const apriltag_family_t *tf, int maxhamming)
+{
+    struct mih_decoder *md = calloc(1, sizeof(struct mih_decoder));
+    md->base.type = APRILTAG_DECODER_MIH;
+    md->base.maxhamming = maxhamming;
+    md->base.decode = mih_decode;
+    md->base.destroy = mih_destroy;
+    md->ncodes = tf->ncodes;
+    md->rotcodes = rotated_codes_create(tf);
+
+    int nbits = tf->d * tf->d;
+    int nsubstrings = maxhamming + 1;
+    if (nsubstrings < (nbits + MIH_MAX_SUBSTRING_BITS - 1) / MIH_MAX_SUBSTRING_BITS)
+        nsubstrings = (nbits + MIH_MAX_SUBSTRING_BITS - 1) / MIH_MAX_SUBSTRING_BITS;
+    if (nsubstrings > nbits)
+        nsubstrings = nbits;
+
+    md->nsubstrings = nsubstrings;
+    md->substrings = calloc(nsubstrings, sizeof(struct mih_substring));
+
+    int n = 4 * tf->ncodes;
+    md->base.memory = sizeof(struct mih_decoder) + n * sizeof(uint64_t) +
+        nsubstrings * (sizeof(struct mih_substring) + n * sizeof(uint32_t));
+    int shift = 0;
+    for (int s = 0; s < nsubstrings; s++) {
+        struct mih_substring *sub = &md->substrings[s];
+
+        // split as evenly as possible
+        sub->shift = shift;
+        sub->bits = (nbits - shift) / (nsubstrings - s);
+        shift += sub->bits;
+
+        uint32_t nvalues = 1u << sub->bits;
+        uint32_t mask = nvalues - 1;
+        sub->offsets = calloc(nvalues + 1, sizeof(uint32_t));
+        md->base.memory += (nvalues + 1) * sizeof(uint32_t);
+        sub->entries = malloc(n * sizeof(uint32_t));
+
+        // counting sort by substring value; stable, so each list stays
+        // in search order
+        for (int c = 0; c < n; c++)
+            sub->offsets[((md->rotcodes[c] >> sub->shift) & mask) + 1]++;
+        for (uint32_t v = 0; v < nvalues; v++)
+            sub->offsets[v+1] += sub->offsets[v];
+
+        uint32_t *fill = malloc(nvalues * sizeof(uint32_t));
+        memcpy(fill, sub->offsets, nvalues * sizeof(uint32_t));
+        for (int c = 0; c < n; c++)
+            sub->entries[fill[(md->rotcodes[c] >> sub->shift) & mask]++] = c;
+        free(fill);
+    }
+
+    return &md->base;
+}
+
+////////////////////////////////////////////////////////////////
+
+apriltag_decoder_t *apriltag_decoder_create(const apriltag_family_t *tf, int type, int maxhamming)
+{
+    if (maxhamming < 0)
+        maxhamming = 0;
+
+    if (type == APRILTAG_DECODER_AUTO)
+        type = APRILTAG_DECODER_MIH;
+
+    if (type == APRILTAG_DECODER_TABLE && maxhamming > 3) {
+        printf("apriltag_decoder.c: maxhamming beyond 3 not supported by the table decoder; using MIH\n");
+        type = APRILTAG_DECODER_MIH;
+    }
+
+    switch (type) {
+        case APRILTAG_DECODER_SCAN:
+            return scan_create(tf, maxhamming);
+        case APRILTAG_DECODER_MIH:
+            return mih_create(tf, maxhamming);
+        default:
+            return table_create(tf, maxhamming);
+    }
+}
+
+void apriltag_decoder_destroy(apriltag_decoder_t *dec)
+{
+    if (dec)
+        dec->destroy(dec);
+}
@@ -0,0 +1,69 @@
+#ifndef _APRILTAG_DECODER_H
+#define _APRILTAG_DECODER_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include "apriltag.h"
+
+// Strategies for finding the code of a family that a sampled codeword
+// is within maxhamming bit errors of. They trade memory for speed
+// differently but return the same result: for the first of the four
+// rotations of the codeword that has a match, the matching code with
+// the smallest id.
+enum {
+    // The best choice for the tag families here, currently MIH: on
+    // every family at every maxhamming it is faster than TABLE and
+    // far smaller. See example/decoder_check.c.
+    APRILTAG_DECODER_AUTO = 0,
+
+    // A hash table of every codeword within maxhamming of each code
+    // (see apriltag_decode_table.h). One probe per rotation, but its
+    // size grows with nbits^maxhamming; at most 3 errors.
+    APRILTAG_DECODER_TABLE,
+
+    // XOR and popcount against every code in every rotation. Tiny and
+    // fast to build; cost grows with the number of codes.
+    APRILTAG_DECODER_SCAN,
+
+    // Multi-index hashing: the code is split into maxhamming+1 (or
+    // more) substrings, at least one of which must match exactly.
+    // Only codes sharing a substring are compared. Memory is linear
+    // in the number of codes for any maxhamming.
+    APRILTAG_DECODER_MIH,
+};
+
+typedef struct apriltag_decoder apriltag_decoder_t;
+struct apriltag_decoder
+{
+    int type;
+    int maxhamming;
+    size_t memory; // bytes used by the decoder's tables
+
+    // If rcode is within maxhamming of a code in some rotation, set
+    // *id, *hamming and *rotation (the number of 90 degree rotations
+    // applied to rcode) and return 1; otherwise return 0.
+    int (*decode)(const apriltag_decoder_t *dec, uint64_t rcode,
+                  int *id, int *hamming, int *rotation);
+
+    void (*destroy)(apriltag_decoder_t *dec);
+};
+
+apriltag_decoder_t *apriltag_decoder_create(const apriltag_family_t *tf, int type, int maxhamming);
+
+void apriltag_decoder_destroy(apriltag_decoder_t *dec);
+
+// Like apriltag_detector_add_family_bits, with a choice of decoder.
+// The decoder belongs to fam until it is removed from td.
+void apriltag_detector_add_family_decoder(apriltag_detector_t *td, apriltag_family_t *fam,
+                                          int bits_corrected, int decoder_type);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
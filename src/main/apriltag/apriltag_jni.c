@@ -1,26 +1,127 @@
 #include <jni.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
 
 #include <android/bitmap.h>
 #include <android/log.h>
 
 #include "apriltag.h"
+#include "apriltag_batch.h"
+#include "apriltag_decode_table.h"
+#include "apriltag_decoder.h"
+#include "apriltag_pipeline.h"
+#include "apriltag_pose.h"
+#include "apriltag_stats.h"
+#include "apriltag_tracker.h"
 #include "tag36h11.h"
 #include "tag36h10.h"
 #include "tag36artoolkit.h"
 #include "tag25h9.h"
 #include "tag25h7.h"
 #include "tag16h5.h"
+#include "common/yuv.h"
 
-static struct {
+#define MAX_FAMILIES 6
+
+// Frames in flight in pipelined mode
+#define PIPELINE_DEPTH 3
+
+static const struct {
+    const char *name;
+    apriltag_family_t *(*create)();
+    void (*destroy)(apriltag_family_t *tf);
+} family_table[] = {
+    { "tag36h11", tag36h11_create, tag36h11_destroy },
+    { "tag36h10", tag36h10_create, tag36h10_destroy },
+    { "tag36artoolkit", tag36artoolkit_create, tag36artoolkit_destroy },
+    { "tag25h9", tag25h9_create, tag25h9_destroy },
+    { "tag25h7", tag25h7_create, tag25h7_destroy },
+    { "tag16h5", tag16h5_create, tag16h5_destroy },
+};
+
+// A detector configuration: the detector and the tag families it
+// owns. The families and their decoders are never modified once
+// published to a handle; reconfiguring builds a new configuration.
+// Only the detection parameters (decimation, blur, threads) are
+// updated in place, under the detector's mutex.
+struct detector_config {
     apriltag_detector_t *td;
-    apriltag_family_t *tf;
-    void(*tf_destroy)(apriltag_family_t*);
+    int nfamilies;
+    apriltag_family_t *tf[MAX_FAMILIES];
+    void (*tf_destroy[MAX_FAMILIES])(apriltag_family_t *tf);
+
+    // The APRILTAG_DECODER_* strategy the families decode with
+    int decoder;
+
+    // Created on the first pipelined submit; frames in flight are
+    // discarded when the configuration is replaced.
+    apriltag_pipeline_t *pipeline;
+
+    // Created on the first detection in tracking mode; tracks are
+    // lost when the configuration is replaced.
+    apriltag_tracker_t *tracker;
+
+    // The detector's reference, plus one for each pipelined retrieve
+    // waiting on it; destroyed when the last one is released.
+    int refs;
+};
+
+// Staging arrays for copying detections into a DetectionBuffer, kept
+// between frames and only grown when a frame has more detections than
+// any before it. Copies also run outside the detector's mutex (in
+// pipelined retrieves), so the scratch has a mutex of its own.
+struct buffer_scratch {
+    pthread_mutex_t mutex;
+    int capacity;
+    void *buf;
+};
+
+// The native object behind a Java AprilTagDetector. The mutex is held
+// for the duration of a detection and while the configuration is
+// swapped, so a configuration is never destroyed while in use.
+// Pipelined retrieves wait without it, holding a reference on the
+// configuration instead.
+typedef struct jni_detector jni_detector_t;
+struct jni_detector {
+    pthread_mutex_t mutex;
+    struct detector_config *cfg;
+
+    // Full-frame scan interval in tracking mode, 0 if tracking is off
+    int tracking_interval;
+
+    // Timings and counts of the last frame detected or retrieved
+    int has_stats;
+    apriltag_stats_t stats;
+
+    // Poses are estimated for detections if pose.tagsize > 0
+    apriltag_pose_params_t pose;
+
+    struct buffer_scratch scratch;
+};
+
+// Length of the array filled by native_get_stats: the stage timings
+// followed by the quad, decoded and detection counts, then the
+// rejection counts.
+#define STATS_LENGTH (APRILTAG_NSTAGES + 3 + APRILTAG_NREJECTS)
 
+// Backs the static ApriltagNative API
+static jni_detector_t default_detector = {
+        .mutex = PTHREAD_MUTEX_INITIALIZER,
+        .scratch = { .mutex = PTHREAD_MUTEX_INITIALIZER }
+};
+
+static struct {
     jclass al_cls;
     jmethodID al_constructor, al_add;
     jclass ad_cls;
     jmethodID ad_constructor;
     jfieldID ad_id_field, ad_hamming_field, ad_c_field, ad_p_field;
+    jfieldID ad_pose_field, ad_pose_error_field;
+    jmethodID db_ensure_capacity;
+    jfieldID db_ids_field, db_hamming_field, db_margin_field, db_corners_field, db_centers_field;
+    jfieldID db_frames_field, db_poses_field, db_pose_errors_field;
 } state;
 
 JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_native_1init
@@ -65,41 +166,160 @@ JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_native_
     state.ad_hamming_field = (*env)->GetFieldID(env, ad_cls, "hamming", "I");
     state.ad_c_field = (*env)->GetFieldID(env, ad_cls, "c", "[D");
     state.ad_p_field = (*env)->GetFieldID(env, ad_cls, "p", "[D");
+    state.ad_pose_field = (*env)->GetFieldID(env, ad_cls, "pose", "[D");
+    state.ad_pose_error_field = (*env)->GetFieldID(env, ad_cls, "poseError", "D");
     if (!state.ad_id_field ||
             !state.ad_hamming_field ||
             !state.ad_c_field ||
-            !state.ad_p_field) {
+            !state.ad_p_field ||
+            !state.ad_pose_field ||
+            !state.ad_pose_error_field) {
         __android_log_write(ANDROID_LOG_ERROR, "apriltag_jni",
                             "couldn't find ApriltagDetection fields");
         return;
     }
+
+    // Get DetectionBuffer methods
+    jclass db_cls = (*env)->FindClass(env, "edu/umich/eecs/april/apriltag/DetectionBuffer");
+    if (!db_cls) {
+        __android_log_write(ANDROID_LOG_ERROR, "apriltag_jni",
+                            "couldn't find DetectionBuffer class");
+        return;
+    }
+
+    state.db_ensure_capacity = (*env)->GetMethodID(env, db_cls, "ensureCapacity", "(IZZ)V");
+    state.db_ids_field = (*env)->GetFieldID(env, db_cls, "ids", "[I");
+    state.db_hamming_field = (*env)->GetFieldID(env, db_cls, "hamming", "[I");
+    state.db_margin_field = (*env)->GetFieldID(env, db_cls, "decisionMargin", "[F");
+    state.db_corners_field = (*env)->GetFieldID(env, db_cls, "corners", "[D");
+    state.db_centers_field = (*env)->GetFieldID(env, db_cls, "centers", "[D");
+    state.db_frames_field = (*env)->GetFieldID(env, db_cls, "frames", "[I");
+    state.db_poses_field = (*env)->GetFieldID(env, db_cls, "poses", "[D");
+    state.db_pose_errors_field = (*env)->GetFieldID(env, db_cls, "poseErrors", "[F");
+    if (!state.db_ensure_capacity ||
+            !state.db_ids_field ||
+            !state.db_hamming_field ||
+            !state.db_margin_field ||
+            !state.db_corners_field ||
+            !state.db_centers_field ||
+            !state.db_frames_field ||
+            !state.db_poses_field ||
+            !state.db_pose_errors_field) {
+        __android_log_write(ANDROID_LOG_ERROR, "apriltag_jni",
+                            "couldn't find DetectionBuffer members");
+        return;
+    }
 }
 
-/*
- * Class:     edu_umich_eecs_april_apriltag_ApriltagNative
- * Method:    yuv_to_rgb
- * Signature: ([BIILandroid/graphics/Bitmap;)V
- */
-JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_yuv_1to_1rgb
-    (JNIEnv *env, jclass cls, jbyteArray _src, jint width, jint height, jobject _dst)
+static void config_destroy(struct detector_config *cfg)
+{
+    if (!cfg)
+        return;
+
+    // The pipeline and detector must go first; they reference the families.
+    apriltag_pipeline_destroy(cfg->pipeline);
+    apriltag_tracker_destroy(cfg->tracker);
+    if (cfg->td)
+        apriltag_detector_destroy(cfg->td);
+    for (int i = 0; i < cfg->nfamilies; i += 1)
+        cfg->tf_destroy[i](cfg->tf[i]);
+    free(cfg);
+}
+
+static void config_release(struct detector_config *cfg)
+{
+    if (cfg && __atomic_sub_fetch(&cfg->refs, 1, __ATOMIC_ACQ_REL) == 0)
+        config_destroy(cfg);
+}
+
+// Build a detector for a comma-separated list of tag family names,
+// decoding with the APRILTAG_DECODER_* strategy decoder. Returns NULL
+// if a family name is not recognized.
+static struct detector_config *config_create(const char *tfnames, int errorbits, int decoder,
+                                             double decimate, double sigma, int nthreads)
+{
+    struct detector_config *cfg = calloc(1, sizeof(struct detector_config));
+    cfg->refs = 1;
+    cfg->decoder = decoder;
+
+    char names[128];
+    strncpy(names, tfnames, sizeof(names));
+    names[sizeof(names)-1] = 0;
+
+    char *saveptr = NULL;
+    for (char *name = strtok_r(names, ", ", &saveptr); name; name = strtok_r(NULL, ", ", &saveptr)) {
+        int idx = -1;
+        for (int i = 0; i < sizeof(family_table)/sizeof(family_table[0]); i += 1) {
+            if (!strcmp(name, family_table[i].name))
+                idx = i;
+        }
+
+        if (idx < 0 || cfg->nfamilies == MAX_FAMILIES) {
+            __android_log_print(ANDROID_LOG_ERROR, "apriltag_jni",
+                                "invalid tag family: %s", name);
+            config_destroy(cfg);
+            return NULL;
+        }
+
+        cfg->tf[cfg->nfamilies] = family_table[idx].create();
+        cfg->tf_destroy[cfg->nfamilies] = family_table[idx].destroy;
+        cfg->nfamilies += 1;
+    }
+
+    if (cfg->nfamilies == 0) {
+        __android_log_print(ANDROID_LOG_ERROR, "apriltag_jni",
+                            "invalid tag family: %s", tfnames);
+        config_destroy(cfg);
+        return NULL;
+    }
+
+    // Each configuration owns its family instances and their decoders,
+    // so detectors never share mutable state. Table decoders share the
+    // immutable tables behind them between configurations.
+    cfg->td = apriltag_detector_create();
+    for (int i = 0; i < cfg->nfamilies; i += 1)
+        apriltag_detector_add_family_decoder(cfg->td, cfg->tf[i], errorbits, decoder);
+    cfg->td->quad_decimate = decimate;
+    cfg->td->quad_sigma = sigma;
+    cfg->td->nthreads = nthreads;
+
+    return cfg;
+}
+
+static void throw_illegal_argument(JNIEnv *env, const char *msg)
+{
+    __android_log_write(ANDROID_LOG_ERROR, "apriltag_jni", msg);
+    jclass ex_cls = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+    if (ex_cls)
+        (*env)->ThrowNew(env, ex_cls, msg);
+}
+
+// Convert an NV21 frame to the portrait RGBA_8888 bitmap _dst, scaled
+// down by an integer factor; see yuv_nv21_to_rgb_rot90.
+static void yuv_to_rgb(JNIEnv *env, jbyteArray _src, jint width, jint height, jint scale,
+                       jobject _dst)
 {
     // NV21 Format
     // width*height    luma (Y) bytes followed by
     // width*height/2  chroma (UV) bytes interleaved as V,U
-
-    jbyte *src = (*env)->GetByteArrayElements(env, _src, NULL);
-    jint *dst = NULL;
-    AndroidBitmap_lockPixels(env, _dst, &dst);
-
-    if (!dst) {
-        __android_log_write(ANDROID_LOG_ERROR, "apriltag_jni",
-                            "couldn't lock bitmap");
+    if (scale < 1 || width < scale || height < scale) {
+        throw_illegal_argument(env, "scale must be between 1 and the frame size");
+        return;
+    }
+    if (!_src) {
+        throw_illegal_argument(env, "frame buffer must not be null");
+        return;
+    }
+    if ((*env)->GetArrayLength(env, _src) < (jlong) width * height + ((jlong) height + 1) / 2 * (((jlong) width + 1) & ~1)) {
+        throw_illegal_argument(env, "frame buffer is smaller than an NV21 frame");
         return;
     }
 
+    int outw = width / scale, outh = height / scale;
     AndroidBitmapInfo bmpinfo;
     if (AndroidBitmap_getInfo(env, _dst, &bmpinfo) ||
-        bmpinfo.width*bmpinfo.height != width*height ||
+        bmpinfo.width*bmpinfo.height != outw*outh ||
+        bmpinfo.stride != bmpinfo.width*4 ||
         bmpinfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
         __android_log_print(ANDROID_LOG_ERROR, "apriltag_jni",
                             "incorrect bitmap format: %d x %d  %d",
@@ -107,37 +327,135 @@ JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_yuv_1to
         return;
     }
 
-    int uvstart = width * height;
-    for (int j = 0; j < height; j += 1) {
-        for (int i = 0; i < width; i += 1) {
-            int y = (unsigned char)src[j*width + i];
-            int offset = uvstart + (j >> 1)*width + (i & ~1);
-            int u = (unsigned char)src[offset + 1];
-            int v = (unsigned char)src[offset + 0];
+    uint32_t *dst = NULL;
+    AndroidBitmap_lockPixels(env, _dst, (void**) &dst);
+    if (!dst) {
+        __android_log_write(ANDROID_LOG_ERROR, "apriltag_jni",
+                            "couldn't lock bitmap");
+        return;
+    }
 
-            y = y < 16 ? 16 : y;
+    jbyte *src = (*env)->GetByteArrayElements(env, _src, NULL);
 
-            int a0 = 1192 * (y - 16);
-            int a1 = 1634 * (v - 128);
-            int a2 = 832 * (v - 128);
-            int a3 = 400 * (u - 128);
-            int a4 = 2066 * (u - 128);
+    // Output image in portrait orientation
+    yuv_nv21_to_rgb_rot90((uint8_t*) src, width, (uint8_t*) src + width*height, width,
+                          width, height, scale, dst, outh);
 
-            int r = (a0 + a1) >> 10;
-            int g = (a0 - a2 - a3) >> 10;
-            int b = (a0 + a4) >> 10;
+    (*env)->ReleaseByteArrayElements(env, _src, src, JNI_ABORT);
+    AndroidBitmap_unlockPixels(env, _dst);
+}
 
-            r = r < 0 ? 0 : (r > 255 ? 255 : r);
-            g = g < 0 ? 0 : (g > 255 ? 255 : g);
-            b = b < 0 ? 0 : (b > 255 ? 255 : b);
+/*
+ * Class:     edu_umich_eecs_april_apriltag_ApriltagNative
+ * Method:    yuv_to_rgb
+ * Signature: ([BIILandroid/graphics/Bitmap;)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_yuv_1to_1rgb___3BIILandroid_graphics_Bitmap_2
+    (JNIEnv *env, jclass cls, jbyteArray _src, jint width, jint height, jobject _dst)
+{
+    yuv_to_rgb(env, _src, width, height, 1, _dst);
+}
 
-            // Output image in portrait orientation
-            dst[(i+1)*height - j-1] = 0xff000000 | (r << 16) | (g << 8) | b;
-        }
+/*
+ * Class:     edu_umich_eecs_april_apriltag_ApriltagNative
+ * Method:    yuv_to_rgb
+ * Signature: ([BIIILandroid/graphics/Bitmap;)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_yuv_1to_1rgb___3BIIILandroid_graphics_Bitmap_2
+    (JNIEnv *env, jclass cls, jbyteArray _src, jint width, jint height, jint scale, jobject _dst)
+{
+    yuv_to_rgb(env, _src, width, height, scale, _dst);
+}
+
+static struct detector_config *config_create_java(JNIEnv *env, jstring _tfnames, jint errorbits,
+                                                  jint decoder, jdouble decimate, jdouble sigma,
+                                                  jint nthreads)
+{
+    if (!_tfnames) {
+        throw_illegal_argument(env, "tag family must not be null");
+        return NULL;
+    }
+    if (decoder < APRILTAG_DECODER_AUTO || decoder > APRILTAG_DECODER_MIH) {
+        throw_illegal_argument(env, "invalid decoder type");
+        return NULL;
     }
 
-    (*env)->ReleaseByteArrayElements(env, _src, src, 0);
-    AndroidBitmap_unlockPixels(env, _dst);
+    const char *tfnames = (*env)->GetStringUTFChars(env, _tfnames, NULL);
+    struct detector_config *cfg = config_create(tfnames, errorbits, decoder, decimate, sigma,
+                                                nthreads > 0 ? nthreads : 1);
+    (*env)->ReleaseStringUTFChars(env, _tfnames, tfnames);
+
+    if (!cfg)
+        throw_illegal_argument(env, "invalid tag family");
+    return cfg;
+}
+
+// Split nthreads between the two pipeline stages
+static void pipeline_split_threads(int nthreads, int *seg_nthreads, int *dec_nthreads)
+{
+    *seg_nthreads = (nthreads + 1) / 2;
+    *dec_nthreads = nthreads - *seg_nthreads;
+    if (*dec_nthreads < 1)
+        *dec_nthreads = 1;
+}
+
+// Publish a new configuration. The expensive work (building decode
+// tables) was done by the caller without holding the lock; here we
+// only wait for an in-flight detection to finish.
+static void detector_swap_config(jni_detector_t *det, struct detector_config *cfg)
+{
+    pthread_mutex_lock(&det->mutex);
+    struct detector_config *old = det->cfg;
+    if (old) {
+        cfg->td->pyramid_levels = old->td->pyramid_levels;
+        cfg->td->qtp.min_cluster_side = old->td->qtp.min_cluster_side;
+        cfg->td->qtp.max_cluster_aspect = old->td->qtp.max_cluster_aspect;
+        cfg->td->min_border_contrast = old->td->min_border_contrast;
+        cfg->td->ambiguous_bit_margin = old->td->ambiguous_bit_margin;
+    }
+    det->cfg = cfg;
+    pthread_mutex_unlock(&det->mutex);
+
+    config_release(old);
+}
+
+static zarray_t *detector_detect(jni_detector_t *det, image_u8_t *im)
+{
+    pthread_mutex_lock(&det->mutex);
+
+    // If not initialized, init with default settings
+    if (!det->cfg) {
+        det->cfg = config_create("tag36h11", 2, APRILTAG_DECODER_AUTO, 2.0, 0.0, 4);
+        __android_log_write(ANDROID_LOG_INFO, "apriltag_jni",
+                            "using default parameters");
+    }
+
+    struct detector_config *cfg = det->cfg;
+    zarray_t *detections;
+
+    if (det->tracking_interval > 0) {
+        if (!cfg->tracker)
+            cfg->tracker = apriltag_tracker_create(cfg->td);
+        cfg->tracker->full_scan_interval = det->tracking_interval;
+        detections = apriltag_tracker_detect(cfg->tracker, im);
+    } else {
+        // Tracks would be stale by the time tracking is turned back on
+        if (cfg->tracker)
+            apriltag_tracker_reset(cfg->tracker);
+        detections = apriltag_detector_detect(cfg->td, im);
+    }
+
+    apriltag_stats_clear(&det->stats);
+    apriltag_stats_add_profile(&det->stats, cfg->td->tp);
+    det->stats.nquads = cfg->td->nquads;
+    det->stats.ndecoded = cfg->td->ndecoded;
+    apriltag_stats_add_rejected(&det->stats, cfg->td->nrejected);
+    det->stats.ndetections = zarray_size(detections);
+    det->has_stats = 1;
+
+    pthread_mutex_unlock(&det->mutex);
+
+    return detections;
 }
 
 /*
@@ -148,83 +466,42 @@ JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_yuv_1to
 JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_apriltag_1init
         (JNIEnv *env, jclass cls, jstring _tfname, jint errorbits, jdouble decimate,
          jdouble sigma, jint nthreads) {
-    // Do cleanup in case we're already initialized
-    if (state.td) {
-        apriltag_detector_destroy(state.td);
-        state.td = NULL;
-    }
-    if (state.tf) {
-        state.tf_destroy(state.tf);
-        state.tf = NULL;
-    }
-
-    // Initialize state
-    const char *tfname = (*env)->GetStringUTFChars(env, _tfname, NULL);
-
-    if (!strcmp(tfname, "tag36h11")) {
-        state.tf = tag36h11_create();
-        state.tf_destroy = tag36h11_destroy;
-    } else if (!strcmp(tfname, "tag36h10")) {
-        state.tf = tag36h10_create();
-        state.tf_destroy = tag36h10_destroy;
-    } else if (!strcmp(tfname, "tag36artoolkit")) {
-        state.tf = tag36artoolkit_create();
-        state.tf_destroy = tag36artoolkit_destroy;
-    } else if (!strcmp(tfname, "tag25h9")) {
-        state.tf = tag25h9_create();
-        state.tf_destroy = tag25h9_destroy;
-    } else if (!strcmp(tfname, "tag25h7")) {
-        state.tf = tag25h7_create();
-        state.tf_destroy = tag25h7_destroy;
-    } else if (!strcmp(tfname, "tag16h5")) {
-        state.tf = tag16h5_create();
-        state.tf_destroy = tag16h5_destroy;
-    } else {
-        __android_log_print(ANDROID_LOG_ERROR, "apriltag_jni",
-                            "invalid tag family: %s", tfname);
-        (*env)->ReleaseStringUTFChars(env, _tfname, tfname);
+    struct detector_config *cfg = config_create_java(env, _tfname, errorbits, APRILTAG_DECODER_AUTO,
+                                                     decimate, sigma, nthreads);
+    if (!cfg)
         return;
-    }
-    (*env)->ReleaseStringUTFChars(env, _tfname, tfname);
 
-    state.td = apriltag_detector_create();
-    apriltag_detector_add_family_bits(state.td, state.tf, errorbits);
-    state.td->quad_decimate = decimate;
-    state.td->quad_sigma = sigma;
-    state.td->nthreads = nthreads;
+    detector_swap_config(&default_detector, cfg);
 }
 
-/*
- * Class:     edu_umich_eecs_april_apriltag_ApriltagNative
- * Method:    apriltag_detect_yuv
- * Signature: ([BII)Ljava/util/ArrayList;
- */
-JNIEXPORT jobject JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_apriltag_1detect_1yuv
-        (JNIEnv *env, jclass cls, jbyteArray _buf, jint width, jint height) {
-    // If not initialized, init with default settings
-    if (!state.td) {
-        state.tf = tag36h11_create();
-        state.td = apriltag_detector_create();
-        apriltag_detector_add_family_bits(state.td, state.tf, 2);
-        state.td->quad_decimate = 2.0;
-        state.td->quad_sigma = 0.0;
-        state.td->nthreads = 4;
-        __android_log_write(ANDROID_LOG_INFO, "apriltag_jni",
-                            "using default parameters");
-    }
+// The pose parameters of det, copied into *copy, or NULL if pose
+// estimation is off.
+static const apriltag_pose_params_t *detector_pose(jni_detector_t *det, apriltag_pose_params_t *copy)
+{
+    pthread_mutex_lock(&det->mutex);
+    *copy = det->pose;
+    pthread_mutex_unlock(&det->mutex);
 
-    // Use the luma channel (the first width*height elements)
-    // as grayscale input image
-    jbyte *buf = (*env)->GetByteArrayElements(env, _buf, NULL);
-    image_u8_t im = {
-            .buf = (uint8_t*)buf,
-            .height = height,
-            .width = width,
-            .stride = width
-    };
-    zarray_t *detections = apriltag_detector_detect(state.td, &im);
-    (*env)->ReleaseByteArrayElements(env, _buf, buf, 0);
+    return copy->tagsize > 0 ? copy : NULL;
+}
 
+// The pose of det as 12 doubles, the rotation (row-major) followed by
+// the translation. Returns the reprojection error.
+static double detection_pose(const apriltag_detection_t *det, const apriltag_pose_params_t *params,
+                             jdouble *out)
+{
+    apriltag_pose_t pose;
+    double err = apriltag_estimate_pose(det, params, &pose);
+    memcpy(out, pose.R, 9*sizeof(double));
+    memcpy(out + 9, pose.t, 3*sizeof(double));
+    return err;
+}
+
+// Convert detections to an ArrayList<ApriltagDetection> and destroy
+// them. Poses are estimated if pose is not NULL.
+static jobject detections_to_arraylist(JNIEnv *env, zarray_t *detections,
+                                       const apriltag_pose_params_t *pose)
+{
     // al = new ArrayList();
     jobject al = (*env)->NewObject(env, state.al_cls, state.al_constructor);
     for (int i = 0; i < zarray_size(detections); i += 1) {
@@ -240,6 +517,17 @@ JNIEXPORT jobject JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_apri
         jdoubleArray ad_p = (*env)->GetObjectField(env, ad, state.ad_p_field);
         (*env)->SetDoubleArrayRegion(env, ad_p, 0, 8, (double*)det->p);
 
+        if (pose) {
+            jdouble values[12];
+            double err = detection_pose(det, pose, values);
+
+            jdoubleArray ad_pose = (*env)->NewDoubleArray(env, 12);
+            (*env)->SetDoubleArrayRegion(env, ad_pose, 0, 12, values);
+            (*env)->SetObjectField(env, ad, state.ad_pose_field, ad_pose);
+            (*env)->SetDoubleField(env, ad, state.ad_pose_error_field, err);
+            (*env)->DeleteLocalRef(env, ad_pose);
+        }
+
         // al.add(ad);
         (*env)->CallBooleanMethod(env, al, state.al_add, ad);
 
@@ -254,3 +542,911 @@ JNIEXPORT jobject JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_apri
 
     return al;
 }
+
+// Staging arrays for the fields of a DetectionBuffer. frames, poses
+// and errors are NULL when not filled in.
+struct buffer_arrays {
+    jint *ids, *hamming, *frames;
+    jfloat *margin, *errors;
+    jdouble *corners, *centers, *poses;
+};
+
+// Point the arrays into the scratch, growing it to hold at least n
+// detections. The caller holds s->mutex.
+static void scratch_arrays(struct buffer_scratch *s, int n, struct buffer_arrays *a)
+{
+    if (n > s->capacity) {
+        int capacity = n > 2*s->capacity ? n : 2*s->capacity;
+        free(s->buf);
+        s->buf = malloc(capacity * (22*sizeof(jdouble) + 5*sizeof(jint)));
+        s->capacity = capacity;
+    }
+
+    // the doubles first, so every array is aligned
+    int c = s->capacity;
+    a->corners = s->buf;
+    a->centers = a->corners + 8*c;
+    a->poses = a->centers + 2*c;
+
+    a->ids = (jint*) (a->poses + 12*c);
+    a->hamming = a->ids + c;
+    a->frames = a->hamming + c;
+
+    a->margin = (jfloat*) (a->frames + c);
+    a->errors = a->margin + c;
+}
+
+// Gather the detections into the arrays, starting at index i, with
+// their poses if pose is not NULL.
+static void detections_gather(zarray_t *detections, int i, const apriltag_pose_params_t *pose,
+                              struct buffer_arrays *a)
+{
+    for (int j = 0; j < zarray_size(detections); j++, i++) {
+        apriltag_detection_t *det;
+        zarray_get(detections, j, &det);
+
+        a->ids[i] = det->id;
+        a->hamming[i] = det->hamming;
+        a->margin[i] = det->decision_margin;
+        memcpy(&a->corners[8*i], det->p, 8*sizeof(double));
+        memcpy(&a->centers[2*i], det->c, 2*sizeof(double));
+
+        if (pose)
+            a->errors[i] = detection_pose(det, pose, &a->poses[12*i]);
+    }
+}
+
+// Write the first n elements of each array into the DetectionBuffer,
+// one region copy per array.
+static void buffer_set_regions(JNIEnv *env, jobject out, int n, const struct buffer_arrays *a)
+{
+    jobject arr = (*env)->GetObjectField(env, out, state.db_ids_field);
+    (*env)->SetIntArrayRegion(env, arr, 0, n, a->ids);
+    (*env)->DeleteLocalRef(env, arr);
+
+    arr = (*env)->GetObjectField(env, out, state.db_hamming_field);
+    (*env)->SetIntArrayRegion(env, arr, 0, n, a->hamming);
+    (*env)->DeleteLocalRef(env, arr);
+
+    arr = (*env)->GetObjectField(env, out, state.db_margin_field);
+    (*env)->SetFloatArrayRegion(env, arr, 0, n, a->margin);
+    (*env)->DeleteLocalRef(env, arr);
+
+    arr = (*env)->GetObjectField(env, out, state.db_corners_field);
+    (*env)->SetDoubleArrayRegion(env, arr, 0, 8*n, a->corners);
+    (*env)->DeleteLocalRef(env, arr);
+
+    arr = (*env)->GetObjectField(env, out, state.db_centers_field);
+    (*env)->SetDoubleArrayRegion(env, arr, 0, 2*n, a->centers);
+    (*env)->DeleteLocalRef(env, arr);
+
+    if (a->frames) {
+        arr = (*env)->GetObjectField(env, out, state.db_frames_field);
+        (*env)->SetIntArrayRegion(env, arr, 0, n, a->frames);
+        (*env)->DeleteLocalRef(env, arr);
+    }
+
+    if (a->poses) {
+        arr = (*env)->GetObjectField(env, out, state.db_poses_field);
+        (*env)->SetDoubleArrayRegion(env, arr, 0, 12*n, a->poses);
+        (*env)->DeleteLocalRef(env, arr);
+
+        arr = (*env)->GetObjectField(env, out, state.db_pose_errors_field);
+        (*env)->SetFloatArrayRegion(env, arr, 0, n, a->errors);
+        (*env)->DeleteLocalRef(env, arr);
+    }
+}
+
+// Copy detections into the struct-of-arrays DetectionBuffer and destroy
+// them. Each array is written with a single region copy, staged in the
+// detector's scratch; the buffer is only reallocated (by Java) when it
+// is too small. Poses are estimated if pose is not NULL. Returns the
+// count.
+static jint detections_to_buffer(JNIEnv *env, jni_detector_t *det, zarray_t *detections,
+                                 const apriltag_pose_params_t *pose, jobject out)
+{
+    int n = zarray_size(detections);
+
+    (*env)->CallVoidMethod(env, out, state.db_ensure_capacity, n, JNI_FALSE,
+                           pose ? JNI_TRUE : JNI_FALSE);
+    if ((*env)->ExceptionCheck(env)) {
+        apriltag_detections_destroy(detections);
+        return 0;
+    }
+
+    if (n > 0) {
+        pthread_mutex_lock(&det->scratch.mutex);
+
+        struct buffer_arrays a;
+        scratch_arrays(&det->scratch, n, &a);
+        a.frames = NULL;
+        if (!pose) {
+            a.poses = NULL;
+            a.errors = NULL;
+        }
+
+        detections_gather(detections, 0, pose, &a);
+        buffer_set_regions(env, out, n, &a);
+
+        pthread_mutex_unlock(&det->scratch.mutex);
+    }
+
+    apriltag_detections_destroy(detections);
+
+    return n;
+}
+
+// Like detections_to_buffer for the detection lists of a batch of
+// nframes frames, also filling in the frame index of each detection.
+// The lists and the array holding them are destroyed.
+static jint batch_to_buffer(JNIEnv *env, jni_detector_t *det, zarray_t **lists, int nframes,
+                            const apriltag_pose_params_t *pose, jobject out)
+{
+    int n = 0;
+    for (int f = 0; f < nframes; f++)
+        n += zarray_size(lists[f]);
+
+    (*env)->CallVoidMethod(env, out, state.db_ensure_capacity, n, JNI_TRUE,
+                           pose ? JNI_TRUE : JNI_FALSE);
+
+    if (n > 0 && !(*env)->ExceptionCheck(env)) {
+        pthread_mutex_lock(&det->scratch.mutex);
+
+        struct buffer_arrays a;
+        scratch_arrays(&det->scratch, n, &a);
+        if (!pose) {
+            a.poses = NULL;
+            a.errors = NULL;
+        }
+
+        int i = 0;
+        for (int f = 0; f < nframes; f++) {
+            detections_gather(lists[f], i, pose, &a);
+            for (int j = 0; j < zarray_size(lists[f]); j++)
+                a.frames[i++] = f;
+        }
+
+        buffer_set_regions(env, out, n, &a);
+
+        pthread_mutex_unlock(&det->scratch.mutex);
+    }
+
+    for (int f = 0; f < nframes; f++)
+        apriltag_detections_destroy(lists[f]);
+    free(lists);
+
+    return (*env)->ExceptionCheck(env) ? 0 : n;
+}
+
+// Check that a byte[] frame holds a width x height luma plane. Returns
+// 0 (with a pending exception) if not.
+static int check_byte_array(JNIEnv *env, jbyteArray _buf, jint width, jint height)
+{
+    if (!_buf) {
+        throw_illegal_argument(env, "frame buffer must not be null");
+        return 0;
+    }
+    if (width <= 0 || height <= 0) {
+        throw_illegal_argument(env, "invalid frame geometry");
+        return 0;
+    }
+    if ((*env)->GetArrayLength(env, _buf) < (jlong) width * height) {
+        throw_illegal_argument(env, "frame buffer is smaller than width*height");
+        return 0;
+    }
+
+    return 1;
+}
+
+// Detect tags in the luma plane of a byte[] frame. Returns NULL (with
+// a pending exception) if the frame is invalid.
+static zarray_t *detect_byte_array(JNIEnv *env, jni_detector_t *det, jbyteArray _buf,
+                                   jint width, jint height)
+{
+    if (!check_byte_array(env, _buf, width, height))
+        return NULL;
+
+    // Use the luma channel (the first width*height elements)
+    // as grayscale input image
+    jbyte *buf = (*env)->GetByteArrayElements(env, _buf, NULL);
+    image_u8_t im = {
+            .buf = (uint8_t*)buf,
+            .height = height,
+            .width = width,
+            .stride = width
+    };
+    zarray_t *detections = detector_detect(det, &im);
+
+    // The detector only reads the frame, so don't copy it back
+    (*env)->ReleaseByteArrayElements(env, _buf, buf, JNI_ABORT);
+
+    return detections;
+}
+
+// The address and capacity of the direct ByteBuffer _buf. Returns NULL
+// (with a pending exception) if _buf is null or not direct.
+static uint8_t *direct_buffer(JNIEnv *env, jobject _buf, jlong *capacity)
+{
+    uint8_t *buf = _buf ? (*env)->GetDirectBufferAddress(env, _buf) : NULL;
+    *capacity = _buf ? (*env)->GetDirectBufferCapacity(env, _buf) : -1;
+    if (!buf || *capacity < 0) {
+        throw_illegal_argument(env, "frame buffer must be a direct ByteBuffer");
+        return NULL;
+    }
+
+    return buf;
+}
+
+// Detect tags in the luma plane of a direct ByteBuffer frame. Returns
+// NULL (with a pending exception) if the frame is invalid.
+static zarray_t *detect_direct_buffer(JNIEnv *env, jni_detector_t *det, jobject _buf,
+                                      jint offset, jint width, jint height, jint stride)
+{
+    // Read the luma plane in place; no copy of the frame is made
+    jlong capacity;
+    uint8_t *buf = direct_buffer(env, _buf, &capacity);
+    if (!buf)
+        return NULL;
+    if (offset < 0 || width <= 0 || height <= 0 || stride < width ||
+            offset + (jlong) stride * (height - 1) + width > capacity) {
+        throw_illegal_argument(env, "frame geometry exceeds buffer capacity");
+        return NULL;
+    }
+
+    image_u8_t im = {
+            .buf = buf + offset,
+            .height = height,
+            .width = width,
+            .stride = stride
+    };
+    return detector_detect(det, &im);
+}
+
+// Detect tags in a crop of an image plane held in a direct ByteBuffer,
+// such as the Y plane of a YUV_420_888 Image: pixel (x, y) is at
+// offset + y*row_stride + x*pixel_stride. The crop is read in place and
+// detections are returned in the coordinates of the whole plane.
+// Returns NULL (with a pending exception) if the plane is invalid.
+static zarray_t *detect_plane(JNIEnv *env, jni_detector_t *det, jobject _buf, jint offset,
+                              jint row_stride, jint pixel_stride, jint crop_left, jint crop_top,
+                              jint crop_width, jint crop_height)
+{
+    // The detector reads rows of contiguous pixels; luma planes always
+    // have a pixel stride of 1.
+    if (pixel_stride != 1) {
+        throw_illegal_argument(env, "pixel stride must be 1");
+        return NULL;
+    }
+    if (crop_left < 0 || crop_top < 0) {
+        throw_illegal_argument(env, "crop rectangle must not start outside the plane");
+        return NULL;
+    }
+    // a crop wider than a row would wrap into the next one
+    if (crop_width <= 0 || crop_height <= 0 || (jlong) crop_left + crop_width > row_stride) {
+        throw_illegal_argument(env, "crop rectangle must be non-empty and fit within a row of the plane");
+        return NULL;
+    }
+
+    // (a buffer that isn't direct is rejected below)
+    jlong capacity = _buf ? (*env)->GetDirectBufferCapacity(env, _buf) : -1;
+    jlong end = offset + ((jlong) crop_top + crop_height - 1) * row_stride + crop_left + crop_width;
+    if (offset < 0 || (capacity >= 0 && end > capacity)) {
+        throw_illegal_argument(env, "crop rectangle exceeds buffer capacity");
+        return NULL;
+    }
+
+    jlong start = offset + (jlong) crop_top * row_stride + crop_left;
+    if (start > INT32_MAX) {
+        throw_illegal_argument(env, "frame geometry exceeds buffer capacity");
+        return NULL;
+    }
+
+    zarray_t *detections = detect_direct_buffer(env, det, _buf, (jint) start, crop_width,
+                                                crop_height, row_stride);
+    if (detections)
+        apriltag_detections_translate(detections, crop_left, crop_top);
+    return detections;
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_ApriltagNative
+ * Method:    apriltag_detect_yuv
+ * Signature: ([BII)Ljava/util/ArrayList;
+ */
+JNIEXPORT jobject JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_apriltag_1detect_1yuv___3BII
+        (JNIEnv *env, jclass cls, jbyteArray _buf, jint width, jint height) {
+    zarray_t *detections = detect_byte_array(env, &default_detector, _buf, width, height);
+    if (!detections)
+        return NULL;
+
+    return detections_to_arraylist(env, detections, NULL);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_ApriltagNative
+ * Method:    apriltag_detect_yuv
+ * Signature: (Ljava/nio/ByteBuffer;IIII)Ljava/util/ArrayList;
+ */
+JNIEXPORT jobject JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_apriltag_1detect_1yuv__Ljava_nio_ByteBuffer_2IIII
+        (JNIEnv *env, jclass cls, jobject _buf, jint offset, jint width, jint height, jint stride) {
+    zarray_t *detections = detect_direct_buffer(env, &default_detector, _buf, offset, width, height, stride);
+    if (!detections)
+        return NULL;
+
+    return detections_to_arraylist(env, detections, NULL);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_ApriltagNative
+ * Method:    apriltag_detect_yuv_into
+ * Signature: ([BIILedu/umich/eecs/april/apriltag/DetectionBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_apriltag_1detect_1yuv_1into___3BIILedu_umich_eecs_april_apriltag_DetectionBuffer_2
+        (JNIEnv *env, jclass cls, jbyteArray _buf, jint width, jint height, jobject out) {
+    zarray_t *detections = detect_byte_array(env, &default_detector, _buf, width, height);
+    if (!detections)
+        return 0;
+
+    return detections_to_buffer(env, &default_detector, detections, NULL, out);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_ApriltagNative
+ * Method:    apriltag_detect_yuv_into
+ * Signature: (Ljava/nio/ByteBuffer;IIIILedu/umich/eecs/april/apriltag/DetectionBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_edu_umich_eecs_april_apriltag_ApriltagNative_apriltag_1detect_1yuv_1into__Ljava_nio_ByteBuffer_2IIIILedu_umich_eecs_april_apriltag_DetectionBuffer_2
+        (JNIEnv *env, jclass cls, jobject _buf, jint offset, jint width, jint height, jint stride,
+         jobject out) {
+    zarray_t *detections = detect_direct_buffer(env, &default_detector, _buf, offset, width, height, stride);
+    if (!detections)
+        return 0;
+
+    return detections_to_buffer(env, &default_detector, detections, NULL, out);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_create
+ * Signature: (Ljava/lang/String;IIDDI)J
+ */
+JNIEXPORT jlong JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1create
+        (JNIEnv *env, jclass cls, jstring _tfnames, jint errorbits, jint decoder, jdouble decimate,
+         jdouble sigma, jint nthreads) {
+    struct detector_config *cfg = config_create_java(env, _tfnames, errorbits, decoder, decimate,
+                                                     sigma, nthreads);
+    if (!cfg)
+        return 0;
+
+    jni_detector_t *det = calloc(1, sizeof(jni_detector_t));
+    pthread_mutex_init(&det->mutex, NULL);
+    pthread_mutex_init(&det->scratch.mutex, NULL);
+    det->cfg = cfg;
+
+    return (jlong) (intptr_t) det;
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_set_table_cache_dir
+ * Signature: (Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1set_1table_1cache_1dir
+        (JNIEnv *env, jclass cls, jstring _dir) {
+    if (!_dir) {
+        apriltag_decode_table_set_cache_dir(NULL);
+        return;
+    }
+
+    const char *dir = (*env)->GetStringUTFChars(env, _dir, NULL);
+    apriltag_decode_table_set_cache_dir(dir);
+    (*env)->ReleaseStringUTFChars(env, _dir, dir);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_reconfigure
+ * Signature: (JLjava/lang/String;IIDDI)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1reconfigure
+        (JNIEnv *env, jclass cls, jlong handle, jstring _tfnames, jint errorbits, jint decoder,
+         jdouble decimate, jdouble sigma, jint nthreads) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+
+    // AprilTagDetector.DECODER_KEEP keeps the decoder the detector has
+    if (decoder == -1) {
+        pthread_mutex_lock(&det->mutex);
+        decoder = det->cfg->decoder;
+        pthread_mutex_unlock(&det->mutex);
+    }
+
+    struct detector_config *cfg = config_create_java(env, _tfnames, errorbits, decoder, decimate,
+                                                     sigma, nthreads);
+    if (!cfg)
+        return;
+
+    detector_swap_config(det, cfg);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_set_tracking
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1set_1tracking
+        (JNIEnv *env, jclass cls, jlong handle, jint full_scan_interval) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+
+    pthread_mutex_lock(&det->mutex);
+    det->tracking_interval = full_scan_interval > 0 ? full_scan_interval : 0;
+    pthread_mutex_unlock(&det->mutex);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_set_pose
+ * Signature: (JDDDDDI)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1set_1pose
+        (JNIEnv *env, jclass cls, jlong handle, jdouble tagsize, jdouble fx, jdouble fy,
+         jdouble cx, jdouble cy, jint refine_iters) {
+    if (tagsize > 0 && (fx == 0 || fy == 0)) {
+        throw_illegal_argument(env, "focal lengths must not be zero");
+        return;
+    }
+
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+
+    pthread_mutex_lock(&det->mutex);
+    det->pose = (apriltag_pose_params_t) {
+            .tagsize = tagsize > 0 ? tagsize : 0,
+            .fx = fx, .fy = fy, .cx = cx, .cy = cy,
+            .refine_iters = refine_iters > 0 ? refine_iters : 0
+    };
+    pthread_mutex_unlock(&det->mutex);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_set_params
+ * Signature: (JDDI)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1set_1params
+        (JNIEnv *env, jclass cls, jlong handle, jdouble decimate, jdouble sigma, jint nthreads) {
+    if (decimate < 1 || nthreads < 1) {
+        throw_illegal_argument(env, "decimation must be at least 1 and nthreads positive");
+        return;
+    }
+
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+
+    // The families and decode tables stay; a changed thread count
+    // only replaces the workerpool on the next detection.
+    pthread_mutex_lock(&det->mutex);
+    struct detector_config *cfg = det->cfg;
+    cfg->td->quad_decimate = decimate;
+    cfg->td->quad_sigma = sigma;
+    cfg->td->nthreads = nthreads;
+    if (cfg->pipeline) {
+        int seg_nthreads, dec_nthreads;
+        pipeline_split_threads(nthreads, &seg_nthreads, &dec_nthreads);
+        apriltag_pipeline_set_params(cfg->pipeline, decimate, sigma, cfg->td->pyramid_levels,
+                                     seg_nthreads, dec_nthreads);
+    }
+    pthread_mutex_unlock(&det->mutex);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_set_pyramid
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1set_1pyramid
+        (JNIEnv *env, jclass cls, jlong handle, jint levels) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+
+    pthread_mutex_lock(&det->mutex);
+    struct detector_config *cfg = det->cfg;
+    cfg->td->pyramid_levels = levels > 1 ? levels : 1;
+    if (cfg->pipeline) {
+        int seg_nthreads, dec_nthreads;
+        pipeline_split_threads(cfg->td->nthreads, &seg_nthreads, &dec_nthreads);
+        apriltag_pipeline_set_params(cfg->pipeline, cfg->td->quad_decimate, cfg->td->quad_sigma,
+                                     cfg->td->pyramid_levels, seg_nthreads, dec_nthreads);
+    }
+    pthread_mutex_unlock(&det->mutex);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_set_rejection
+ * Signature: (JIFFF)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1set_1rejection
+        (JNIEnv *env, jclass cls, jlong handle, jint min_cluster_side, jfloat max_cluster_aspect,
+         jfloat min_border_contrast, jfloat ambiguous_bit_margin) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+
+    // zero or less turns a check off
+    pthread_mutex_lock(&det->mutex);
+    struct detector_config *cfg = det->cfg;
+    cfg->td->qtp.min_cluster_side = min_cluster_side > 0 ? min_cluster_side : 0;
+    cfg->td->qtp.max_cluster_aspect = max_cluster_aspect > 0 ? max_cluster_aspect : 0;
+    cfg->td->min_border_contrast = min_border_contrast > 0 ? min_border_contrast : 0;
+    cfg->td->ambiguous_bit_margin = ambiguous_bit_margin > 0 ? ambiguous_bit_margin : 0;
+    if (cfg->pipeline)
+        apriltag_pipeline_set_rejection(cfg->pipeline, cfg->td->qtp.min_cluster_side,
+                                        cfg->td->qtp.max_cluster_aspect, cfg->td->min_border_contrast,
+                                        cfg->td->ambiguous_bit_margin);
+    pthread_mutex_unlock(&det->mutex);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_destroy
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1destroy
+        (JNIEnv *env, jclass cls, jlong handle) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+    if (!det)
+        return;
+
+    config_release(det->cfg);
+    pthread_mutex_destroy(&det->mutex);
+    pthread_mutex_destroy(&det->scratch.mutex);
+    free(det->scratch.buf);
+    free(det);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_detect
+ * Signature: (J[BII)Ljava/util/ArrayList;
+ */
+JNIEXPORT jobject JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1detect
+        (JNIEnv *env, jclass cls, jlong handle, jbyteArray _buf, jint width, jint height) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+    zarray_t *detections = detect_byte_array(env, det, _buf, width, height);
+    if (!detections)
+        return NULL;
+
+    apriltag_pose_params_t pose;
+    return detections_to_arraylist(env, detections, detector_pose(det, &pose));
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_detect_direct
+ * Signature: (JLjava/nio/ByteBuffer;IIII)Ljava/util/ArrayList;
+ */
+JNIEXPORT jobject JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1detect_1direct
+        (JNIEnv *env, jclass cls, jlong handle, jobject _buf, jint offset, jint width, jint height,
+         jint stride) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+    zarray_t *detections = detect_direct_buffer(env, det, _buf, offset, width, height, stride);
+    if (!detections)
+        return NULL;
+
+    apriltag_pose_params_t pose;
+    return detections_to_arraylist(env, detections, detector_pose(det, &pose));
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_detect_into
+ * Signature: (J[BIILedu/umich/eecs/april/apriltag/DetectionBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1detect_1into
+        (JNIEnv *env, jclass cls, jlong handle, jbyteArray _buf, jint width, jint height,
+         jobject out) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+    zarray_t *detections = detect_byte_array(env, det, _buf, width, height);
+    if (!detections)
+        return 0;
+
+    apriltag_pose_params_t pose;
+    return detections_to_buffer(env, det, detections, detector_pose(det, &pose), out);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_detect_direct_into
+ * Signature: (JLjava/nio/ByteBuffer;IIIILedu/umich/eecs/april/apriltag/DetectionBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1detect_1direct_1into
+        (JNIEnv *env, jclass cls, jlong handle, jobject _buf, jint offset, jint width, jint height,
+         jint stride, jobject out) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+    zarray_t *detections = detect_direct_buffer(env, det, _buf, offset, width, height, stride);
+    if (!detections)
+        return 0;
+
+    apriltag_pose_params_t pose;
+    return detections_to_buffer(env, det, detections, detector_pose(det, &pose), out);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_detect_plane_into
+ * Signature: (JLjava/nio/ByteBuffer;IIIIIIILedu/umich/eecs/april/apriltag/DetectionBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1detect_1plane_1into
+        (JNIEnv *env, jclass cls, jlong handle, jobject _buf, jint offset, jint row_stride,
+         jint pixel_stride, jint crop_left, jint crop_top, jint crop_width, jint crop_height,
+         jobject out) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+    zarray_t *detections = detect_plane(env, det, _buf, offset, row_stride, pixel_stride,
+                                        crop_left, crop_top, crop_width, crop_height);
+    if (!detections)
+        return 0;
+
+    apriltag_pose_params_t pose;
+    return detections_to_buffer(env, det, detections, detector_pose(det, &pose), out);
+}
+
+// Detect tags in a batch of frames that share a size and stride, the
+// luma plane of frame i starting at buf + offsets[i], and write all
+// detections into out. Returns the total count, or 0 with a pending
+// exception if a frame does not fit in the capacity bytes at buf.
+static jint detector_detect_batch(JNIEnv *env, jni_detector_t *det, uint8_t *buf, jlong capacity,
+                                  jintArray _offsets, jint width, jint height, jint stride,
+                                  jobject out)
+{
+    if (!_offsets) {
+        throw_illegal_argument(env, "frame offsets must not be null");
+        return 0;
+    }
+    if (width <= 0 || height <= 0 || stride < width) {
+        throw_illegal_argument(env, "invalid frame geometry");
+        return 0;
+    }
+
+    int nframes = (*env)->GetArrayLength(env, _offsets);
+    jint *offsets = malloc((nframes > 0 ? nframes : 1) * sizeof(jint));
+    (*env)->GetIntArrayRegion(env, _offsets, 0, nframes, offsets);
+
+    image_u8_t *frames = malloc((nframes > 0 ? nframes : 1) * sizeof(image_u8_t));
+    image_u8_t **ims = malloc((nframes > 0 ? nframes : 1) * sizeof(image_u8_t*));
+    for (int i = 0; i < nframes; i++) {
+        if (offsets[i] < 0 || offsets[i] + (jlong) stride * (height - 1) + width > capacity) {
+            throw_illegal_argument(env, "frame geometry exceeds buffer capacity");
+            free(offsets);
+            free(frames);
+            free(ims);
+            return 0;
+        }
+
+        // image_u8_t's fields are const; copy it into the array
+        image_u8_t im = {
+                .buf = buf + offsets[i],
+                .height = height,
+                .width = width,
+                .stride = stride
+        };
+        memcpy(&frames[i], &im, sizeof(image_u8_t));
+        ims[i] = &frames[i];
+    }
+    free(offsets);
+
+    pthread_mutex_lock(&det->mutex);
+
+    if (!det->cfg) {
+        det->cfg = config_create("tag36h11", 2, APRILTAG_DECODER_AUTO, 2.0, 0.0, 4);
+        __android_log_write(ANDROID_LOG_INFO, "apriltag_jni",
+                            "using default parameters");
+    }
+
+    zarray_t **lists = apriltag_detector_detect_batch(det->cfg->td, ims, nframes, &det->stats);
+    det->has_stats = nframes > 0;
+
+    pthread_mutex_unlock(&det->mutex);
+
+    free(frames);
+    free(ims);
+
+    apriltag_pose_params_t pose;
+    return batch_to_buffer(env, det, lists, nframes, detector_pose(det, &pose), out);
+}
+
+static void fill_from_image(void *user, image_u8_t *dst)
+{
+    const image_u8_t *im = user;
+
+    for (int y = 0; y < im->height; y++)
+        memcpy(&dst->buf[y*dst->stride], &im->buf[y*im->stride], im->width);
+}
+
+// A tightly packed luma plane in a Java byte array
+struct array_source {
+    JNIEnv *env;
+    jbyteArray array;
+};
+
+static void fill_from_array(void *user, image_u8_t *dst)
+{
+    struct array_source *src = user;
+
+    for (int y = 0; y < dst->height; y++)
+        (*src->env)->GetByteArrayRegion(src->env, src->array, y * dst->width, dst->width,
+                                        (jbyte*) &dst->buf[y*dst->stride]);
+}
+
+// Have fill write a width x height frame into the pipeline of det.
+// Returns JNI_FALSE, without calling fill, if the pipeline is full.
+static jboolean detector_submit(jni_detector_t *det, int width, int height,
+                                void (*fill)(void *user, image_u8_t *dst), void *user)
+{
+    pthread_mutex_lock(&det->mutex);
+
+    struct detector_config *cfg = det->cfg;
+    if (!cfg->pipeline) {
+        int seg_nthreads, dec_nthreads;
+        pipeline_split_threads(cfg->td->nthreads, &seg_nthreads, &dec_nthreads);
+        cfg->pipeline = apriltag_pipeline_create(cfg->td, PIPELINE_DEPTH, seg_nthreads, dec_nthreads);
+    }
+
+    int res = apriltag_pipeline_submit_with(cfg->pipeline, width, height, 0, fill, user);
+
+    pthread_mutex_unlock(&det->mutex);
+
+    return res == 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_detect_batch
+ * Signature: (J[B[IIIILedu/umich/eecs/april/apriltag/DetectionBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1detect_1batch
+        (JNIEnv *env, jclass cls, jlong handle, jbyteArray _buf, jintArray offsets, jint width,
+         jint height, jint stride, jobject out) {
+    if (!_buf) {
+        throw_illegal_argument(env, "frame buffer must not be null");
+        return 0;
+    }
+    jlong capacity = (*env)->GetArrayLength(env, _buf);
+
+    // The frames are only read, so don't copy them back
+    jbyte *buf = (*env)->GetByteArrayElements(env, _buf, NULL);
+    jint n = detector_detect_batch(env, (jni_detector_t*) (intptr_t) handle, (uint8_t*) buf,
+                                   capacity, offsets, width, height, stride, out);
+    (*env)->ReleaseByteArrayElements(env, _buf, buf, JNI_ABORT);
+
+    return n;
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_detect_batch_direct
+ * Signature: (JLjava/nio/ByteBuffer;[IIIILedu/umich/eecs/april/apriltag/DetectionBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1detect_1batch_1direct
+        (JNIEnv *env, jclass cls, jlong handle, jobject _buf, jintArray offsets, jint width,
+         jint height, jint stride, jobject out) {
+    // Read the frames in place; no copy is made
+    jlong capacity;
+    uint8_t *buf = direct_buffer(env, _buf, &capacity);
+    if (!buf)
+        return 0;
+
+    return detector_detect_batch(env, (jni_detector_t*) (intptr_t) handle, buf, capacity,
+                                 offsets, width, height, stride, out);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_submit
+ * Signature: (J[BII)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1submit
+        (JNIEnv *env, jclass cls, jlong handle, jbyteArray _buf, jint width, jint height) {
+    if (!check_byte_array(env, _buf, width, height))
+        return JNI_FALSE;
+
+    // Copied straight into the pipeline, rather than pinned: the
+    // detector's mutex may have to be waited for.
+    struct array_source src = { env, _buf };
+    return detector_submit((jni_detector_t*) (intptr_t) handle, width, height, fill_from_array, &src);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_submit_direct
+ * Signature: (JLjava/nio/ByteBuffer;IIII)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1submit_1direct
+        (JNIEnv *env, jclass cls, jlong handle, jobject _buf, jint offset, jint width, jint height,
+         jint stride) {
+    jlong capacity;
+    uint8_t *buf = direct_buffer(env, _buf, &capacity);
+    if (!buf)
+        return JNI_FALSE;
+    if (offset < 0 || width <= 0 || height <= 0 || stride < width ||
+            offset + (jlong) stride * (height - 1) + width > capacity) {
+        throw_illegal_argument(env, "frame geometry exceeds buffer capacity");
+        return JNI_FALSE;
+    }
+
+    image_u8_t im = {
+            .buf = buf + offset,
+            .height = height,
+            .width = width,
+            .stride = stride
+    };
+    return detector_submit((jni_detector_t*) (intptr_t) handle, width, height, fill_from_image, &im);
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_retrieve_into
+ * Signature: (JLedu/umich/eecs/april/apriltag/DetectionBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1retrieve_1into
+        (JNIEnv *env, jclass cls, jlong handle, jobject out) {
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+
+    // Waiting for a frame can take a whole segmentation and decode, so
+    // it is done without the mutex. The reference keeps the pipeline,
+    // and the families the detections point to, alive if the detector
+    // is reconfigured meanwhile.
+    pthread_mutex_lock(&det->mutex);
+    struct detector_config *cfg = det->cfg;
+    apriltag_pipeline_t *pipeline = cfg->pipeline;
+    __atomic_add_fetch(&cfg->refs, 1, __ATOMIC_RELAXED);
+    pthread_mutex_unlock(&det->mutex);
+
+    apriltag_stats_t stats;
+    zarray_t *detections = NULL;
+    if (pipeline)
+        detections = apriltag_pipeline_retrieve(pipeline, NULL, &stats);
+
+    jint n = -1;
+    if (detections) {
+        pthread_mutex_lock(&det->mutex);
+        det->stats = stats;
+        det->has_stats = 1;
+        pthread_mutex_unlock(&det->mutex);
+
+        apriltag_pose_params_t pose;
+        n = detections_to_buffer(env, det, detections, detector_pose(det, &pose), out);
+    }
+
+    config_release(cfg);
+    return n;
+}
+
+/*
+ * Class:     edu_umich_eecs_april_apriltag_AprilTagDetector
+ * Method:    native_get_stats
+ * Signature: (J[J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_umich_eecs_april_apriltag_AprilTagDetector_native_1get_1stats
+        (JNIEnv *env, jclass cls, jlong handle, jlongArray _out) {
+    if (!_out || (*env)->GetArrayLength(env, _out) < STATS_LENGTH) {
+        throw_illegal_argument(env, "stats array is too short");
+        return JNI_FALSE;
+    }
+
+    jni_detector_t *det = (jni_detector_t*) (intptr_t) handle;
+
+    pthread_mutex_lock(&det->mutex);
+    int has_stats = det->has_stats;
+    apriltag_stats_t st = det->stats;
+    pthread_mutex_unlock(&det->mutex);
+
+    if (!has_stats)
+        return JNI_FALSE;
+
+    jlong out[STATS_LENGTH];
+    for (int i = 0; i < APRILTAG_NSTAGES; i += 1)
+        out[i] = st.stage_ns[i];
+    out[APRILTAG_NSTAGES] = st.nquads;
+    out[APRILTAG_NSTAGES + 1] = st.ndecoded;
+    out[APRILTAG_NSTAGES + 2] = st.ndetections;
+    for (int i = 0; i < APRILTAG_NREJECTS; i += 1)
+        out[APRILTAG_NSTAGES + 3 + i] = st.nrejected[i];
+    (*env)->SetLongArrayRegion(env, _out, 0, STATS_LENGTH, out);
+
+    return JNI_TRUE;
+}
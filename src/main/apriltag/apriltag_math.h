@@ -106,4 +106,99 @@ static inline void mat33_sym_solve(const double *A,
     R[2] = M[8]*tmp[2];
 }
 
+// The 3x3 helpers below work on row-major arrays on the stack, for
+// small fixed-size math that would otherwise allocate a matd_t per
+// operation.
+
+// R = A*B. R must not alias A or B.
+static inline void mat33_mul(const double *A,
+                             const double *B,
+                             double *R)
+{
+    for (int i = 0; i < 3; i++) {
+        for (int j = 0; j < 3; j++) {
+            double acc = 0;
+            for (int k = 0; k < 3; k++)
+                acc += A[3*i+k] * B[3*k+j];
+            R[3*i+j] = acc;
+        }
+    }
+}
+
+// R = A*x for a 3-vector x. R must not alias x.
+static inline void mat33_mul_vec(const double *A,
+                                 const double *x,
+                                 double *R)
+{
+    for (int i = 0; i < 3; i++)
+        R[i] = A[3*i+0]*x[0] + A[3*i+1]*x[1] + A[3*i+2]*x[2];
+}
+
+// R = inverse of the transpose of A, which must not be singular.
+static inline void mat33_inv_transpose(const double *A,
+                                       double *R)
+{
+    // the cofactor matrix divided by the determinant
+    R[0] = A[4]*A[8] - A[5]*A[7];
+    R[1] = A[5]*A[6] - A[3]*A[8];
+    R[2] = A[3]*A[7] - A[4]*A[6];
+    R[3] = A[2]*A[7] - A[1]*A[8];
+    R[4] = A[0]*A[8] - A[2]*A[6];
+    R[5] = A[1]*A[6] - A[0]*A[7];
+    R[6] = A[1]*A[5] - A[2]*A[4];
+    R[7] = A[2]*A[3] - A[0]*A[5];
+    R[8] = A[0]*A[4] - A[1]*A[3];
+
+    double det = A[0]*R[0] + A[1]*R[1] + A[2]*R[2];
+    for (int i = 0; i < 9; i++)
+        R[i] /= det;
+}
+
+// R = inverse of A. Returns -1, leaving R undefined, if A is singular.
+static inline int mat33_inv(const double *A,
+                            double *R)
+{
+    double C[9];
+    mat33_inv_transpose(A, C);
+
+    for (int i = 0; i < 9; i++) {
+        if (!isfinite(C[i]))
+            return -1;
+    }
+
+    for (int i = 0; i < 3; i++)
+        for (int j = 0; j < 3; j++)
+            R[3*i+j] = C[3*j+i];
+    return 0;
+}
+
+// The rotation nearest to A, the orthogonal factor of its polar
+// decomposition, by Newton iteration: R <- (R + R^-T) / 2. Converges
+// quadratically for a matrix that is close to a rotation, as one
+// built from the columns of a homography is. R may alias A.
+static inline void mat33_polar(const double *A,
+                               double *R)
+{
+    double X[9], Y[9];
+    for (int i = 0; i < 9; i++)
+        X[i] = A[i];
+
+    for (int iter = 0; iter < 20; iter++) {
+        mat33_inv_transpose(X, Y);
+
+        double change = 0;
+        for (int i = 0; i < 9; i++) {
+            double x = (X[i] + Y[i]) / 2;
+            change += (x - X[i]) * (x - X[i]);
+            X[i] = x;
+        }
+
+        if (change < 1e-24)
+            break;
+    }
+
+    for (int i = 0; i < 9; i++)
+        R[i] = X[i];
+}
+
 #endif
@@ -0,0 +1,341 @@
+#include <assert.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag_pipeline.h"
+#include "common/image_u8.h"
+#include "common/timeprofile.h"
+
+enum slot_state
+{
+    SLOT_EMPTY,     // free for submit
+    SLOT_SUBMITTED, // waiting for (or in) segmentation
+    SLOT_SEGMENTED, // waiting for (or in) decoding
+    SLOT_DONE,      // waiting for retrieve
+};
+
+struct pipeline_slot
+{
+    enum slot_state state;
+    int64_t tag;
+
+    // owned by the slot and reused while the frame size is unchanged.
+    image_u8_t *im;
+
+    zarray_t *quads;
+    zarray_t *detections;
+    apriltag_stats_t stats;
+};
+
+struct apriltag_pipeline
+{
+    // Private detector instances for each stage. They share the tag
+    // families of the user's detector but have their own workerpool,
+    // timeprofile and mutex, so the stages never contend.
+    apriltag_detector_t *seg_td, *dec_td;
+
+    int depth;
+    struct pipeline_slot *slots;
+
+    // next slot to fill, segment, decode and retrieve. Each stage
+    // visits the ring in order, so frames never overtake each other.
+    int submit_idx, seg_idx, dec_idx, retrieve_idx;
+    int in_flight;
+
+    int quit;
+
+    // Parameters for frames segmented from now on, set by
+    // apriltag_pipeline_set_params and picked up by the stage threads.
+    float quad_decimate, quad_sigma;
+    int pyramid_levels;
+    int seg_nthreads, dec_nthreads;
+
+    // Likewise, set by apriltag_pipeline_set_rejection.
+    int min_cluster_side;
+    float max_cluster_aspect;
+    float min_border_contrast, ambiguous_bit_margin;
+
+    pthread_t seg_thread, dec_thread;
+    pthread_mutex_t mutex;
+    pthread_cond_t cond;
+};
+
+static apriltag_detector_t *stage_detector_create(apriltag_detector_t *td, int nthreads)
+{
+    apriltag_detector_t *std = calloc(1, sizeof(apriltag_detector_t));
+    memcpy(std, td, sizeof(apriltag_detector_t));
+
+    std->nthreads = nthreads;
+    std->wp = NULL;
+    std->tp = timeprofile_create();
+    pthread_mutex_init(&std->mutex, NULL);
+
+    // each stage only ever sets the rejection counts of its own
+    // stages, and the others are added to the frame's stats too.
+    memset(std->nrejected, 0, sizeof(std->nrejected));
+
+    return std;
+}
+
+// unlike apriltag_detector_destroy, leaves the (shared) tag families alone.
+static void stage_detector_destroy(apriltag_detector_t *std)
+{
+    workerpool_destroy(std->wp);
+    timeprofile_destroy(std->tp);
+    pthread_mutex_destroy(&std->mutex);
+    free(std);
+}
+
+static void *seg_thread_run(void *p)
+{
+    apriltag_pipeline_t *pp = (apriltag_pipeline_t*) p;
+
+    pthread_mutex_lock(&pp->mutex);
+    while (1) {
+        struct pipeline_slot *slot = &pp->slots[pp->seg_idx];
+
+        while (!pp->quit && slot->state != SLOT_SUBMITTED)
+            pthread_cond_wait(&pp->cond, &pp->mutex);
+        if (pp->quit)
+            break;
+
+        pp->seg_td->quad_decimate = pp->quad_decimate;
+        pp->seg_td->quad_sigma = pp->quad_sigma;
+        pp->seg_td->pyramid_levels = pp->pyramid_levels;
+        pp->seg_td->qtp.min_cluster_side = pp->min_cluster_side;
+        pp->seg_td->qtp.max_cluster_aspect = pp->max_cluster_aspect;
+        pp->seg_td->nthreads = pp->seg_nthreads;
+
+        pthread_mutex_unlock(&pp->mutex);
+
+        timeprofile_clear(pp->seg_td->tp);
+        slot->quads = apriltag_detector_detect_quads(pp->seg_td, slot->im);
+
+        apriltag_stats_clear(&slot->stats);
+        apriltag_stats_add_profile(&slot->stats, pp->seg_td->tp);
+        slot->stats.nquads = pp->seg_td->nquads;
+        apriltag_stats_add_rejected(&slot->stats, pp->seg_td->nrejected);
+
+        pthread_mutex_lock(&pp->mutex);
+        slot->state = SLOT_SEGMENTED;
+        pp->seg_idx = (pp->seg_idx + 1) % pp->depth;
+        pthread_cond_broadcast(&pp->cond);
+    }
+    pthread_mutex_unlock(&pp->mutex);
+
+    return NULL;
+}
+
+static void *dec_thread_run(void *p)
+{
+    apriltag_pipeline_t *pp = (apriltag_pipeline_t*) p;
+
+    pthread_mutex_lock(&pp->mutex);
+    while (1) {
+        struct pipeline_slot *slot = &pp->slots[pp->dec_idx];
+
+        while (!pp->quit && slot->state != SLOT_SEGMENTED)
+            pthread_cond_wait(&pp->cond, &pp->mutex);
+        if (pp->quit)
+            break;
+
+        pp->dec_td->nthreads = pp->dec_nthreads;
+        pp->dec_td->min_border_contrast = pp->min_border_contrast;
+        pp->dec_td->ambiguous_bit_margin = pp->ambiguous_bit_margin;
+
+        pthread_mutex_unlock(&pp->mutex);
+
+        timeprofile_clear(pp->dec_td->tp);
+        slot->detections = apriltag_detector_decode_quads(pp->dec_td, slot->im, slot->quads);
+        slot->quads = NULL;
+
+        apriltag_stats_add_profile(&slot->stats, pp->dec_td->tp);
+        slot->stats.ndecoded = pp->dec_td->ndecoded;
+        apriltag_stats_add_rejected(&slot->stats, pp->dec_td->nrejected);
+        slot->stats.ndetections = zarray_size(slot->detections);
+
+        pthread_mutex_lock(&pp->mutex);
+        slot->state = SLOT_DONE;
+        pp->dec_idx = (pp->dec_idx + 1) % pp->depth;
+        pthread_cond_broadcast(&pp->cond);
+    }
+    pthread_mutex_unlock(&pp->mutex);
+
+    return NULL;
+}
+
+apriltag_pipeline_t *apriltag_pipeline_create(apriltag_detector_t *td, int depth,
+                                              int seg_nthreads, int dec_nthreads)
+{
+    assert(depth > 0);
+    assert(seg_nthreads > 0 && dec_nthreads > 0);
+
+    apriltag_pipeline_t *pp = calloc(1, sizeof(apriltag_pipeline_t));
+    pp->seg_td = stage_detector_create(td, seg_nthreads);
+    pp->dec_td = stage_detector_create(td, dec_nthreads);
+
+    pp->depth = depth;
+    pp->slots = calloc(depth, sizeof(struct pipeline_slot));
+
+    pp->quad_decimate = td->quad_decimate;
+    pp->quad_sigma = td->quad_sigma;
+    pp->pyramid_levels = td->pyramid_levels;
+    pp->seg_nthreads = seg_nthreads;
+    pp->dec_nthreads = dec_nthreads;
+    pp->min_cluster_side = td->qtp.min_cluster_side;
+    pp->max_cluster_aspect = td->qtp.max_cluster_aspect;
+    pp->min_border_contrast = td->min_border_contrast;
+    pp->ambiguous_bit_margin = td->ambiguous_bit_margin;
+
+    pthread_mutex_init(&pp->mutex, NULL);
+    pthread_cond_init(&pp->cond, NULL);
+
+    pthread_create(&pp->seg_thread, NULL, seg_thread_run, pp);
+    pthread_create(&pp->dec_thread, NULL, dec_thread_run, pp);
+
+    return pp;
+}
+
+void apriltag_pipeline_destroy(apriltag_pipeline_t *pp)
+{
+    if (pp == NULL)
+        return;
+
+    // the stage threads finish the frame they are working on first.
+    pthread_mutex_lock(&pp->mutex);
+    pp->quit = 1;
+    pthread_cond_broadcast(&pp->cond);
+    pthread_mutex_unlock(&pp->mutex);
+
+    pthread_join(pp->seg_thread, NULL);
+    pthread_join(pp->dec_thread, NULL);
+
+    for (int i = 0; i < pp->depth; i++) {
+        struct pipeline_slot *slot = &pp->slots[i];
+
+        // quads not decoded yet have no homographies
+        if (slot->quads)
+            zarray_destroy(slot->quads);
+        if (slot->detections)
+            apriltag_detections_destroy(slot->detections);
+        if (slot->im)
+            image_u8_destroy(slot->im);
+    }
+    free(pp->slots);
+
+    stage_detector_destroy(pp->seg_td);
+    stage_detector_destroy(pp->dec_td);
+
+    pthread_mutex_destroy(&pp->mutex);
+    pthread_cond_destroy(&pp->cond);
+    free(pp);
+}
+
+void apriltag_pipeline_set_params(apriltag_pipeline_t *pp, float quad_decimate, float quad_sigma,
+                                  int pyramid_levels, int seg_nthreads, int dec_nthreads)
+{
+    assert(seg_nthreads > 0 && dec_nthreads > 0);
+
+    pthread_mutex_lock(&pp->mutex);
+    pp->quad_decimate = quad_decimate;
+    pp->quad_sigma = quad_sigma;
+    pp->pyramid_levels = pyramid_levels;
+    pp->seg_nthreads = seg_nthreads;
+    pp->dec_nthreads = dec_nthreads;
+    pthread_mutex_unlock(&pp->mutex);
+}
+
+void apriltag_pipeline_set_rejection(apriltag_pipeline_t *pp, int min_cluster_side, float max_cluster_aspect,
+                                     float min_border_contrast, float ambiguous_bit_margin)
+{
+    pthread_mutex_lock(&pp->mutex);
+    pp->min_cluster_side = min_cluster_side;
+    pp->max_cluster_aspect = max_cluster_aspect;
+    pp->min_border_contrast = min_border_contrast;
+    pp->ambiguous_bit_margin = ambiguous_bit_margin;
+    pthread_mutex_unlock(&pp->mutex);
+}
+
+static void copy_image(void *user, image_u8_t *dst)
+{
+    const image_u8_t *im = user;
+
+    for (int y = 0; y < im->height; y++)
+        memcpy(&dst->buf[y*dst->stride], &im->buf[y*im->stride], im->width);
+}
+
+int apriltag_pipeline_submit(apriltag_pipeline_t *pp, const image_u8_t *im, int64_t tag)
+{
+    return apriltag_pipeline_submit_with(pp, im->width, im->height, tag, copy_image, (void*) im);
+}
+
+int apriltag_pipeline_submit_with(apriltag_pipeline_t *pp, int width, int height, int64_t tag,
+                                  void (*fill)(void *user, image_u8_t *dst), void *user)
+{
+    pthread_mutex_lock(&pp->mutex);
+    struct pipeline_slot *slot = &pp->slots[pp->submit_idx];
+    int full = (slot->state != SLOT_EMPTY);
+    pthread_mutex_unlock(&pp->mutex);
+
+    if (full)
+        return -1;
+
+    // The slot is EMPTY, so no stage will touch it until we publish it.
+    if (slot->im == NULL || slot->im->width != width || slot->im->height != height) {
+        if (slot->im)
+            image_u8_destroy(slot->im);
+        slot->im = image_u8_create(width, height);
+    }
+
+    fill(user, slot->im);
+
+    slot->tag = tag;
+
+    pthread_mutex_lock(&pp->mutex);
+    slot->state = SLOT_SUBMITTED;
+    pp->submit_idx = (pp->submit_idx + 1) % pp->depth;
+    pp->in_flight++;
+    pthread_cond_broadcast(&pp->cond);
+    pthread_mutex_unlock(&pp->mutex);
+
+    return 0;
+}
+
+zarray_t *apriltag_pipeline_retrieve(apriltag_pipeline_t *pp, int64_t *tag, apriltag_stats_t *stats)
+{
+    pthread_mutex_lock(&pp->mutex);
+
+    if (pp->in_flight == 0) {
+        pthread_mutex_unlock(&pp->mutex);
+        return NULL;
+    }
+
+    struct pipeline_slot *slot = &pp->slots[pp->retrieve_idx];
+    while (slot->state != SLOT_DONE)
+        pthread_cond_wait(&pp->cond, &pp->mutex);
+
+    zarray_t *detections = slot->detections;
+    slot->detections = NULL;
+    if (tag)
+        *tag = slot->tag;
+    if (stats)
+        *stats = slot->stats;
+
+    slot->state = SLOT_EMPTY;
+    pp->retrieve_idx = (pp->retrieve_idx + 1) % pp->depth;
+    pp->in_flight--;
+
+    pthread_mutex_unlock(&pp->mutex);
+
+    return detections;
+}
+
+int apriltag_pipeline_in_flight(apriltag_pipeline_t *pp)
+{
+    pthread_mutex_lock(&pp->mutex);
+    int n = pp->in_flight;
+    pthread_mutex_unlock(&pp->mutex);
+
+    return n;
+}
@@ -0,0 +1,76 @@
+#ifndef _APRILTAG_PIPELINE_H
+#define _APRILTAG_PIPELINE_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#include <stdint.h>
+
+#include "apriltag.h"
+#include "apriltag_stats.h"
+
+// Runs the two halves of apriltag_detector_detect on consecutive
+// frames at the same time: while frame N is being decoded, frame N+1
+// is already being segmented (decimate, blur, threshold, unionfind,
+// clustering and quad fitting). Each stage has its own thread and
+// workerpool. Frames are held in a bounded ring and results come back
+// in submission order.
+//
+// The latency of a single frame is about the same as with
+// apriltag_detector_detect, but throughput is bounded by the slower
+// stage instead of the sum of both.
+typedef struct apriltag_pipeline apriltag_pipeline_t;
+
+// The pipeline copies the parameters and shares the tag families of
+// td, which must outlive it and whose families must not be modified
+// while the pipeline exists. td itself is not used by the pipeline, so it can
+// still be used for ordinary detection. depth is the maximum number
+// of frames in flight; the segmentation and decode stages use
+// seg_nthreads and dec_nthreads worker threads respectively.
+apriltag_pipeline_t *apriltag_pipeline_create(apriltag_detector_t *td, int depth,
+                                              int seg_nthreads, int dec_nthreads);
+
+// Discards any frames still in flight.
+void apriltag_pipeline_destroy(apriltag_pipeline_t *pp);
+
+// Change the decimation, blur, pyramid levels and thread counts of
+// the pipeline without restarting it. Frames already segmented keep
+// their old parameters; frames segmented from now on use the new
+// ones. A changed thread count replaces that stage's workerpool.
+void apriltag_pipeline_set_params(apriltag_pipeline_t *pp, float quad_decimate, float quad_sigma,
+                                  int pyramid_levels, int seg_nthreads, int dec_nthreads);
+
+// Change the early-rejection thresholds of the pipeline (see
+// apriltag_quad_thresh_params and apriltag_detector) the same way.
+// The cluster checks apply to frames segmented from now on, the border
+// and bit checks to frames decoded from now on.
+void apriltag_pipeline_set_rejection(apriltag_pipeline_t *pp, int min_cluster_side, float max_cluster_aspect,
+                                     float min_border_contrast, float ambiguous_bit_margin);
+
+// Copy im into the ring and start processing it. The caller's image
+// can be reused as soon as this returns. Returns 0 on success, or -1
+// without copying if depth frames are already in flight.
+int apriltag_pipeline_submit(apriltag_pipeline_t *pp, const image_u8_t *im, int64_t tag);
+
+// Like apriltag_pipeline_submit, but the frame is written straight
+// into the ring by fill(user, dst), where dst is a width x height
+// image owned by the pipeline. For frames that can't be read in place
+// for the length of a copy, such as Java arrays.
+int apriltag_pipeline_submit_with(apriltag_pipeline_t *pp, int width, int height, int64_t tag,
+                                  void (*fill)(void *user, image_u8_t *dst), void *user);
+
+// Wait for the oldest frame in flight and return its detections
+// (destroy with apriltag_detections_destroy). The tag passed to
+// submit and the frame's stage timings and counts are returned if
+// the pointers are non-NULL. Returns NULL if no frame is in flight.
+zarray_t *apriltag_pipeline_retrieve(apriltag_pipeline_t *pp, int64_t *tag, apriltag_stats_t *stats);
+
+// How many frames have been submitted but not yet retrieved?
+int apriltag_pipeline_in_flight(apriltag_pipeline_t *pp);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
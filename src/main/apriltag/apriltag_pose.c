@@ -0,0 +1,216 @@
+#include <math.h>
+
+#include "apriltag_pose.h"
+#include "apriltag_math.h"
+#include "common/matd.h"
+
+// Damping added to the diagonal of the normal equations, relative to
+// their largest diagonal entry, so that a degenerate view (a tag seen
+// edge-on) cannot make the refinement step blow up.
+#define REFINE_DAMPING 1e-6
+
+// Tag coordinates of corner i of a detection, in units of half the
+// tag size; see the corner order in quad_decode_task.
+static void corner_model(int i, double *x, double *y)
+{
+    *x = (i == 1 || i == 2) ? 1 : -1;
+    *y = (i < 2) ? 1 : -1;
+}
+
+// Mean squared reprojection error of the corners of det under pose.
+// If J and r are not NULL, also fill in the 8x6 jacobian of the
+// residuals with respect to a rotation increment (applied on the left)
+// and a translation increment, and the 8 residuals.
+static double reprojection_error(const apriltag_detection_t *det, const apriltag_pose_params_t *params,
+                                 const apriltag_pose_t *pose, double *J, double *r)
+{
+    double half = params->tagsize / 2;
+    double err = 0;
+
+    for (int i = 0; i < 4; i++) {
+        double X[3], RX[3], P[3];
+        corner_model(i, &X[0], &X[1]);
+        X[0] *= half;
+        X[1] *= half;
+        X[2] = 0;
+
+        mat33_mul_vec(pose->R, X, RX);
+        for (int k = 0; k < 3; k++)
+            P[k] = RX[k] + pose->t[k];
+
+        double iz = 1 / P[2];
+        double u = params->fx * P[0] * iz + params->cx;
+        double v = params->fy * P[1] * iz + params->cy;
+        double du = u - det->p[i][0];
+        double dv = v - det->p[i][1];
+        err += du*du + dv*dv;
+
+        if (!J)
+            continue;
+
+        r[2*i+0] = du;
+        r[2*i+1] = dv;
+
+        // d(u,v)/dP
+        double Ju[3] = { params->fx * iz, 0, -params->fx * P[0] * iz * iz };
+        double Jv[3] = { 0, params->fy * iz, -params->fy * P[1] * iz * iz };
+
+        // dP/dw = -[RX]x, dP/dt = I
+        double S[9] = { 0,      RX[2], -RX[1],
+                       -RX[2],  0,      RX[0],
+                        RX[1], -RX[0],  0 };
+
+        for (int c = 0; c < 3; c++) {
+            J[(2*i+0)*6 + c] = Ju[0]*S[c] + Ju[1]*S[3+c] + Ju[2]*S[6+c];
+            J[(2*i+1)*6 + c] = Jv[0]*S[c] + Jv[1]*S[3+c] + Jv[2]*S[6+c];
+            J[(2*i+0)*6 + 3 + c] = Ju[c];
+            J[(2*i+1)*6 + 3 + c] = Jv[c];
+        }
+    }
+
+    return err / 4;
+}
+
+// Solve the symmetric positive definite 6x6 system A x = b in place by
+// Cholesky factorization. Returns -1 if A is not positive definite.
+static int sym6_solve(double *A, double *b, double *x)
+{
+    for (int j = 0; j < 6; j++) {
+        double d = A[6*j+j];
+        for (int k = 0; k < j; k++)
+            d -= A[6*j+k] * A[6*j+k];
+        if (!(d > 0))
+            return -1;
+        A[6*j+j] = sqrt(d);
+
+        for (int i = j + 1; i < 6; i++) {
+            double s = A[6*i+j];
+            for (int k = 0; k < j; k++)
+                s -= A[6*i+k] * A[6*j+k];
+            A[6*i+j] = s / A[6*j+j];
+        }
+    }
+
+    // L y = b, then L' x = y
+    for (int i = 0; i < 6; i++) {
+        double s = b[i];
+        for (int k = 0; k < i; k++)
+            s -= A[6*i+k] * x[k];
+        x[i] = s / A[6*i+i];
+    }
+    for (int i = 5; i >= 0; i--) {
+        double s = x[i];
+        for (int k = i + 1; k < 6; k++)
+            s -= A[6*k+i] * x[k];
+        x[i] = s / A[6*i+i];
+    }
+
+    return 0;
+}
+
+// Rotation matrix of the rotation vector w (Rodrigues' formula)
+static void rotation_from_vector(const double *w, double *R)
+{
+    double theta = sqrt(w[0]*w[0] + w[1]*w[1] + w[2]*w[2]);
+    double a, b;
+    if (theta < 1e-9) {
+        a = 1;
+        b = 0.5;
+    } else {
+        a = sin(theta) / theta;
+        b = (1 - cos(theta)) / (theta * theta);
+    }
+
+    R[0] = 1 - b*(w[1]*w[1] + w[2]*w[2]);
+    R[1] = -a*w[2] + b*w[0]*w[1];
+    R[2] =  a*w[1] + b*w[0]*w[2];
+    R[3] =  a*w[2] + b*w[0]*w[1];
+    R[4] = 1 - b*(w[0]*w[0] + w[2]*w[2]);
+    R[5] = -a*w[0] + b*w[1]*w[2];
+    R[6] = -a*w[1] + b*w[0]*w[2];
+    R[7] =  a*w[0] + b*w[1]*w[2];
+    R[8] = 1 - b*(w[0]*w[0] + w[1]*w[1]);
+}
+
+double apriltag_estimate_pose(const apriltag_detection_t *det, const apriltag_pose_params_t *params,
+                              apriltag_pose_t *pose)
+{
+    const double *H = det->H->data;
+
+    // M = K^-1 H = lambda [r1 r2 t/half]
+    double M[9];
+    for (int j = 0; j < 3; j++) {
+        M[6+j] = H[6+j];
+        M[0+j] = (H[0+j] - params->cx * H[6+j]) / params->fx;
+        M[3+j] = (H[3+j] - params->cy * H[6+j]) / params->fy;
+    }
+
+    // Recover the scale from the lengths of the rotation columns
+    // (geometric mean), and its sign by putting the tag in front of
+    // the camera.
+    double len1 = sqrt(M[0]*M[0] + M[3]*M[3] + M[6]*M[6]);
+    double len2 = sqrt(M[1]*M[1] + M[4]*M[4] + M[7]*M[7]);
+    double s = 1 / sqrt(len1 * len2);
+    if (M[8] < 0)
+        s = -s;
+
+    double A[9];
+    for (int i = 0; i < 3; i++) {
+        A[3*i+0] = s * M[3*i+0];
+        A[3*i+1] = s * M[3*i+1];
+        pose->t[i] = s * M[3*i+2] * params->tagsize / 2;
+    }
+
+    // third column is the cross product of the first two
+    A[2] = A[3]*A[7] - A[6]*A[4];
+    A[5] = A[6]*A[1] - A[0]*A[7];
+    A[8] = A[0]*A[4] - A[3]*A[1];
+
+    mat33_polar(A, pose->R);
+
+    double err = reprojection_error(det, params, pose, NULL, NULL);
+
+    for (int iter = 0; iter < params->refine_iters; iter++) {
+        double J[8*6], r[8];
+        reprojection_error(det, params, pose, J, r);
+
+        // normal equations J'J d = -J'r
+        double JtJ[36], Jtr[6], d[6];
+        double maxdiag = 0;
+        for (int a = 0; a < 6; a++) {
+            for (int b = 0; b <= a; b++) {
+                double acc = 0;
+                for (int k = 0; k < 8; k++)
+                    acc += J[6*k+a] * J[6*k+b];
+                JtJ[6*a+b] = JtJ[6*b+a] = acc;
+            }
+            double acc = 0;
+            for (int k = 0; k < 8; k++)
+                acc += J[6*k+a] * r[k];
+            Jtr[a] = -acc;
+            maxdiag = fmax(maxdiag, JtJ[6*a+a]);
+        }
+        for (int a = 0; a < 6; a++)
+            JtJ[6*a+a] += REFINE_DAMPING * maxdiag;
+
+        if (sym6_solve(JtJ, Jtr, d))
+            break;
+
+        apriltag_pose_t next;
+        double dR[9];
+        rotation_from_vector(d, dR);
+        mat33_mul(dR, pose->R, next.R);
+        for (int k = 0; k < 3; k++)
+            next.t[k] = pose->t[k] + d[3+k];
+
+        // stop as soon as a step no longer helps
+        double next_err = reprojection_error(det, params, &next, NULL, NULL);
+        if (!(next_err < err))
+            break;
+
+        *pose = next;
+        err = next_err;
+    }
+
+    return err;
+}
@@ -0,0 +1,51 @@
+#ifndef _APRILTAG_POSE_H
+#define _APRILTAG_POSE_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#include "apriltag.h"
+
+// Camera intrinsics, in pixels, and the physical size of the tags.
+// The camera looks down +z with x to the right and y down the image.
+typedef struct apriltag_pose_params apriltag_pose_params_t;
+struct apriltag_pose_params
+{
+    // Length of a side of the tag's outer black border. Translations
+    // are returned in the same unit. Pose estimation is off if <= 0.
+    double tagsize;
+
+    double fx, fy; // focal lengths
+    double cx, cy; // principal point
+
+    // Gauss-Newton iterations that refine the pose by minimizing the
+    // reprojection error of the corners; 0 keeps the pose recovered
+    // from the homography.
+    int refine_iters;
+};
+
+// The transformation from tag coordinates to camera coordinates. In
+// tag coordinates, the tag lies in the z = 0 plane with its center at
+// the origin, x towards the corners p[1] and p[2] and y towards p[0]
+// and p[1] of the detection.
+typedef struct apriltag_pose apriltag_pose_t;
+struct apriltag_pose
+{
+    double R[9]; // rotation, row-major
+    double t[3]; // position of the tag center
+};
+
+// Estimate the pose of a detected tag from its homography, all on the
+// stack: the rotation is the nearest proper rotation to the columns of
+// K^-1 H, and the optional refinement works on the four corners.
+// Returns the mean squared reprojection error of the corners, in
+// pixels^2.
+double apriltag_estimate_pose(const apriltag_detection_t *det, const apriltag_pose_params_t *params,
+                              apriltag_pose_t *pose);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -40,28 +40,16 @@ either expressed or implied, of the Regents of The University of Michigan.
 #include <stdint.h>
 
 #include "apriltag.h"
+#include "common/arena.h"
 #include "common/image_u8x3.h"
 #include "common/zarray.h"
 #include "common/zhash.h"
-#include "common/unionfind.h"
 #include "common/timeprofile.h"
+#include "common/simd.h"
 #include "common/zmaxheap.h"
 #include "common/postscript_utils.h"
 #include "common/math_util.h"
 
-static inline uint32_t u64hash_2(uint64_t x) {
-    return (2654435761 * x) >> 32;
-    return (uint32_t) x;
-}
-
-struct uint64_zarray_entry
-{
-    uint64_t id;
-    zarray_t *cluster;
-
-    struct uint64_zarray_entry *next;
-};
-
 #ifndef M_PI
 # define M_PI 3.141592653589793238462643383279502884196
 #endif
@@ -74,17 +62,51 @@ struct pt
     int16_t gx, gy;
 };
 
-struct unionfind_task
+// One horizontal band of the thresholded image, labeled by one task.
+// See the connected components section below.
+struct ccl_task
 {
-    int y0, y1;
-    int w, h, s;
-    unionfind_t *uf;
+    workerpool_t *wp;
+    arena_t *arena;     // of the thread that labeled this band
     image_u8_t *im;
+    int w, h;
+    int y0, y1; // [y0, y1)
+
+    struct ccl_run *runs;
+    int nruns, allocruns;
+    int *row_start;     // index of the first run of each row; y1-y0+1 entries
+
+    uint32_t *parent;   // union-find over this band's runs
+    uint32_t base;      // global index of runs[0]
+
+    uint32_t *gparent;  // union-find over all runs
+    uint32_t *labels;   // component label of each run (global index)
+    uint32_t *labelim;  // component label of each pixel, w*h
+
+    struct ccl_task *next; // the band below, or NULL
+};
+
+// entries are created in the order they are first seen, which is
+// the order clusters are processed in.
+struct cluster_table
+{
+    uint64_t *keys;     // 0 marks an empty slot
+    uint32_t *values;   // cluster index
+    int bits, size;
+
+    arena_t *arena;
+};
+
+// A point of an edge between two components, and its cluster
+struct cluster_pt
+{
+    uint32_t cluster;
+    struct pt p;
 };
 
 struct quad_task
 {
-    zarray_t *clusters;
+    zarray_t *clusters; // an array of them, of struct pt
     int cidx0, cidx1; // [cidx0, cidx1)
     zarray_t *quads;
     apriltag_detector_t *td;
@@ -117,7 +139,7 @@ struct line_fit_pt
     double W; // total weight
 };
 
-static inline void ptsort(struct pt *pts, int sz)
+static inline void ptsort(arena_t *arena, struct pt *pts, int sz)
 {
 #define MAYBE_SWAP(arr,apos,bpos)                                   \
     if (arr[apos].theta > arr[bpos].theta) {                        \
@@ -180,10 +202,11 @@ static inline void ptsort(struct pt *pts, int sz)
 
     struct pt _tmp_stack[stacksz];
     struct pt *tmp = _tmp_stack;
+    arena_mark_t mark = arena_mark(arena);
 
     if (stacksz == 0) {
-        // it was too big, malloc it instead.
-        tmp = malloc(sizeof(struct pt) * sz);
+        // it was too big, use the arena instead.
+        tmp = arena_alloc(arena, sizeof(struct pt) * sz);
     }
 
     memcpy(tmp, pts, sizeof(struct pt) * sz);
@@ -194,8 +217,8 @@ static inline void ptsort(struct pt *pts, int sz)
     struct pt *as = &tmp[0];
     struct pt *bs = &tmp[asz];
 
-    ptsort(as, asz);
-    ptsort(bs, bsz);
+    ptsort(arena, as, asz);
+    ptsort(arena, bs, bsz);
 
 #define MERGE(apos,bpos)                        \
     if (as[apos].theta < bs[bpos].theta)        \
@@ -218,8 +241,7 @@ static inline void ptsort(struct pt *pts, int sz)
     if (bpos < bsz)
         memcpy(&pts[outpos], &bs[bpos], (bsz-bpos)*sizeof(struct pt));
 
-    if (stacksz == 0)
-        free(tmp);
+    arena_release(arena, mark);
 
 #undef MERGE
 }
@@ -577,9 +599,11 @@ int quad_segment_agg(apriltag_detector_t *td, zarray_t *cluster, struct line_fit
 
     int rvalloc_pos = 0;
     int rvalloc_size = 3*sz;
-    struct remove_vertex *rvalloc = calloc(rvalloc_size, sizeof(struct remove_vertex));
+    // released by fit_quad
+    arena_t *arena = workerpool_get_arena(td->wp);
+    struct remove_vertex *rvalloc = arena_calloc(arena, rvalloc_size, sizeof(struct remove_vertex));
 
-    struct segment *segs = calloc(sz, sizeof(struct segment));
+    struct segment *segs = arena_calloc(arena, sz, sizeof(struct segment));
 
     // populate with initial entries
     for (int i = 0; i < sz; i++) {
@@ -658,7 +682,6 @@ int quad_segment_agg(apriltag_detector_t *td, zarray_t *cluster, struct line_fit
         nvertices--;
     }
 
-    free(rvalloc);
     zmaxheap_destroy(heap);
 
     int idx = 0;
@@ -668,8 +691,6 @@ int quad_segment_agg(apriltag_detector_t *td, zarray_t *cluster, struct line_fit
         }
     }
 
-    free(segs);
-
     return 1;
 }
 
@@ -682,6 +703,10 @@ int fit_quad(apriltag_detector_t *td, image_u8_t *im, zarray_t *cluster, struct
     if (sz < 4) // can't fit a quad to less than 4 points
         return 0;
 
+    // everything allocated from here on is only needed for this quad
+    arena_t *arena = workerpool_get_arena(td->wp);
+    arena_mark_t mark = arena_mark(arena);
+
     /////////////////////////////////////////////////////////////
     // Step 1. Sort points so they wrap around the center of the
     // quad. We will constrain our quad fit to simply partition this
@@ -733,7 +758,7 @@ int fit_quad(apriltag_detector_t *td, image_u8_t *im, zarray_t *cluster, struct
     // step for segmenting them into four lines.
     if (1) {
         //        zarray_sort(cluster, pt_compare_theta);
-        ptsort((struct pt*) cluster->data, zarray_size(cluster));
+        ptsort(arena, (struct pt*) cluster->data, zarray_size(cluster));
 
         // remove duplicate points. (A byproduct of our segmentation system.)
         if (1) {
@@ -821,7 +846,7 @@ int fit_quad(apriltag_detector_t *td, image_u8_t *im, zarray_t *cluster, struct
     // Step 2. Precompute statistics that allow line fit queries to be
     // efficiently computed for any contiguous range of indices.
 
-    struct line_fit_pt *lfps = calloc(sz, sizeof(struct line_fit_pt));
+    struct line_fit_pt *lfps = arena_calloc(arena, sz, sizeof(struct line_fit_pt));
 
     for (int i = 0; i < sz; i++) {
         struct pt *p;
@@ -1085,44 +1110,395 @@ int fit_quad(apriltag_detector_t *td, image_u8_t *im, zarray_t *cluster, struct
 */
   finish:
 
-    free(lfps);
+    arena_release(arena, mark);
 
     return res;
 }
 
-#define DO_UNIONFIND(dx, dy) if (im->buf[y*s + dy*s + x + dx] == v) unionfind_connect(uf, y*w + x, y*w + dy*w + x + dx);
+////////////////////////////////////////////////////////
+// Connected components of the thresholded image.
+//
+// Pixels of equal value are connected; 127 (low contrast) pixels never
+// are. Black pixels connect to their 4-neighbours, white pixels to
+// their 8-neighbours. Rather than running union-find over pixels, each
+// row is split into runs of equal value, and a run is joined with the
+// runs in the next row that it touches. Each task labels one band of
+// rows with its own union-find; the bands are then joined with
+// lock-free unions, and each run gets a dense component label.
+//
+// Connectivity at the image border matches the per-pixel formulation
+// this replaces. There, only pixels 1..w-2 of rows 0..h-2 were joined
+// to their right and lower neighbours. So column 0 and the last row
+// are never joined horizontally, and columns 0 and w-1 never
+// vertically. Component labels are used as cluster ids, so this
+// keeps the clusters the same.
+
+struct ccl_run
+{
+    uint16_t x0, x1; // inclusive
+    uint8_t v;
+};
+
+static inline void ccl_add_run(struct ccl_task *task, int x0, int x1, uint8_t v)
+{
+    if (task->nruns == task->allocruns) {
+        int alloc = task->allocruns ? 2*task->allocruns : 1024;
+        task->runs = arena_realloc(task->arena, task->runs, task->allocruns * sizeof(struct ccl_run),
+                                   alloc * sizeof(struct ccl_run));
+        task->allocruns = alloc;
+    }
+
+    struct ccl_run *run = &task->runs[task->nruns++];
+    run->x0 = x0;
+    run->x1 = x1;
+    run->v = v;
+}
 
-static void do_unionfind_line(unionfind_t *uf, image_u8_t *im, int h, int w, int s, int y)
+static void ccl_extract_runs(struct ccl_task *task, int y)
 {
-    assert(y+1 < im->height);
+    const uint8_t *row = &task->im->buf[y*task->im->stride];
+    int w = task->w;
+
+    // every pixel of the last row is a run of its own.
+    if (y == task->h - 1) {
+        for (int x = 0; x < w; x++) {
+            if (row[x] != 127)
+                ccl_add_run(task, x, x, row[x]);
+        }
+        return;
+    }
 
-    for (int x = 1; x < w - 1; x++) {
-        uint8_t v = im->buf[y*s + x];
+    // and so is the first pixel of the other rows.
+    if (row[0] != 127)
+        ccl_add_run(task, 0, 0, row[0]);
+
+    int x = 1;
+    while (x < w) {
+        uint8_t v = row[x];
+        int x0 = x;
+
+        // skip 8 equal pixels at a time
+        uint64_t vvvv = v * 0x0101010101010101ULL;
+        while (x + 8 < w) {
+            uint64_t next;
+            memcpy(&next, &row[x+1], 8);
+            if (next != vvvv)
+                break;
+            x += 8;
+        }
+        while (x + 1 < w && row[x+1] == v)
+            x++;
 
-        if (v == 127)
+        if (v != 127)
+            ccl_add_run(task, x0, x, v);
+        x++;
+    }
+}
+
+// Roots are always the smallest index of their set, and every parent
+// index is smaller than its child's, so finds terminate even while
+// other threads are joining sets.
+static inline uint32_t ccl_find(uint32_t *parent, uint32_t i)
+{
+    while (parent[i] != i) {
+        parent[i] = parent[parent[i]];
+        i = parent[i];
+    }
+    return i;
+}
+
+static inline void ccl_union(uint32_t *parent, uint32_t a, uint32_t b)
+{
+    a = ccl_find(parent, a);
+    b = ccl_find(parent, b);
+
+    if (a < b)
+        parent[b] = a;
+    else if (b < a)
+        parent[a] = b;
+}
+
+static inline uint32_t ccl_find_atomic(uint32_t *parent, uint32_t i)
+{
+    while (1) {
+        uint32_t p = __atomic_load_n(&parent[i], __ATOMIC_ACQUIRE);
+        if (p == i)
+            return i;
+
+        // path halving. If another thread got here first, that's fine.
+        uint32_t gp = __atomic_load_n(&parent[p], __ATOMIC_ACQUIRE);
+        if (gp != p)
+            __atomic_compare_exchange_n(&parent[i], &p, gp, 0, __ATOMIC_RELEASE, __ATOMIC_RELAXED);
+        i = gp;
+    }
+}
+
+static inline void ccl_union_atomic(uint32_t *parent, uint32_t a, uint32_t b)
+{
+    while (1) {
+        a = ccl_find_atomic(parent, a);
+        b = ccl_find_atomic(parent, b);
+
+        if (a == b)
+            return;
+
+        if (a < b) {
+            uint32_t tmp = a;
+            a = b;
+            b = tmp;
+        }
+
+        // hang the larger root under the smaller one, unless another
+        // thread has meanwhile made it a child; then try again.
+        uint32_t expected = a;
+        if (__atomic_compare_exchange_n(&parent[a], &expected, b, 0, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE))
+            return;
+    }
+}
+
+// Join runs a (row y, union-find indices ia...) with the runs b of row
+// y+1 (indices ib...) that they touch.
+static void ccl_join_rows(uint32_t *parent, int atomic, int w,
+                          const struct ccl_run *a, int na, uint32_t ia,
+                          const struct ccl_run *b, int nb, uint32_t ib)
+{
+    int j = 0;
+
+    for (int i = 0; i < na; i++) {
+        // only pixels 1..w-2 reach down
+        int lo = imax(a[i].x0, 1), hi = imin(a[i].x1, w - 2);
+        if (lo > hi)
             continue;
 
-        // (dx,dy) pairs for 8 connectivity:
-        //          (REFERENCE) (1, 0)
-        // (-1, 1)    (0, 1)    (1, 1)
-        //
-        DO_UNIONFIND(1, 0);
-        DO_UNIONFIND(0, 1);
-        if (v == 255) {
-            DO_UNIONFIND(-1, 1);
-            DO_UNIONFIND(1, 1);
+        // white pixels also reach diagonally
+        if (a[i].v == 255) {
+            lo--;
+            hi++;
+        }
+
+        while (j < nb && b[j].x1 < lo)
+            j++;
+
+        for (int k = j; k < nb && b[k].x0 <= hi; k++) {
+            if (b[k].v != a[i].v)
+                continue;
+
+            if (atomic)
+                ccl_union_atomic(parent, ia + i, ib + k);
+            else
+                ccl_union(parent, ia + i, ib + k);
         }
     }
 }
-#undef DO_UNIONFIND
 
-static void do_unionfind_task(void *p)
+static void do_ccl_label_task(void *p)
 {
-    struct unionfind_task *task = (struct unionfind_task*) p;
+    struct ccl_task *task = (struct ccl_task*) p;
+    int nrows = task->y1 - task->y0;
+
+    task->arena = workerpool_get_arena(task->wp);
+    task->row_start = arena_alloc(task->arena, sizeof(int) * (nrows + 1));
+    for (int i = 0; i < nrows; i++) {
+        task->row_start[i] = task->nruns;
+        ccl_extract_runs(task, task->y0 + i);
+    }
+    task->row_start[nrows] = task->nruns;
+
+    task->parent = arena_alloc(task->arena, sizeof(uint32_t) * imax(task->nruns, 1));
+    for (int i = 0; i < task->nruns; i++)
+        task->parent[i] = i;
+
+    int *rs = task->row_start;
+    for (int i = 0; i + 1 < nrows; i++) {
+        ccl_join_rows(task->parent, 0, task->w,
+                      &task->runs[rs[i]], rs[i+1] - rs[i], rs[i],
+                      &task->runs[rs[i+1]], rs[i+2] - rs[i+1], rs[i+1]);
+    }
+}
+
+// publish this band's sets in the global union-find
+static void do_ccl_publish_task(void *p)
+{
+    struct ccl_task *task = (struct ccl_task*) p;
+
+    for (int i = 0; i < task->nruns; i++)
+        task->gparent[task->base + i] = task->base + ccl_find(task->parent, i);
+}
+
+// join the last row of this band with the first row of the next
+static void do_ccl_stitch_task(void *p)
+{
+    struct ccl_task *task = (struct ccl_task*) p;
+    struct ccl_task *next = task->next;
+    int nrows = task->y1 - task->y0;
+
+    int a0 = task->row_start[nrows-1], a1 = task->row_start[nrows];
+    int b1 = next->row_start[1];
+
+    ccl_join_rows(task->gparent, 1, task->w,
+                  &task->runs[a0], a1 - a0, task->base + a0,
+                  next->runs, b1, next->base);
+}
+
+static void do_ccl_fill_task(void *p)
+{
+    struct ccl_task *task = (struct ccl_task*) p;
+
+    for (int i = 0; i < task->y1 - task->y0; i++) {
+        uint32_t *row = &task->labelim[(task->y0 + i)*task->w];
+
+        for (int k = task->row_start[i]; k < task->row_start[i+1]; k++) {
+            uint32_t label = task->labels[task->base + k];
+            for (int x = task->runs[k].x0; x <= task->runs[k].x1; x++)
+                row[x] = label;
+        }
+    }
+}
+
+// Label the connected components of threshim. Returns a w*h image, in
+// the calling thread's arena, in which each pixel other than 127 holds
+// the label of its component; the ncomponents components are numbered
+// from 0 in order of their first pixel.
+uint32_t *connected_components(apriltag_detector_t *td, image_u8_t *threshim, uint32_t *ncomponents)
+{
+    int w = threshim->width, h = threshim->height;
+    arena_t *arena = workerpool_get_arena(td->wp);
+
+    // one band of rows per task
+    int nccl_tasks = imin(h, td->nthreads <= 1 ? 1 : APRILTAG_TASKS_PER_THREAD_TARGET * td->nthreads);
+    int ccl_chunksize = imax(1, (h + nccl_tasks - 1) / imax(nccl_tasks, 1));
+    nccl_tasks = (h + ccl_chunksize - 1) / ccl_chunksize;
+    struct ccl_task ccl_tasks[nccl_tasks + 1];
+    memset(ccl_tasks, 0, sizeof(ccl_tasks));
+
+    for (int i = 0; i < nccl_tasks; i++) {
+        ccl_tasks[i].wp = td->wp;
+        ccl_tasks[i].im = threshim;
+        ccl_tasks[i].w = w;
+        ccl_tasks[i].h = h;
+        ccl_tasks[i].y0 = i*ccl_chunksize;
+        ccl_tasks[i].y1 = imin(h, (i+1)*ccl_chunksize);
+        ccl_tasks[i].next = i + 1 < nccl_tasks ? &ccl_tasks[i+1] : NULL;
+
+        workerpool_add_task(td->wp, do_ccl_label_task, &ccl_tasks[i]);
+    }
+    workerpool_run(td->wp);
+
+    uint32_t nruns = 0;
+    for (int i = 0; i < nccl_tasks; i++) {
+        ccl_tasks[i].base = nruns;
+        nruns += ccl_tasks[i].nruns;
+    }
+
+    uint32_t *gparent = arena_alloc(arena, sizeof(uint32_t) * imax(nruns, 1));
+    for (int i = 0; i < nccl_tasks; i++) {
+        ccl_tasks[i].gparent = gparent;
+        workerpool_add_task(td->wp, do_ccl_publish_task, &ccl_tasks[i]);
+    }
+    workerpool_run(td->wp);
+
+    for (int i = 0; i + 1 < nccl_tasks; i++)
+        workerpool_add_task(td->wp, do_ccl_stitch_task, &ccl_tasks[i]);
+    workerpool_run(td->wp);
+
+    // number the components in order of their first run. A root is
+    // the smallest index in its set, so it is labeled before the rest.
+    uint32_t *labels = arena_alloc(arena, sizeof(uint32_t) * imax(nruns, 1));
+    *ncomponents = 0;
+    for (uint32_t i = 0; i < nruns; i++) {
+        uint32_t root = ccl_find(gparent, i);
+        labels[i] = (root == i) ? (*ncomponents)++ : labels[root];
+    }
+
+    // only pixels that belong to a run (i.e., are not 127) are labeled.
+    uint32_t *labelim = arena_alloc(arena, sizeof(uint32_t) * imax(w*h, 1));
+    for (int i = 0; i < nccl_tasks; i++) {
+        ccl_tasks[i].labels = labels;
+        ccl_tasks[i].labelim = labelim;
+        workerpool_add_task(td->wp, do_ccl_fill_task, &ccl_tasks[i]);
+    }
+    workerpool_run(td->wp);
+
+    return labelim;
+}
+
+static void cluster_table_init(struct cluster_table *t, int bits)
+{
+    t->bits = bits;
+    t->size = 0;
+    t->keys = arena_calloc(t->arena, 1 << bits, sizeof(uint64_t));
+    t->values = arena_alloc(t->arena, sizeof(uint32_t) << bits);
+}
+
+// the index of the cluster with this key
+static uint32_t cluster_table_get(struct cluster_table *t, uint64_t key)
+{
+    uint32_t mask = (1 << t->bits) - 1;
+    uint32_t h = (key * 0x9e3779b97f4a7c15ULL) >> (64 - t->bits);
+
+    while (t->keys[h]) {
+        if (t->keys[h] == key)
+            return t->values[h];
+        h = (h + 1) & mask;
+    }
+
+    // keep the load factor under 1/2
+    if (2*(t->size + 1) > (1 << t->bits)) {
+        struct cluster_table old = *t;
+        cluster_table_init(t, old.bits + 1);
+
+        for (int i = 0; i < (1 << old.bits); i++) {
+            if (!old.keys[i])
+                continue;
+
+            uint32_t h2 = (old.keys[i] * 0x9e3779b97f4a7c15ULL) >> (64 - t->bits);
+            while (t->keys[h2])
+                h2 = (h2 + 1) & ((1 << t->bits) - 1);
+            t->keys[h2] = old.keys[i];
+            t->values[h2] = old.values[i];
+        }
+        t->size = old.size;
+
+        return cluster_table_get(t, key);
+    }
+
+    t->keys[h] = key;
+    t->values[h] = t->size;
+    return t->size++;
+}
+
+// Could a tag lie along the cluster, judging by its bounding box?
+// Much cheaper than fitting a quad, and rejects the edges of long
+// thin shapes and small specks.
+static int cluster_shape_ok(apriltag_detector_t *td, zarray_t *cluster)
+{
+    if (td->qtp.min_cluster_side <= 0 && td->qtp.max_cluster_aspect <= 0)
+        return 1;
+
+    int32_t xmax = 0, xmin = INT32_MAX, ymax = 0, ymin = INT32_MAX;
+
+    for (int pidx = 0; pidx < zarray_size(cluster); pidx++) {
+        struct pt *p;
+        zarray_get_volatile(cluster, pidx, &p);
+
+        xmax = imax(xmax, p->x);
+        xmin = imin(xmin, p->x);
 
-    for (int y = task->y0; y < task->y1; y++) {
-        do_unionfind_line(task->uf, task->im, task->h, task->w, task->s, y);
+        ymax = imax(ymax, p->y);
+        ymin = imin(ymin, p->y);
     }
+
+    // undo fixed-point arithmetic: points are in half pixels.
+    float w = 0.5f * (xmax - xmin), h = 0.5f * (ymax - ymin);
+    float shorter = fminf(w, h), longer = fmaxf(w, h);
+
+    if (td->qtp.min_cluster_side > 0 && shorter < td->qtp.min_cluster_side)
+        return 0;
+
+    if (td->qtp.max_cluster_aspect > 0 && longer > td->qtp.max_cluster_aspect * shorter)
+        return 0;
+
+    return 1;
 }
 
 static void do_quad_task(void *p)
@@ -1134,13 +1510,17 @@ static void do_quad_task(void *p)
     apriltag_detector_t *td = task->td;
     int w = task->w, h = task->h;
 
+    // added to td->nrejected once the task is done
+    uint32_t nrejected[APRILTAG_REJECT_QUAD_FIT + 1] = { 0 };
+
     for (int cidx = task->cidx0; cidx < task->cidx1; cidx++) {
 
-        zarray_t *cluster;
-        zarray_get(clusters, cidx, &cluster);
+        zarray_t *cluster = &clusters[cidx];
 
-        if (zarray_size(cluster) < td->qtp.min_cluster_pixels)
+        if (zarray_size(cluster) < td->qtp.min_cluster_pixels) {
+            nrejected[APRILTAG_REJECT_CLUSTER_SIZE]++;
             continue;
+        }
 
         // a cluster should contain only boundary points around the
         // tag. it cannot be bigger than the whole screen. (Reject
@@ -1149,6 +1529,12 @@ static void do_quad_task(void *p)
         // times (because it has 3 neighbors). The maximum perimeter
         // is 2w+2h.
         if (zarray_size(cluster) > 3*(2*w+2*h)) {
+            nrejected[APRILTAG_REJECT_CLUSTER_SIZE]++;
+            continue;
+        }
+
+        if (!cluster_shape_ok(td, cluster)) {
+            nrejected[APRILTAG_REJECT_CLUSTER_SHAPE]++;
             continue;
         }
 
@@ -1160,17 +1546,56 @@ static void do_quad_task(void *p)
 
             zarray_add(quads, &quad);
             pthread_mutex_unlock(&td->mutex);
+        } else {
+            nrejected[APRILTAG_REJECT_QUAD_FIT]++;
         }
     }
+
+    pthread_mutex_lock(&td->mutex);
+    for (int i = 0; i <= APRILTAG_REJECT_QUAD_FIT; i++)
+        td->nrejected[i] += nrejected[i];
+    pthread_mutex_unlock(&td->mutex);
+}
+
+// Is (x,y) inside the convex quad q, or at most margin outside any of
+// its edges?
+static int quad_covers(const struct quad *q, float x, float y, float margin)
+{
+    // the corners may wind either way
+    float area = 0;
+    for (int i = 0; i < 4; i++) {
+        int j = (i + 1) & 3;
+        area += q->p[i][0]*q->p[j][1] - q->p[j][0]*q->p[i][1];
+    }
+    float sign = area < 0 ? -1 : 1;
+
+    for (int i = 0; i < 4; i++) {
+        int j = (i + 1) & 3;
+        float ex = q->p[j][0] - q->p[i][0], ey = q->p[j][1] - q->p[i][1];
+        float len = sqrtf(ex*ex + ey*ey);
+        if (len == 0)
+            continue;
+
+        // signed distance to the edge, positive inside
+        float d = sign * (ex*(y - q->p[i][1]) - ey*(x - q->p[i][0])) / len;
+        if (d < -margin)
+            return 0;
+    }
+
+    return 1;
 }
 
-image_u8_t *threshold(apriltag_detector_t *td, image_u8_t *im)
+// The result is allocated in the calling thread's arena. Tiles in or
+// near the covered quads are marked low contrast, so no edges are
+// found there.
+image_u8_t *threshold(apriltag_detector_t *td, image_u8_t *im, const struct quad *covered, int ncovered)
 {
     int w = im->width, h = im->height, s = im->stride;
     assert(w < 32768);
     assert(h < 32768);
 
-    image_u8_t *threshim = image_u8_create_alignment(w, h, s);
+    arena_t *arena = workerpool_get_arena(td->wp);
+    image_u8_t *threshim = image_u8_create_arena(arena, w, h, s);
     assert(threshim->stride == s);
 
     // The idea is to find the maximum and minimum values in a
@@ -1203,68 +1628,61 @@ image_u8_t *threshold(apriltag_detector_t *td, image_u8_t *im)
     int tw = w / tilesz;
     int th = h / tilesz;
 
-    uint8_t *im_max = calloc(tw*th, sizeof(uint8_t));
-    uint8_t *im_min = calloc(tw*th, sizeof(uint8_t));
+    uint8_t *im_max = arena_calloc(arena, tw*th, sizeof(uint8_t));
+    uint8_t *im_min = arena_calloc(arena, tw*th, sizeof(uint8_t));
 
     // first, collect min/max statistics for each tile
-    for (int ty = 0; ty < th; ty++) {
-        for (int tx = 0; tx < tw; tx++) {
-            uint8_t max = 0, min = 255;
-
-            for (int dy = 0; dy < tilesz; dy++) {
-
-                for (int dx = 0; dx < tilesz; dx++) {
-
-                    uint8_t v = im->buf[(ty*tilesz+dy)*s + tx*tilesz + dx];
-                    if (v < min)
-                        min = v;
-                    if (v > max)
-                        max = v;
-                }
-            }
-
-            im_max[ty*tw+tx] = max;
-            im_min[ty*tw+tx] = min;
-        }
-    }
+    for (int ty = 0; ty < th; ty++)
+        simd_tile_minmax4(&im->buf[ty*tilesz*s], s, tw, &im_max[ty*tw], &im_min[ty*tw]);
 
     // second, apply 3x3 max/min convolution to "blur" these values
     // over larger areas. This reduces artifacts due to abrupt changes
     // in the threshold value.
     if (1) {
-        uint8_t *im_max_tmp = calloc(tw*th, sizeof(uint8_t));
-        uint8_t *im_min_tmp = calloc(tw*th, sizeof(uint8_t));
+        uint8_t *im_max_tmp = arena_calloc(arena, tw*th, sizeof(uint8_t));
+        uint8_t *im_min_tmp = arena_calloc(arena, tw*th, sizeof(uint8_t));
+        uint8_t *row_tmp = arena_alloc(arena, imax(tw, 1));
 
-        for (int ty = 0; ty < th; ty++) {
-            for (int tx = 0; tx < tw; tx++) {
-                uint8_t max = 0, min = 255;
+        simd_max3x3(im_max, im_max_tmp, tw, th, row_tmp);
+        simd_min3x3(im_min, im_min_tmp, tw, th, row_tmp);
 
-                for (int dy = -1; dy <= 1; dy++) {
-                    if (ty+dy < 0 || ty+dy >= th)
-                        continue;
-                    for (int dx = -1; dx <= 1; dx++) {
-                        if (tx+dx < 0 || tx+dx >= tw)
-                            continue;
-
-                        uint8_t m = im_max[(ty+dy)*tw+tx+dx];
-                        if (m > max)
-                            max = m;
-                        m = im_min[(ty+dy)*tw+tx+dx];
-                        if (m < min)
-                            min = m;
-                    }
-                }
+        im_max = im_max_tmp;
+        im_min = im_min_tmp;
+    }
 
-                im_max_tmp[ty*tw + tx] = max;
-                im_min_tmp[ty*tw + tx] = min;
+    // mark the tiles whose centers are covered. The margin also takes
+    // in the tiles the quad's edges pass through, and the error of a
+    // quad found at a coarser level.
+    uint8_t *tile_covered = NULL;
+    if (ncovered > 0) {
+        tile_covered = arena_calloc(arena, imax(tw*th, 1), sizeof(uint8_t));
+        float margin = 2 * tilesz;
+
+        for (int i = 0; i < ncovered; i++) {
+            const struct quad *q = &covered[i];
+
+            float xmin = q->p[0][0], xmax = xmin, ymin = q->p[0][1], ymax = ymin;
+            for (int j = 1; j < 4; j++) {
+                xmin = fminf(xmin, q->p[j][0]);
+                xmax = fmaxf(xmax, q->p[j][0]);
+                ymin = fminf(ymin, q->p[j][1]);
+                ymax = fmaxf(ymax, q->p[j][1]);
+            }
+
+            int tx0 = imax(0, (xmin - margin) / tilesz), tx1 = imin(tw - 1, (xmax + margin) / tilesz);
+            int ty0 = imax(0, (ymin - margin) / tilesz), ty1 = imin(th - 1, (ymax + margin) / tilesz);
+
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    if (quad_covers(q, (tx + 0.5f)*tilesz, (ty + 0.5f)*tilesz, margin))
+                        tile_covered[ty*tw + tx] = 1;
+                }
             }
         }
-        free(im_max);
-        free(im_min);
-        im_max = im_max_tmp;
-        im_min = im_min_tmp;
     }
 
+    uint8_t tile_thresh[tw > 0 ? tw : 1], tile_lowc[tw > 0 ? tw : 1];
+
     for (int ty = 0; ty < th; ty++) {
         for (int tx = 0; tx < tw; tx++) {
 
@@ -1272,38 +1690,20 @@ image_u8_t *threshold(apriltag_detector_t *td, image_u8_t *im)
             int max = im_max[ty*tw + tx];
 
             // low contrast region? (no edges)
-            if (max - min < td->qtp.min_white_black_diff) {
-                for (int dy = 0; dy < tilesz; dy++) {
-                    int y = ty*tilesz + dy;
-
-                    for (int dx = 0; dx < tilesz; dx++) {
-                        int x = tx*tilesz + dx;
-
-                        threshim->buf[y*s+x] = 127;
-                    }
-                }
-                continue;
-            }
+            tile_lowc[tx] = (max - min < td->qtp.min_white_black_diff) ||
+                (tile_covered && tile_covered[ty*tw + tx]);
 
             // otherwise, actually threshold this tile.
 
             // argument for biasing towards dark; specular highlights
             // can be substantially brighter than white tag parts
-            uint8_t thresh = min + (max - min) / 2;
-
-            for (int dy = 0; dy < tilesz; dy++) {
-                int y = ty*tilesz + dy;
+            tile_thresh[tx] = min + (max - min) / 2;
+        }
 
-                for (int dx = 0; dx < tilesz; dx++) {
-                    int x = tx*tilesz + dx;
+        for (int dy = 0; dy < tilesz; dy++) {
+            int y = ty*tilesz + dy;
 
-                    uint8_t v = im->buf[y*s+x];
-                    if (v > thresh)
-                        threshim->buf[y*s+x] = 255;
-                    else
-                        threshim->buf[y*s+x] = 0;
-                }
-            }
+            simd_threshold_tiles4(&im->buf[y*s], &threshim->buf[y*s], tw, tile_thresh, tile_lowc);
         }
     }
 
@@ -1331,6 +1731,11 @@ image_u8_t *threshold(apriltag_detector_t *td, image_u8_t *im)
                 if (tx >= tw)
                     tx = tw - 1;
 
+                if (tile_covered && tile_covered[ty*tw + tx]) {
+                    threshim->buf[y*s+x] = 127;
+                    continue;
+                }
+
                 int max = im_max[ty*tw + tx];
                 int min = im_min[ty*tw + tx];
                 int thresh = min + (max - min) / 2;
@@ -1344,13 +1749,10 @@ image_u8_t *threshold(apriltag_detector_t *td, image_u8_t *im)
         }
     }
 
-    free(im_min);
-    free(im_max);
-
     // this is a dilate/erode deglitching scheme that does not improve
     // anything as far as I can tell.
     if (0 || td->qtp.deglitch) {
-        image_u8_t *tmp = image_u8_create(w, h);
+        image_u8_t *tmp = image_u8_create_arena(arena, w, h, s);
 
         for (int y = 1; y + 1 < h; y++) {
             for (int x = 1; x + 1 < w; x++) {
@@ -1379,8 +1781,6 @@ image_u8_t *threshold(apriltag_detector_t *td, image_u8_t *im)
                 threshim->buf[y*s+x] = min;
             }
         }
-
-        image_u8_destroy(tmp);
     }
 
     timeprofile_stamp(td->tp, "threshold");
@@ -1507,14 +1907,21 @@ image_u8_t *threshold_bayer(apriltag_detector_t *td, image_u8_t *im)
     return threshim;
 }
 
-zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im)
+// Find the quads in im, except in and right around the ncovered quads
+// given in im's pixel coordinates (found at a coarser level).
+zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im,
+                               const struct quad *covered, int ncovered)
 {
     ////////////////////////////////////////////////////////
     // step 1. threshold the image, creating the edge image.
 
     int w = im->width, h = im->height;
 
-    image_u8_t *threshim = threshold(td, im);
+    // Everything but the quads is scratch memory, in the arenas of
+    // td->wp; apriltag_detector_detect_quads resets them.
+    arena_t *arena = workerpool_get_arena(td->wp);
+
+    image_u8_t *threshim = threshold(td, im, covered, ncovered);
     int ts = threshim->stride;
 
     if (td->debug)
@@ -1523,61 +1930,54 @@ zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im)
     ////////////////////////////////////////////////////////
     // step 2. find connected components.
 
-    unionfind_t *uf = unionfind_create(w * h);
-
-    if (td->nthreads <= 1) {
-        for (int y = 0; y < h - 1; y++) {
-            do_unionfind_line(uf, threshim, h, w, ts, y);
-        }
-    } else {
-        int sz = h - 1;
-        int chunksize = 1 + sz / (APRILTAG_TASKS_PER_THREAD_TARGET * td->nthreads);
-        struct unionfind_task tasks[sz / chunksize + 1];
-
-        int ntasks = 0;
-
-        for (int i = 0; i < sz; i += chunksize) {
-            // each task will process [y0, y1). Note that this attaches
-            // each cell to the right and down, so row y1 *is* potentially modified.
-            //
-            // for parallelization, make sure that each task doesn't touch rows
-            // used by another thread.
-            tasks[ntasks].y0 = i;
-            tasks[ntasks].y1 = imin(sz, i + chunksize - 1);
-            tasks[ntasks].h = h;
-            tasks[ntasks].w = w;
-            tasks[ntasks].s = ts;
-            tasks[ntasks].uf = uf;
-            tasks[ntasks].im = threshim;
-
-            workerpool_add_task(td->wp, do_unionfind_task, &tasks[ntasks]);
-            ntasks++;
-        }
-
-        workerpool_run(td->wp);
-
-        // XXX stitch together the different chunks.
-        for (int i = 0; i + 1 < ntasks; i++) {
-            do_unionfind_line(uf, threshim, h, w, ts, tasks[i].y1);
-        }
-    }
+    uint32_t ncomponents;
+    uint32_t *labelim = connected_components(td, threshim, &ncomponents);
 
     timeprofile_stamp(td->tp, "unionfind");
 
-    // XXX sizing??
-    int nclustermap = 2*w*h - 1;
+    struct cluster_table clustermap = { .arena = arena };
+    cluster_table_init(&clustermap, 10);
+
+    // The edge points are collected in one array, then grouped by
+    // cluster below.
+    int nedges = 0, alloc_edges = 0;
+    struct cluster_pt *edges = NULL;
 
-    struct uint64_zarray_entry **clustermap = calloc(nclustermap, sizeof(struct uint64_zarray_entry*));
+    // consecutive edge points usually belong to the same cluster
+    uint64_t last_clusterid = 0;
+    uint32_t last_cluster = 0;
 
     for (int y = 1; y < h-1; y++) {
+        const uint8_t *row0 = &threshim->buf[y*ts], *row1 = &threshim->buf[(y+1)*ts];
+
         for (int x = 1; x < w-1; x++) {
 
-            uint8_t v0 = threshim->buf[y*ts + x];
+            // Pixels are 0, 127 or 255, so two of them are black and
+            // white exactly when their XOR is 0xff. Skip 8 pixels at a
+            // time while no pixel is black/white against any of its
+            // neighbours below.
+            if (x + 9 < w) {
+                uint64_t c, r, bl, b, br;
+                memcpy(&c, &row0[x], 8);
+                memcpy(&r, &row0[x+1], 8);
+                memcpy(&bl, &row1[x-1], 8);
+                memcpy(&b, &row1[x], 8);
+                memcpy(&br, &row1[x+1], 8);
+
+                // (a zero byte in ~(u ^ c))
+#define HAS_EDGE(u) ((~((u) ^ c) - 0x0101010101010101ULL) & ((u) ^ c) & 0x8080808080808080ULL)
+                if (!(HAS_EDGE(r) | HAS_EDGE(bl) | HAS_EDGE(b) | HAS_EDGE(br))) {
+                    x += 7;
+                    continue;
+                }
+#undef HAS_EDGE
+            }
+
+            uint8_t v0 = row0[x];
             if (v0 == 127)
                 continue;
 
-            // XXX don't query this until we know we need it?
-            uint64_t rep0 = unionfind_get_representative(uf, y*w + x);
+            uint64_t rep0 = labelim[y*w + x];
 
             // whenever we find two adjacent pixels such that one is
             // white and the other black, we add the point half-way
@@ -1598,36 +1998,37 @@ zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im)
             //
             // A possible optimization would be to combine entries
             // within the same cluster.
+            //
+            // The two labels differ (one region is white, the other
+            // black), so a cluster id is never 0.
 
 #define DO_CONN(dx, dy)                                                 \
             if (1) {                                                    \
                 uint8_t v1 = threshim->buf[y*ts + dy*ts + x + dx];      \
                                                                         \
                 if (v0 + v1 == 255) {                                   \
-                    uint64_t rep1 = unionfind_get_representative(uf, y*w + dy*w + x + dx); \
+                    uint64_t rep1 = labelim[y*w + dy*w + x + dx];       \
                     uint64_t clusterid;                                 \
                     if (rep0 < rep1)                                    \
                         clusterid = (rep1 << 32) + rep0;                \
                     else                                                \
                         clusterid = (rep0 << 32) + rep1;                \
                                                                         \
-                    /* XXX lousy hash function */                       \
-                    uint32_t clustermap_bucket = u64hash_2(clusterid) % nclustermap; \
-                    struct uint64_zarray_entry *entry = clustermap[clustermap_bucket]; \
-                    while (entry && entry->id != clusterid)     {       \
-                        entry = entry->next;                            \
+                    if (clusterid != last_clusterid) {                  \
+                        last_cluster = cluster_table_get(&clustermap, clusterid); \
+                        last_clusterid = clusterid;                     \
                     }                                                   \
                                                                         \
-                    if (!entry) {                                       \
-                        entry = calloc(1, sizeof(struct uint64_zarray_entry)); \
-                        entry->id = clusterid;                          \
-                        entry->cluster = zarray_create(sizeof(struct pt)); \
-                        entry->next = clustermap[clustermap_bucket];    \
-                        clustermap[clustermap_bucket] = entry;          \
+                    if (nedges == alloc_edges) {                        \
+                        int alloc = alloc_edges ? 2*alloc_edges : 4096; \
+                        edges = arena_realloc(arena, edges, alloc_edges * sizeof(struct cluster_pt), \
+                                              alloc * sizeof(struct cluster_pt)); \
+                        alloc_edges = alloc;                            \
                     }                                                   \
                                                                         \
-                    struct pt p = { .x = 2*x + dx, .y = 2*y + dy, .gx = dx*((int) v1-v0), .gy = dy*((int) v1-v0)}; \
-                    zarray_add(entry->cluster, &p);                     \
+                    struct cluster_pt *e = &edges[nedges++];            \
+                    e->cluster = last_cluster;                          \
+                    e->p = (struct pt) { .x = 2*x + dx, .y = 2*y + dy, .gx = dx*((int) v1-v0), .gy = dy*((int) v1-v0)}; \
                 }                                                       \
             }
 
@@ -1642,19 +2043,28 @@ zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im)
     }
 #undef DO_CONN
 
-    image_u8_destroy(threshim);
-
     // make segmentation image.
     if (td->debug) {
         image_u8x3_t *d = image_u8x3_create(w, h);
 
-        uint32_t *colors = (uint32_t*) calloc(w*h, sizeof(*colors));
+        uint32_t *colors = (uint32_t*) calloc(imax(ncomponents, 1), sizeof(*colors));
+        uint32_t *sizes = (uint32_t*) calloc(imax(ncomponents, 1), sizeof(*sizes));
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (threshim->buf[y*ts + x] != 127)
+                    sizes[labelim[y*w+x]]++;
+            }
+        }
 
         for (int y = 0; y < h; y++) {
             for (int x = 0; x < w; x++) {
-                uint32_t v = unionfind_get_representative(uf, y*w+x);
+                if (threshim->buf[y*ts + x] == 127)
+                    continue;
+
+                uint32_t v = labelim[y*w+x];
 
-                if (unionfind_get_set_size(uf, v) < td->qtp.min_cluster_pixels)
+                if (sizes[v] < td->qtp.min_cluster_pixels)
                     continue;
 
                 uint32_t color = colors[v];
@@ -1677,33 +2087,43 @@ zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im)
         }
 
         free(colors);
+        free(sizes);
 
         image_u8x3_write_pnm(d, "debug_segmentation.pnm");
         image_u8x3_destroy(d);
     }
 
-    timeprofile_stamp(td->tp, "make clusters");
+    // Group the points by cluster, keeping the order they were found
+    // in: count them, then give each cluster its slice of one array.
+    int nclusters = clustermap.size;
+    zarray_t *clusters = arena_calloc(arena, imax(nclusters, 1), sizeof(zarray_t));
+    struct pt *pts = arena_alloc(arena, sizeof(struct pt) * imax(nedges, 1));
 
-    ////////////////////////////////////////////////////////
-    // step 3. process each connected component.
-    zarray_t *clusters = zarray_create(sizeof(zarray_t*)); //, uint64_zarray_hash_size(clustermap));
-    if (1) {
-        for (int i = 0; i < nclustermap; i++) {
+    for (int i = 0; i < nedges; i++)
+        clusters[edges[i].cluster].alloc++;
 
-            for (struct uint64_zarray_entry *entry = clustermap[i]; entry; entry = entry->next) {
-                // XXX reject clusters here?
-                zarray_add(clusters, &entry->cluster);
-            }
-        }
+    int npts = 0;
+    for (int i = 0; i < nclusters; i++) {
+        clusters[i].el_sz = sizeof(struct pt);
+        clusters[i].data = (char*) &pts[npts];
+        npts += clusters[i].alloc;
     }
 
+    for (int i = 0; i < nedges; i++) {
+        zarray_t *cluster = &clusters[edges[i].cluster];
+        ((struct pt*) cluster->data)[cluster->size++] = edges[i].p;
+    }
+
+    timeprofile_stamp(td->tp, "make clusters");
+
+    ////////////////////////////////////////////////////////
+    // step 3. process each connected component.
 
     if (td->debug) {
         image_u8x3_t *d = image_u8x3_create(w, h);
 
-        for (int i = 0; i < zarray_size(clusters); i++) {
-            zarray_t *cluster;
-            zarray_get(clusters, i, &cluster);
+        for (int i = 0; i < nclusters; i++) {
+            zarray_t *cluster = &clusters[i];
 
             uint32_t r, g, b;
 
@@ -1730,21 +2150,9 @@ zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im)
         image_u8x3_destroy(d);
     }
 
-    if (1) {
-      for (int i = 0; i < nclustermap; i++) {
-        struct uint64_zarray_entry *entry = clustermap[i];
-        while (entry) {
-          struct uint64_zarray_entry *tmp = entry->next;
-          free(entry);
-          entry = tmp;
-        }
-      }
-      free(clustermap);
-    }
-
     zarray_t *quads = zarray_create(sizeof(struct quad));
 
-    int sz = zarray_size(clusters);
+    int sz = nclusters;
     int chunksize = 1 + sz / (APRILTAG_TASKS_PER_THREAD_TARGET * td->nthreads);
     struct quad_task tasks[sz / chunksize + 1];
 
@@ -1807,16 +2215,5 @@ zarray_t *apriltag_quad_thresh(apriltag_detector_t *td, image_u8_t *im)
 
     //        printf("  %d %d %d %d\n", indices[0], indices[1], indices[2], indices[3]);
 
-    unionfind_destroy(uf);
-
-    for (int i = 0; i < zarray_size(clusters); i++) {
-        zarray_t *cluster;
-        zarray_get(clusters, i, &cluster);
-        zarray_destroy(cluster);
-    }
-
-    zarray_destroy(clusters);
-
-
     return quads;
 }
@@ -0,0 +1,307 @@
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag_reconcile.h"
+#include "common/g2d.h"
+#include "common/math_util.h"
+
+// Boxes are grown by this much so that rounding in the polygon tests
+// can never make quads overlap whose boxes do not.
+#define BOX_PADDING 1e-3
+
+// The grid has at most this many cells per detection.
+#define CELLS_PER_DETECTION 4
+
+struct box
+{
+    double x0, y0, x1, y1;
+    int cx0, cy0, cx1, cy1; // range of grid cells covered
+};
+
+static int prefer_smaller(int pref, double q0, double q1)
+{
+    if (pref)     // already prefer something? exit.
+        return pref;
+
+    if (q0 < q1)
+        return -1; // we now prefer q0
+    if (q1 < q0)
+        return 1; // we now prefer q1
+
+    // no preference
+    return 0;
+}
+
+// < 0 to keep det0, > 0 to keep det1
+static int detection_preference(const apriltag_detection_t *det0, const apriltag_detection_t *det1)
+{
+    int pref = 0; // 0 means undecided which one we'll keep.
+    pref = prefer_smaller(pref, det0->hamming, det1->hamming);     // want small hamming
+    pref = prefer_smaller(pref, -det0->decision_margin, -det1->decision_margin);      // want bigger margins
+    pref = prefer_smaller(pref, -det0->goodness, -det1->goodness); // want bigger goodness
+
+    // if we STILL don't prefer one detection over the other, then pick
+    // any deterministic criterion.
+    for (int i = 0; i < 4; i++) {
+        pref = prefer_smaller(pref, det0->p[i][0], det1->p[i][0]);
+        pref = prefer_smaller(pref, det0->p[i][1], det1->p[i][1]);
+    }
+
+    if (pref == 0) {
+        // at this point, we should only be undecided if the tag detections
+        // are *exactly* the same. How would that happen?
+        printf("uh oh, no preference for overlappingdetection\n");
+    }
+
+    return pref;
+}
+
+// Grid cell of coordinate v, clamped so that corners that are not
+// finite still land in the grid.
+static inline int cell_index(double v, double g0, double cell, int ncells)
+{
+    double c = (v - g0) / cell;
+    if (!(c >= 0))
+        return 0;
+    if (c >= ncells)
+        return ncells - 1;
+    return (int) c;
+}
+
+static int uint64_compare(const void *_a, const void *_b)
+{
+    uint64_t a = *(const uint64_t*) _a;
+    uint64_t b = *(const uint64_t*) _b;
+
+    return (a > b) - (a < b);
+}
+
+void apriltag_reconcile_detections(zarray_t *detections)
+{
+    int n = zarray_size(detections);
+    if (n < 2)
+        return;
+
+    apriltag_detection_t **dets = (apriltag_detection_t**) detections->data;
+    struct box *boxes = malloc(n * sizeof(struct box));
+
+    double gx0 = HUGE_VAL, gy0 = HUGE_VAL, gx1 = -HUGE_VAL, gy1 = -HUGE_VAL;
+    double size_sum = 0;
+
+    for (int i = 0; i < n; i++) {
+        struct box *b = &boxes[i];
+        b->x0 = b->x1 = dets[i]->p[0][0];
+        b->y0 = b->y1 = dets[i]->p[0][1];
+        for (int k = 1; k < 4; k++) {
+            b->x0 = fmin(b->x0, dets[i]->p[k][0]);
+            b->x1 = fmax(b->x1, dets[i]->p[k][0]);
+            b->y0 = fmin(b->y0, dets[i]->p[k][1]);
+            b->y1 = fmax(b->y1, dets[i]->p[k][1]);
+        }
+        b->x0 -= BOX_PADDING;
+        b->y0 -= BOX_PADDING;
+        b->x1 += BOX_PADDING;
+        b->y1 += BOX_PADDING;
+
+        gx0 = fmin(gx0, b->x0);
+        gy0 = fmin(gy0, b->y0);
+        gx1 = fmax(gx1, b->x1);
+        gy1 = fmax(gy1, b->y1);
+        size_sum += fmax(b->x1 - b->x0, b->y1 - b->y0);
+    }
+
+    // Cells about the size of an average tag, so that most detections
+    // cover a handful of cells, coarser if that would be too many.
+    double cell = size_sum / n;
+    int ncols, nrows;
+    if (!isfinite(cell) || !isfinite(gx1 - gx0) || !isfinite(gy1 - gy0)) {
+        cell = 1;
+        gx0 = gy0 = 0;
+        gx1 = gy1 = 0;
+    }
+    while (floor((gx1 - gx0) / cell + 1) * floor((gy1 - gy0) / cell + 1) > CELLS_PER_DETECTION * n)
+        cell *= 2;
+    ncols = (int) ((gx1 - gx0) / cell) + 1;
+    nrows = (int) ((gy1 - gy0) / cell) + 1;
+    int ncells = ncols * nrows;
+
+    // Bucket detections by cell, in list order within each cell.
+    int *offsets = calloc(ncells + 1, sizeof(int));
+    for (int i = 0; i < n; i++) {
+        struct box *b = &boxes[i];
+        b->cx0 = cell_index(b->x0, gx0, cell, ncols);
+        b->cy0 = cell_index(b->y0, gy0, cell, nrows);
+        b->cx1 = cell_index(b->x1, gx0, cell, ncols);
+        b->cy1 = cell_index(b->y1, gy0, cell, nrows);
+
+        for (int cy = b->cy0; cy <= b->cy1; cy++)
+            for (int cx = b->cx0; cx <= b->cx1; cx++)
+                offsets[cy*ncols + cx + 1]++;
+    }
+    for (int c = 0; c < ncells; c++)
+        offsets[c+1] += offsets[c];
+
+    int *entries = malloc(offsets[ncells] * sizeof(int));
+    int *fill = malloc(ncells * sizeof(int));
+    memcpy(fill, offsets, ncells * sizeof(int));
+    for (int i = 0; i < n; i++) {
+        struct box *b = &boxes[i];
+        for (int cy = b->cy0; cy <= b->cy1; cy++)
+            for (int cx = b->cx0; cx <= b->cx1; cx++)
+                entries[fill[cy*ncols + cx]++] = i;
+    }
+    free(fill);
+
+    // Candidate pairs (i0 < i1) of the same tag with overlapping boxes.
+    // A pair shares every cell of the boxes' intersection; it is
+    // taken only from the first of them, so it is found once.
+    zarray_t *pairs = zarray_create(sizeof(uint64_t));
+    for (int cy = 0; cy < nrows; cy++) {
+        for (int cx = 0; cx < ncols; cx++) {
+            int c = cy*ncols + cx;
+
+            for (int a = offsets[c]; a < offsets[c+1]; a++) {
+                int i0 = entries[a];
+                const struct box *b0 = &boxes[i0];
+
+                for (int b = a + 1; b < offsets[c+1]; b++) {
+                    int i1 = entries[b];
+                    const struct box *b1 = &boxes[i1];
+
+                    if (dets[i0]->id != dets[i1]->id || dets[i0]->family != dets[i1]->family)
+                        continue;
+
+                    if (b0->x0 > b1->x1 || b1->x0 > b0->x1 || b0->y0 > b1->y1 || b1->y0 > b0->y1)
+                        continue;
+
+                    if (imax(b0->cx0, b1->cx0) != cx || imax(b0->cy0, b1->cy0) != cy)
+                        continue;
+
+                    uint64_t pair = ((uint64_t) i0 << 32) | i1;
+                    zarray_add(pairs, &pair);
+                }
+            }
+        }
+    }
+
+    free(entries);
+    free(offsets);
+    free(boxes);
+
+    // neighbors[nbr_offsets[i] ... nbr_offsets[i+1]] are the candidates
+    // paired with detection i
+    int npairs = zarray_size(pairs);
+    const uint64_t *pair = (const uint64_t*) pairs->data;
+
+    int *nbr_offsets = calloc(n + 1, sizeof(int));
+    for (int p = 0; p < npairs; p++) {
+        nbr_offsets[(pair[p] >> 32) + 1]++;
+        nbr_offsets[(pair[p] & 0xffffffff) + 1]++;
+    }
+    for (int i = 0; i < n; i++)
+        nbr_offsets[i+1] += nbr_offsets[i];
+
+    int *neighbors = malloc(2 * npairs * sizeof(int));
+    fill = malloc(n * sizeof(int));
+    memcpy(fill, nbr_offsets, n * sizeof(int));
+    for (int p = 0; p < npairs; p++) {
+        int i0 = pair[p] >> 32;
+        int i1 = pair[p] & 0xffffffff;
+        neighbors[fill[i0]++] = i1;
+        neighbors[fill[i1]++] = i0;
+    }
+    free(fill);
+    zarray_destroy(pairs);
+
+    // Replay the comparison of all pairs in list order: the detection
+    // at position i0 meets every later one in turn and either removes
+    // it, moving the last detection into its place to be met next, or
+    // is removed itself the same way, and the one moved in starts
+    // over. Only the candidates are actually met; everything else
+    // would have been skipped as a different tag or not overlapping.
+    int *order = malloc(n * sizeof(int)); // detection at each position
+    int *pos = malloc(n * sizeof(int));   // position of each detection
+    for (int i = 0; i < n; i++)
+        order[i] = pos[i] = i;
+    int size = n;
+
+    uint64_t *cands = malloc(n * sizeof(uint64_t));
+    zarray_t *poly0 = g2d_polygon_create_zeros(4);
+    zarray_t *poly1 = g2d_polygon_create_zeros(4);
+
+    int i0 = 0;
+    while (i0 < size) {
+        int cur = order[i0];
+
+        // remaining candidates by position; the last one may be moved
+        // forward by a removal, to be met next
+        int ncands = 0;
+        for (int k = nbr_offsets[cur]; k < nbr_offsets[cur+1]; k++) {
+            int i1 = neighbors[k];
+            if (pos[i1] > i0)
+                cands[ncands++] = ((uint64_t) pos[i1] << 32) | i1;
+        }
+        qsort(cands, ncands, sizeof(uint64_t), uint64_compare);
+
+        apriltag_detection_t *det0 = dets[cur];
+        for (int k = 0; k < 4; k++)
+            zarray_set(poly0, k, det0->p[k], NULL);
+
+        int front = 0, back = ncands, moved = -1, cur_removed = 0;
+        while (front < back) {
+            int i1;
+            if (moved >= 0 && (int) (cands[back-1] & 0xffffffff) == moved)
+                i1 = cands[--back] & 0xffffffff;
+            else
+                i1 = cands[front++] & 0xffffffff;
+            moved = -1;
+
+            apriltag_detection_t *det1 = dets[i1];
+            for (int k = 0; k < 4; k++)
+                zarray_set(poly1, k, det1->p[k], NULL);
+
+            if (!g2d_polygon_overlaps_polygon(poly0, poly1))
+                continue;
+
+            // the tags overlap. Delete one, keep the other.
+            int loser = detection_preference(det0, det1) < 0 ? i1 : cur;
+            int at = pos[loser];
+
+            apriltag_detection_destroy(dets[loser]);
+            pos[loser] = -1;
+            size--;
+            if (at < size) {
+                moved = order[size];
+                order[at] = moved;
+                pos[moved] = at;
+            }
+
+            if (loser == cur) {
+                cur_removed = 1;
+                break;
+            }
+        }
+
+        if (!cur_removed)
+            i0++;
+    }
+
+    zarray_destroy(poly0);
+    zarray_destroy(poly1);
+    free(cands);
+    free(neighbors);
+    free(nbr_offsets);
+
+    // write the survivors back in their final order
+    apriltag_detection_t **survivors = malloc(size * sizeof(apriltag_detection_t*));
+    for (int i = 0; i < size; i++)
+        survivors[i] = dets[order[i]];
+    memcpy(dets, survivors, size * sizeof(apriltag_detection_t*));
+    detections->size = size;
+
+    free(survivors);
+    free(order);
+    free(pos);
+}
@@ -0,0 +1,27 @@
+#ifndef _APRILTAG_RECONCILE_H
+#define _APRILTAG_RECONCILE_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#include "apriltag.h"
+#include "common/zarray.h"
+
+// Remove duplicate detections of the same tag: of two detections with
+// the same family and id whose quads overlap, only the preferred one
+// (smaller hamming, then larger decision_margin, then larger goodness,
+// then smaller corner coordinates) is kept. Non-overlapping detections
+// of the same id are all kept. Losers are destroyed.
+//
+// Detections are bucketed by a uniform grid over their bounding boxes,
+// so only same-id pairs with overlapping boxes are tested. Survivors
+// and their order are identical to comparing every pair in list order
+// and removing each loser by moving the last detection into its place.
+void apriltag_reconcile_detections(zarray_t *detections);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -0,0 +1,61 @@
+#include <string.h>
+
+#include "apriltag_stats.h"
+
+// timeprofile stamp names, as used in apriltag.c and
+// apriltag_quad_thresh.c, and the stage each one ends.
+static const struct {
+    const char *name;
+    int stage;
+} stamp_stages[] = {
+    { "decimate", APRILTAG_STAGE_DECIMATE },
+    { "blur/sharp", APRILTAG_STAGE_BLUR },
+    { "threshold", APRILTAG_STAGE_THRESHOLD },
+    { "unionfind", APRILTAG_STAGE_UNIONFIND },
+    { "make clusters", APRILTAG_STAGE_CLUSTERS },
+    { "fit quads to clusters", APRILTAG_STAGE_FIT_QUADS },
+    { "quads", APRILTAG_STAGE_FIT_QUADS }, // rescaling the quads to full resolution
+    { "decode+refinement", APRILTAG_STAGE_DECODE },
+    { "reconcile", APRILTAG_STAGE_RECONCILE },
+};
+
+const char *apriltag_stage_names[APRILTAG_NSTAGES] = {
+    "decimate", "blur", "threshold", "unionfind", "clusters", "fit_quads", "decode",
+    "reconcile", "other"
+};
+
+const char *apriltag_reject_names[APRILTAG_NREJECTS] = {
+    "cluster_size", "cluster_shape", "quad_fit", "border", "ambiguous", "decode"
+};
+
+void apriltag_stats_clear(apriltag_stats_t *st)
+{
+    memset(st, 0, sizeof(apriltag_stats_t));
+}
+
+void apriltag_stats_add_profile(apriltag_stats_t *st, const timeprofile_t *tp)
+{
+    int64_t lastutime = tp->utime;
+
+    for (int i = 0; i < zarray_size(tp->stamps); i++) {
+        struct timeprofile_entry *stamp;
+        zarray_get_volatile(tp->stamps, i, &stamp);
+
+        int stage = APRILTAG_STAGE_OTHER;
+        for (int j = 0; j < sizeof(stamp_stages)/sizeof(stamp_stages[0]); j++) {
+            if (!strcmp(stamp->name, stamp_stages[j].name)) {
+                stage = stamp_stages[j].stage;
+                break;
+            }
+        }
+
+        st->stage_ns[stage] += (stamp->utime - lastutime) * 1000;
+        lastutime = stamp->utime;
+    }
+}
+
+void apriltag_stats_add_rejected(apriltag_stats_t *st, const uint32_t *nrejected)
+{
+    for (int i = 0; i < APRILTAG_NREJECTS; i++)
+        st->nrejected[i] += nrejected[i];
+}
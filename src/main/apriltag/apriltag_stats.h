@@ -0,0 +1,76 @@
+#ifndef _APRILTAG_STATS_H
+#define _APRILTAG_STATS_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#include <stdint.h>
+
+#include "common/timeprofile.h"
+
+// The detection stages that timings are reported for. The Java
+// constants AprilTagDetector.STAGE_* must stay in the same order.
+enum {
+    APRILTAG_STAGE_DECIMATE = 0,
+    APRILTAG_STAGE_BLUR,        // blur or sharpen
+    APRILTAG_STAGE_THRESHOLD,
+    APRILTAG_STAGE_UNIONFIND,   // connected components
+    APRILTAG_STAGE_CLUSTERS,
+    APRILTAG_STAGE_FIT_QUADS,
+    APRILTAG_STAGE_DECODE,      // decode and edge refinement
+    APRILTAG_STAGE_RECONCILE,
+    APRILTAG_STAGE_OTHER,       // setup, debug output and cleanup
+    APRILTAG_NSTAGES
+};
+
+// The stages of the early-rejection cascade, in the order candidates
+// meet them, that rejection counts are reported for. The Java
+// constants AprilTagDetector.REJECT_* must stay in the same order.
+enum {
+    APRILTAG_REJECT_CLUSTER_SIZE = 0, // too few or too many pixels
+    APRILTAG_REJECT_CLUSTER_SHAPE,    // bounding box too small or too long
+    APRILTAG_REJECT_QUAD_FIT,         // no plausible quad fits the cluster
+    APRILTAG_REJECT_BORDER,           // no contrast across the black border
+    APRILTAG_REJECT_AMBIGUOUS,        // decoding stopped early on ambiguous bits
+    APRILTAG_REJECT_DECODE,           // not a codeword of the family
+    APRILTAG_NREJECTS
+};
+
+// Timings and counts for one frame.
+typedef struct apriltag_stats apriltag_stats_t;
+struct apriltag_stats
+{
+    int64_t stage_ns[APRILTAG_NSTAGES];
+
+    int nquads;         // quads found by segmentation
+    int ndecoded;       // quads decoded as tags, before duplicates are removed
+    int ndetections;    // detections returned
+
+    // candidates removed by each stage of the rejection cascade;
+    // the decoding stages count each quad once per tag family.
+    int nrejected[APRILTAG_NREJECTS];
+};
+
+// Short names of the stages, e.g. "threshold".
+extern const char *apriltag_stage_names[APRILTAG_NSTAGES];
+
+// Short names of the rejection stages, e.g. "border".
+extern const char *apriltag_reject_names[APRILTAG_NREJECTS];
+
+void apriltag_stats_clear(apriltag_stats_t *st);
+
+// Add the time between consecutive stamps of tp to the stage each
+// stamp ends. A stage stamped more than once (as when the tracker
+// segments several crops) accumulates. Counts are left alone.
+// timeprofile has microsecond resolution.
+void apriltag_stats_add_profile(apriltag_stats_t *st, const timeprofile_t *tp);
+
+// Add a detector's per-stage rejection counts (its nrejected) to st.
+void apriltag_stats_add_rejected(apriltag_stats_t *st, const uint32_t *nrejected);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -0,0 +1,258 @@
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag_tracker.h"
+#include "common/image_u8.h"
+#include "common/math_util.h"
+#include "common/timeprofile.h"
+
+struct tracker_track
+{
+    apriltag_family_t *family;
+    int id;
+
+    double p[4][2];   // corners in the last frame
+    double c[2];      // center (as in apriltag_detection_t) in the last frame
+    double dx, dy;    // motion of the center over the last frame
+};
+
+struct roi
+{
+    int x0, y0, x1, y1; // [x0, x1), [y0, y1)
+};
+
+apriltag_tracker_t *apriltag_tracker_create(apriltag_detector_t *td)
+{
+    apriltag_tracker_t *tr = calloc(1, sizeof(apriltag_tracker_t));
+
+    tr->td = td;
+    tr->full_scan_interval = 10;
+    tr->roi_padding = 0.5;
+    tr->roi_min_padding = 16;
+    tr->tracks = zarray_create(sizeof(struct tracker_track));
+
+    return tr;
+}
+
+void apriltag_tracker_destroy(apriltag_tracker_t *tr)
+{
+    if (tr == NULL)
+        return;
+
+    zarray_destroy(tr->tracks);
+    if (tr->crop)
+        image_u8_destroy(tr->crop);
+    free(tr);
+}
+
+void apriltag_tracker_reset(apriltag_tracker_t *tr)
+{
+    zarray_clear(tr->tracks);
+    tr->force_full_scan = 1;
+}
+
+static int rois_overlap(const struct roi *a, const struct roi *b)
+{
+    return a->x0 < b->x1 && b->x0 < a->x1 && a->y0 < b->y1 && b->y0 < a->y1;
+}
+
+// predicted, padded and clamped bounding boxes of all tracks, merged
+// until no two overlap (so that no pixel is segmented twice).
+static zarray_t *predict_rois(apriltag_tracker_t *tr, image_u8_t *im)
+{
+    zarray_t *rois = zarray_create(sizeof(struct roi));
+
+    for (int i = 0; i < zarray_size(tr->tracks); i++) {
+        struct tracker_track *t;
+        zarray_get_volatile(tr->tracks, i, &t);
+
+        double xmin = HUGE_VAL, xmax = -HUGE_VAL, ymin = HUGE_VAL, ymax = -HUGE_VAL;
+        for (int k = 0; k < 4; k++) {
+            xmin = fmin(xmin, t->p[k][0] + t->dx);
+            xmax = fmax(xmax, t->p[k][0] + t->dx);
+            ymin = fmin(ymin, t->p[k][1] + t->dy);
+            ymax = fmax(ymax, t->p[k][1] + t->dy);
+        }
+
+        double pad = fmax(tr->roi_min_padding, tr->roi_padding * fmax(xmax - xmin, ymax - ymin));
+
+        struct roi r;
+        r.x0 = imax(0, (int) floor(xmin - pad));
+        r.y0 = imax(0, (int) floor(ymin - pad));
+        r.x1 = imin(im->width, (int) ceil(xmax + pad));
+        r.y1 = imin(im->height, (int) ceil(ymax + pad));
+
+        if (r.x1 - r.x0 < 8 || r.y1 - r.y0 < 8)
+            continue;
+
+        zarray_add(rois, &r);
+    }
+
+    int merged = 1;
+    while (merged) {
+        merged = 0;
+
+        for (int i = 0; i < zarray_size(rois) && !merged; i++) {
+            struct roi *a;
+            zarray_get_volatile(rois, i, &a);
+
+            for (int j = i + 1; j < zarray_size(rois); j++) {
+                struct roi *b;
+                zarray_get_volatile(rois, j, &b);
+
+                if (rois_overlap(a, b)) {
+                    a->x0 = imin(a->x0, b->x0);
+                    a->y0 = imin(a->y0, b->y0);
+                    a->x1 = imax(a->x1, b->x1);
+                    a->y1 = imax(a->y1, b->y1);
+                    zarray_remove_index(rois, j, 1);
+                    merged = 1;
+                    break;
+                }
+            }
+        }
+    }
+
+    return rois;
+}
+
+// segment only the ROIs; returns quads in full image coordinates.
+static zarray_t *detect_quads_in_rois(apriltag_tracker_t *tr, image_u8_t *im, zarray_t *rois)
+{
+    apriltag_detector_t *td = tr->td;
+    zarray_t *quads = zarray_create(sizeof(struct quad));
+    int nquads = 0;
+    uint32_t nrejected[APRILTAG_REJECT_QUAD_FIT + 1] = { 0 };
+
+    for (int i = 0; i < zarray_size(rois); i++) {
+        struct roi *r;
+        zarray_get_volatile(rois, i, &r);
+
+        int w = r->x1 - r->x0, h = r->y1 - r->y0;
+
+        // copy the crop into its own image: the segmentation code may
+        // copy or filter whole rows of its input. The image is kept
+        // between frames and only replaced when an ROI doesn't fit.
+        if (!tr->crop || tr->crop->width < w || tr->crop->height < h) {
+            int cw = tr->crop ? imax(w, tr->crop->width) : w;
+            int ch = tr->crop ? imax(h, tr->crop->height) : h;
+            if (tr->crop)
+                image_u8_destroy(tr->crop);
+            tr->crop = image_u8_create(cw, ch);
+        }
+
+        image_u8_t crop = { .width = w, .height = h, .stride = tr->crop->stride, .buf = tr->crop->buf };
+        for (int y = 0; y < h; y++) {
+            memcpy(&crop.buf[y*crop.stride], &im->buf[(r->y0 + y)*im->stride + r->x0], w);
+            // as if freshly allocated past the ROI's width
+            memset(&crop.buf[y*crop.stride + w], 0, crop.stride - w);
+        }
+
+        zarray_t *crop_quads = apriltag_detector_detect_quads(td, &crop);
+        nquads += td->nquads;
+        for (int j = 0; j <= APRILTAG_REJECT_QUAD_FIT; j++)
+            nrejected[j] += td->nrejected[j];
+
+        for (int j = 0; j < zarray_size(crop_quads); j++) {
+            struct quad *q;
+            zarray_get_volatile(crop_quads, j, &q);
+
+            for (int k = 0; k < 4; k++) {
+                q->p[k][0] += r->x0;
+                q->p[k][1] += r->y0;
+            }
+            zarray_add(quads, q);
+        }
+
+        zarray_destroy(crop_quads);
+
+        tr->npixels += (int64_t) w * h;
+    }
+
+    td->nquads = nquads;
+    memcpy(td->nrejected, nrejected, sizeof(nrejected));
+    return quads;
+}
+
+static void update_tracks(apriltag_tracker_t *tr, zarray_t *detections)
+{
+    zarray_t *tracks = zarray_create(sizeof(struct tracker_track));
+    int nfound = 0;
+
+    for (int i = 0; i < zarray_size(detections); i++) {
+        apriltag_detection_t *det;
+        zarray_get(detections, i, &det);
+
+        struct tracker_track t;
+        memset(&t, 0, sizeof(t));
+        t.family = det->family;
+        t.id = det->id;
+        memcpy(t.p, det->p, sizeof(t.p));
+        memcpy(t.c, det->c, sizeof(t.c));
+
+        // if we saw this tag last frame, remember its motion.
+        for (int j = 0; j < zarray_size(tr->tracks); j++) {
+            struct tracker_track *old;
+            zarray_get_volatile(tr->tracks, j, &old);
+
+            if (old->family == t.family && old->id == t.id) {
+                t.dx = t.c[0] - old->c[0];
+                t.dy = t.c[1] - old->c[1];
+                nfound++;
+                break;
+            }
+        }
+
+        zarray_add(tracks, &t);
+    }
+
+    // a tag we were tracking wasn't found. Maybe it left the image,
+    // maybe it moved outside its ROI. Either way, look everywhere.
+    if (nfound < zarray_size(tr->tracks))
+        tr->force_full_scan = 1;
+
+    zarray_destroy(tr->tracks);
+    tr->tracks = tracks;
+}
+
+zarray_t *apriltag_tracker_detect(apriltag_tracker_t *tr, image_u8_t *im)
+{
+    apriltag_detector_t *td = tr->td;
+
+    tr->full_scan = (tr->force_full_scan ||
+                     zarray_size(tr->tracks) == 0 ||
+                     tr->frames_since_full_scan + 1 >= tr->full_scan_interval);
+    tr->nrois = 0;
+    tr->npixels = 0;
+
+    zarray_t *detections;
+
+    if (tr->full_scan) {
+        detections = apriltag_detector_detect(td, im);
+
+        tr->npixels = (int64_t) im->width * im->height;
+        tr->frames_since_full_scan = 0;
+        tr->force_full_scan = 0;
+    } else {
+        if (zarray_size(td->tag_families) == 0)
+            return zarray_create(sizeof(apriltag_detection_t*));
+
+        timeprofile_clear(td->tp);
+        timeprofile_stamp(td->tp, "init");
+
+        zarray_t *rois = predict_rois(tr, im);
+        tr->nrois = zarray_size(rois);
+
+        zarray_t *quads = detect_quads_in_rois(tr, im, rois);
+        zarray_destroy(rois);
+
+        detections = apriltag_detector_decode_quads(td, im, quads);
+
+        tr->frames_since_full_scan++;
+    }
+
+    update_tracks(tr, detections);
+
+    return detections;
+}
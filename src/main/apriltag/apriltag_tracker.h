@@ -0,0 +1,66 @@
+#ifndef _APRILTAG_TRACKER_H
+#define _APRILTAG_TRACKER_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#include "apriltag.h"
+
+// Temporal tracking on top of an apriltag detector. Tags usually move
+// only a few pixels between frames, so instead of segmenting the whole
+// image every frame, the tracker predicts where each previously seen
+// tag will be (last corners plus last motion), and runs thresholding,
+// clustering and quad fitting only on padded crops around those
+// predictions. Decoding is unchanged and uses the full image.
+//
+// A full-frame scan is still done every full_scan_interval frames, and
+// on the frame after a tracked tag was not found again, so that new
+// tags appear and lost tags are recovered.
+typedef struct apriltag_tracker apriltag_tracker_t;
+struct apriltag_tracker
+{
+    ///////////////////////////////////////////////////////////////
+    // User-configurable parameters.
+
+    // Do a full-frame scan at least every this many frames. 1 (or
+    // less) disables ROI processing.
+    int full_scan_interval;
+
+    // How far to grow each predicted tag bounding box, as a fraction
+    // of its larger side, and at least roi_min_padding pixels.
+    float roi_padding;
+    int roi_min_padding;
+
+    ///////////////////////////////////////////////////////////////
+    // Statistics relating to last processed frame
+    int full_scan;      // was the whole frame segmented?
+    int nrois;          // number of crops segmented otherwise
+    int64_t npixels;    // pixels segmented
+
+    ///////////////////////////////////////////////////////////////
+    // Internal variables below
+    apriltag_detector_t *td;
+
+    zarray_t *tracks;   // struct tracker_track
+    image_u8_t *crop;   // holds each ROI in turn; grown as needed
+    int frames_since_full_scan;
+    int force_full_scan;
+};
+
+// The tracker does not own td. Both must be used from one thread.
+apriltag_tracker_t *apriltag_tracker_create(apriltag_detector_t *td);
+void apriltag_tracker_destroy(apriltag_tracker_t *tr);
+
+// Forget all tracks; the next frame is a full scan.
+void apriltag_tracker_reset(apriltag_tracker_t *tr);
+
+// Same contract as apriltag_detector_detect. Frames must be
+// consecutive images from one camera at one resolution.
+zarray_t *apriltag_tracker_detect(apriltag_tracker_t *tr, image_u8_t *im);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
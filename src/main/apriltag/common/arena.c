@@ -0,0 +1,186 @@
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "arena.h"
+
+// Size of the first chunk
+#define ARENA_MIN_CHUNK (64*1024)
+
+// Chunk i holds at least ARENA_MIN_CHUNK << i bytes, so the last of
+// these would be far larger than any device's memory. Needing another
+// is treated as running out of memory.
+#define ARENA_MAX_CHUNKS 32
+
+struct arena_chunk
+{
+    char *buf;
+    size_t size, used;
+};
+
+struct arena
+{
+    struct arena_chunk chunks[ARENA_MAX_CHUNKS];
+    int nchunks;
+    int cur;        // chunk being allocated from, or -1; later ones are empty
+
+    char *last;     // most recent allocation, for arena_realloc
+};
+
+static inline size_t arena_round(size_t sz)
+{
+    return (sz + ARENA_ALIGNMENT - 1) & ~((size_t) ARENA_ALIGNMENT - 1);
+}
+
+static int chunk_init(struct arena_chunk *c, size_t size)
+{
+    void *buf;
+    if (posix_memalign(&buf, ARENA_ALIGNMENT, size))
+        return -1;
+
+    c->buf = buf;
+    c->size = size;
+    c->used = 0;
+    return 0;
+}
+
+arena_t *arena_create(void)
+{
+    arena_t *a = calloc(1, sizeof(arena_t));
+    a->cur = -1;
+    return a;
+}
+
+void arena_destroy(arena_t *a)
+{
+    if (a == NULL)
+        return;
+
+    for (int i = 0; i < a->nchunks; i++)
+        free(a->chunks[i].buf);
+    free(a);
+}
+
+// Move on to a chunk with room for sz bytes, reusing the next one if
+// it is large enough. Returns -1 if out of memory (or chunks).
+static int arena_next_chunk(arena_t *a, size_t sz)
+{
+    int c = a->cur + 1;
+    if (c >= ARENA_MAX_CHUNKS)
+        return -1;
+
+    if (c < a->nchunks && a->chunks[c].size >= sz) {
+        a->chunks[c].used = 0;
+        a->cur = c;
+        return 0;
+    }
+
+    size_t size = ARENA_MIN_CHUNK;
+    if (a->cur >= 0 && 2*a->chunks[a->cur].size > size)
+        size = 2*a->chunks[a->cur].size;
+    if (sz > size)
+        size = sz;
+
+    struct arena_chunk chunk;
+    if (chunk_init(&chunk, size))
+        return -1;
+
+    if (c < a->nchunks)
+        free(a->chunks[c].buf);
+    else
+        a->nchunks++;
+
+    a->chunks[c] = chunk;
+    a->cur = c;
+    return 0;
+}
+
+void *arena_alloc(arena_t *a, size_t sz)
+{
+    sz = arena_round(sz > 0 ? sz : 1);
+
+    if (a->cur < 0 || a->chunks[a->cur].size - a->chunks[a->cur].used < sz) {
+        if (arena_next_chunk(a, sz))
+            return NULL;
+    }
+
+    struct arena_chunk *c = &a->chunks[a->cur];
+    char *p = c->buf + c->used;
+    c->used += sz;
+
+    a->last = p;
+    return p;
+}
+
+void *arena_calloc(arena_t *a, size_t n, size_t sz)
+{
+    void *p = arena_alloc(a, n * sz);
+    if (p)
+        memset(p, 0, n * sz);
+    return p;
+}
+
+void *arena_realloc(arena_t *a, void *p, size_t oldsz, size_t sz)
+{
+    if (p == NULL)
+        return arena_alloc(a, sz);
+
+    if (p == a->last) {
+        struct arena_chunk *c = &a->chunks[a->cur];
+        size_t offset = (char*) p - c->buf;
+
+        if (c->size - offset >= arena_round(sz)) {
+            c->used = offset + arena_round(sz);
+            return p;
+        }
+    }
+
+    void *q = arena_alloc(a, sz);
+    if (q)
+        memcpy(q, p, oldsz < sz ? oldsz : sz);
+    return q;
+}
+
+arena_mark_t arena_mark(arena_t *a)
+{
+    arena_mark_t mark = { .chunk = a->cur, .used = a->cur >= 0 ? a->chunks[a->cur].used : 0 };
+    return mark;
+}
+
+void arena_release(arena_t *a, arena_mark_t mark)
+{
+    a->cur = mark.chunk;
+    if (a->cur >= 0)
+        a->chunks[a->cur].used = mark.used;
+    a->last = NULL;
+}
+
+void arena_reset(arena_t *a)
+{
+    // merge the chunks, so that the next round fits in one
+    if (a->nchunks > 1) {
+        size_t size = arena_capacity(a);
+        for (int i = 0; i < a->nchunks; i++)
+            free(a->chunks[i].buf);
+        a->nchunks = 0;
+
+        if (chunk_init(&a->chunks[0], size) == 0)
+            a->nchunks = 1;
+    }
+
+    if (a->nchunks > 0) {
+        a->chunks[0].used = 0;
+        a->cur = 0;
+    } else {
+        a->cur = -1;
+    }
+    a->last = NULL;
+}
+
+size_t arena_capacity(arena_t *a)
+{
+    size_t size = 0;
+    for (int i = 0; i < a->nchunks; i++)
+        size += a->chunks[i].size;
+    return size;
+}
@@ -0,0 +1,57 @@
+#ifndef _ARENA_H
+#define _ARENA_H
+
+#include <stddef.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// A bump allocator for scratch memory that lives until a known point,
+// such as the end of a frame. Allocations are never freed one by one:
+// arena_release drops everything allocated after a mark, and
+// arena_reset drops everything.
+//
+// Memory comes in chunks, and a full chunk is followed by a new one
+// at least twice as large. arena_reset keeps the memory, merging the
+// chunks into one as large as all of them together, so once an arena
+// has grown to the size of the work it is used for, it does not call
+// malloc again.
+typedef struct arena arena_t;
+
+typedef struct arena_mark arena_mark_t;
+struct arena_mark
+{
+    int chunk;
+    size_t used;
+};
+
+// Allocations are aligned to this many bytes, enough for any type and
+// for a cache line.
+#define ARENA_ALIGNMENT 64
+
+arena_t *arena_create(void);
+void arena_destroy(arena_t *a);
+
+// Returns NULL if out of memory.
+void *arena_alloc(arena_t *a, size_t sz);
+void *arena_calloc(arena_t *a, size_t n, size_t sz);
+
+// Grow an allocation of oldsz bytes to sz bytes. In place if p is the
+// most recent allocation and its chunk has room, otherwise by copying,
+// in which case the old memory is only reclaimed by a release or reset.
+void *arena_realloc(arena_t *a, void *p, size_t oldsz, size_t sz);
+
+arena_mark_t arena_mark(arena_t *a);
+void arena_release(arena_t *a, arena_mark_t mark);
+
+void arena_reset(arena_t *a);
+
+// Bytes of memory held
+size_t arena_capacity(arena_t *a);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
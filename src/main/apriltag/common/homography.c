@@ -32,6 +32,7 @@ either expressed or implied, of the Regents of The University of Michigan.
 
 #include <math.h>
 #include <stdio.h>
+#include <string.h>
 
 #include "common/matd.h"
 #include "common/zarray.h"
@@ -250,6 +251,80 @@ matd_t *homography_compute(zarray_t *correspondences, int flags)
     return H2;
 }
 
+int homography_compute4(const double c[4][4], double *H)
+{
+    // center both sets of points, as above
+    double x_cx = 0, x_cy = 0;
+    double y_cx = 0, y_cy = 0;
+
+    for (int i = 0; i < 4; i++) {
+        x_cx += c[i][0] / 4;
+        x_cy += c[i][1] / 4;
+        y_cx += c[i][2] / 4;
+        y_cy += c[i][3] / 4;
+    }
+
+    // Fixing H[8] = 1 leaves eight unknowns, two equations per point:
+    // [x y 1 0 0 0 -xu -yu] h = u and [0 0 0 x y 1 -xv -yv] h = v.
+    double A[8][9];
+    for (int i = 0; i < 4; i++) {
+        double x = c[i][0] - x_cx, y = c[i][1] - x_cy;
+        double u = c[i][2] - y_cx, v = c[i][3] - y_cy;
+
+        double r0[9] = { x, y, 1, 0, 0, 0, -x*u, -y*u, u };
+        double r1[9] = { 0, 0, 0, x, y, 1, -x*v, -y*v, v };
+        memcpy(A[2*i+0], r0, sizeof(r0));
+        memcpy(A[2*i+1], r1, sizeof(r1));
+    }
+
+    // Gaussian elimination with partial pivoting
+    for (int col = 0; col < 8; col++) {
+        int pivot = col;
+        for (int row = col + 1; row < 8; row++) {
+            if (fabs(A[row][col]) > fabs(A[pivot][col]))
+                pivot = row;
+        }
+
+        if (fabs(A[pivot][col]) < 1e-10)
+            return -1;
+
+        if (pivot != col) {
+            double tmp[9];
+            memcpy(tmp, A[col], sizeof(tmp));
+            memcpy(A[col], A[pivot], sizeof(tmp));
+            memcpy(A[pivot], tmp, sizeof(tmp));
+        }
+
+        for (int row = col + 1; row < 8; row++) {
+            double f = A[row][col] / A[col][col];
+            for (int k = col; k < 9; k++)
+                A[row][k] -= f * A[col][k];
+        }
+    }
+
+    double h[9];
+    h[8] = 1;
+    for (int row = 7; row >= 0; row--) {
+        double acc = A[row][8];
+        for (int k = row + 1; k < 8; k++)
+            acc -= A[row][k] * h[k];
+        h[row] = acc / A[row][row];
+    }
+
+    // undo the centering: H = Ty * h * Tx
+    for (int i = 0; i < 3; i++) {
+        double ty = i == 0 ? y_cx : (i == 1 ? y_cy : 0);
+        double r[3];
+        for (int j = 0; j < 3; j++)
+            r[j] = h[3*i+j] + ty * h[6+j];
+
+        H[3*i+0] = r[0];
+        H[3*i+1] = r[1];
+        H[3*i+2] = r[2] - r[0]*x_cx - r[1]*x_cy;
+    }
+
+    return 0;
+}
 
 // assuming that the projection matrix is:
 // [ fx 0  cx 0 ]
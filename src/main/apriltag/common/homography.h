@@ -136,6 +136,12 @@ extern "C" {
 
 matd_t *homography_compute(zarray_t *correspondences, int flags);
 
+// The homography that maps exactly four points x onto four points y,
+// given as c[i] = { x_i, y_i } like the correspondences above, into H
+// (row-major, with H[8] = 1 up to the centering), without allocating.
+// Returns -1 if no three of the points determine it.
+int homography_compute4(const double c[4][4], double *H);
+
 //void homography_project(const matd_t *H, double x, double y, double *ox, double *oy);
 static inline void homography_project(const matd_t *H, double x, double y, double *ox, double *oy)
 {
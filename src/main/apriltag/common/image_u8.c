@@ -39,6 +39,7 @@ either expressed or implied, of the Regents of The University of Michigan.
 #include "common/image_u8.h"
 #include "common/pnm.h"
 #include "common/math_util.h"
+#include "common/simd.h"
 
 // least common multiple of 64 (sandy bridge cache line) and 24 (stride
 // needed for RGB in 8-wide vector processing)
@@ -71,6 +72,23 @@ image_u8_t *image_u8_create_alignment(unsigned int width, unsigned int height, u
     return image_u8_create_stride(width, height, stride);
 }
 
+image_u8_t *image_u8_create_arena(arena_t *a, unsigned int width, unsigned int height, unsigned int alignment)
+{
+    int stride = width;
+
+    if ((stride % alignment) != 0)
+        stride += alignment - (stride % alignment);
+
+    uint8_t *buf = arena_calloc(a, height*stride, sizeof(uint8_t));
+
+    // const initializer
+    image_u8_t tmp = { .width = width, .height = height, .stride = stride, .buf = buf };
+
+    image_u8_t *im = arena_alloc(a, sizeof(image_u8_t));
+    memcpy(im, &tmp, sizeof(image_u8_t));
+    return im;
+}
+
 image_u8_t *image_u8_copy(const image_u8_t *in)
 {
     uint8_t *buf = malloc(in->height*in->stride*sizeof(uint8_t));
@@ -345,13 +363,10 @@ void image_u8_convolve_2D(image_u8_t *im, const uint8_t *k, int ksz)
     }
 }
 
-void image_u8_gaussian_blur(image_u8_t *im, double sigma, int ksz)
+// The 8-bit kernel of a Gaussian blur: weights sum to at most 255,
+// so filtered values are (sum of k[j] * pixel) >> 8.
+static void gaussian_kernel(double sigma, int ksz, uint8_t *k)
 {
-    if (sigma == 0)
-        return;
-
-    assert((ksz & 1) == 1); // ksz must be odd.
-
     // build the kernel.
     double dk[ksz];
 
@@ -371,7 +386,6 @@ void image_u8_gaussian_blur(image_u8_t *im, double sigma, int ksz)
     for (int i = 0; i < ksz; i++)
         dk[i] /= acc;
 
-    uint8_t k[ksz];
     for (int i = 0; i < ksz; i++)
         k[i] = dk[i]*255;
 
@@ -379,8 +393,135 @@ void image_u8_gaussian_blur(image_u8_t *im, double sigma, int ksz)
         for (int i = 0; i < ksz; i++)
             printf("%d %15f %5d\n", i, dk[i], k[i]);
     }
+}
+
+void image_u8_gaussian_blur(image_u8_t *im, double sigma, int ksz)
+{
+    if (sigma == 0)
+        return;
+
+    image_u8_gaussian_filter(im, im, sigma, ksz, 0, NULL);
+}
+
+struct filter_task
+{
+    const image_u8_t *src;
+    image_u8_t *dst;
+    const uint8_t *k;
+    int ksz;
+    int sharpen;
+    int y0, y1;
+};
+
+// One row of convolve(): like it, positions the kernel does not fit
+// in, including the last one it would, keep their values. Weights
+// sum to at most 255, so the sums fit 16 bits.
+static void filter_row(const uint8_t *in, uint8_t *out, uint16_t *acc, int sz,
+                       const uint8_t *k, int ksz)
+{
+    int n = sz - ksz;
+
+    for (int i = 0; i < n; i++)
+        acc[i] = 0;
+    for (int j = 0; j < ksz; j++) {
+        uint16_t kj = k[j];
+        for (int i = 0; i < n; i++)
+            acc[i] += kj * in[i + j];
+    }
+
+    int r = ksz / 2;
+    for (int i = 0; i < r && i < sz; i++)
+        out[i] = in[i];
+    for (int i = 0; i < n; i++)
+        out[r + i] = acc[i] >> 8;
+    for (int i = n > 0 ? n + r : 0; i < sz; i++)
+        out[i] = in[i];
+}
+
+static void filter_band(void *p)
+{
+    struct filter_task *task = p;
+    const image_u8_t *src = task->src;
+    image_u8_t *dst = task->dst;
+    const uint8_t *k = task->k;
+    int ksz = task->ksz, r = ksz / 2;
+    int width = src->width, height = src->height;
+
+    // Horizontally filtered rows; row y is in ring[y % ksz]
+    uint8_t ring[ksz][width];
+    uint16_t acc[width];
+    int next = task->y0 - r > 0 ? task->y0 - r : 0;
+
+    for (int y = task->y0; y < task->y1; y++) {
+        // Same rows as convolve() filters vertically
+        int inside = (y >= r && y - r < height - ksz);
+        int need = inside ? y + r : y;
+
+        for (; next <= need; next++)
+            filter_row(&src->buf[next*src->stride], ring[next % ksz], acc, width, k, ksz);
+
+        const uint8_t *srow = &src->buf[y*src->stride];
+        uint8_t *drow = &dst->buf[y*dst->stride];
+        const uint8_t *blur = ring[y % ksz];
+
+        if (inside) {
+            for (int x = 0; x < width; x++)
+                acc[x] = 0;
+            for (int j = 0; j < ksz; j++) {
+                const uint8_t *h = ring[(y - r + j) % ksz];
+                uint16_t kj = k[j];
+                for (int x = 0; x < width; x++)
+                    acc[x] += kj * h[x];
+            }
+        }
+
+        if (task->sharpen) {
+            for (int x = 0; x < width; x++) {
+                int v = 2*srow[x] - (inside ? acc[x] >> 8 : blur[x]);
+                drow[x] = v < 0 ? 0 : (v > 255 ? 255 : v);
+            }
+        } else if (inside) {
+            for (int x = 0; x < width; x++)
+                drow[x] = acc[x] >> 8;
+        } else {
+            memcpy(drow, blur, width);
+        }
+    }
+}
+
+void image_u8_gaussian_filter(const image_u8_t *src, image_u8_t *dst, double sigma, int ksz,
+                              int sharpen, workerpool_t *wp)
+{
+    assert((ksz & 1) == 1); // ksz must be odd.
+    assert(src->width == dst->width && src->height == dst->height);
+    assert(!wp || src != dst);
+
+    uint8_t k[ksz];
+    gaussian_kernel(sigma, ksz, k);
+
+    int height = src->height;
+    int nthreads = wp ? workerpool_get_nthreads(wp) : 1;
+
+    // Each band filters ksz-1 rows of its neighbours again, so bands
+    // are kept several kernels high.
+    int band = height / (4 * nthreads);
+    if (band < 8 * ksz)
+        band = 8 * ksz;
+    int nbands = (height + band - 1) / band;
+
+    if (nthreads == 1 || nbands == 1) {
+        struct filter_task task = { src, dst, k, ksz, sharpen, 0, height };
+        filter_band(&task);
+        return;
+    }
 
-    image_u8_convolve_2D(im, k, ksz);
+    struct filter_task tasks[nbands];
+    for (int i = 0; i < nbands; i++) {
+        tasks[i] = (struct filter_task) { src, dst, k, ksz, sharpen, i * band,
+                                          imin((i + 1) * band, height) };
+        workerpool_add_task(wp, filter_band, &tasks[i]);
+    }
+    workerpool_run(wp);
 }
 
 image_u8_t *image_u8_rotate(const image_u8_t *in, double rad, uint8_t pad)
@@ -433,102 +574,34 @@ image_u8_t *image_u8_rotate(const image_u8_t *in, double rad, uint8_t pad)
     return out;
 }
 
-#ifdef __ARM_NEON__
-#include <arm_neon.h>
-
-void neon_decimate2(uint8_t * __restrict dest, int destwidth, int destheight, int deststride,
-                    uint8_t * __restrict src, int srcwidth, int srcheight, int srcstride)
-{
-    for (int y = 0; y < destheight; y++) {
-        for (int x = 0; x < destwidth; x+=8) {
-            uint8x16x2_t row0 = vld2q_u8(src + 2*x);
-            uint8x16x2_t row1 = vld2q_u8(src + 2*x + srcstride);
-            uint8x16_t sum0 = vhaddq_u8(row0.val[0], row1.val[1]);
-            uint8x16_t sum1 = vhaddq_u8(row1.val[0], row0.val[1]);
-            uint8x16_t sum = vhaddq_u8(sum0, sum1);
-            vst1q_u8(dest + x, sum);
-        }
-        src += 2*srcstride;
-        dest += deststride;
-    }
-}
-
-void neon_decimate3(uint8_t * __restrict dest, int destwidth, int destheight, int deststride,
-                    uint8_t * __restrict src, int srcwidth, int srcheight, int srcstride)
+void image_u8_decimate_size(const image_u8_t *im, float ffactor, int *swidth, int *sheight)
 {
-    for (int y = 0; y < destheight; y++) {
-        for (int x = 0; x < destwidth; x+=8) {
-            uint8x16x3_t row0 = vld3q_u8(src + 3*x);
-            uint8x16x3_t row1 = vld3q_u8(src + 3*x + srcstride);
-            uint8x16x3_t row2 = vld3q_u8(src + 3*x + 2*srcstride);
-
-            uint8x16_t sum0 = vhaddq_u8(row0.val[0], row0.val[1]);
-            uint8x16_t sum1 = vhaddq_u8(row0.val[2], row1.val[0]);
-            uint8x16_t sum2 = vhaddq_u8(row1.val[1], row1.val[2]);
-            uint8x16_t sum3 = vhaddq_u8(row2.val[0], row2.val[1]);
-
-            uint8x16_t suma = vhaddq_u8(sum0, sum1);
-            uint8x16_t sumb = vhaddq_u8(sum2, sum3);
-            uint8x16_t sum = vhaddq_u8(suma, sumb);
-
-            vst1q_u8(dest + x, sum);
-        }
-        src += 3*srcstride;
-        dest += deststride;
+    if (ffactor == 1.5) {
+        *swidth = im->width / 3 * 2;
+        *sheight = im->height / 3 * 2;
+    } else {
+        *swidth = im->width / (int) ffactor;
+        *sheight = im->height / (int) ffactor;
     }
 }
 
-void neon_decimate4(uint8_t * __restrict dest, int destwidth, int destheight, int deststride,
-                    uint8_t * __restrict src, int srcwidth, int srcheight, int srcstride)
+image_u8_t *image_u8_decimate(image_u8_t *im, float ffactor)
 {
-    for (int y = 0; y < destheight; y++) {
-        for (int x = 0; x < destwidth; x+=8) {
-            uint8x16x4_t row0 = vld4q_u8(src + 4*x);
-            uint8x16x4_t row1 = vld4q_u8(src + 4*x + srcstride);
-            uint8x16x4_t row2 = vld4q_u8(src + 4*x + 2*srcstride);
-            uint8x16x4_t row3 = vld4q_u8(src + 4*x + 3*srcstride);
-
-            uint8x16_t sum0, sum1;
-
-            sum0 = vhaddq_u8(row0.val[0], row0.val[3]);
-            sum1 = vhaddq_u8(row0.val[2], row0.val[1]);
-            uint8x16_t suma = vhaddq_u8(sum0, sum1);
+    int swidth, sheight;
+    image_u8_decimate_size(im, ffactor, &swidth, &sheight);
 
-            sum0 = vhaddq_u8(row1.val[0], row1.val[3]);
-            sum1 = vhaddq_u8(row1.val[2], row1.val[1]);
-            uint8x16_t sumb = vhaddq_u8(sum0, sum1);
-
-            sum0 = vhaddq_u8(row2.val[0], row2.val[3]);
-            sum1 = vhaddq_u8(row2.val[2], row2.val[1]);
-            uint8x16_t sumc = vhaddq_u8(sum0, sum1);
-
-            sum0 = vhaddq_u8(row3.val[0], row3.val[3]);
-            sum1 = vhaddq_u8(row3.val[2], row3.val[1]);
-            uint8x16_t sumd = vhaddq_u8(sum0, sum1);
-
-            uint8x16_t sumx = vhaddq_u8(suma, sumd);
-            uint8x16_t sumy = vhaddq_u8(sumc, sumb);
-
-            uint8x16_t sum = vhaddq_u8(sumx, sumy);
-
-            vst1q_u8(dest + x, sum);
-        }
-        src += 4*srcstride;
-        dest += deststride;
-    }
+    image_u8_t *decim = image_u8_create(swidth, sheight);
+    image_u8_decimate_into(im, ffactor, decim);
+    return decim;
 }
 
-#endif
-
-image_u8_t *image_u8_decimate(image_u8_t *im, float ffactor)
+void image_u8_decimate_into(image_u8_t *im, float ffactor, image_u8_t *decim)
 {
-    int width = im->width, height = im->height;
+    int swidth, sheight;
+    image_u8_decimate_size(im, ffactor, &swidth, &sheight);
+    assert(decim->width == swidth && decim->height == sheight);
 
     if (ffactor == 1.5) {
-        int swidth = width / 3 * 2, sheight = height / 3 * 2;
-
-        image_u8_t *decim = image_u8_create(swidth, sheight);
-
         int y = 0, sy = 0;
         while (sy < sheight) {
             int x = 0, sx = 0;
@@ -567,43 +640,15 @@ image_u8_t *image_u8_decimate(image_u8_t *im, float ffactor)
             sy += 2;
         }
 
-        return decim;
+        return;
     }
 
     int factor = (int) ffactor;
 
-    int swidth = width / factor, sheight = height / factor;
-
-    image_u8_t *decim = image_u8_create(swidth, sheight);
-
-#ifdef __ARM_NEON__
-    if (factor == 2) {
-        neon_decimate2(decim->buf, decim->width, decim->height, decim->stride,
-                       im->buf, im->width, im->height, im->stride);
-        return decim;
-    } else if (factor == 3) {
-        neon_decimate3(decim->buf, decim->width, decim->height, decim->stride,
-                       im->buf, im->width, im->height, im->stride);
-        return decim;
-    } else if (factor == 4) {
-        neon_decimate4(decim->buf, decim->width, decim->height, decim->stride,
-                       im->buf, im->width, im->height, im->stride);
-        return decim;
-    }
-#endif
-
     if (factor == 2) {
         for (int sy = 0; sy < sheight; sy++) {
-            int sidx = sy * decim->stride;
-            int idx = (sy*2)*im->stride;
-
-            for (int sx = 0; sx < swidth; sx++) {
-                uint32_t v = im->buf[idx] + im->buf[idx+1] +
-                    im->buf[idx+im->stride] + im->buf[idx+im->stride + 1];
-                decim->buf[sidx] = (v>>2);
-                idx+=2;
-                sidx++;
-            }
+            const uint8_t *r0 = &im->buf[(sy*2)*im->stride];
+            simd_decimate2_row(r0, r0 + im->stride, &decim->buf[sy*decim->stride], swidth);
         }
     } else if (factor == 3) {
         for (int sy = 0; sy < sheight; sy++) {
@@ -636,26 +681,42 @@ image_u8_t *image_u8_decimate(image_u8_t *im, float ffactor)
                 sidx++;
             }
         }
-    } else {
+    } else if (factor <= 257) {
         // XXX this isn't a very good decimation code.
-        uint32_t row[swidth];
+        //
+        // Sum columns first (vectorized, and exact in 16 bits for up
+        // to 257 rows of 8-bit pixels), then each factor-wide group of
+        // column sums. Only whole blocks are read: a partial block at
+        // the bottom or right has no output pixel.
+        int cwidth = swidth * factor;
+        uint16_t col[cwidth > 0 ? cwidth : 1];
+
+        for (int sy = 0; sy < sheight; sy++) {
+            simd_sum_rows(&im->buf[(sy*factor)*im->stride], im->stride, factor, cwidth, col);
 
-        for (int y = 0; y < height; y+= factor) {
+            for (int sx = 0; sx < swidth; sx++) {
+                uint32_t v = 0;
+                for (int dx = 0; dx < factor; dx++)
+                    v += col[sx*factor + dx];
+                decim->buf[sy*decim->stride + sx] = v / sq(factor);
+            }
+        }
+    } else {
+        uint32_t row[swidth > 0 ? swidth : 1];
+
+        for (int sy = 0; sy < sheight; sy++) {
             memset(row, 0, sizeof(row));
 
             for (int dy = 0; dy < factor; dy++) {
-                for (int x = 0; x < width; x++) {
-                    row[x/factor] += im->buf[(y+dy)*im->stride + x];
+                for (int x = 0; x < swidth*factor; x++) {
+                    row[x/factor] += im->buf[(sy*factor+dy)*im->stride + x];
                 }
             }
 
             for (int x = 0; x < swidth; x++)
-                decim->buf[(y/factor)*decim->stride + x] = row[x] / sq(factor);
-
+                decim->buf[sy*decim->stride + x] = row[x] / sq(factor);
         }
     }
-
-    return decim;
 }
 
 void image_u8_fill_line_max(image_u8_t *im, const image_u8_lut_t *lut, const float *xy0, const float *xy1)
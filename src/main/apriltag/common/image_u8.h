@@ -35,6 +35,8 @@ either expressed or implied, of the Regents of The University of Michigan.
 
 #include <stdint.h>
 #include "image_types.h"
+#include "arena.h"
+#include "workerpool.h"
 
 #ifdef __cplusplus
 extern "C" {
@@ -59,6 +61,9 @@ struct image_u8_lut
 image_u8_t *image_u8_create_stride(unsigned int width, unsigned int height, unsigned int stride);
 image_u8_t *image_u8_create(unsigned int width, unsigned int height);
 image_u8_t *image_u8_create_alignment(unsigned int width, unsigned int height, unsigned int alignment);
+// Like image_u8_create_alignment, but the image and its pixels are
+// allocated in arena a. Not to be destroyed with image_u8_destroy.
+image_u8_t *image_u8_create_arena(arena_t *a, unsigned int width, unsigned int height, unsigned int alignment);
 image_u8_t *image_u8_create_from_rgb3(int width, int height, uint8_t *rgb, int stride);
 image_u8_t *image_u8_create_from_f32(image_f32_t *fim);
 
@@ -77,9 +82,25 @@ void image_u8_darken(image_u8_t *im);
 void image_u8_convolve_2D(image_u8_t *im, const uint8_t *k, int ksz);
 void image_u8_gaussian_blur(image_u8_t *im, double sigma, int k);
 
+// Gaussian blur of src into dst, or with sharpen, dst = 2*src - blur
+// (clamped), with the same 8-bit fixed-point kernel and results as
+// image_u8_gaussian_blur. Separable: each row is blurred horizontally
+// once into a ring of ksz rows, which the vertical pass, and the
+// sharpen step fused into it, read from, so no copy of the image is
+// made. dst must be src's size and may be src when wp is NULL. With a
+// workerpool, bands of rows are filtered in parallel on it; src and
+// dst must then differ.
+void image_u8_gaussian_filter(const image_u8_t *src, image_u8_t *dst, double sigma, int ksz,
+                              int sharpen, workerpool_t *wp);
+
 // 1.5, 2, 3, 4, ... supported
 image_u8_t *image_u8_decimate(image_u8_t *im, float factor);
 
+// The same, into an existing image of the size given by
+// image_u8_decimate_size
+void image_u8_decimate_size(const image_u8_t *im, float factor, int *width, int *height);
+void image_u8_decimate_into(image_u8_t *im, float factor, image_u8_t *decim);
+
 void image_u8_destroy(image_u8_t *im);
 
 // Write a pnm. Returns 0 on success
@@ -0,0 +1,539 @@
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "simd.h"
+
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#define HAVE_SSE2 1
+#endif
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define HAVE_NEON 1
+#if defined(__arm__)
+#include <sys/auxv.h>
+#ifndef HWCAP_NEON
+#define HWCAP_NEON (1 << 12)
+#endif
+#endif
+#endif
+
+static pthread_once_t detect_once = PTHREAD_ONCE_INIT;
+static int detected_level = SIMD_NONE;
+static int active_level = SIMD_NONE;
+
+static void detect(void)
+{
+#if defined(HAVE_SSE2)
+    if (__builtin_cpu_supports("sse2"))
+        detected_level = SIMD_SSE2;
+#elif defined(HAVE_NEON) && defined(__arm__)
+    // NEON is optional on ARMv7
+    if (getauxval(AT_HWCAP) & HWCAP_NEON)
+        detected_level = SIMD_NEON;
+#elif defined(HAVE_NEON)
+    detected_level = SIMD_NEON;
+#endif
+
+    if (getenv("APRILTAG_NO_SIMD"))
+        detected_level = SIMD_NONE;
+
+    active_level = detected_level;
+}
+
+int simd_level(void)
+{
+    pthread_once(&detect_once, detect);
+    return active_level;
+}
+
+void simd_set_level(int level)
+{
+    pthread_once(&detect_once, detect);
+    active_level = (level == SIMD_NONE || level == detected_level) ? level : active_level;
+}
+
+void simd_tile_minmax4(const uint8_t *src, int stride, int ntiles, uint8_t *tmax, uint8_t *tmin)
+{
+    int tx = 0;
+    int level = simd_level();
+
+#if defined(HAVE_SSE2)
+    if (level == SIMD_SSE2) {
+        const __m128i lo8 = _mm_set1_epi32(0xff);
+
+        // 16 tiles (64 pixels) per iteration. Vertical max/min of the
+        // four rows, then within each 32-bit lane: after two shifts,
+        // the low byte of each lane holds the result for its tile.
+        for (; tx + 16 <= ntiles; tx += 16) {
+            __m128i mx[4], mn[4];
+
+            for (int i = 0; i < 4; i++) {
+                const uint8_t *p = src + tx*4 + i*16;
+                __m128i r0 = _mm_loadu_si128((const __m128i*) p);
+                __m128i r1 = _mm_loadu_si128((const __m128i*) (p + stride));
+                __m128i r2 = _mm_loadu_si128((const __m128i*) (p + 2*stride));
+                __m128i r3 = _mm_loadu_si128((const __m128i*) (p + 3*stride));
+
+                __m128i a = _mm_max_epu8(_mm_max_epu8(r0, r1), _mm_max_epu8(r2, r3));
+                __m128i b = _mm_min_epu8(_mm_min_epu8(r0, r1), _mm_min_epu8(r2, r3));
+
+                a = _mm_max_epu8(a, _mm_srli_epi32(a, 8));
+                a = _mm_max_epu8(a, _mm_srli_epi32(a, 16));
+                b = _mm_min_epu8(b, _mm_srli_epi32(b, 8));
+                b = _mm_min_epu8(b, _mm_srli_epi32(b, 16));
+
+                mx[i] = _mm_and_si128(a, lo8);
+                mn[i] = _mm_and_si128(b, lo8);
+            }
+
+            __m128i a = _mm_packus_epi16(_mm_packs_epi32(mx[0], mx[1]), _mm_packs_epi32(mx[2], mx[3]));
+            __m128i b = _mm_packus_epi16(_mm_packs_epi32(mn[0], mn[1]), _mm_packs_epi32(mn[2], mn[3]));
+            _mm_storeu_si128((__m128i*) (tmax + tx), a);
+            _mm_storeu_si128((__m128i*) (tmin + tx), b);
+        }
+    }
+#endif
+
+#if defined(HAVE_NEON)
+    if (level == SIMD_NEON) {
+        // 8 tiles (32 pixels) per iteration, reduced with pairwise max/min
+        for (; tx + 8 <= ntiles; tx += 8) {
+            const uint8_t *p = src + tx*4;
+            uint8x16_t a[2], b[2];
+
+            for (int i = 0; i < 2; i++) {
+                uint8x16_t r0 = vld1q_u8(p + i*16);
+                uint8x16_t r1 = vld1q_u8(p + i*16 + stride);
+                uint8x16_t r2 = vld1q_u8(p + i*16 + 2*stride);
+                uint8x16_t r3 = vld1q_u8(p + i*16 + 3*stride);
+
+                a[i] = vmaxq_u8(vmaxq_u8(r0, r1), vmaxq_u8(r2, r3));
+                b[i] = vminq_u8(vminq_u8(r0, r1), vminq_u8(r2, r3));
+            }
+
+            uint8x8_t amax = vpmax_u8(vpmax_u8(vget_low_u8(a[0]), vget_high_u8(a[0])),
+                                      vpmax_u8(vget_low_u8(a[1]), vget_high_u8(a[1])));
+            uint8x8_t bmin = vpmin_u8(vpmin_u8(vget_low_u8(b[0]), vget_high_u8(b[0])),
+                                      vpmin_u8(vget_low_u8(b[1]), vget_high_u8(b[1])));
+            vst1_u8(tmax + tx, amax);
+            vst1_u8(tmin + tx, bmin);
+        }
+    }
+#endif
+
+    for (; tx < ntiles; tx++) {
+        uint8_t max = 0, min = 255;
+
+        for (int dy = 0; dy < 4; dy++) {
+            for (int dx = 0; dx < 4; dx++) {
+                uint8_t v = src[dy*stride + tx*4 + dx];
+                if (v < min)
+                    min = v;
+                if (v > max)
+                    max = v;
+            }
+        }
+
+        tmax[tx] = max;
+        tmin[tx] = min;
+    }
+}
+
+// max (is_max) or min of three rows, into tmp, then of three
+// neighbouring columns. Both passes are exact, so the result equals
+// the 3x3 filter.
+static void filter3x3(const uint8_t *src, uint8_t *dst, int w, int h, uint8_t *tmp, int is_max)
+{
+    if (w <= 0 || h <= 0)
+        return;
+
+    int level = simd_level();
+
+#define PICK(a, b) (is_max ? ((a) > (b) ? (a) : (b)) : ((a) < (b) ? (a) : (b)))
+
+    for (int y = 0; y < h; y++) {
+        // a missing neighbour row is replaced by the row itself, which
+        // does not change a max or min.
+        const uint8_t *r0 = &src[(y > 0 ? y - 1 : y)*w];
+        const uint8_t *r1 = &src[y*w];
+        const uint8_t *r2 = &src[(y + 1 < h ? y + 1 : y)*w];
+        uint8_t *out = &dst[y*w];
+
+        int x = 0;
+#if defined(HAVE_SSE2)
+        if (level == SIMD_SSE2) {
+            for (; x + 16 <= w; x += 16) {
+                __m128i a = _mm_loadu_si128((const __m128i*) (r0 + x));
+                __m128i b = _mm_loadu_si128((const __m128i*) (r1 + x));
+                __m128i c = _mm_loadu_si128((const __m128i*) (r2 + x));
+                __m128i v = is_max ? _mm_max_epu8(_mm_max_epu8(a, b), c) : _mm_min_epu8(_mm_min_epu8(a, b), c);
+                _mm_storeu_si128((__m128i*) (tmp + x), v);
+            }
+        }
+#endif
+#if defined(HAVE_NEON)
+        if (level == SIMD_NEON) {
+            for (; x + 16 <= w; x += 16) {
+                uint8x16_t a = vld1q_u8(r0 + x), b = vld1q_u8(r1 + x), c = vld1q_u8(r2 + x);
+                uint8x16_t v = is_max ? vmaxq_u8(vmaxq_u8(a, b), c) : vminq_u8(vminq_u8(a, b), c);
+                vst1q_u8(tmp + x, v);
+            }
+        }
+#endif
+        for (; x < w; x++) {
+            uint8_t v = PICK(r0[x], r1[x]);
+            tmp[x] = PICK(v, r2[x]);
+        }
+
+        if (w == 1) {
+            out[0] = tmp[0];
+            continue;
+        }
+
+        out[0] = PICK(tmp[0], tmp[1]);
+        out[w-1] = PICK(tmp[w-2], tmp[w-1]);
+
+        x = 1;
+#if defined(HAVE_SSE2)
+        if (level == SIMD_SSE2) {
+            for (; x + 17 <= w; x += 16) {
+                __m128i a = _mm_loadu_si128((const __m128i*) (tmp + x - 1));
+                __m128i b = _mm_loadu_si128((const __m128i*) (tmp + x));
+                __m128i c = _mm_loadu_si128((const __m128i*) (tmp + x + 1));
+                __m128i v = is_max ? _mm_max_epu8(_mm_max_epu8(a, b), c) : _mm_min_epu8(_mm_min_epu8(a, b), c);
+                _mm_storeu_si128((__m128i*) (out + x), v);
+            }
+        }
+#endif
+#if defined(HAVE_NEON)
+        if (level == SIMD_NEON) {
+            for (; x + 17 <= w; x += 16) {
+                uint8x16_t a = vld1q_u8(tmp + x - 1), b = vld1q_u8(tmp + x), c = vld1q_u8(tmp + x + 1);
+                uint8x16_t v = is_max ? vmaxq_u8(vmaxq_u8(a, b), c) : vminq_u8(vminq_u8(a, b), c);
+                vst1q_u8(out + x, v);
+            }
+        }
+#endif
+        for (; x + 1 < w; x++) {
+            uint8_t v = PICK(tmp[x-1], tmp[x]);
+            out[x] = PICK(v, tmp[x+1]);
+        }
+    }
+
+#undef PICK
+}
+
+void simd_max3x3(const uint8_t *src, uint8_t *dst, int w, int h, uint8_t *tmp)
+{
+    filter3x3(src, dst, w, h, tmp, 1);
+}
+
+void simd_min3x3(const uint8_t *src, uint8_t *dst, int w, int h, uint8_t *tmp)
+{
+    filter3x3(src, dst, w, h, tmp, 0);
+}
+
+void simd_threshold_tiles4(const uint8_t *src, uint8_t *dst, int ntiles,
+                           const uint8_t *thresh, const uint8_t *lowc)
+{
+    int tx = 0;
+    int level = simd_level();
+
+#if defined(HAVE_SSE2)
+    if (level == SIMD_SSE2) {
+        // SSE2 only compares signed bytes; flipping the top bit of
+        // both sides turns that into an unsigned compare.
+        const __m128i bias = _mm_set1_epi8((char) 0x80);
+        const __m128i gray = _mm_set1_epi8(127);
+
+        // 4 tiles (16 pixels) per iteration; each tile's threshold
+        // and low-contrast flag is repeated over its 4 pixels.
+        for (; tx + 4 <= ntiles; tx += 4) {
+            int32_t t4, l4;
+            memcpy(&t4, thresh + tx, 4);
+            memcpy(&l4, lowc + tx, 4);
+
+            __m128i t = _mm_cvtsi32_si128(t4);
+            __m128i l = _mm_cvtsi32_si128(l4);
+            t = _mm_unpacklo_epi8(t, t);
+            t = _mm_unpacklo_epi16(t, t);
+            l = _mm_unpacklo_epi8(l, l);
+            l = _mm_unpacklo_epi16(l, l);
+            l = _mm_cmpeq_epi8(l, _mm_setzero_si128()); // 0xff where contrast is high
+
+            __m128i v = _mm_loadu_si128((const __m128i*) (src + tx*4));
+            __m128i gt = _mm_cmpgt_epi8(_mm_xor_si128(v, bias), _mm_xor_si128(t, bias));
+
+            __m128i out = _mm_or_si128(_mm_and_si128(l, gt), _mm_andnot_si128(l, gray));
+            _mm_storeu_si128((__m128i*) (dst + tx*4), out);
+        }
+    }
+#endif
+
+#if defined(HAVE_NEON)
+    if (level == SIMD_NEON) {
+        const uint8x16_t gray = vdupq_n_u8(127);
+        const uint8x8_t spread_lo = { 0, 0, 0, 0, 1, 1, 1, 1 };
+        const uint8x8_t spread_hi = { 2, 2, 2, 2, 3, 3, 3, 3 };
+
+        for (; tx + 4 <= ntiles; tx += 4) {
+            uint32_t t4, l4;
+            memcpy(&t4, thresh + tx, 4);
+            memcpy(&l4, lowc + tx, 4);
+
+            uint8x8_t t8 = vreinterpret_u8_u32(vdup_n_u32(t4));
+            uint8x8_t l8 = vreinterpret_u8_u32(vdup_n_u32(l4));
+            uint8x16_t t = vcombine_u8(vtbl1_u8(t8, spread_lo), vtbl1_u8(t8, spread_hi));
+            uint8x16_t l = vcombine_u8(vtbl1_u8(l8, spread_lo), vtbl1_u8(l8, spread_hi));
+            uint8x16_t high = vceqq_u8(l, vdupq_n_u8(0));
+
+            uint8x16_t v = vld1q_u8(src + tx*4);
+            uint8x16_t gt = vcgtq_u8(v, t);
+
+            vst1q_u8(dst + tx*4, vbslq_u8(high, gt, gray));
+        }
+    }
+#endif
+
+    for (; tx < ntiles; tx++) {
+        for (int dx = 0; dx < 4; dx++) {
+            int x = tx*4 + dx;
+
+            if (lowc[tx])
+                dst[x] = 127;
+            else
+                dst[x] = src[x] > thresh[tx] ? 255 : 0;
+        }
+    }
+}
+
+void simd_decimate2_row(const uint8_t *r0, const uint8_t *r1, uint8_t *dst, int dstwidth)
+{
+    int x = 0;
+    int level = simd_level();
+
+#if defined(HAVE_SSE2)
+    if (level == SIMD_SSE2) {
+        const __m128i lo = _mm_set1_epi16(0xff);
+
+        // sum horizontal pairs in 16-bit lanes, so no precision is lost
+        for (; x + 16 <= dstwidth; x += 16) {
+            __m128i s[2];
+
+            for (int i = 0; i < 2; i++) {
+                __m128i a = _mm_loadu_si128((const __m128i*) (r0 + 2*x + 16*i));
+                __m128i b = _mm_loadu_si128((const __m128i*) (r1 + 2*x + 16*i));
+                __m128i sa = _mm_add_epi16(_mm_and_si128(a, lo), _mm_srli_epi16(a, 8));
+                __m128i sb = _mm_add_epi16(_mm_and_si128(b, lo), _mm_srli_epi16(b, 8));
+                s[i] = _mm_srli_epi16(_mm_add_epi16(sa, sb), 2);
+            }
+
+            _mm_storeu_si128((__m128i*) (dst + x), _mm_packus_epi16(s[0], s[1]));
+        }
+    }
+#endif
+
+#if defined(HAVE_NEON)
+    if (level == SIMD_NEON) {
+        for (; x + 8 <= dstwidth; x += 8) {
+            uint16x8_t s = vpaddlq_u8(vld1q_u8(r0 + 2*x));
+            s = vpadalq_u8(s, vld1q_u8(r1 + 2*x));
+            vst1_u8(dst + x, vshrn_n_u16(s, 2));
+        }
+    }
+#endif
+
+    for (; x < dstwidth; x++) {
+        uint32_t v = r0[2*x] + r0[2*x+1] + r1[2*x] + r1[2*x+1];
+        dst[x] = (v>>2);
+    }
+}
+
+void simd_sum_rows(const uint8_t *src, int stride, int nrows, int width, uint16_t *acc)
+{
+    int x = 0;
+    int level = simd_level();
+
+#if defined(HAVE_SSE2)
+    if (level == SIMD_SSE2) {
+        const __m128i zero = _mm_setzero_si128();
+
+        for (; x + 16 <= width; x += 16) {
+            __m128i lo = zero, hi = zero;
+
+            for (int dy = 0; dy < nrows; dy++) {
+                __m128i v = _mm_loadu_si128((const __m128i*) (src + dy*stride + x));
+                lo = _mm_add_epi16(lo, _mm_unpacklo_epi8(v, zero));
+                hi = _mm_add_epi16(hi, _mm_unpackhi_epi8(v, zero));
+            }
+
+            _mm_storeu_si128((__m128i*) (acc + x), lo);
+            _mm_storeu_si128((__m128i*) (acc + x + 8), hi);
+        }
+    }
+#endif
+
+#if defined(HAVE_NEON)
+    if (level == SIMD_NEON) {
+        for (; x + 16 <= width; x += 16) {
+            uint16x8_t lo = vdupq_n_u16(0), hi = vdupq_n_u16(0);
+
+            for (int dy = 0; dy < nrows; dy++) {
+                uint8x16_t v = vld1q_u8(src + dy*stride + x);
+                lo = vaddw_u8(lo, vget_low_u8(v));
+                hi = vaddw_u8(hi, vget_high_u8(v));
+            }
+
+            vst1q_u16(acc + x, lo);
+            vst1q_u16(acc + x + 8, hi);
+        }
+    }
+#endif
+
+    for (; x < width; x++) {
+        uint16_t v = 0;
+        for (int dy = 0; dy < nrows; dy++)
+            v += src[dy*stride + x];
+        acc[x] = v;
+    }
+}
+
+static inline uint8_t clamp_u8(int v)
+{
+    return v < 0 ? 0 : (v > 255 ? 255 : v);
+}
+
+void simd_nv21_to_rgb_rows(const uint8_t *y0, const uint8_t *y1, const uint8_t *vu, int n,
+                           uint32_t *out0, uint32_t *out1)
+{
+    int x = 0;
+    int level = simd_level();
+
+#if defined(HAVE_SSE2)
+    if (level == SIMD_SSE2) {
+        const __m128i zero = _mm_setzero_si128();
+        const __m128i c16 = _mm_set1_epi8(16);
+        const __m128i c128 = _mm_set1_epi16(128);
+        const __m128i alpha = _mm_set1_epi8((char) 0xff);
+        // multiplied with (y - 16, v - 128) or (y - 16, u - 128) pairs
+        const __m128i kr = _mm_set_epi16(1634, 1192, 1634, 1192, 1634, 1192, 1634, 1192);
+        const __m128i kgv = _mm_set_epi16(-832, 1192, -832, 1192, -832, 1192, -832, 1192);
+        const __m128i kgu = _mm_set_epi16(-400, 0, -400, 0, -400, 0, -400, 0);
+        const __m128i kb = _mm_set_epi16(2066, 1192, 2066, 1192, 2066, 1192, 2066, 1192);
+
+        // 8 pixels (4 chroma pairs) of each row per iteration. Products
+        // are summed in 32-bit lanes by madd, exactly as the scalar code.
+        for (; x + 8 <= n; x += 8) {
+            __m128i c = _mm_sub_epi16(_mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*) (vu + x)), zero), c128);
+            __m128i v = _mm_shufflehi_epi16(_mm_shufflelo_epi16(c, _MM_SHUFFLE(2, 2, 0, 0)), _MM_SHUFFLE(2, 2, 0, 0));
+            __m128i u = _mm_shufflehi_epi16(_mm_shufflelo_epi16(c, _MM_SHUFFLE(3, 3, 1, 1)), _MM_SHUFFLE(3, 3, 1, 1));
+
+            // chroma parts of g, shared by both rows
+            __m128i gu_lo = _mm_madd_epi16(_mm_unpacklo_epi16(zero, u), kgu);
+            __m128i gu_hi = _mm_madd_epi16(_mm_unpackhi_epi16(zero, u), kgu);
+
+            for (int row = 0; row < 2; row++) {
+                const uint8_t *src = row ? y1 : y0;
+                uint32_t *out = row ? out1 : out0;
+
+                // max(y, 16) - 16
+                __m128i y = _mm_unpacklo_epi8(_mm_subs_epu8(_mm_loadl_epi64((const __m128i*) (src + x)), c16), zero);
+                __m128i yv_lo = _mm_unpacklo_epi16(y, v), yv_hi = _mm_unpackhi_epi16(y, v);
+                __m128i yu_lo = _mm_unpacklo_epi16(y, u), yu_hi = _mm_unpackhi_epi16(y, u);
+
+                __m128i r = _mm_packs_epi32(_mm_srai_epi32(_mm_madd_epi16(yv_lo, kr), 10),
+                                            _mm_srai_epi32(_mm_madd_epi16(yv_hi, kr), 10));
+                __m128i g = _mm_packs_epi32(_mm_srai_epi32(_mm_add_epi32(_mm_madd_epi16(yv_lo, kgv), gu_lo), 10),
+                                            _mm_srai_epi32(_mm_add_epi32(_mm_madd_epi16(yv_hi, kgv), gu_hi), 10));
+                __m128i b = _mm_packs_epi32(_mm_srai_epi32(_mm_madd_epi16(yu_lo, kb), 10),
+                                            _mm_srai_epi32(_mm_madd_epi16(yu_hi, kb), 10));
+
+                // saturate to 0..255 and interleave as b, g, r, a bytes
+                __m128i bg = _mm_unpacklo_epi8(_mm_packus_epi16(b, b), _mm_packus_epi16(g, g));
+                __m128i ra = _mm_unpacklo_epi8(_mm_packus_epi16(r, r), alpha);
+                _mm_storeu_si128((__m128i*) (out + x), _mm_unpacklo_epi16(bg, ra));
+                _mm_storeu_si128((__m128i*) (out + x + 4), _mm_unpackhi_epi16(bg, ra));
+            }
+        }
+    }
+#endif
+
+#if defined(HAVE_NEON)
+    if (level == SIMD_NEON) {
+        const uint8x16_t c16 = vdupq_n_u8(16);
+
+        // 16 pixels (8 chroma pairs) of each row per iteration
+        for (; x + 16 <= n; x += 16) {
+            uint8x8x2_t c = vld2_u8(vu + x);
+            uint8x8x2_t vv = vzip_u8(c.val[0], c.val[0]);
+            uint8x8x2_t uu = vzip_u8(c.val[1], c.val[1]);
+            int16x8_t v[2], u[2];
+            for (int h = 0; h < 2; h++) {
+                v[h] = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(vv.val[h])), vdupq_n_s16(128));
+                u[h] = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(uu.val[h])), vdupq_n_s16(128));
+            }
+
+            // chroma parts of r, g and b for the 16 pixels, shared by both rows
+            int32x4_t cr[4], cg[4], cb[4];
+            for (int q = 0; q < 4; q++) {
+                int16x4_t vq = (q & 1) ? vget_high_s16(v[q >> 1]) : vget_low_s16(v[q >> 1]);
+                int16x4_t uq = (q & 1) ? vget_high_s16(u[q >> 1]) : vget_low_s16(u[q >> 1]);
+                cr[q] = vmull_n_s16(vq, 1634);
+                cg[q] = vmlal_n_s16(vmull_n_s16(vq, -832), uq, -400);
+                cb[q] = vmull_n_s16(uq, 2066);
+            }
+
+            for (int row = 0; row < 2; row++) {
+                const uint8_t *src = row ? y1 : y0;
+                uint32_t *out = row ? out1 : out0;
+
+                // max(y, 16) - 16
+                uint8x16_t y8 = vqsubq_u8(vld1q_u8(src + x), c16);
+                int16x8_t y[2] = { vreinterpretq_s16_u16(vmovl_u8(vget_low_u8(y8))),
+                                   vreinterpretq_s16_u16(vmovl_u8(vget_high_u8(y8))) };
+
+                int16x4_t r[4], g[4], b[4];
+                for (int q = 0; q < 4; q++) {
+                    int16x4_t yq = (q & 1) ? vget_high_s16(y[q >> 1]) : vget_low_s16(y[q >> 1]);
+                    int32x4_t a0 = vmull_n_s16(yq, 1192);
+                    r[q] = vqmovn_s32(vshrq_n_s32(vaddq_s32(a0, cr[q]), 10));
+                    g[q] = vqmovn_s32(vshrq_n_s32(vaddq_s32(a0, cg[q]), 10));
+                    b[q] = vqmovn_s32(vshrq_n_s32(vaddq_s32(a0, cb[q]), 10));
+                }
+
+                uint8x16x4_t px;
+                px.val[0] = vcombine_u8(vqmovun_s16(vcombine_s16(b[0], b[1])), vqmovun_s16(vcombine_s16(b[2], b[3])));
+                px.val[1] = vcombine_u8(vqmovun_s16(vcombine_s16(g[0], g[1])), vqmovun_s16(vcombine_s16(g[2], g[3])));
+                px.val[2] = vcombine_u8(vqmovun_s16(vcombine_s16(r[0], r[1])), vqmovun_s16(vcombine_s16(r[2], r[3])));
+                px.val[3] = vdupq_n_u8(0xff);
+                vst4q_u8((uint8_t*) (out + x), px);
+            }
+        }
+    }
+#endif
+
+    for (; x < n; x++) {
+        int v = vu[x & ~1] - 128;
+        int u = vu[(x & ~1) + 1] - 128;
+        int a1 = 1634 * v;
+        int a2 = 832 * v;
+        int a3 = 400 * u;
+        int a4 = 2066 * u;
+
+        for (int row = 0; row < 2; row++) {
+            int y = row ? y1[x] : y0[x];
+            y = y < 16 ? 16 : y;
+            int a0 = 1192 * (y - 16);
+
+            uint8_t r = clamp_u8((a0 + a1) >> 10);
+            uint8_t g = clamp_u8((a0 - a2 - a3) >> 10);
+            uint8_t b = clamp_u8((a0 + a4) >> 10);
+
+            uint32_t *out = row ? out1 : out0;
+            out[x] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+}
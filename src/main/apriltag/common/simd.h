@@ -0,0 +1,58 @@
+#ifndef _SIMD_H
+#define _SIMD_H
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Vectorized inner loops of the image kernels that dominate detection
+// time. Every kernel has a scalar fallback, and the vector paths
+// produce exactly the same bytes as the scalar ones. Which path is
+// used is decided at run time from the CPU's features; setting
+// APRILTAG_NO_SIMD in the environment forces the scalar code.
+
+enum { SIMD_NONE = 0, SIMD_SSE2, SIMD_NEON };
+
+// The instruction set kernels currently use. Detected on first use.
+int simd_level(void);
+
+// Restrict kernels to a lower level, e.g. SIMD_NONE to compare
+// against the scalar code. Levels the CPU lacks are ignored.
+void simd_set_level(int level);
+
+// Per-tile max and min of a row of ntiles 4x4 tiles whose top-left
+// pixel is src.
+void simd_tile_minmax4(const uint8_t *src, int stride, int ntiles, uint8_t *tmax, uint8_t *tmin);
+
+// 3x3 max (or min) filter of a w x h map, with neighbours outside
+// the map ignored, using tmp as w bytes of scratch. src and dst must
+// not overlap.
+void simd_max3x3(const uint8_t *src, uint8_t *dst, int w, int h, uint8_t *tmp);
+void simd_min3x3(const uint8_t *src, uint8_t *dst, int w, int h, uint8_t *tmp);
+
+// Binarize one pixel row of ntiles 4-pixel-wide tiles: 127 where
+// lowc[tile] is non-zero, otherwise 255 above thresh[tile] and 0 at
+// or below it.
+void simd_threshold_tiles4(const uint8_t *src, uint8_t *dst, int ntiles,
+                           const uint8_t *thresh, const uint8_t *lowc);
+
+// dst[x] = (r0[2x] + r0[2x+1] + r1[2x] + r1[2x+1]) >> 2
+void simd_decimate2_row(const uint8_t *r0, const uint8_t *r1, uint8_t *dst, int dstwidth);
+
+// acc[x] = sum of nrows pixels of column x, for nrows <= 257
+void simd_sum_rows(const uint8_t *src, int stride, int nrows, int width, uint16_t *acc);
+
+// Convert two rows of NV21 pixels that share one row of interleaved
+// V,U samples (one pair per two pixels) to 0xAARRGGBB, with 10-bit
+// fixed-point BT.601 coefficients. The chroma terms of each 2x2 block
+// are computed once. For a single row, pass y1 = y0 and out1 = out0.
+void simd_nv21_to_rgb_rows(const uint8_t *y0, const uint8_t *y1, const uint8_t *vu, int n,
+                           uint32_t *out0, uint32_t *out1);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -30,32 +30,83 @@ of the authors and should not be interpreted as representing official policies,
 either expressed or implied, of the Regents of The University of Michigan.
 */
 
-#define __USE_GNU
+#define _GNU_SOURCE
 #include <pthread.h>
 #include <sched.h>
 #include <assert.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <stdint.h>
 #include <inttypes.h>
+#include <unistd.h>
 
 #include "workerpool.h"
 #include "timeprofile.h"
 #include "math_util.h"
 #include "string_util.h"
 
+// Work-stealing scheduler. workerpool_run splits the tasks into one
+// contiguous range per participant (the calling thread plus
+// nthreads-1 workers). Each participant takes tasks from the front of
+// its own range, and when that is empty steals the back half of
+// someone else's. Ranges are single words updated with compare and
+// swap, so no lock is taken while there is work; the mutex is only
+// used to park idle threads.
+
+// A range word packs the run's epoch with the range [lo, hi) of task
+// indices. The epoch makes a compare and swap based on a word read
+// during an earlier run fail.
+#define RANGE_BITS 22
+#define EPOCH_BITS (64 - 2*RANGE_BITS)
+#define RANGE_MASK ((1ULL << RANGE_BITS) - 1)
+#define EPOCH_MASK ((1ULL << EPOCH_BITS) - 1)
+#define MAX_TASKS RANGE_MASK
+
+// Idle threads poll this many times before sleeping.
+#define SPIN_ITERATIONS 4000
+
+#if defined(__i386__) || defined(__x86_64__)
+#define cpu_relax() __builtin_ia32_pause()
+#elif defined(__arm__) || defined(__aarch64__)
+#define cpu_relax() __asm__ __volatile__("yield")
+#else
+#define cpu_relax() do { } while (0)
+#endif
+
+struct range
+{
+    uint64_t word;
+    char pad[56]; // keep each range on its own cache line
+};
+
+struct worker
+{
+    workerpool_t *wp;
+    int idx;
+    pthread_t thread;
+
+    int cpu;        // CPU to run on, or -1 for any
+    int cpu_gen;    // affinity_gen last applied
+};
+
 struct workerpool {
     int nthreads;
     zarray_t *tasks;
-    int taskspos;
 
-    pthread_t *threads;
-    int *status;
+    struct worker *workers;  // nthreads-1 of them; participant i+1
+    struct range *ranges;    // per participant; 0 is the caller
+    arena_t **arenas;        // per participant
+
+    uint32_t epoch;          // bumped to start a run
+    int remaining;           // tasks of the current run not finished
+    int stop;
+    int affinity_gen;        // bumped when worker CPUs change
 
     pthread_mutex_t mutex;
     pthread_cond_t startcond;   // used to signal the availability of work
     pthread_cond_t endcond;     // used to signal completion of all work
-
-    int end_count; // how many threads are done?
+    int nparked;                // workers waiting on startcond
+    int caller_parked;          // caller waiting on endcond
 };
 
 struct task
@@ -64,37 +115,141 @@ struct task
     void *p;
 };
 
-void *worker_thread(void *p)
+// The worker the current thread is, if any.
+static __thread const struct worker *current_worker;
+
+static inline uint64_t range_pack(uint32_t epoch, uint32_t lo, uint32_t hi)
 {
-    workerpool_t *wp = (workerpool_t*) p;
+    return ((epoch & EPOCH_MASK) << (2*RANGE_BITS)) | ((uint64_t) lo << RANGE_BITS) | hi;
+}
 
-    int cnt = 0;
+// Take the first task of participant idx's own range, or -1.
+static int range_pop(workerpool_t *wp, int idx, uint32_t epoch)
+{
+    uint64_t *word = &wp->ranges[idx].word;
+    uint64_t w = __atomic_load_n(word, __ATOMIC_ACQUIRE);
 
     while (1) {
+        uint32_t lo = (w >> RANGE_BITS) & RANGE_MASK, hi = w & RANGE_MASK;
+        if ((w >> (2*RANGE_BITS)) != (epoch & EPOCH_MASK) || lo >= hi)
+            return -1;
+
+        if (__atomic_compare_exchange_n(word, &w, range_pack(epoch, lo + 1, hi), 0,
+                                        __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE))
+            return lo;
+    }
+}
+
+// Take the back half of another participant's range, keeping all but
+// its first task in idx's own (empty) range. Returns that task, or -1
+// if there is nothing left to steal.
+static int range_steal(workerpool_t *wp, int idx, uint32_t epoch)
+{
+    for (int k = 1; k < wp->nthreads; k++) {
+        uint64_t *word = &wp->ranges[(idx + k) % wp->nthreads].word;
+        uint64_t w = __atomic_load_n(word, __ATOMIC_ACQUIRE);
+
+        while (1) {
+            uint32_t lo = (w >> RANGE_BITS) & RANGE_MASK, hi = w & RANGE_MASK;
+            if ((w >> (2*RANGE_BITS)) != (epoch & EPOCH_MASK) || lo >= hi)
+                break;
+
+            uint32_t mid = hi - (hi - lo + 1) / 2;
+            if (__atomic_compare_exchange_n(word, &w, range_pack(epoch, lo, mid), 0,
+                                            __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE)) {
+                __atomic_store_n(&wp->ranges[idx].word, range_pack(epoch, mid + 1, hi),
+                                 __ATOMIC_RELEASE);
+                return mid;
+            }
+        }
+    }
+
+    return -1;
+}
+
+// Run tasks of the given run until none are left to take.
+static void run_tasks(workerpool_t *wp, int idx, uint32_t epoch)
+{
+    while (1) {
+        int t = range_pop(wp, idx, epoch);
+        if (t < 0)
+            t = range_steal(wp, idx, epoch);
+        if (t < 0)
+            return;
+
         struct task *task;
+        zarray_get_volatile(wp->tasks, t, &task);
+        task->f(task->p);
 
-        pthread_mutex_lock(&wp->mutex);
-        while (wp->taskspos == zarray_size(wp->tasks)) {
-            wp->end_count++;
-//          printf("%"PRId64" thread %d did %d\n", utime_now(), pthread_self(), cnt);
-            pthread_cond_broadcast(&wp->endcond);
-            pthread_cond_wait(&wp->startcond, &wp->mutex);
-            cnt = 0;
-//            printf("%"PRId64" thread %d awake\n", utime_now(), pthread_self());
+        // Pairs with the caller storing caller_parked then loading
+        // remaining: both sides must be seq_cst, or each could miss
+        // the other's write and the caller would sleep forever.
+        if (__atomic_sub_fetch(&wp->remaining, 1, __ATOMIC_SEQ_CST) == 0 &&
+                __atomic_load_n(&wp->caller_parked, __ATOMIC_SEQ_CST)) {
+            pthread_mutex_lock(&wp->mutex);
+            pthread_cond_signal(&wp->endcond);
+            pthread_mutex_unlock(&wp->mutex);
         }
+    }
+}
 
-        zarray_get_volatile(wp->tasks, wp->taskspos, &task);
-        wp->taskspos++;
-        cnt++;
-        pthread_mutex_unlock(&wp->mutex);
-//        pthread_yield();
-        sched_yield();
+static void apply_affinity(struct worker *w)
+{
+    int gen = __atomic_load_n(&w->wp->affinity_gen, __ATOMIC_ACQUIRE);
+    if (gen == w->cpu_gen)
+        return;
+    w->cpu_gen = gen;
+
+#ifdef __linux__
+    cpu_set_t set;
+    CPU_ZERO(&set);
+    if (w->cpu >= 0) {
+        CPU_SET(w->cpu, &set);
+    } else {
+        for (int i = 0; i < CPU_SETSIZE; i++)
+            CPU_SET(i, &set);
+    }
+    sched_setaffinity(0, sizeof(set), &set);
+#endif
+}
+
+static void *worker_thread(void *p)
+{
+    struct worker *w = (struct worker*) p;
+    workerpool_t *wp = w->wp;
+    uint32_t seen = 0;
+
+    current_worker = w;
+
+    while (1) {
+        uint32_t epoch;
+        int spins = 0;
+
+        // spin for a while, since runs usually follow each other
+        // closely within a detection, then sleep
+        while ((epoch = __atomic_load_n(&wp->epoch, __ATOMIC_ACQUIRE)) == seen &&
+               !__atomic_load_n(&wp->stop, __ATOMIC_ACQUIRE)) {
+            if (++spins < SPIN_ITERATIONS) {
+                cpu_relax();
+                continue;
+            }
+
+            pthread_mutex_lock(&wp->mutex);
+            __atomic_add_fetch(&wp->nparked, 1, __ATOMIC_SEQ_CST);
+            while (__atomic_load_n(&wp->epoch, __ATOMIC_SEQ_CST) == seen &&
+                   !__atomic_load_n(&wp->stop, __ATOMIC_SEQ_CST))
+                pthread_cond_wait(&wp->startcond, &wp->mutex);
+            __atomic_sub_fetch(&wp->nparked, 1, __ATOMIC_SEQ_CST);
+            pthread_mutex_unlock(&wp->mutex);
+        }
 
         // we've been asked to exit.
-        if (task->f == NULL)
+        if (__atomic_load_n(&wp->stop, __ATOMIC_ACQUIRE))
             return NULL;
 
-        task->f(task->p);
+        seen = epoch;
+        apply_affinity(w);
+        run_tasks(wp, w->idx, epoch);
     }
 
     return NULL;
@@ -108,15 +263,31 @@ workerpool_t *workerpool_create(int nthreads)
     wp->nthreads = nthreads;
     wp->tasks = zarray_create(sizeof(struct task));
 
+    wp->arenas = calloc(nthreads, sizeof(arena_t*));
+    for (int i = 0; i < nthreads; i++)
+        wp->arenas[i] = arena_create();
+
     if (nthreads > 1) {
-        wp->threads = calloc(wp->nthreads, sizeof(pthread_t));
+        if (posix_memalign((void**) &wp->ranges, 64, nthreads * sizeof(struct range))) {
+            perror("posix_memalign");
+            exit(-1);
+        }
+        for (int i = 0; i < nthreads; i++)
+            wp->ranges[i].word = range_pack(0, 0, 0);
+
+        wp->workers = calloc(nthreads - 1, sizeof(struct worker));
 
         pthread_mutex_init(&wp->mutex, NULL);
         pthread_cond_init(&wp->startcond, NULL);
         pthread_cond_init(&wp->endcond, NULL);
 
-        for (int i = 0; i < nthreads; i++) {
-            int res = pthread_create(&wp->threads[i], NULL, worker_thread, wp);
+        for (int i = 0; i < nthreads - 1; i++) {
+            struct worker *w = &wp->workers[i];
+            w->wp = wp;
+            w->idx = i + 1;
+            w->cpu = -1;
+
+            int res = pthread_create(&w->thread, NULL, worker_thread, w);
             if (res != 0) {
                 perror("pthread_create");
                 exit(-1);
@@ -134,26 +305,41 @@ void workerpool_destroy(workerpool_t *wp)
 
     // force all worker threads to exit.
     if (wp->nthreads > 1) {
-        for (int i = 0; i < wp->nthreads; i++)
-            workerpool_add_task(wp, NULL, NULL);
-
         pthread_mutex_lock(&wp->mutex);
+        __atomic_store_n(&wp->stop, 1, __ATOMIC_SEQ_CST);
         pthread_cond_broadcast(&wp->startcond);
         pthread_mutex_unlock(&wp->mutex);
 
-        for (int i = 0; i < wp->nthreads; i++)
-            pthread_join(wp->threads[i], NULL);
+        for (int i = 0; i < wp->nthreads - 1; i++)
+            pthread_join(wp->workers[i].thread, NULL);
 
         pthread_mutex_destroy(&wp->mutex);
         pthread_cond_destroy(&wp->startcond);
         pthread_cond_destroy(&wp->endcond);
-        free(wp->threads);
+        free(wp->workers);
+        free(wp->ranges);
     }
 
+    for (int i = 0; i < wp->nthreads; i++)
+        arena_destroy(wp->arenas[i]);
+    free(wp->arenas);
+
     zarray_destroy(wp->tasks);
     free(wp);
 }
 
+arena_t *workerpool_get_arena(workerpool_t *wp)
+{
+    const struct worker *w = current_worker;
+    return wp->arenas[w && w->wp == wp ? w->idx : 0];
+}
+
+void workerpool_reset_arenas(workerpool_t *wp)
+{
+    for (int i = 0; i < wp->nthreads; i++)
+        arena_reset(wp->arenas[i]);
+}
+
 int workerpool_get_nthreads(workerpool_t *wp)
 {
     return wp->nthreads;
@@ -182,24 +368,94 @@ void workerpool_run_single(workerpool_t *wp)
 // runs all added tasks, waits for them to complete.
 void workerpool_run(workerpool_t *wp)
 {
-    if (wp->nthreads > 1) {
-        wp->end_count = 0;
+    int ntasks = zarray_size(wp->tasks);
+
+    // a single task is not worth waking anyone for
+    if (wp->nthreads <= 1 || ntasks <= 1 || ntasks > MAX_TASKS) {
+        workerpool_run_single(wp);
+        return;
+    }
 
+    uint32_t epoch = wp->epoch + 1;
+    for (int i = 0; i < wp->nthreads; i++) {
+        uint32_t lo = (uint64_t) ntasks * i / wp->nthreads;
+        uint32_t hi = (uint64_t) ntasks * (i + 1) / wp->nthreads;
+        __atomic_store_n(&wp->ranges[i].word, range_pack(epoch, lo, hi), __ATOMIC_RELAXED);
+    }
+    __atomic_store_n(&wp->remaining, ntasks, __ATOMIC_RELAXED);
+
+    // publishes the ranges; sleeping workers must be woken
+    __atomic_store_n(&wp->epoch, epoch, __ATOMIC_SEQ_CST);
+    if (__atomic_load_n(&wp->nparked, __ATOMIC_SEQ_CST) > 0) {
         pthread_mutex_lock(&wp->mutex);
         pthread_cond_broadcast(&wp->startcond);
+        pthread_mutex_unlock(&wp->mutex);
+    }
 
-        while (wp->end_count < wp->nthreads) {
-//            printf("caught %d\n", wp->end_count);
-            pthread_cond_wait(&wp->endcond, &wp->mutex);
+    run_tasks(wp, 0, epoch);
+
+    // wait for tasks still running elsewhere
+    int spins = 0;
+    while (__atomic_load_n(&wp->remaining, __ATOMIC_ACQUIRE) > 0) {
+        if (++spins < SPIN_ITERATIONS) {
+            cpu_relax();
+            continue;
         }
 
+        pthread_mutex_lock(&wp->mutex);
+        __atomic_store_n(&wp->caller_parked, 1, __ATOMIC_SEQ_CST);
+        while (__atomic_load_n(&wp->remaining, __ATOMIC_SEQ_CST) > 0)
+            pthread_cond_wait(&wp->endcond, &wp->mutex);
+        __atomic_store_n(&wp->caller_parked, 0, __ATOMIC_SEQ_CST);
         pthread_mutex_unlock(&wp->mutex);
+    }
 
-        wp->taskspos = 0;
+    zarray_clear(wp->tasks);
+}
 
-        zarray_clear(wp->tasks);
+int workerpool_set_cpus(workerpool_t *wp, const int *cpus, int ncpus)
+{
+#ifdef __linux__
+    if (wp->nthreads <= 1)
+        return 0;
+
+    for (int i = 0; i < wp->nthreads - 1; i++)
+        wp->workers[i].cpu = ncpus > 0 ? cpus[i % ncpus] : -1;
+
+    // applied by each worker when it next wakes up for a run
+    __atomic_add_fetch(&wp->affinity_gen, 1, __ATOMIC_RELEASE);
+    return 0;
+#else
+    return -1;
+#endif
+}
 
-    } else {
-        workerpool_run_single(wp);
+int workerpool_get_fast_cpus(int *cpus, int maxcpus)
+{
+    int nprocs = sysconf(_SC_NPROCESSORS_CONF);
+    long best = 0;
+    int n = 0;
+
+    for (int cpu = 0; cpu < nprocs; cpu++) {
+        char path[128];
+        snprintf(path, sizeof(path), "/sys/devices/system/cpu/cpu%d/cpufreq/cpuinfo_max_freq", cpu);
+
+        FILE *f = fopen(path, "r");
+        if (f == NULL)
+            continue;
+
+        long freq = 0;
+        if (fscanf(f, "%ld", &freq) != 1)
+            freq = 0;
+        fclose(f);
+
+        if (freq > best) {
+            best = freq;
+            n = 0;
+        }
+        if (freq == best && freq > 0 && n < maxcpus)
+            cpus[n++] = cpu;
     }
+
+    return n;
 }
@@ -34,17 +34,22 @@ either expressed or implied, of the Regents of The University of Michigan.
 #define _WORKERPOOL_H
 
 #include "zarray.h"
+#include "arena.h"
 
 typedef struct workerpool workerpool_t;
 
-// as a special case, if nthreads==1, no additional threads are
-// created, and workerpool_run will run synchronously.
+// nthreads counts the thread calling workerpool_run, which runs tasks
+// too, so nthreads-1 threads are created. As a special case, if
+// nthreads==1, no additional threads are created, and workerpool_run
+// will run synchronously.
 workerpool_t *workerpool_create(int nthreads);
 void workerpool_destroy(workerpool_t *wp);
 
 void workerpool_add_task(workerpool_t *wp, void (*f)(void *p), void *p);
 
-// runs all added tasks, waits for them to complete.
+// runs all added tasks, waits for them to complete. Tasks may run in
+// any order on any thread; idle threads steal queued tasks from busy
+// ones.
 void workerpool_run(workerpool_t *wp);
 
 // same as workerpool_run, except always single threaded. (mostly for debugging).
@@ -52,6 +57,28 @@ void workerpool_run_single(workerpool_t *wp);
 
 int workerpool_get_nthreads(workerpool_t *wp);
 
+// Every participant has an arena for scratch memory. This returns the
+// calling thread's: a worker's own within the tasks it runs, and the
+// caller's (participant 0) anywhere else, including in the tasks the
+// caller runs. Memory allocated by a task stays valid after the run,
+// until the arenas are reset.
+arena_t *workerpool_get_arena(workerpool_t *wp);
+
+// Reset the arenas of all participants. Must not be called during a
+// run.
+void workerpool_reset_arenas(workerpool_t *wp);
+
 int workerpool_get_nprocs();
 
+// Hint which CPUs the created threads should run on, e.g. the result
+// of workerpool_get_fast_cpus; they are assigned round robin. NULL or
+// ncpus == 0 lets them run anywhere again. Takes effect at the next
+// workerpool_run. Returns -1 if not supported on this OS.
+int workerpool_set_cpus(workerpool_t *wp, const int *cpus, int ncpus);
+
+// Store up to maxcpus CPUs with the highest maximum clock (the big
+// cores of a big.LITTLE SoC; all of them on a uniform one) in cpus.
+// Returns how many, 0 if the OS does not report clocks.
+int workerpool_get_fast_cpus(int *cpus, int maxcpus);
+
 #endif
@@ -0,0 +1,109 @@
+#include "simd.h"
+#include "yuv.h"
+
+// Tile size in output pixels before rotation. Both are even, so that
+// tiles start on chroma pairs; the tile of converted pixels is 8 KB.
+#define TILE_ROWS 32
+#define TILE_COLS 64
+
+// Scale nrows (1 or 2) output rows starting at the even row into a
+// small NV21 image: luma rows y0 and y1 and their chroma pairs vu, for
+// n output pixels starting at the even column x0.
+static void scale_rows(const uint8_t *y, int ystride, const uint8_t *vu, int vustride,
+                       int width, int height, int scale, int row, int nrows, int x0, int n,
+                       uint8_t *y0, uint8_t *y1, uint8_t *vu_out)
+{
+    int area = scale * scale;
+
+    for (int r = 0; r < nrows; r++) {
+        uint8_t *out = r ? y1 : y0;
+        const uint8_t *src = y + (row + r) * scale * ystride + x0 * scale;
+
+        // Truncated like the detector's decimation, for which scale 2
+        // has a vector kernel
+        if (scale == 2) {
+            simd_decimate2_row(src, src + ystride, out, n);
+            continue;
+        }
+
+        for (int i = 0; i < n; i++) {
+            const uint8_t *p = src + i * scale;
+            int sum = 0;
+            for (int dy = 0; dy < scale; dy++)
+                for (int dx = 0; dx < scale; dx++)
+                    sum += p[dy*ystride + dx];
+            out[i] = sum / area;
+        }
+    }
+
+    // Chroma of the 2x2 output block: the pairs under its 2*scale
+    // square of luma, clipped to the chroma plane
+    int cy0 = row / 2 * scale, cy1 = cy0 + scale;
+    if (cy1 > (height + 1) / 2)
+        cy1 = (height + 1) / 2;
+
+    for (int i = 0; i < n; i += 2) {
+        int cx0 = (x0 + i) / 2 * scale, cx1 = cx0 + scale;
+        if (cx1 > (width + 1) / 2)
+            cx1 = (width + 1) / 2;
+
+        int sv = 0, su = 0, count = 0;
+        for (int cy = cy0; cy < cy1; cy++) {
+            const uint8_t *p = vu + cy*vustride;
+            for (int cx = cx0; cx < cx1; cx++) {
+                sv += p[2*cx];
+                su += p[2*cx + 1];
+                count++;
+            }
+        }
+
+        vu_out[i] = (sv + count / 2) / count;
+        vu_out[i + 1] = (su + count / 2) / count;
+    }
+}
+
+void yuv_nv21_to_rgb_rot90(const uint8_t *y, int ystride, const uint8_t *vu, int vustride,
+                           int width, int height, int scale, uint32_t *dst, int dststride)
+{
+    int outw = width / scale, outh = height / scale;
+
+    uint32_t tile[TILE_ROWS][TILE_COLS];
+    uint8_t sy[2][TILE_COLS], svu[TILE_COLS];
+
+    for (int ty = 0; ty < outh; ty += TILE_ROWS) {
+        int th = outh - ty < TILE_ROWS ? outh - ty : TILE_ROWS;
+
+        for (int tx = 0; tx < outw; tx += TILE_COLS) {
+            int tw = outw - tx < TILE_COLS ? outw - tx : TILE_COLS;
+
+            // Convert the tile, a pair of rows per row of chroma
+            for (int r = 0; r < th; r += 2) {
+                int row = ty + r;
+                int single = (r + 1 == th);
+                const uint8_t *y0, *y1, *c;
+
+                if (scale == 1) {
+                    y0 = y + row*ystride + tx;
+                    y1 = single ? y0 : y0 + ystride;
+                    c = vu + (row >> 1)*vustride + tx;
+                } else {
+                    scale_rows(y, ystride, vu, vustride, width, height, scale, row, single ? 1 : 2,
+                               tx, tw, sy[0], sy[1], svu);
+                    y0 = sy[0];
+                    y1 = single ? sy[0] : sy[1];
+                    c = svu;
+                }
+
+                simd_nv21_to_rgb_rows(y0, y1, c, tw, tile[r], single ? tile[r] : tile[r + 1]);
+            }
+
+            // Rotate into dst: column x of the tile becomes a run of th
+            // pixels of dst row x, in reverse
+            for (int x = 0; x < tw; x++) {
+                uint32_t *out = dst + (tx + x)*dststride + (outh - ty - th);
+                for (int r = 0; r < th; r++)
+                    out[r] = tile[th - 1 - r][x];
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+#ifndef _YUV_H
+#define _YUV_H
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Convert an NV21 camera frame (a width x height Y plane and a
+// half-resolution plane of interleaved V,U pairs) to 0xAARRGGBB pixels
+// rotated 90 degrees clockwise, i.e. to portrait orientation, and
+// scaled down by an integer factor.
+//
+// The scaled frame is width/scale x height/scale; its pixel (x, y)
+// goes to dst[x*dststride + height/scale - 1 - y], so dst has
+// width/scale rows of height/scale pixels. With scale 1 the output is
+// the same as converting each pixel on its own. With a larger scale,
+// each output pixel is converted from the mean luma of its scale x
+// scale block, rounded down, and the mean chroma of its 2x2 output
+// block.
+//
+// The frame is converted in tiles that fit in L1 cache, so the
+// rotated stores stay within a few cache lines per row. ystride and
+// vustride are in bytes, dststride in pixels.
+void yuv_nv21_to_rgb_rot90(const uint8_t *y, int ystride, const uint8_t *vu, int vustride,
+                           int width, int height, int scale, uint32_t *dst, int dststride);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
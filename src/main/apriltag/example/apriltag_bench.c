@@ -0,0 +1,356 @@
+// Offline benchmark: replays a corpus of PNM/PGM frames through the
+// detector for every combination of the swept parameters, and writes
+// throughput, per-stage timings and detection counts as JSON.
+//
+// apriltag_bench [options] <frames or directories of frames>
+//
+// e.g. apriltag_bench -x 1,2,4 -t 1,4 -i 5 -o bench.json frames/
+
+#include <dirent.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag.h"
+#include "apriltag_stats.h"
+#include "tag36h11.h"
+#include "tag36h10.h"
+#include "tag36artoolkit.h"
+#include "tag25h9.h"
+#include "tag25h7.h"
+#include "tag16h5.h"
+
+#include "common/getopt.h"
+#include "common/image_u8.h"
+#include "common/string_util.h"
+#include "common/time_util.h"
+#include "common/zarray.h"
+
+static const struct {
+    const char *name;
+    apriltag_family_t *(*create)();
+    void (*destroy)(apriltag_family_t *tf);
+} family_table[] = {
+    { "tag36h11", tag36h11_create, tag36h11_destroy },
+    { "tag36h10", tag36h10_create, tag36h10_destroy },
+    { "tag36artoolkit", tag36artoolkit_create, tag36artoolkit_destroy },
+    { "tag25h9", tag25h9_create, tag25h9_destroy },
+    { "tag25h7", tag25h7_create, tag25h7_destroy },
+    { "tag16h5", tag16h5_create, tag16h5_destroy },
+};
+
+static int family_index(const char *name)
+{
+    for (int i = 0; i < sizeof(family_table)/sizeof(family_table[0]); i++) {
+        if (!strcmp(name, family_table[i].name))
+            return i;
+    }
+    return -1;
+}
+
+static int is_frame_file(const char *path)
+{
+    return str_ends_with(path, ".pnm") || str_ends_with(path, ".PNM") ||
+        str_ends_with(path, ".pgm") || str_ends_with(path, ".PGM");
+}
+
+static int compare_strings(const void *a, const void *b)
+{
+    return strcmp(*(char* const*) a, *(char* const*) b);
+}
+
+// Append the frame files named by path to paths: path itself, or the
+// frame files in directory path in name order.
+static void add_frame_paths(zarray_t *paths, const char *path)
+{
+    DIR *dir = opendir(path);
+    if (dir == NULL) {
+        char *p = strdup(path);
+        zarray_add(paths, &p);
+        return;
+    }
+
+    zarray_t *entries = zarray_create(sizeof(char*));
+    struct dirent *de;
+    while ((de = readdir(dir)) != NULL) {
+        if (!is_frame_file(de->d_name))
+            continue;
+        char *p = sprintf_alloc("%s/%s", path, de->d_name);
+        zarray_add(entries, &p);
+    }
+    closedir(dir);
+
+    zarray_sort(entries, compare_strings);
+    for (int i = 0; i < zarray_size(entries); i++) {
+        char *p;
+        zarray_get(entries, i, &p);
+        zarray_add(paths, &p);
+    }
+    zarray_destroy(entries);
+}
+
+// Parse a comma-separated list of numbers. Returns the count, or -1
+// if an entry is not a number.
+static int parse_doubles(const char *s, double *vals, int maxvals)
+{
+    zarray_t *toks = str_split(s, ",");
+    int n = 0;
+    for (int i = 0; i < zarray_size(toks) && n < maxvals; i++) {
+        char *tok, *end;
+        zarray_get(toks, i, &tok);
+        if (strlen(tok) == 0)
+            continue;
+        vals[n++] = strtod(tok, &end);
+        if (*end != 0) {
+            n = -1;
+            break;
+        }
+    }
+    str_split_destroy(toks);
+    return n;
+}
+
+static void print_json_string(FILE *f, const char *s)
+{
+    fputc('"', f);
+    for (; *s; s++) {
+        if (*s == '"' || *s == '\\')
+            fprintf(f, "\\%c", *s);
+        else if ((unsigned char) *s < 0x20)
+            fprintf(f, "\\u%04x", *s);
+        else
+            fputc(*s, f);
+    }
+    fputc('"', f);
+}
+
+static int compare_int64(const void *a, const void *b)
+{
+    int64_t x = *(const int64_t*) a, y = *(const int64_t*) b;
+    return x < y ? -1 : (x > y);
+}
+
+// nearest-rank percentile of n sorted values
+static int64_t percentile(const int64_t *sorted, int n, double percent)
+{
+    int idx = (int) ceil(percent / 100 * n) - 1;
+    if (idx < 0)
+        idx = 0;
+    if (idx > n - 1)
+        idx = n - 1;
+    return sorted[idx];
+}
+
+#define MAX_SWEEP 16
+
+int main(int argc, char *argv[])
+{
+    getopt_t *getopt = getopt_create();
+
+    getopt_add_bool(getopt, 'h', "help", 0, "Show this help");
+    getopt_add_string(getopt, 'f', "family", "tag36h11", "Tag families to sweep, comma-separated");
+    getopt_add_string(getopt, 'x', "decimate", "2", "Decimation factors to sweep, comma-separated");
+    getopt_add_string(getopt, 'b', "blur", "0", "Blur sigmas to sweep, comma-separated");
+    getopt_add_string(getopt, 't', "threads", "1", "Thread counts to sweep, comma-separated");
+    getopt_add_int(getopt, 'p', "pyramid", "1", "Search for quads on this many pyramid levels");
+    getopt_add_int(getopt, 'e', "errorbits", "2", "Bit errors to correct");
+    getopt_add_int(getopt, 'i', "iters", "3", "Replay the corpus this many times per configuration");
+    getopt_add_int(getopt, 'w', "warmup", "1", "Untimed passes over the corpus per configuration");
+    getopt_add_string(getopt, 'o', "output", "", "Write JSON here instead of to stdout");
+
+    if (!getopt_parse(getopt, argc, argv, 1) || getopt_get_bool(getopt, "help")) {
+        printf("Usage: %s [options] <frames or directories of frames>\n", argv[0]);
+        getopt_do_usage(getopt);
+        exit(0);
+    }
+
+    double decimates[MAX_SWEEP], sigmas[MAX_SWEEP], threads[MAX_SWEEP];
+    int ndecimates = parse_doubles(getopt_get_string(getopt, "decimate"), decimates, MAX_SWEEP);
+    int nsigmas = parse_doubles(getopt_get_string(getopt, "blur"), sigmas, MAX_SWEEP);
+    int nthreads = parse_doubles(getopt_get_string(getopt, "threads"), threads, MAX_SWEEP);
+    if (ndecimates <= 0 || nsigmas <= 0 || nthreads <= 0) {
+        fprintf(stderr, "Invalid sweep list\n");
+        exit(-1);
+    }
+
+    zarray_t *families = str_split(getopt_get_string(getopt, "family"), ",");
+    for (int i = 0; i < zarray_size(families); i++) {
+        char *name;
+        zarray_get(families, i, &name);
+        if (family_index(name) < 0) {
+            fprintf(stderr, "Unrecognized tag family name: %s\n", name);
+            exit(-1);
+        }
+    }
+
+    int pyramid_levels = getopt_get_int(getopt, "pyramid");
+    int errorbits = getopt_get_int(getopt, "errorbits");
+    int iters = getopt_get_int(getopt, "iters");
+    int warmup = getopt_get_int(getopt, "warmup");
+    if (iters < 1)
+        iters = 1;
+
+    // Load the whole corpus up front so that disk I/O is not timed.
+    zarray_t *paths = zarray_create(sizeof(char*));
+    const zarray_t *inputs = getopt_get_extra_args(getopt);
+    for (int i = 0; i < zarray_size(inputs); i++) {
+        char *path;
+        zarray_get(inputs, i, &path);
+        add_frame_paths(paths, path);
+    }
+
+    zarray_t *frames = zarray_create(sizeof(image_u8_t*));
+    for (int i = 0; i < zarray_size(paths); i++) {
+        char *path;
+        zarray_get(paths, i, &path);
+        image_u8_t *im = image_u8_create_from_pnm(path);
+        if (im == NULL) {
+            fprintf(stderr, "couldn't load %s\n", path);
+            exit(-1);
+        }
+        zarray_add(frames, &im);
+    }
+
+    if (zarray_size(frames) == 0) {
+        fprintf(stderr, "No frames given\n");
+        exit(-1);
+    }
+
+    FILE *f = stdout;
+    const char *output = getopt_get_string(getopt, "output");
+    if (strlen(output) > 0) {
+        f = fopen(output, "w");
+        if (f == NULL) {
+            fprintf(stderr, "couldn't open %s\n", output);
+            exit(-1);
+        }
+    }
+
+    int nframes = zarray_size(frames) * iters;
+    int64_t *latency_ns = calloc(nframes, sizeof(int64_t));
+
+    fprintf(f, "{\n  \"frames\": [");
+    for (int i = 0; i < zarray_size(paths); i++) {
+        char *path;
+        zarray_get(paths, i, &path);
+        fprintf(f, "%s\n    ", i ? "," : "");
+        print_json_string(f, path);
+    }
+    fprintf(f, "\n  ],\n  \"iterations\": %d,\n  \"runs\": [", iters);
+
+    int nruns = 0;
+    for (int fi = 0; fi < zarray_size(families); fi++) {
+        char *famname;
+        zarray_get(families, fi, &famname);
+        int idx = family_index(famname);
+
+        apriltag_family_t *tf = family_table[idx].create();
+
+        for (int di = 0; di < ndecimates; di++) {
+            for (int si = 0; si < nsigmas; si++) {
+                for (int ti = 0; ti < nthreads; ti++) {
+                    apriltag_detector_t *td = apriltag_detector_create();
+                    apriltag_detector_add_family_bits(td, tf, errorbits);
+                    td->quad_decimate = decimates[di];
+                    td->quad_sigma = sigmas[si];
+                    td->pyramid_levels = pyramid_levels;
+                    td->nthreads = threads[ti] >= 1 ? (int) threads[ti] : 1;
+
+                    fprintf(stderr, "%s decimate %g pyramid %d blur %g threads %d\n",
+                            famname, td->quad_decimate, td->pyramid_levels, td->quad_sigma, td->nthreads);
+
+                    for (int w = 0; w < warmup; w++) {
+                        for (int i = 0; i < zarray_size(frames); i++) {
+                            image_u8_t *im;
+                            zarray_get(frames, i, &im);
+                            apriltag_detections_destroy(apriltag_detector_detect(td, im));
+                        }
+                    }
+
+                    apriltag_stats_t total;
+                    apriltag_stats_clear(&total);
+
+                    int n = 0;
+                    int64_t utime0 = utime_now();
+                    for (int iter = 0; iter < iters; iter++) {
+                        for (int i = 0; i < zarray_size(frames); i++) {
+                            image_u8_t *im;
+                            zarray_get(frames, i, &im);
+
+                            int64_t t0 = utime_now();
+                            zarray_t *detections = apriltag_detector_detect(td, im);
+                            latency_ns[n++] = (utime_now() - t0) * 1000;
+
+                            apriltag_stats_add_profile(&total, td->tp);
+                            total.nquads += td->nquads;
+                            total.ndecoded += td->ndecoded;
+                            apriltag_stats_add_rejected(&total, td->nrejected);
+                            total.ndetections += zarray_size(detections);
+
+                            apriltag_detections_destroy(detections);
+                        }
+                    }
+                    double elapsed = (utime_now() - utime0) / 1.0E6;
+
+                    qsort(latency_ns, n, sizeof(int64_t), compare_int64);
+                    int64_t sum = 0;
+                    for (int i = 0; i < n; i++)
+                        sum += latency_ns[i];
+
+                    fprintf(f, "%s\n    {\n", nruns ? "," : "");
+                    fprintf(f, "      \"family\": ");
+                    print_json_string(f, famname);
+                    fprintf(f, ",\n      \"decimate\": %g,\n      \"pyramid_levels\": %d,\n      \"sigma\": %g,\n      \"nthreads\": %d,\n",
+                            td->quad_decimate, td->pyramid_levels, td->quad_sigma, td->nthreads);
+                    fprintf(f, "      \"frames\": %d,\n      \"fps\": %.3f,\n", n, n / elapsed);
+                    fprintf(f, "      \"latency_ms\": { \"mean\": %.4f, \"p50\": %.4f, \"p95\": %.4f, \"p99\": %.4f, \"max\": %.4f },\n",
+                            sum / 1.0E6 / n, percentile(latency_ns, n, 50) / 1.0E6,
+                            percentile(latency_ns, n, 95) / 1.0E6, percentile(latency_ns, n, 99) / 1.0E6,
+                            latency_ns[n-1] / 1.0E6);
+                    fprintf(f, "      \"stage_ms\": {");
+                    for (int s = 0; s < APRILTAG_NSTAGES; s++)
+                        fprintf(f, "%s \"%s\": %.4f", s ? "," : "", apriltag_stage_names[s],
+                                total.stage_ns[s] / 1.0E6 / n);
+                    fprintf(f, " },\n");
+                    fprintf(f, "      \"per_frame\": { \"quads\": %.3f, \"decoded\": %.3f, \"detections\": %.3f },\n",
+                            (double) total.nquads / n, (double) total.ndecoded / n,
+                            (double) total.ndetections / n);
+                    fprintf(f, "      \"rejected_per_frame\": {");
+                    for (int r = 0; r < APRILTAG_NREJECTS; r++)
+                        fprintf(f, "%s \"%s\": %.3f", r ? "," : "", apriltag_reject_names[r],
+                                (double) total.nrejected[r] / n);
+                    fprintf(f, " }\n    }");
+                    fflush(f);
+                    nruns++;
+
+                    apriltag_detector_destroy(td);
+                }
+            }
+        }
+
+        family_table[idx].destroy(tf);
+    }
+
+    fprintf(f, "\n  ]\n}\n");
+    if (f != stdout)
+        fclose(f);
+
+    free(latency_ns);
+    for (int i = 0; i < zarray_size(frames); i++) {
+        image_u8_t *im;
+        zarray_get(frames, i, &im);
+        image_u8_destroy(im);
+    }
+    zarray_destroy(frames);
+    for (int i = 0; i < zarray_size(paths); i++) {
+        char *path;
+        zarray_get(paths, i, &path);
+        free(path);
+    }
+    zarray_destroy(paths);
+    str_split_destroy(families);
+    getopt_destroy(getopt);
+
+    return 0;
+}
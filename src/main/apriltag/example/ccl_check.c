@@ -0,0 +1,163 @@
+// Checks the run-length connected components of apriltag_quad_thresh
+// against the per-pixel union-find they replaced, copied here: on
+// random thresholded images of awkward sizes, split into bands for 1 to
+// 7 threads, every pixel that is not 127 must get the same component.
+// Components are compared by their labels, numbered in order of their
+// first pixel. Exits non-zero on the first mismatch.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag.h"
+#include "common/image_u8.h"
+#include "common/unionfind.h"
+#include "common/workerpool.h"
+
+// From apriltag_quad_thresh.c, which does not export it in a header
+uint32_t *connected_components(apriltag_detector_t *td, image_u8_t *threshim, uint32_t *ncomponents);
+
+#define DO_UNIONFIND(dx, dy) if (im->buf[y*s + dy*s + x + dx] == v) unionfind_connect(uf, y*w + x, y*w + dy*w + x + dx);
+
+static void do_unionfind_line(unionfind_t *uf, image_u8_t *im, int h, int w, int s, int y)
+{
+    for (int x = 1; x < w - 1; x++) {
+        uint8_t v = im->buf[y*s + x];
+
+        if (v == 127)
+            continue;
+
+        // (dx,dy) pairs for 8 connectivity:
+        //          (REFERENCE) (1, 0)
+        // (-1, 1)    (0, 1)    (1, 1)
+        //
+        DO_UNIONFIND(1, 0);
+        DO_UNIONFIND(0, 1);
+        if (v == 255) {
+            DO_UNIONFIND(-1, 1);
+            DO_UNIONFIND(1, 1);
+        }
+    }
+}
+#undef DO_UNIONFIND
+
+// The components of im as the union-find over pixels found them,
+// numbered in order of their first pixel.
+static uint32_t reference(image_u8_t *im, uint32_t *labels)
+{
+    int w = im->width, h = im->height;
+    unionfind_t *uf = unionfind_create(w * h);
+
+    for (int y = 0; y < h - 1; y++)
+        do_unionfind_line(uf, im, h, w, im->stride, y);
+
+    uint32_t *rep_label = malloc(sizeof(uint32_t) * w * h);
+    memset(rep_label, 0xff, sizeof(uint32_t) * w * h);
+
+    uint32_t ncomponents = 0;
+    for (int y = 0; y < h; y++) {
+        for (int x = 0; x < w; x++) {
+            if (im->buf[y*im->stride + x] == 127)
+                continue;
+
+            uint32_t rep = unionfind_get_representative(uf, y*w + x);
+            if (rep_label[rep] == UINT32_MAX)
+                rep_label[rep] = ncomponents++;
+            labels[y*w + x] = rep_label[rep];
+        }
+    }
+
+    free(rep_label);
+    unionfind_destroy(uf);
+    return ncomponents;
+}
+
+// Mode 0 is noise, mostly single-pixel runs; mode 1 blocks of black
+// and white between bands of 127, with noise; mode 2 long diagonal
+// stripes with a few 127 holes.
+static void fill_random(image_u8_t *im, int mode)
+{
+    static const uint8_t values[] = { 0, 127, 255 };
+
+    for (int y = 0; y < im->height; y++) {
+        for (int x = 0; x < im->width; x++) {
+            int v;
+            switch (mode) {
+                case 0:
+                    v = values[rand() % 3];
+                    break;
+                case 1:
+                    v = ((x / 5 + y / 3) % 3 == 0) ? 127 : (((x / 7) ^ (y / 4)) & 1) * 255;
+                    if (rand() % 20 == 0)
+                        v = values[rand() % 3];
+                    break;
+                default:
+                    v = ((x + y) / 9) & 1 ? 255 : 0;
+                    if (rand() % 50 == 0)
+                        v = 127;
+                    break;
+            }
+            im->buf[y*im->stride + x] = v;
+        }
+    }
+}
+
+int main(int argc, char *argv[])
+{
+    const int sizes[][2] = { { 1, 1 }, { 1, 9 }, { 9, 1 }, { 2, 2 }, { 3, 17 }, { 9, 9 },
+                             { 10, 40 }, { 17, 5 }, { 64, 64 }, { 65, 33 }, { 320, 240 },
+                             { 641, 480 } };
+    const int nthreads[] = { 1, 2, 4, 7 };
+    int errors = 0;
+
+    srand(1);
+
+    for (int t = 0; t < sizeof(nthreads)/sizeof(nthreads[0]) && !errors; t++) {
+        apriltag_detector_t *td = apriltag_detector_create();
+        td->nthreads = nthreads[t];
+
+        // as apriltag_detector_detect would create it
+        td->wp = workerpool_create(td->nthreads);
+
+        for (int i = 0; i < sizeof(sizes)/sizeof(sizes[0]) && !errors; i++) {
+            int w = sizes[i][0], h = sizes[i][1];
+            image_u8_t *im = image_u8_create(w, h);
+            uint32_t *expect = malloc(sizeof(uint32_t) * w * h);
+
+            for (int mode = 0; mode < 3 && !errors; mode++) {
+                fill_random(im, mode);
+
+                uint32_t nexpect = reference(im, expect);
+                uint32_t ncomponents;
+                uint32_t *labels = connected_components(td, im, &ncomponents);
+
+                if (ncomponents != nexpect) {
+                    printf("FAIL %dx%d mode %d, %d threads: %u components, reference %u\n",
+                           w, h, mode, td->nthreads, ncomponents, nexpect);
+                    errors++;
+                }
+
+                for (int y = 0; y < h && !errors; y++) {
+                    for (int x = 0; x < w; x++) {
+                        if (im->buf[y*im->stride + x] != 127 && labels[y*w + x] != expect[y*w + x]) {
+                            printf("FAIL %dx%d mode %d, %d threads: pixel (%d, %d) in component %u, reference %u\n",
+                                   w, h, mode, td->nthreads, x, y, labels[y*w + x], expect[y*w + x]);
+                            errors++;
+                            break;
+                        }
+                    }
+                }
+
+                workerpool_reset_arenas(td->wp);
+            }
+
+            free(expect);
+            image_u8_destroy(im);
+        }
+
+        apriltag_detector_destroy(td);
+    }
+
+    printf("%s\n", errors ? "FAIL" : "OK");
+    return errors ? 1 : 0;
+}
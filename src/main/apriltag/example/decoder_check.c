@@ -0,0 +1,166 @@
+// Checks that every decoder strategy returns the same id, hamming
+// distance and rotation for every tag family, on codewords with up to
+// maxhamming+1 bit errors in random rotations and on random words, and
+// reports what each strategy costs to build, to query and to keep.
+// Exits non-zero on the first mismatch.
+
+#include <stdio.h>
+#include <stdlib.h>
+
+#include "apriltag.h"
+#include "apriltag_decoder.h"
+#include "tag16h5.h"
+#include "tag25h7.h"
+#include "tag25h9.h"
+#include "tag36artoolkit.h"
+#include "tag36h10.h"
+#include "tag36h11.h"
+#include "common/time_util.h"
+
+#define NQUERIES 20000
+#define MAX_HAMMING 5
+
+static const char *type_names[] = { "auto", "table", "scan", "mih" };
+
+struct family
+{
+    const char *name;
+    apriltag_family_t *(*create)();
+    void (*destroy)(apriltag_family_t *tf);
+};
+
+static const struct family families[] = {
+    { "tag36h11", tag36h11_create, tag36h11_destroy },
+    { "tag36h10", tag36h10_create, tag36h10_destroy },
+    { "tag36artoolkit", tag36artoolkit_create, tag36artoolkit_destroy },
+    { "tag25h9", tag25h9_create, tag25h9_destroy },
+    { "tag25h7", tag25h7_create, tag25h7_destroy },
+    { "tag16h5", tag16h5_create, tag16h5_destroy },
+};
+
+struct result
+{
+    int found, id, hamming, rotation;
+};
+
+static uint64_t rotate90(uint64_t w, int d)
+{
+    uint64_t wr = 0;
+    for (int r = d-1; r >= 0; r--) {
+        for (int c = 0; c < d; c++) {
+            wr <<= 1;
+            if (w & (1ULL << (r + d*c)))
+                wr |= 1;
+        }
+    }
+    return wr;
+}
+
+static uint64_t random_bits()
+{
+    return ((uint64_t) rand() << 62) ^ ((uint64_t) rand() << 31) ^ rand();
+}
+
+// Half the queries are a code in a random rotation with up to
+// maxhamming+1 flipped bits; the rest are random words.
+static uint64_t *make_queries(const apriltag_family_t *tf, int maxhamming, int n)
+{
+    int nbits = tf->d * tf->d;
+    uint64_t mask = nbits == 64 ? ~0ULL : (1ULL << nbits) - 1;
+    uint64_t *queries = malloc(n * sizeof(uint64_t));
+
+    for (int q = 0; q < n; q++) {
+        if (q & 1) {
+            queries[q] = random_bits() & mask;
+            continue;
+        }
+
+        uint64_t w = tf->codes[rand() % tf->ncodes];
+        for (int r = rand() % 4; r > 0; r--)
+            w = rotate90(w, tf->d);
+        for (int e = rand() % (maxhamming + 2); e > 0; e--)
+            w ^= 1ULL << (rand() % nbits);
+        queries[q] = w;
+    }
+
+    return queries;
+}
+
+static int check_family(const struct family *f, int maxhamming)
+{
+    apriltag_family_t *tf = f->create();
+    uint64_t *queries = make_queries(tf, maxhamming, NQUERIES);
+    struct result *expected = calloc(NQUERIES, sizeof(struct result));
+    int errors = 0;
+
+    for (int type = APRILTAG_DECODER_TABLE; type <= APRILTAG_DECODER_MIH; type++) {
+        if (type == APRILTAG_DECODER_TABLE && maxhamming > 3)
+            continue;
+
+        int64_t t0 = utime_now();
+        apriltag_decoder_t *dec = apriltag_decoder_create(tf, type, maxhamming);
+        int64_t t1 = utime_now();
+
+        int nfound = 0;
+        for (int q = 0; q < NQUERIES; q++) {
+            struct result r = { 0, -1, -1, -1 };
+            r.found = dec->decode(dec, queries[q], &r.id, &r.hamming, &r.rotation);
+            nfound += r.found;
+
+            // the first strategy tried is the reference
+            if (type == APRILTAG_DECODER_TABLE || (maxhamming > 3 && type == APRILTAG_DECODER_SCAN)) {
+                expected[q] = r;
+                continue;
+            }
+
+            struct result *e = &expected[q];
+            if (r.found != e->found ||
+                    (r.found && (r.id != e->id || r.hamming != e->hamming || r.rotation != e->rotation))) {
+                printf("MISMATCH %s h%d %s query %016llx: %d/%d/%d/%d, expected %d/%d/%d/%d\n",
+                       f->name, maxhamming, type_names[type], (unsigned long long) queries[q],
+                       r.found, r.id, r.hamming, r.rotation,
+                       e->found, e->id, e->hamming, e->rotation);
+                errors++;
+                break;
+            }
+        }
+
+        // time a second pass, now that caches are warm
+        int64_t t2 = utime_now();
+        volatile int sink = 0;
+        for (int q = 0; q < NQUERIES; q++) {
+            int id, hamming, rotation;
+            sink += dec->decode(dec, queries[q], &id, &hamming, &rotation);
+        }
+        int64_t t3 = utime_now();
+
+        printf("%-15s h%d %-6s build %8.2f ms  lookup %7.1f ns  memory %10zu B  found %d\n",
+               f->name, maxhamming, type_names[type], (t1 - t0) / 1000.0,
+               (t3 - t2) * 1000.0 / NQUERIES, dec->memory, nfound);
+
+        apriltag_decoder_destroy(dec);
+        if (errors)
+            break;
+    }
+
+    free(expected);
+    free(queries);
+    f->destroy(tf);
+    return errors;
+}
+
+int main(int argc, char *argv[])
+{
+    srand(1);
+
+    int nfamilies = sizeof(families) / sizeof(families[0]);
+    for (int i = 0; i < nfamilies; i++) {
+        for (int maxhamming = 0; maxhamming <= MAX_HAMMING; maxhamming++) {
+            if (check_family(&families[i], maxhamming))
+                return 1;
+        }
+    }
+
+    printf("OK\n");
+    return 0;
+}
@@ -0,0 +1,178 @@
+// Checks that image_u8_gaussian_filter gives exactly the bytes of the
+// path it replaced: a copy blurred in place with image_u8_convolve_2D
+// and, to sharpen, 2*src - blur clamped. That convolution is copied
+// here, as it read before its row on sides of ksz/2 pixels or fewer.
+// Covers the sigmas and kernel sizes preprocess_level uses, images from
+// 1x1 up to 1280x720, in place, into a second image and in bands on a
+// workerpool. Exits non-zero on the first mismatch.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "common/image_u8.h"
+#include "common/workerpool.h"
+
+// The kernel image_u8_gaussian_blur has always built
+static void gaussian_kernel(double sigma, int ksz, uint8_t *k)
+{
+    double dk[ksz], acc = 0;
+
+    for (int i = 0; i < ksz; i++) {
+        int x = -ksz/2 + i;
+        dk[i] = exp(-.5*(x / sigma)*(x / sigma));
+        acc += dk[i];
+    }
+
+    for (int i = 0; i < ksz; i++)
+        k[i] = dk[i] / acc * 255;
+}
+
+// image_u8.c's convolve(), but keeping all of a row too short for the
+// kernel instead of reading before it
+static void convolve(const uint8_t *x, uint8_t *y, int sz, const uint8_t *k, int ksz)
+{
+    for (int i = 0; i < ksz/2 && i < sz; i++)
+        y[i] = x[i];
+
+    for (int i = 0; i < sz - ksz; i++) {
+        uint32_t acc = 0;
+
+        for (int j = 0; j < ksz; j++)
+            acc += k[j]*x[i+j];
+
+        y[ksz/2 + i] = acc >> 8;
+    }
+
+    for (int i = sz - ksz + ksz/2 > 0 ? sz - ksz + ksz/2 : 0; i < sz; i++)
+        y[i] = x[i];
+}
+
+// image_u8_convolve_2D with that convolve()
+static void convolve_2D(image_u8_t *im, const uint8_t *k, int ksz)
+{
+    for (int y = 0; y < im->height; y++) {
+        uint8_t x[im->width];
+        memcpy(x, &im->buf[y*im->stride], im->width);
+
+        convolve(x, &im->buf[y*im->stride], im->width, k, ksz);
+    }
+
+    for (int x = 0; x < im->width; x++) {
+        uint8_t xb[im->height];
+        uint8_t yb[im->height];
+
+        for (int y = 0; y < im->height; y++)
+            xb[y] = im->buf[y*im->stride + x];
+
+        convolve(xb, yb, im->height, k, ksz);
+
+        for (int y = 0; y < im->height; y++)
+            im->buf[y*im->stride + x] = yb[y];
+    }
+}
+
+static void reference(const image_u8_t *src, image_u8_t *dst, double sigma, int ksz, int sharpen)
+{
+    uint8_t k[ksz];
+    gaussian_kernel(sigma, ksz, k);
+
+    image_u8_t *blur = image_u8_copy(src);
+    convolve_2D(blur, k, ksz);
+
+    for (int y = 0; y < src->height; y++) {
+        for (int x = 0; x < src->width; x++) {
+            int v = blur->buf[y*blur->stride + x];
+            if (sharpen) {
+                v = 2*src->buf[y*src->stride + x] - v;
+                v = v < 0 ? 0 : (v > 255 ? 255 : v);
+            }
+            dst->buf[y*dst->stride + x] = v;
+        }
+    }
+
+    image_u8_destroy(blur);
+}
+
+static void fill_random(image_u8_t *im)
+{
+    for (int y = 0; y < im->height; y++) {
+        for (int x = 0; x < im->width; x++) {
+            // edges give sharpening something to clamp
+            int v = ((x / 11 + y / 5) & 1) * 200 + rand() % 56;
+            im->buf[y*im->stride + x] = v;
+        }
+    }
+}
+
+static int check(const char *what, const image_u8_t *a, const image_u8_t *b,
+                 double sigma, int ksz, int sharpen)
+{
+    for (int y = 0; y < a->height; y++) {
+        if (memcmp(&a->buf[y*a->stride], &b->buf[y*b->stride], a->width)) {
+            printf("FAIL %s %dx%d sigma %.1f ksz %d %s: row %d differs\n", what,
+                   a->width, a->height, sigma, ksz, sharpen ? "sharpen" : "blur", y);
+            return 1;
+        }
+    }
+    return 0;
+}
+
+int main(int argc, char *argv[])
+{
+    const int sizes[][2] = { { 1, 1 }, { 2, 9 }, { 7, 3 }, { 13, 13 }, { 31, 200 },
+                             { 200, 31 }, { 320, 240 }, { 641, 479 }, { 1280, 720 } };
+    const double sigmas[] = { 0.8, 1.0, 1.5, 2.0, 2.5, 3.0 };
+    workerpool_t *wp = workerpool_create(4);
+    int errors = 0;
+
+    srand(1);
+
+    for (int i = 0; i < sizeof(sizes)/sizeof(sizes[0]); i++) {
+        int w = sizes[i][0], h = sizes[i][1];
+        image_u8_t *src = image_u8_create(w, h);
+        image_u8_t *expect = image_u8_create(w, h);
+        image_u8_t *dst = image_u8_create(w, h);
+        fill_random(src);
+
+        for (int j = 0; j < sizeof(sigmas)/sizeof(sigmas[0]); j++) {
+            // as preprocess_level picks it
+            int ksz = 4 * sigmas[j];
+            if ((ksz & 1) == 0)
+                ksz++;
+
+            for (int sharpen = 0; sharpen <= 1; sharpen++) {
+                reference(src, expect, sigmas[j], ksz, sharpen);
+
+                image_u8_gaussian_filter(src, dst, sigmas[j], ksz, sharpen, NULL);
+                errors += check("serial", expect, dst, sigmas[j], ksz, sharpen);
+
+                memset(dst->buf, 0, dst->stride * dst->height);
+                image_u8_gaussian_filter(src, dst, sigmas[j], ksz, sharpen, wp);
+                errors += check("workerpool", expect, dst, sigmas[j], ksz, sharpen);
+
+                image_u8_t *copy = image_u8_copy(src);
+                image_u8_gaussian_filter(copy, copy, sigmas[j], ksz, sharpen, NULL);
+                errors += check("in place", expect, copy, sigmas[j], ksz, sharpen);
+                image_u8_destroy(copy);
+
+                if (errors)
+                    goto done;
+            }
+        }
+
+      done:
+        image_u8_destroy(src);
+        image_u8_destroy(expect);
+        image_u8_destroy(dst);
+
+        if (errors)
+            break;
+    }
+
+    workerpool_destroy(wp);
+
+    printf("%s\n", errors ? "FAIL" : "OK");
+    return errors ? 1 : 0;
+}
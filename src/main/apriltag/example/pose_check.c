@@ -0,0 +1,163 @@
+// Checks apriltag_estimate_pose on synthetic views of a tag: without
+// noise the recovered pose must match the true one, and with noisy
+// corners the refinement must never increase the reprojection error.
+// Also reports the cost per tag, next to homography_to_pose for
+// reference. Exits non-zero on the first failure.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+
+#include "apriltag.h"
+#include "apriltag_pose.h"
+#include "common/homography.h"
+#include "common/time_util.h"
+
+#define NTRIALS 2000
+#define NTIMING 20000
+
+static double uniform(double lo, double hi)
+{
+    return lo + (hi - lo) * rand() / (double) RAND_MAX;
+}
+
+static double gaussian()
+{
+    double u = uniform(1e-12, 1), v = uniform(0, 1);
+    return sqrt(-2 * log(u)) * cos(2 * M_PI * v);
+}
+
+// A random rotation tilted at most max_tilt from facing the camera
+static void random_rotation(double max_tilt, double *R)
+{
+    double yaw = uniform(-M_PI, M_PI);
+    double tilt = uniform(0, max_tilt), dir = uniform(-M_PI, M_PI);
+
+    // spin about z, then tilt about an axis in the xy plane
+    double ax = cos(dir), ay = sin(dir);
+    double c = cos(tilt), s = sin(tilt);
+    double T[9] = { c + ax*ax*(1-c), ax*ay*(1-c),     ay*s,
+                    ax*ay*(1-c),     c + ay*ay*(1-c), -ax*s,
+                    -ay*s,           ax*s,            c };
+    double Z[9] = { cos(yaw), -sin(yaw), 0,
+                    sin(yaw),  cos(yaw), 0,
+                    0,         0,        1 };
+
+    for (int i = 0; i < 3; i++)
+        for (int j = 0; j < 3; j++)
+            R[3*i+j] = T[3*i+0]*Z[j] + T[3*i+1]*Z[3+j] + T[3*i+2]*Z[6+j];
+}
+
+// Fill in the corners and homography of det for a tag at pose, as
+// the detector would, with gaussian corner noise of sigma pixels.
+static void make_detection(const apriltag_pose_params_t *params, const apriltag_pose_t *pose,
+                           double sigma, apriltag_detection_t *det)
+{
+    zarray_t *correspondences = zarray_create(sizeof(float[4]));
+
+    for (int i = 0; i < 4; i++) {
+        double x = (i == 1 || i == 2) ? 1 : -1;
+        double y = (i < 2) ? 1 : -1;
+        double X[3] = { x * params->tagsize / 2, y * params->tagsize / 2, 0 };
+
+        double P[3];
+        for (int k = 0; k < 3; k++)
+            P[k] = pose->R[3*k+0]*X[0] + pose->R[3*k+1]*X[1] + pose->t[k];
+
+        det->p[i][0] = params->fx * P[0] / P[2] + params->cx + sigma * gaussian();
+        det->p[i][1] = params->fy * P[1] / P[2] + params->cy + sigma * gaussian();
+
+        float corr[4] = { x, y, det->p[i][0], det->p[i][1] };
+        zarray_add(correspondences, &corr);
+    }
+
+    if (det->H)
+        matd_destroy(det->H);
+    det->H = homography_compute(correspondences, HOMOGRAPHY_COMPUTE_FLAG_SVD);
+    zarray_destroy(correspondences);
+}
+
+static double rotation_error(const double *A, const double *B)
+{
+    // angle of A' B
+    double trace = 0;
+    for (int i = 0; i < 9; i++)
+        trace += A[i] * B[i];
+    return acos(fmin(1, fmax(-1, (trace - 1) / 2)));
+}
+
+int main(int argc, char *argv[])
+{
+    srand(1);
+
+    apriltag_pose_params_t params = { .tagsize = 0.16, .fx = 500, .fy = 510, .cx = 320, .cy = 240 };
+    apriltag_detection_t det = { 0 };
+    int failures = 0;
+    double worst_rot = 0, worst_trans = 0, err_before = 0, err_after = 0;
+
+    for (int trial = 0; trial < NTRIALS && !failures; trial++) {
+        apriltag_pose_t truth, est;
+        random_rotation(M_PI / 3, truth.R);
+        truth.t[0] = uniform(-0.3, 0.3);
+        truth.t[1] = uniform(-0.3, 0.3);
+        truth.t[2] = uniform(0.4, 3);
+
+        // exact corners: the pose must be recovered
+        make_detection(&params, &truth, 0, &det);
+        params.refine_iters = 0;
+        apriltag_estimate_pose(&det, &params, &est);
+
+        double rot = rotation_error(truth.R, est.R);
+        double trans = sqrt(pow(est.t[0] - truth.t[0], 2) + pow(est.t[1] - truth.t[1], 2) +
+                            pow(est.t[2] - truth.t[2], 2)) / truth.t[2];
+        worst_rot = fmax(worst_rot, rot);
+        worst_trans = fmax(worst_trans, trans);
+        if (!(rot < 1e-3 && trans < 1e-4)) {
+            printf("FAIL trial %d: rotation off by %g rad, translation by %g\n", trial, rot, trans);
+            failures++;
+        }
+
+        // noisy corners: refinement may only help
+        make_detection(&params, &truth, 0.5, &det);
+        double e0 = apriltag_estimate_pose(&det, &params, &est);
+        params.refine_iters = 5;
+        double e1 = apriltag_estimate_pose(&det, &params, &est);
+        err_before += e0;
+        err_after += e1;
+        if (!(e1 <= e0)) {
+            printf("FAIL trial %d: refinement raised the error from %g to %g\n", trial, e0, e1);
+            failures++;
+        }
+    }
+
+    printf("exact corners: worst rotation error %.2g rad, worst relative translation error %.2g\n",
+           worst_rot, worst_trans);
+    printf("noisy corners: mean squared reprojection error %.4f px^2, refined %.4f px^2\n",
+           err_before / NTRIALS, err_after / NTRIALS);
+
+    // timing, on one detection
+    apriltag_pose_t est;
+    for (int iters = 0; iters <= 5; iters += 5) {
+        params.refine_iters = iters;
+        int64_t t0 = utime_now();
+        for (int i = 0; i < NTIMING; i++)
+            apriltag_estimate_pose(&det, &params, &est);
+        int64_t t1 = utime_now();
+        printf("apriltag_estimate_pose, %d refinement iterations: %.2f us\n", iters,
+               (t1 - t0) / (double) NTIMING);
+    }
+
+    int64_t t0 = utime_now();
+    for (int i = 0; i < NTIMING; i++)
+        matd_destroy(homography_to_pose(det.H, -params.fx, params.fy, params.cx, params.cy));
+    int64_t t1 = utime_now();
+    printf("homography_to_pose: %.2f us\n", (t1 - t0) / (double) NTIMING);
+
+    matd_destroy(det.H);
+
+    if (failures)
+        return 1;
+
+    printf("OK\n");
+    return 0;
+}
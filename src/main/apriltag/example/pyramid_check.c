@@ -0,0 +1,143 @@
+// Checks that pyramid mode keeps the detection range of a single
+// level: on rendered scenes of rotated tags from 2 to 7 pixels per bit,
+// blurred, sharpened and neither, every tag found with pyramid_levels
+// 1 is also found with pyramid_levels 3. Exits non-zero if any is lost.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+
+#include "apriltag.h"
+#include "common/math_util.h"
+#include "tag36h11.h"
+
+// a grid of COLS x ROWS tags, each in a CELL x CELL square
+#define COLS 9
+#define ROWS 5
+#define CELL 142
+#define NTAGS (COLS * ROWS)
+
+#define BLACK 25
+#define WHITE 230
+
+static double urand()
+{
+    return rand() / (RAND_MAX + 1.0);
+}
+
+// tag36h11 value at (u, v) in bits from the outer corner of its white
+// border, or -1 outside the tag.
+static int tag_value(const apriltag_family_t *tf, int id, double u, double v)
+{
+    int n = tf->d + 2*tf->black_border + 2;
+    if (u < 0 || v < 0 || u >= n || v >= n)
+        return -1;
+
+    int ix = u, iy = v;
+    if (ix == 0 || iy == 0 || ix == n - 1 || iy == n - 1)
+        return WHITE;
+
+    int bx = ix - 1 - tf->black_border, by = iy - 1 - tf->black_border;
+    if (bx < 0 || by < 0 || bx >= tf->d || by >= tf->d)
+        return BLACK;
+
+    return (tf->codes[id] >> (tf->d*tf->d - 1 - (by*tf->d + bx))) & 1 ? WHITE : BLACK;
+}
+
+// Render tags 0 to NTAGS-1 at random scales and rotations on a noisy
+// background, antialiased with 4 samples per pixel.
+static image_u8_t *render(const apriltag_family_t *tf, unsigned int seed)
+{
+    image_u8_t *im = image_u8_create(COLS * CELL, ROWS * CELL);
+    int n = tf->d + 2*tf->black_border + 2;
+
+    srand(seed);
+    for (int y = 0; y < im->height; y++) {
+        for (int x = 0; x < im->width; x++)
+            im->buf[y*im->stride + x] = 110 + 30*urand();
+    }
+
+    for (int id = 0; id < NTAGS; id++) {
+        double cx = (id % COLS + 0.5) * CELL, cy = (id / COLS + 0.5) * CELL;
+        double ppb = 2 + 5*urand(), theta = 2*M_PI*urand();
+        double c = cos(theta), s = sin(theta);
+
+        for (int y = cy - CELL/2; y < cy + CELL/2; y++) {
+            for (int x = cx - CELL/2; x < cx + CELL/2; x++) {
+                int acc = 0;
+                for (int k = 0; k < 4; k++) {
+                    double dx = x + .25 + .5*(k & 1) - cx, dy = y + .25 + .5*(k >> 1) - cy;
+                    int v = tag_value(tf, id, (c*dx + s*dy) / ppb + n/2.0, (-s*dx + c*dy) / ppb + n/2.0);
+                    acc += v < 0 ? im->buf[y*im->stride + x] : v;
+                }
+                im->buf[y*im->stride + x] = iclamp(acc / 4 + (int) (8*urand()) - 4, 0, 255);
+            }
+        }
+    }
+
+    return im;
+}
+
+// Mark found[id] for each tag found; returns how many were.
+static int detect(apriltag_family_t *tf, image_u8_t *im, double sigma, int levels, int *found)
+{
+    apriltag_detector_t *td = apriltag_detector_create();
+    apriltag_detector_add_family(td, tf);
+    td->nthreads = 1;
+    td->quad_decimate = 1;
+    td->quad_sigma = sigma;
+    td->pyramid_levels = levels;
+
+    zarray_t *detections = apriltag_detector_detect(td, im);
+
+    int nfound = 0;
+    for (int i = 0; i < NTAGS; i++)
+        found[i] = 0;
+    for (int i = 0; i < zarray_size(detections); i++) {
+        apriltag_detection_t *det;
+        zarray_get(detections, i, &det);
+
+        if (det->id < NTAGS && !found[det->id]) {
+            found[det->id] = 1;
+            nfound++;
+        }
+    }
+
+    apriltag_detections_destroy(detections);
+    apriltag_detector_destroy(td);
+    return nfound;
+}
+
+int main(int argc, char *argv[])
+{
+    apriltag_family_t *tf = tag36h11_create();
+    const double sigmas[] = { 0, 0.8, -0.8 };
+    int errors = 0;
+
+    for (unsigned int seed = 1; seed <= 3; seed++) {
+        image_u8_t *im = render(tf, seed);
+
+        for (int i = 0; i < sizeof(sigmas)/sizeof(sigmas[0]); i++) {
+            int single[NTAGS], pyramid[NTAGS];
+            int nsingle = detect(tf, im, sigmas[i], 1, single);
+            int npyramid = detect(tf, im, sigmas[i], 3, pyramid);
+
+            printf("scene %u sigma %4.1f: %d/%d tags with 1 level, %d with 3",
+                   seed, sigmas[i], nsingle, NTAGS, npyramid);
+            int nlost = 0;
+            for (int id = 0; id < NTAGS; id++) {
+                if (single[id] && !pyramid[id])
+                    printf("%s %d", nlost++ ? "," : "; FAIL lost", id);
+            }
+            errors += nlost;
+            printf("\n");
+        }
+
+        image_u8_destroy(im);
+    }
+
+    tag36h11_destroy(tf);
+
+    printf("%s\n", errors ? "FAIL" : "OK");
+    return errors ? 1 : 0;
+}
@@ -0,0 +1,181 @@
+// Checks apriltag_reconcile_detections against the loop it replaced,
+// which compared every pair of detections in list order and removed
+// each loser by moving the last detection into its place. On random
+// lists of overlapping, partly duplicated detections, both must keep
+// the same detections in the same order. Exits non-zero on the first
+// mismatch.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+
+#include "apriltag.h"
+#include "apriltag_reconcile.h"
+#include "common/g2d.h"
+
+#define NLISTS 5000
+#define MAX_DETECTIONS 200
+
+// Only compared by address
+static apriltag_family_t families[2];
+
+static double urand()
+{
+    return rand() / (RAND_MAX + 1.0);
+}
+
+static int prefer_smaller(int pref, double q0, double q1)
+{
+    if (pref)     // already prefer something? exit.
+        return pref;
+
+    if (q0 < q1)
+        return -1; // we now prefer q0
+    if (q1 < q0)
+        return 1; // we now prefer q1
+
+    // no preference
+    return 0;
+}
+
+// The reconcile loop as it was before the grid
+static void reconcile_reference(zarray_t *detections)
+{
+    zarray_t *poly0 = g2d_polygon_create_zeros(4);
+    zarray_t *poly1 = g2d_polygon_create_zeros(4);
+
+    for (int i0 = 0; i0 < zarray_size(detections); i0++) {
+
+        apriltag_detection_t *det0;
+        zarray_get(detections, i0, &det0);
+
+        for (int k = 0; k < 4; k++)
+            zarray_set(poly0, k, det0->p[k], NULL);
+
+        for (int i1 = i0+1; i1 < zarray_size(detections); i1++) {
+
+            apriltag_detection_t *det1;
+            zarray_get(detections, i1, &det1);
+
+            if (det0->id != det1->id || det0->family != det1->family)
+                continue;
+
+            for (int k = 0; k < 4; k++)
+                zarray_set(poly1, k, det1->p[k], NULL);
+
+            if (g2d_polygon_overlaps_polygon(poly0, poly1)) {
+                int pref = 0;
+                pref = prefer_smaller(pref, det0->hamming, det1->hamming);
+                pref = prefer_smaller(pref, -det0->decision_margin, -det1->decision_margin);
+                pref = prefer_smaller(pref, -det0->goodness, -det1->goodness);
+
+                for (int i = 0; i < 4; i++) {
+                    pref = prefer_smaller(pref, det0->p[i][0], det1->p[i][0]);
+                    pref = prefer_smaller(pref, det0->p[i][1], det1->p[i][1]);
+                }
+
+                if (pref < 0) {
+                    apriltag_detection_destroy(det1);
+                    zarray_remove_index(detections, i1, 1);
+                    i1--;
+                    goto retry1;
+                } else {
+                    apriltag_detection_destroy(det0);
+                    zarray_remove_index(detections, i0, 1);
+                    i0--;
+                    goto retry0;
+                }
+            }
+
+          retry1: ;
+        }
+
+      retry0: ;
+    }
+
+    zarray_destroy(poly0);
+    zarray_destroy(poly1);
+}
+
+// n detections of a few ids in a 640x480 image. Some are jittered
+// copies of earlier ones, as several quads on one tag would be; scores
+// are coarse so that ties fall through to the later criteria. Each
+// detection's index is kept in c[0].
+static void random_detections(int n, zarray_t *a, zarray_t *b)
+{
+    int nids = 1 + n / 3;
+
+    for (int i = 0; i < n; i++) {
+        apriltag_detection_t *det = calloc(1, sizeof(apriltag_detection_t));
+
+        apriltag_detection_t *orig = NULL;
+        if (i > 0 && urand() < 0.4)
+            zarray_get(a, rand() % i, &orig);
+
+        if (orig) {
+            det->family = orig->family;
+            det->id = orig->id;
+            for (int k = 0; k < 4; k++) {
+                det->p[k][0] = orig->p[k][0] + (urand() - 0.5) * 8;
+                det->p[k][1] = orig->p[k][1] + (urand() - 0.5) * 8;
+            }
+        } else {
+            det->family = &families[rand() % 2];
+            det->id = rand() % nids;
+
+            double cx = urand() * 640, cy = urand() * 480;
+            double r = 5 + urand() * 40, theta = urand() * 2 * M_PI;
+            for (int k = 0; k < 4; k++) {
+                det->p[k][0] = cx + r * cos(theta + k * M_PI / 2);
+                det->p[k][1] = cy + r * sin(theta + k * M_PI / 2);
+            }
+        }
+
+        det->hamming = rand() % 3;
+        det->decision_margin = rand() % 4;
+        det->goodness = rand() % 2;
+        det->c[0] = i;
+
+        apriltag_detection_t *copy = malloc(sizeof(apriltag_detection_t));
+        *copy = *det;
+
+        zarray_add(a, &det);
+        zarray_add(b, &copy);
+    }
+}
+
+int main(int argc, char *argv[])
+{
+    srand(1);
+
+    for (int list = 0; list < NLISTS; list++) {
+        zarray_t *a = zarray_create(sizeof(apriltag_detection_t*));
+        zarray_t *b = zarray_create(sizeof(apriltag_detection_t*));
+
+        int n = 1 + rand() % MAX_DETECTIONS;
+        random_detections(n, a, b);
+
+        reconcile_reference(a);
+        apriltag_reconcile_detections(b);
+
+        int ok = zarray_size(a) == zarray_size(b);
+        for (int i = 0; ok && i < zarray_size(a); i++) {
+            apriltag_detection_t *deta, *detb;
+            zarray_get(a, i, &deta);
+            zarray_get(b, i, &detb);
+            ok = deta->c[0] == detb->c[0];
+        }
+
+        if (!ok) {
+            printf("FAIL list %d of %d detections: %d kept, reference kept %d\n",
+                   list, n, zarray_size(b), zarray_size(a));
+            return 1;
+        }
+
+        apriltag_detections_destroy(a);
+        apriltag_detections_destroy(b);
+    }
+
+    printf("%d lists\nOK\n", NLISTS);
+    return 0;
+}
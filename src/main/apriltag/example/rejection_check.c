@@ -0,0 +1,157 @@
+// Checks the early-rejection cascade on rendered tags: a tag read
+// exactly is still found when a few of its bits are faint enough to
+// be ambiguous, with and without refine_decode, and is only given up
+// on once more bits are ambiguous than the limit ambiguous_bit_margin
+// describes. Exits non-zero if any check fails.
+
+#include <stdio.h>
+#include <stdlib.h>
+
+#include "apriltag.h"
+#include "apriltag_stats.h"
+#include "tag16h5.h"
+#include "tag25h9.h"
+#include "tag36h11.h"
+
+#define CELL 10
+#define MARGIN 3
+#define BLACK 30
+#define WHITE 220
+
+// within AMBIGUOUS_MARGIN of the threshold, halfway between BLACK and WHITE
+#define FAINT_BLACK 123
+#define FAINT_WHITE 127
+#define AMBIGUOUS_MARGIN 5
+
+struct family
+{
+    const char *name;
+    apriltag_family_t *(*create)();
+    void (*destroy)(apriltag_family_t *tf);
+};
+
+static const struct family families[] = {
+    { "tag36h11", tag36h11_create, tag36h11_destroy },
+    { "tag25h9", tag25h9_create, tag25h9_destroy },
+    { "tag16h5", tag16h5_create, tag16h5_destroy },
+};
+
+// Draw tag id axis-aligned on a white background, with the first
+// nfaint bits (in reading order) drawn faint.
+static image_u8_t *render(const apriltag_family_t *tf, int id, int nfaint)
+{
+    int n = 2*tf->black_border + tf->d;
+    int size = (n + 2*MARGIN) * CELL;
+    image_u8_t *im = image_u8_create(size, size);
+
+    for (int y = 0; y < size; y++) {
+        for (int x = 0; x < size; x++) {
+            int cx = x / CELL - MARGIN, cy = y / CELL - MARGIN;
+            int v = WHITE;
+
+            if (cx >= 0 && cy >= 0 && cx < n && cy < n) {
+                int bx = cx - tf->black_border, by = cy - tf->black_border;
+                if (bx < 0 || by < 0 || bx >= tf->d || by >= tf->d) {
+                    v = BLACK;
+                } else {
+                    int bit = by*tf->d + bx;
+                    int white = (tf->codes[id] >> (tf->d*tf->d - 1 - bit)) & 1;
+                    if (bit < nfaint)
+                        v = white ? FAINT_WHITE : FAINT_BLACK;
+                    else
+                        v = white ? WHITE : BLACK;
+                }
+            }
+
+            im->buf[y*im->stride + x] = v;
+        }
+    }
+
+    return im;
+}
+
+// Returns 1 if the tag was found exactly, 0 if it was not found at
+// all, and -1 (after printing why) for anything else.
+static int detect(apriltag_detector_t *td, const apriltag_family_t *tf, int id, image_u8_t *im,
+                  int *nambiguous)
+{
+    zarray_t *detections = apriltag_detector_detect(td, im);
+    *nambiguous = td->nrejected[APRILTAG_REJECT_AMBIGUOUS];
+
+    int found = 0;
+    for (int i = 0; i < zarray_size(detections); i++) {
+        apriltag_detection_t *det;
+        zarray_get(detections, i, &det);
+
+        if (det->id != id || det->hamming != 0) {
+            printf("FAIL %s: found id %d hamming %d instead of id %d\n", tf->name, det->id, det->hamming, id);
+            found = -1;
+        } else if (found == 0) {
+            found = 1;
+        }
+    }
+
+    apriltag_detections_destroy(detections);
+    return found;
+}
+
+static int check_family(const struct family *f, int maxhamming, int refine_decode)
+{
+    apriltag_family_t *tf = f->create();
+    apriltag_detector_t *td = apriltag_detector_create();
+    apriltag_detector_add_family_bits(td, tf, maxhamming);
+    td->nthreads = 1;
+    td->refine_decode = refine_decode;
+    td->ambiguous_bit_margin = AMBIGUOUS_MARGIN;
+
+    // the limit described for td->ambiguous_bit_margin
+    int limit = maxhamming + tf->d*tf->d / 4;
+
+    int errors = 0;
+    for (int id = 0; id < tf->ncodes && id < 20; id++) {
+        const int nfaints[] = { 1, limit, limit + 1 };
+
+        for (int i = 0; i < sizeof(nfaints)/sizeof(nfaints[0]); i++) {
+            int nfaint = nfaints[i];
+            image_u8_t *im = render(tf, id, nfaint);
+
+            int nambiguous;
+            int found = detect(td, tf, id, im, &nambiguous);
+            int expected = nfaint <= limit;
+
+            // other quads in the image may be rejected as ambiguous
+            // too, so only a tag expected to be is checked for it.
+            if (found < 0 || found != expected || (!expected && nambiguous == 0)) {
+                printf("FAIL %s maxhamming %d refine_decode %d id %d: %d faint bits %s, %d ambiguous rejects\n",
+                       f->name, maxhamming, refine_decode, id, nfaint,
+                       found > 0 ? "found" : "not found", nambiguous);
+                errors++;
+            }
+
+            image_u8_destroy(im);
+        }
+    }
+
+    apriltag_detector_destroy(td);
+    f->destroy(tf);
+
+    return errors;
+}
+
+int main(int argc, char *argv[])
+{
+    int errors = 0;
+
+    for (int i = 0; i < sizeof(families)/sizeof(families[0]); i++) {
+        for (int maxhamming = 0; maxhamming <= 2; maxhamming++) {
+            for (int refine_decode = 0; refine_decode <= 1; refine_decode++)
+                errors += check_family(&families[i], maxhamming, refine_decode);
+        }
+        printf("%-16s %s\n", families[i].name, errors ? "FAIL" : "ok");
+        if (errors)
+            break;
+    }
+
+    printf("%s\n", errors ? "FAIL" : "OK");
+    return errors ? 1 : 0;
+}
@@ -0,0 +1,375 @@
+// Checks that quad_goodness and quad_decode, which step samples along
+// lines through the quad's homography, give exactly the results of the
+// per-point projection they replaced, copied here. Quads are rendered
+// tags with jittered corners and random quads, up to extreme
+// perspective and partly outside the image; goodness, decision margin
+// and decode must match bit for bit. Exits non-zero on the first
+// mismatch.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag.h"
+#include "apriltag_decoder.h"
+#include "apriltag_math.h"
+#include "common/arena.h"
+#include "common/homography.h"
+#include "common/math_util.h"
+#include "tag16h5.h"
+#include "tag36h11.h"
+
+#define NQUADS 50000
+#define WIDTH 400
+#define HEIGHT 300
+#define NTAGS 6
+
+// As in apriltag.c, which does not export these in a header
+struct quick_decode_entry
+{
+    uint64_t rcode;
+    uint16_t id;
+    uint8_t hamming;
+    uint8_t rotation;
+};
+
+int quad_update_homographies(arena_t *arena, struct quad *quad);
+double quad_goodness(apriltag_family_t *family, image_u8_t *im, struct quad *quad);
+float quad_decode(arena_t *arena, apriltag_family_t *family, image_u8_t *im, struct quad *quad,
+                  float ambiguous_margin, struct quick_decode_entry *entry, image_u8_t *im_samples);
+
+static double urand()
+{
+    return rand() / (RAND_MAX + 1.0);
+}
+
+struct graymodel
+{
+    double A[3][3];
+    double B[3];
+    double C[3];
+};
+
+static void graymodel_init(struct graymodel *gm)
+{
+    memset(gm, 0, sizeof(struct graymodel));
+}
+
+static void graymodel_add(struct graymodel *gm, double x, double y, double gray)
+{
+    gm->A[0][0] += x*x;
+    gm->A[0][1] += x*y;
+    gm->A[0][2] += x;
+    gm->A[1][1] += y*y;
+    gm->A[1][2] += y;
+    gm->A[2][2] += 1;
+
+    gm->B[0] += x * gray;
+    gm->B[1] += y * gray;
+    gm->B[2] += gray;
+}
+
+static void graymodel_solve(struct graymodel *gm)
+{
+    mat33_sym_solve((double*) gm->A, gm->B, gm->C);
+}
+
+static double graymodel_interpolate(struct graymodel *gm, double x, double y)
+{
+    return gm->C[0]*x + gm->C[1]*y + gm->C[2];
+}
+
+// quad_goodness before stepping: every pixel in the bounding box is
+// projected into the tag and classified.
+static double reference_goodness(apriltag_family_t *family, image_u8_t *im, struct quad *quad)
+{
+    float white_border = 1;
+    double bit_size = 2.0 / (2*family->black_border + family->d);
+
+    int32_t xmin = INT32_MAX, xmax = 0, ymin = INT32_MAX, ymax = 0;
+
+    for (int i = 0; i < 4; i++) {
+        double tx = (i == 0 || i == 3) ? -1 - bit_size : 1 + bit_size;
+        double ty = (i == 0 || i == 1) ? -1 - bit_size : 1 + bit_size;
+        double x, y;
+
+        homography_project(quad->H, tx, ty, &x, &y);
+        xmin = imin(xmin, x);
+        xmax = imax(xmax, x);
+        ymin = imin(ymin, y);
+        ymax = imax(ymax, y);
+    }
+
+    xmin = imax(0, xmin);
+    xmax = imin(im->width-1, xmax);
+    ymin = imax(0, ymin);
+    ymax = imin(im->height-1, ymax);
+
+    int64_t W1 = 0, B1 = 0, Wn = 0, Bn = 0;
+
+    float wsz = bit_size*white_border;
+    float bsz = bit_size*family->black_border;
+
+    matd_t *Hinv = quad->Hinv;
+
+    for (int y = ymin; y <= ymax; y++) {
+        double Hx = MATD_EL(Hinv, 0, 0) * (.5 + (int) xmin) +
+            MATD_EL(Hinv, 0, 1) * (y + .5) + MATD_EL(Hinv, 0, 2);
+        double Hy = MATD_EL(Hinv, 1, 0) * (.5 + (int) xmin) +
+            MATD_EL(Hinv, 1, 1) * (y + .5) + MATD_EL(Hinv, 1, 2);
+        double Hh = MATD_EL(Hinv, 2, 0) * (.5 + (int) xmin) +
+            MATD_EL(Hinv, 2, 1) * (y + .5) + MATD_EL(Hinv, 2, 2);
+
+        for (int x = xmin; x <= xmax;  x++) {
+            double tx = Hx / Hh;
+            double ty = Hy / Hh;
+
+            Hx += MATD_EL(Hinv, 0, 0);
+            Hy += MATD_EL(Hinv, 1, 0);
+            Hh += MATD_EL(Hinv, 2, 0);
+
+            float txa = fabsf((float) tx), tya = fabsf((float) ty);
+            float xymax = fmaxf(txa, tya);
+
+            if (xymax >= 1 + wsz)
+                continue;
+
+            uint8_t v = im->buf[y*im->stride + x];
+
+            if (xymax >= 1) {
+                W1 += v;
+                Wn ++;
+                continue;
+            }
+
+            if (xymax >= 1 - bsz) {
+                B1 += v;
+                Bn ++;
+                continue;
+            }
+        }
+    }
+
+    return 1.0 * W1 / Wn - 1.0 * B1 / Bn;
+}
+
+// quad_decode before stepping: every sample is projected on its own.
+static float reference_decode(apriltag_family_t *family, image_u8_t *im, struct quad *quad,
+                              struct quick_decode_entry *entry)
+{
+    int64_t rcode = 0;
+    float white_border = 1.0;
+
+    float patterns[] = {
+        0 - white_border / 2.0, 0.5, 0, 1, 1,
+        0 + family->black_border / 2.0, 0.5, 0, 1, 0,
+        2*family->black_border + family->d + white_border / 2.0, .5, 0, 1, 1,
+        2*family->black_border + family->d - family->black_border / 2.0, .5, 0, 1, 0,
+        0.5, -white_border / 2.0, 1, 0, 1,
+        0.5, family->black_border / 2.0, 1, 0, 0,
+        0.5, 2*family->black_border + family->d + white_border / 2.0, 1, 0, 1,
+        0.5, 2*family->black_border + family->d - family->black_border / 2.0, 1, 0, 0
+    };
+
+    struct graymodel whitemodel, blackmodel;
+    graymodel_init(&whitemodel);
+    graymodel_init(&blackmodel);
+
+    for (int pattern_idx = 0; pattern_idx < sizeof(patterns)/(5*sizeof(float)); pattern_idx ++) {
+        float *pattern = &patterns[pattern_idx * 5];
+
+        int is_white = pattern[4];
+
+        for (int i = 0; i < 2*family->black_border + family->d; i++) {
+            double tagx01 = (pattern[0] + i*pattern[2]) / (2*family->black_border + family->d);
+            double tagy01 = (pattern[1] + i*pattern[3]) / (2*family->black_border + family->d);
+
+            double tagx = 2*(tagx01-0.5);
+            double tagy = 2*(tagy01-0.5);
+
+            double px, py;
+            homography_project(quad->H, tagx, tagy, &px, &py);
+
+            int ix = px;
+            int iy = py;
+            if (ix < 0 || iy < 0 || ix >= im->width || iy >= im->height)
+                continue;
+
+            int v = im->buf[iy*im->stride + ix];
+
+            if (is_white)
+                graymodel_add(&whitemodel, tagx, tagy, v);
+            else
+                graymodel_add(&blackmodel, tagx, tagy, v);
+        }
+    }
+
+    graymodel_solve(&whitemodel);
+    graymodel_solve(&blackmodel);
+
+    *entry = (struct quick_decode_entry) { .rcode = 0, .id = 65535, .hamming = 255, .rotation = 0 };
+
+    if (graymodel_interpolate(&whitemodel, 0, 0) - graymodel_interpolate(&blackmodel, 0, 0) < 0)
+        return -1;
+
+    float black_score = 0, white_score = 0;
+    float black_score_count = 1, white_score_count = 1;
+
+    for (int bitidx = 0; bitidx < family->d * family->d; bitidx++) {
+        int bitx = bitidx % family->d;
+        int bity = bitidx / family->d;
+
+        double tagx01 = (family->black_border + bitx + 0.5) / (2*family->black_border + family->d);
+        double tagy01 = (family->black_border + bity + 0.5) / (2*family->black_border + family->d);
+
+        double tagx = 2*(tagx01-0.5);
+        double tagy = 2*(tagy01-0.5);
+
+        double px, py;
+        homography_project(quad->H, tagx, tagy, &px, &py);
+
+        rcode = (rcode << 1);
+
+        int ix = px;
+        int iy = py;
+
+        if (ix < 0 || iy < 0 || ix >= im->width || iy >= im->height)
+            continue;
+
+        int v = im->buf[iy*im->stride + ix];
+
+        double thresh = (graymodel_interpolate(&blackmodel, tagx, tagy) + graymodel_interpolate(&whitemodel, tagx, tagy)) / 2.0;
+        if (v > thresh) {
+            white_score += (v - thresh);
+            white_score_count ++;
+            rcode |= 1;
+        } else {
+            black_score += (thresh - v);
+            black_score_count ++;
+        }
+    }
+
+    const apriltag_decoder_t *dec = family->impl;
+    int id, hamming, rotation;
+    if (dec->decode(dec, rcode, &id, &hamming, &rotation))
+        *entry = (struct quick_decode_entry) { .rcode = rcode, .id = id, .hamming = hamming,
+                                               .rotation = rotation };
+
+    return fmin(white_score / white_score_count, black_score / black_score_count);
+}
+
+// Draw tag id of tf axis-aligned with its white border's top left at
+// (x0, y0), ppb pixels per bit.
+static void draw_tag(image_u8_t *im, const apriltag_family_t *tf, int id, int x0, int y0, int ppb)
+{
+    int n = tf->d + 2*tf->black_border + 2;
+
+    for (int y = 0; y < n*ppb; y++) {
+        for (int x = 0; x < n*ppb; x++) {
+            int cx = x / ppb, cy = y / ppb, v;
+            int bx = cx - 1 - tf->black_border, by = cy - 1 - tf->black_border;
+
+            if (cx == 0 || cy == 0 || cx == n - 1 || cy == n - 1)
+                v = 230;
+            else if (bx < 0 || by < 0 || bx >= tf->d || by >= tf->d)
+                v = 25;
+            else
+                v = (tf->codes[id] >> (tf->d*tf->d - 1 - (by*tf->d + bx))) & 1 ? 230 : 25;
+
+            if (x0 + x < im->width && y0 + y < im->height)
+                im->buf[(y0 + y)*im->stride + x0 + x] = iclamp(v + rand() % 16 - 8, 0, 255);
+        }
+    }
+}
+
+int main(int argc, char *argv[])
+{
+    apriltag_family_t *families[] = { tag36h11_create(), tag16h5_create() };
+    apriltag_detector_t *td = apriltag_detector_create();
+    apriltag_detector_add_family(td, families[0]);
+    apriltag_detector_add_family(td, families[1]);
+
+    srand(1);
+
+    image_u8_t *im = image_u8_create(WIDTH, HEIGHT);
+    for (int y = 0; y < HEIGHT; y++) {
+        for (int x = 0; x < WIDTH; x++)
+            im->buf[y*im->stride + x] = 100 + rand() % 50;
+    }
+
+    // the black border's corners of each tag, as a quad would have them
+    float tags[NTAGS][4][2];
+    for (int i = 0; i < NTAGS; i++) {
+        apriltag_family_t *tf = families[i & 1];
+        int n = tf->d + 2*tf->black_border + 2;
+        int ppb = 3 + i, x0 = (i % 3) * WIDTH / 3, y0 = (i / 3) * HEIGHT / 2;
+        draw_tag(im, tf, i, x0, y0, ppb);
+
+        for (int k = 0; k < 4; k++) {
+            tags[i][k][0] = x0 + ppb * ((k == 0 || k == 3) ? 1 : n - 1);
+            tags[i][k][1] = y0 + ppb * ((k == 0 || k == 1) ? 1 : n - 1);
+        }
+    }
+
+    arena_t *arena = arena_create();
+    int nquads = 0, ndecoded = 0;
+
+    for (int it = 0; it < NQUADS; it++) {
+        struct quad quad = { 0 };
+        apriltag_family_t *tf = families[it & 1];
+
+        if (it % 4 != 3) {
+            // near a tag, often of the family being decoded
+            int tag = rand() % NTAGS;
+            double jitter = (it % 8 == 0) ? 4 : 1;
+            for (int k = 0; k < 4; k++) {
+                quad.p[k][0] = tags[tag][k][0] + (urand() - .5) * jitter;
+                quad.p[k][1] = tags[tag][k][1] + (urand() - .5) * jitter;
+            }
+        } else {
+            // anywhere, strongly skewed every third time
+            double cx = urand()*(WIDTH + 40) - 20, cy = urand()*(HEIGHT + 40) - 20;
+            double s = 2 + urand()*urand()*150, skew = (it % 3 == 0) ? 1.5 : 0.4;
+            for (int k = 0; k < 4; k++) {
+                double u = (k == 0 || k == 3) ? -1 : 1, v = (k == 0 || k == 1) ? -1 : 1;
+                quad.p[k][0] = cx + u*s + (urand() - .5)*s*skew;
+                quad.p[k][1] = cy + v*s + (urand() - .5)*s*skew;
+            }
+        }
+
+        if (quad_update_homographies(arena, &quad))
+            continue;
+        nquads++;
+
+        double goodness0 = reference_goodness(tf, im, &quad);
+        double goodness1 = quad_goodness(tf, im, &quad);
+
+        struct quick_decode_entry e0, e1;
+        float margin0 = reference_decode(tf, im, &quad, &e0);
+        float margin1 = quad_decode(arena, tf, im, &quad, 0, &e1, NULL);
+
+        if (memcmp(&goodness0, &goodness1, sizeof(double)) || memcmp(&margin0, &margin1, sizeof(float)) ||
+            e0.rcode != e1.rcode || e0.id != e1.id || e0.hamming != e1.hamming ||
+            e0.rotation != e1.rotation) {
+            printf("FAIL quad %d: goodness %.17g, reference %.17g; margin %.9g, reference %.9g; "
+                   "id %d, reference %d\n", it, goodness1, goodness0, margin1, margin0, e1.id, e0.id);
+            return 1;
+        }
+
+        if (e1.hamming < 255)
+            ndecoded++;
+
+        if (it % 1000 == 999)
+            arena_reset(arena);
+    }
+
+    arena_destroy(arena);
+    image_u8_destroy(im);
+    apriltag_detector_destroy(td);
+    tag36h11_destroy(families[0]);
+    tag16h5_destroy(families[1]);
+
+    printf("%d quads, %d decoded\nOK\n", nquads, ndecoded);
+    return 0;
+}
@@ -0,0 +1,277 @@
+// Checks that the vectorized image kernels produce exactly the same
+// output as the scalar ones, on random images of awkward sizes.
+// Exits non-zero on the first mismatch.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag.h"
+#include "tag36h11.h"
+#include "common/image_u8.h"
+#include "common/simd.h"
+#include "common/yuv.h"
+
+static const char *level_names[] = { "none", "sse2", "neon" };
+
+static void fill_random(image_u8_t *im, int smooth)
+{
+    for (int y = 0; y < im->height; y++) {
+        for (int x = 0; x < im->width; x++) {
+            // blocky images exercise the low-contrast paths too
+            int v = smooth ? ((x / 13 + y / 7) % 3) * 100 + rand() % 8 : rand() & 0xff;
+            im->buf[y*im->stride + x] = v > 255 ? 255 : v;
+        }
+    }
+}
+
+static int check_bytes(const char *what, int w, int h, const uint8_t *a, const uint8_t *b, int n)
+{
+    if (memcmp(a, b, n) == 0)
+        return 0;
+
+    printf("MISMATCH %s %dx%d\n", what, w, h);
+    return 1;
+}
+
+static int check_image(const char *what, const image_u8_t *a, const image_u8_t *b)
+{
+    if (a->width != b->width || a->height != b->height) {
+        printf("MISMATCH %s size\n", what);
+        return 1;
+    }
+
+    for (int y = 0; y < a->height; y++) {
+        if (memcmp(&a->buf[y*a->stride], &b->buf[y*b->stride], a->width)) {
+            printf("MISMATCH %s %dx%d row %d\n", what, a->width, a->height, y);
+            return 1;
+        }
+    }
+    return 0;
+}
+
+static int check_kernels(int level, int w, int h, int smooth)
+{
+    int errors = 0;
+    image_u8_t *im = image_u8_create(w, h);
+    fill_random(im, smooth);
+
+    int tw = w / 4, th = h / 4;
+    int n = tw*th > 0 ? tw*th : 1;
+    uint8_t *max[2], *min[2], *dmax[2], *dmin[2], *bin[2], *dec[2];
+    uint16_t *sum[2];
+
+    for (int i = 0; i < 2; i++) {
+        simd_set_level(i == 0 ? SIMD_NONE : level);
+
+        max[i] = calloc(n, 1);
+        min[i] = calloc(n, 1);
+        dmax[i] = calloc(n, 1);
+        dmin[i] = calloc(n, 1);
+        bin[i] = calloc(w, 1);
+        dec[i] = calloc(w, 1);
+        sum[i] = calloc(w, sizeof(uint16_t));
+
+        for (int ty = 0; ty < th; ty++)
+            simd_tile_minmax4(&im->buf[ty*4*im->stride], im->stride, tw, &max[i][ty*tw], &min[i][ty*tw]);
+
+        uint8_t row_tmp[tw + 1];
+        simd_max3x3(max[i], dmax[i], tw, th, row_tmp);
+        simd_min3x3(min[i], dmin[i], tw, th, row_tmp);
+
+        if (th > 0) {
+            uint8_t thresh[tw + 1], lowc[tw + 1];
+            for (int tx = 0; tx < tw; tx++) {
+                thresh[tx] = dmin[i][tx] + (dmax[i][tx] - dmin[i][tx]) / 2;
+                lowc[tx] = (dmax[i][tx] - dmin[i][tx] < 5);
+            }
+            simd_threshold_tiles4(im->buf, bin[i], tw, thresh, lowc);
+        }
+
+        if (h >= 2)
+            simd_decimate2_row(im->buf, im->buf + im->stride, dec[i], w / 2);
+
+        simd_sum_rows(im->buf, im->stride, h < 257 ? h : 257, w, sum[i]);
+    }
+
+    errors += check_bytes("tile_minmax4 max", w, h, max[0], max[1], tw*th);
+    errors += check_bytes("tile_minmax4 min", w, h, min[0], min[1], tw*th);
+    errors += check_bytes("max3x3", w, h, dmax[0], dmax[1], tw*th);
+    errors += check_bytes("min3x3", w, h, dmin[0], dmin[1], tw*th);
+    errors += check_bytes("threshold_tiles4", w, h, bin[0], bin[1], tw*4);
+    errors += check_bytes("decimate2_row", w, h, dec[0], dec[1], w / 2);
+    errors += check_bytes("sum_rows", w, h, (uint8_t*) sum[0], (uint8_t*) sum[1], w*sizeof(uint16_t));
+
+    const float factors[] = { 1.5, 2, 3, 4, 5, 8, 16 };
+    for (int f = 0; f < sizeof(factors)/sizeof(factors[0]); f++) {
+        if (w < 3*factors[f] || h < 3*factors[f])
+            continue;
+
+        simd_set_level(SIMD_NONE);
+        image_u8_t *a = image_u8_decimate(im, factors[f]);
+        simd_set_level(level);
+        image_u8_t *b = image_u8_decimate(im, factors[f]);
+
+        char what[64];
+        snprintf(what, sizeof(what), "decimate %.1f", factors[f]);
+        errors += check_image(what, a, b);
+
+        image_u8_destroy(a);
+        image_u8_destroy(b);
+    }
+
+    for (int i = 0; i < 2; i++) {
+        free(max[i]);
+        free(min[i]);
+        free(dmax[i]);
+        free(dmin[i]);
+        free(bin[i]);
+        free(dec[i]);
+        free(sum[i]);
+    }
+    image_u8_destroy(im);
+
+    return errors;
+}
+
+// The per-pixel conversion that yuv_nv21_to_rgb_rot90 replaced; its
+// output must match at scale 1.
+static void nv21_to_rgb_reference(const uint8_t *src, int width, int height, uint32_t *dst)
+{
+    int uvstart = width * height;
+    for (int j = 0; j < height; j += 1) {
+        for (int i = 0; i < width; i += 1) {
+            int y = src[j*width + i];
+            int offset = uvstart + (j >> 1)*width + (i & ~1);
+            int u = src[offset + 1];
+            int v = src[offset + 0];
+
+            y = y < 16 ? 16 : y;
+
+            int a0 = 1192 * (y - 16);
+            int a1 = 1634 * (v - 128);
+            int a2 = 832 * (v - 128);
+            int a3 = 400 * (u - 128);
+            int a4 = 2066 * (u - 128);
+
+            int r = (a0 + a1) >> 10;
+            int g = (a0 - a2 - a3) >> 10;
+            int b = (a0 + a4) >> 10;
+
+            r = r < 0 ? 0 : (r > 255 ? 255 : r);
+            g = g < 0 ? 0 : (g > 255 ? 255 : g);
+            b = b < 0 ? 0 : (b > 255 ? 255 : b);
+
+            dst[(i+1)*height - j-1] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+}
+
+// NV21 frames of even size, as cameras produce
+static int check_yuv(int level, int w, int h)
+{
+    int n = w*h + w*h/2;
+    uint8_t *src = malloc(n);
+    for (int i = 0; i < n; i++)
+        src[i] = rand() & 0xff;
+
+    int errors = 0;
+    uint32_t *ref = calloc(w*h, sizeof(uint32_t));
+    uint32_t *out[2] = { calloc(w*h, sizeof(uint32_t)), calloc(w*h, sizeof(uint32_t)) };
+    nv21_to_rgb_reference(src, w, h, ref);
+
+    for (int scale = 1; scale <= 4; scale++) {
+        int outw = w / scale, outh = h / scale;
+        if (outw < 1 || outh < 1)
+            continue;
+
+        for (int i = 0; i < 2; i++) {
+            simd_set_level(i == 0 ? SIMD_NONE : level);
+            yuv_nv21_to_rgb_rot90(src, w, src + w*h, w, w, h, scale, out[i], outh);
+        }
+
+        char what[64];
+        snprintf(what, sizeof(what), "nv21_to_rgb scale %d", scale);
+        if (scale == 1)
+            errors += check_bytes(what, w, h, (uint8_t*) ref, (uint8_t*) out[0], w*h*sizeof(uint32_t));
+        errors += check_bytes(what, w, h, (uint8_t*) out[0], (uint8_t*) out[1], outw*outh*sizeof(uint32_t));
+    }
+
+    free(src);
+    free(ref);
+    free(out[0]);
+    free(out[1]);
+    return errors;
+}
+
+// whole detector: the quads found must not depend on the SIMD level
+static int check_detector(int level)
+{
+    apriltag_family_t *tf = tag36h11_create();
+    apriltag_detector_t *td = apriltag_detector_create();
+    apriltag_detector_add_family(td, tf);
+    td->nthreads = 1;
+
+    image_u8_t *im = image_u8_create(643, 481);
+    fill_random(im, 1);
+
+    int errors = 0;
+    const float decimates[] = { 1, 2, 8 };
+    for (int d = 0; d < sizeof(decimates)/sizeof(decimates[0]); d++) {
+        td->quad_decimate = decimates[d];
+
+        simd_set_level(SIMD_NONE);
+        apriltag_detections_destroy(apriltag_detector_detect(td, im));
+        int nquads = td->nquads;
+
+        simd_set_level(level);
+        apriltag_detections_destroy(apriltag_detector_detect(td, im));
+
+        if (td->nquads != nquads) {
+            printf("MISMATCH detector decimate %.1f: %d vs %d quads\n", decimates[d], nquads, td->nquads);
+            errors++;
+        }
+    }
+
+    image_u8_destroy(im);
+    apriltag_detector_destroy(td);
+    tag36h11_destroy(tf);
+
+    return errors;
+}
+
+int main(int argc, char *argv[])
+{
+    int level = simd_level();
+    printf("simd level: %s\n", level_names[level]);
+
+    if (level == SIMD_NONE) {
+        printf("no vector unit; nothing to compare\n");
+        return 0;
+    }
+
+    srand(1);
+
+    int errors = 0;
+    for (int h = 1; h <= 40; h += 3) {
+        for (int w = 1; w <= 160; w += 7) {
+            errors += check_kernels(level, w, h, 0);
+            errors += check_kernels(level, w, h, 1);
+        }
+    }
+    errors += check_kernels(level, 1280, 720, 0);
+    errors += check_kernels(level, 1283, 722, 1);
+    errors += check_kernels(level, 640, 600, 1);
+
+    for (int h = 2; h <= 70; h += 4) {
+        for (int w = 2; w <= 150; w += 6)
+            errors += check_yuv(level, w, h);
+    }
+    errors += check_yuv(level, 1280, 720);
+    errors += check_yuv(level, 642, 482);
+
+    errors += check_detector(level);
+
+    printf("%s\n", errors ? "FAILED" : "OK");
+    return errors ? 1 : 0;
+}
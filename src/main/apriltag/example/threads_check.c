@@ -0,0 +1,233 @@
+// Checks that more threads give exactly the detections of one:
+// apriltag_detector_detect, apriltag_detector_detect_batch, the
+// pipeline and the tracker, with nthreads > 1, must return the same
+// detections in the same order, to the bit, as with nthreads = 1, over
+// frames cut from a rendered scene under several detector settings.
+// Exits non-zero if any differ.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "apriltag.h"
+#include "apriltag_batch.h"
+#include "apriltag_pipeline.h"
+#include "apriltag_tracker.h"
+#include "common/math_util.h"
+#include "tag36h11.h"
+
+// a grid of COLS x ROWS tags, each in a CELL x CELL square
+#define COLS 9
+#define ROWS 5
+#define CELL 142
+
+#define WIDTH 480
+#define HEIGHT 360
+#define NFRAMES 6
+
+struct setting
+{
+    float decimate, sigma;
+    int pyramid_levels, refine_pose;
+};
+
+static const struct setting settings[] = {
+    { 1, 0, 1, 0 },
+    { 2, 0, 1, 0 },
+    { 1.5, 0.8, 1, 0 },
+    { 2, -0.8, 3, 0 },
+    { 2, 0, 1, 1 },
+};
+
+static const int nthreads[] = { 2, 5 };
+
+static double urand()
+{
+    return rand() / (RAND_MAX + 1.0);
+}
+
+// Tags 0 to COLS*ROWS-1 at random scales and rotations on a noisy
+// background, antialiased with 4 samples per pixel.
+static image_u8_t *render(const apriltag_family_t *tf)
+{
+    image_u8_t *im = image_u8_create(COLS * CELL, ROWS * CELL);
+    int n = tf->d + 2*tf->black_border + 2;
+
+    srand(1);
+    for (int y = 0; y < im->height; y++) {
+        for (int x = 0; x < im->width; x++)
+            im->buf[y*im->stride + x] = 110 + 30*urand();
+    }
+
+    for (int id = 0; id < COLS * ROWS; id++) {
+        double cx = (id % COLS + 0.5) * CELL, cy = (id / COLS + 0.5) * CELL;
+        double ppb = 3 + 5*urand(), theta = 2*M_PI*urand();
+        double c = cos(theta), s = sin(theta);
+
+        for (int y = cy - CELL/2; y < cy + CELL/2; y++) {
+            for (int x = cx - CELL/2; x < cx + CELL/2; x++) {
+                int acc = 0;
+                for (int k = 0; k < 4; k++) {
+                    double dx = x + .25 + .5*(k & 1) - cx, dy = y + .25 + .5*(k >> 1) - cy;
+                    double u = (c*dx + s*dy) / ppb + n/2.0, v = (-s*dx + c*dy) / ppb + n/2.0;
+                    int value = im->buf[y*im->stride + x];
+
+                    if (u >= 0 && v >= 0 && u < n && v < n) {
+                        int bx = (int) u - 1 - tf->black_border, by = (int) v - 1 - tf->black_border;
+                        if ((int) u == 0 || (int) v == 0 || (int) u == n - 1 || (int) v == n - 1)
+                            value = 230;
+                        else if (bx < 0 || by < 0 || bx >= tf->d || by >= tf->d)
+                            value = 25;
+                        else
+                            value = (tf->codes[id] >> (tf->d*tf->d - 1 - (by*tf->d + bx))) & 1 ? 230 : 25;
+                    }
+                    acc += value;
+                }
+                im->buf[y*im->stride + x] = iclamp(acc / 4 + (int) (8*urand()) - 4, 0, 255);
+            }
+        }
+    }
+
+    return im;
+}
+
+// Frame i of a pan across the scene
+static void cut_frame(const image_u8_t *scene, int i, image_u8_t *frame)
+{
+    int x0 = (scene->width - WIDTH) * i / (NFRAMES - 1);
+    int y0 = (scene->height - HEIGHT) * ((i * 3) % NFRAMES) / (NFRAMES - 1);
+
+    for (int y = 0; y < HEIGHT; y++)
+        memcpy(&frame->buf[y*frame->stride], &scene->buf[(y0 + y)*scene->stride + x0], WIDTH);
+}
+
+static void apply(apriltag_detector_t *td, const struct setting *s, int n)
+{
+    td->quad_decimate = s->decimate;
+    td->quad_sigma = s->sigma;
+    td->pyramid_levels = s->pyramid_levels;
+    td->refine_pose = s->refine_pose;
+    td->nthreads = n;
+}
+
+// Returns 1 and says how if the two lists differ.
+static int differ(const char *what, int setting, int n, int frame, zarray_t *expect, zarray_t *got)
+{
+    if (zarray_size(expect) != zarray_size(got)) {
+        printf("FAIL %s, setting %d, %d threads, frame %d: %d detections, expected %d\n",
+               what, setting, n, frame, zarray_size(got), zarray_size(expect));
+        return 1;
+    }
+
+    for (int i = 0; i < zarray_size(expect); i++) {
+        apriltag_detection_t *a, *b;
+        zarray_get(expect, i, &a);
+        zarray_get(got, i, &b);
+
+        if (a->family != b->family || a->id != b->id || a->hamming != b->hamming ||
+            memcmp(&a->goodness, &b->goodness, sizeof(a->goodness)) ||
+            memcmp(&a->decision_margin, &b->decision_margin, sizeof(a->decision_margin)) ||
+            memcmp(a->c, b->c, sizeof(a->c)) || memcmp(a->p, b->p, sizeof(a->p))) {
+            printf("FAIL %s, setting %d, %d threads, frame %d: detection %d (id %d) differs\n",
+                   what, setting, n, frame, i, b->id);
+            return 1;
+        }
+    }
+
+    return 0;
+}
+
+int main(int argc, char *argv[])
+{
+    apriltag_family_t *tf = tag36h11_create();
+    image_u8_t *scene = render(tf);
+
+    image_u8_t *frames[NFRAMES];
+    for (int i = 0; i < NFRAMES; i++) {
+        frames[i] = image_u8_create(WIDTH, HEIGHT);
+        cut_frame(scene, i, frames[i]);
+    }
+
+    apriltag_detector_t *td = apriltag_detector_create();
+    apriltag_detector_add_family(td, tf);
+
+    int errors = 0, ndetections = 0;
+
+    for (int s = 0; s < sizeof(settings)/sizeof(settings[0]); s++) {
+        zarray_t *expect[NFRAMES], *tracked[NFRAMES];
+
+        apply(td, &settings[s], 1);
+        for (int i = 0; i < NFRAMES; i++) {
+            expect[i] = apriltag_detector_detect(td, frames[i]);
+            ndetections += zarray_size(expect[i]);
+        }
+
+        apriltag_tracker_t *tr = apriltag_tracker_create(td);
+        for (int i = 0; i < NFRAMES; i++)
+            tracked[i] = apriltag_tracker_detect(tr, frames[i]);
+        apriltag_tracker_destroy(tr);
+
+        for (int t = 0; t < sizeof(nthreads)/sizeof(nthreads[0]); t++) {
+            int n = nthreads[t];
+            apply(td, &settings[s], n);
+
+            for (int i = 0; i < NFRAMES; i++) {
+                zarray_t *detections = apriltag_detector_detect(td, frames[i]);
+                errors += differ("detect", s, n, i, expect[i], detections);
+                apriltag_detections_destroy(detections);
+            }
+
+            zarray_t **batch = apriltag_detector_detect_batch(td, frames, NFRAMES, NULL);
+            for (int i = 0; i < NFRAMES; i++) {
+                errors += differ("batch", s, n, i, expect[i], batch[i]);
+                apriltag_detections_destroy(batch[i]);
+            }
+            free(batch);
+
+            // a shallower ring than there are frames, so that
+            // submitting waits on retrieving
+            apriltag_pipeline_t *pp = apriltag_pipeline_create(td, 3, n, n);
+            int nretrieved = 0;
+            for (int i = 0; i <= NFRAMES; i++) {
+                while (i == NFRAMES ? apriltag_pipeline_in_flight(pp) > 0
+                                    : apriltag_pipeline_submit(pp, frames[i], i) < 0) {
+                    int64_t tag;
+                    zarray_t *detections = apriltag_pipeline_retrieve(pp, &tag, NULL);
+                    if (tag != nretrieved) {
+                        printf("FAIL pipeline, setting %d, %d threads: frame %d returned when %d was due\n",
+                               s, n, (int) tag, nretrieved);
+                        errors++;
+                    } else {
+                        errors += differ("pipeline", s, n, (int) tag, expect[tag], detections);
+                    }
+                    nretrieved++;
+                    apriltag_detections_destroy(detections);
+                }
+            }
+            apriltag_pipeline_destroy(pp);
+
+            tr = apriltag_tracker_create(td);
+            for (int i = 0; i < NFRAMES; i++) {
+                zarray_t *detections = apriltag_tracker_detect(tr, frames[i]);
+                errors += differ("tracker", s, n, i, tracked[i], detections);
+                apriltag_detections_destroy(detections);
+            }
+            apriltag_tracker_destroy(tr);
+        }
+
+        for (int i = 0; i < NFRAMES; i++) {
+            apriltag_detections_destroy(expect[i]);
+            apriltag_detections_destroy(tracked[i]);
+        }
+    }
+
+    apriltag_detector_destroy(td);
+    for (int i = 0; i < NFRAMES; i++)
+        image_u8_destroy(frames[i]);
+    image_u8_destroy(scene);
+    tag36h11_destroy(tf);
+
+    printf("%d detections with 1 thread\n%s\n", ndetections, errors ? "FAIL" : "OK");
+    return errors ? 1 : 0;
+}
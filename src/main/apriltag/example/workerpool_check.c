@@ -0,0 +1,122 @@
+// Stress test of the work-stealing workerpool: many runs of 0 to 2000
+// tasks of uneven cost, on pools of 1 to 16 threads (more than there
+// are cores), must each run every task exactly once, on its
+// participant's own arena, and return only once every task's writes
+// are visible. Pools are also created and destroyed in quick
+// succession. Exits non-zero on the first failure.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "common/workerpool.h"
+
+#define MAX_TASKS 2000
+
+struct task
+{
+    workerpool_t *wp;
+    int id;
+    int spin;
+
+    int runs;       // incremented atomically
+    int result;     // written plainly
+    int *scratch;   // in the running thread's arena
+};
+
+static void do_task(void *p)
+{
+    struct task *task = p;
+
+    __atomic_fetch_add(&task->runs, 1, __ATOMIC_RELAXED);
+
+    // uneven work, so that idle threads steal
+    volatile int acc = 0;
+    for (int i = 0; i < task->spin; i++)
+        acc += i;
+
+    int n = 1 + task->id % 64;
+    task->scratch = arena_alloc(workerpool_get_arena(task->wp), n * sizeof(int));
+    for (int i = 0; i < n; i++)
+        task->scratch[i] = task->id;
+
+    task->result = task->id + 1;
+}
+
+static struct task tasks[MAX_TASKS];
+
+// Returns the number of failures.
+static int run_once(workerpool_t *wp, int ntasks, int serial)
+{
+    for (int i = 0; i < ntasks; i++) {
+        tasks[i] = (struct task) { .wp = wp, .id = i, .spin = (rand() % 16 == 0) ? 20000 : rand() % 200 };
+        workerpool_add_task(wp, do_task, &tasks[i]);
+    }
+
+    if (serial)
+        workerpool_run_single(wp);
+    else
+        workerpool_run(wp);
+
+    for (int i = 0; i < ntasks; i++) {
+        if (tasks[i].runs != 1 || tasks[i].result != i + 1) {
+            printf("FAIL %d threads, %d tasks: task %d ran %d times, result %d\n",
+                   workerpool_get_nthreads(wp), ntasks, i, tasks[i].runs, tasks[i].result);
+            return 1;
+        }
+    }
+
+    // no two tasks were given the same memory
+    for (int i = 0; i < ntasks; i++) {
+        for (int j = 0; j < 1 + i % 64; j++) {
+            if (tasks[i].scratch[j] != i) {
+                printf("FAIL %d threads, %d tasks: scratch of task %d overwritten\n",
+                       workerpool_get_nthreads(wp), ntasks, i);
+                return 1;
+            }
+        }
+    }
+
+    return 0;
+}
+
+int main(int argc, char *argv[])
+{
+    const int nthreads[] = { 1, 2, 3, 4, 8, 16 };
+    const int ntasks[] = { 0, 1, 2, 3, 7, 16, 100, MAX_TASKS };
+    int errors = 0;
+
+    srand(1);
+
+    for (int t = 0; t < sizeof(nthreads)/sizeof(nthreads[0]) && !errors; t++) {
+        workerpool_t *wp = workerpool_create(nthreads[t]);
+
+        for (int run = 0; run < 2000 && !errors; run++) {
+            int n = ntasks[rand() % (sizeof(ntasks)/sizeof(ntasks[0]))];
+            errors += run_once(wp, n, run % 50 == 49);
+
+            if (run % 20 == 19)
+                workerpool_reset_arenas(wp);
+
+            // hints only; they must not change what runs
+            if (run == 1000) {
+                int cpus[64];
+                int ncpus = workerpool_get_fast_cpus(cpus, 64);
+                workerpool_set_cpus(wp, cpus, ncpus);
+            }
+        }
+
+        workerpool_destroy(wp);
+    }
+
+    // threads that start and stop while others are still starting
+    for (int i = 0; i < 200 && !errors; i++) {
+        workerpool_t *wp = workerpool_create(1 + i % 8);
+        if (i % 2)
+            errors += run_once(wp, 1 + rand() % 50, 0);
+        workerpool_destroy(wp);
+    }
+
+    printf("%s\n", errors ? "FAIL" : "OK");
+    return errors ? 1 : 0;
+}
@@ -0,0 +1,506 @@
+package edu.umich.eecs.april.apriltag;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An independent AprilTag detector backed by its own native detector, tag families,
+ * parameters and worker threads. Several instances can detect concurrently on different
+ * threads, and a single instance can be called from several threads at once: detection
+ * calls take only a shared lock and do not wait for each other, except while a frame is in
+ * the native detector, and a pipelined retrieve waiting for its frame holds up no one. Only
+ * {@link #reconfigure}, for the moment it swaps configurations, and {@link #close}, until
+ * every call in progress has returned, are exclusive.
+ * <p>
+ * {@link #reconfigure} builds the new detector before taking it into use, so a detection
+ * in progress finishes with the old configuration and is never left with freed state.
+ * Instances must be closed to release native memory.
+ * </p>
+ */
+public class AprilTagDetector implements AutoCloseable {
+    static {
+        ApriltagNative.ensureLoaded();
+    }
+
+    // Indices into the array filled by getLastFrameStats: the time spent in each detection
+    // stage in nanoseconds, then counts. The stage and rejection orders match apriltag_stats.h.
+    public static final int STAGE_DECIMATE = 0;
+    public static final int STAGE_BLUR = 1;
+    public static final int STAGE_THRESHOLD = 2;
+    public static final int STAGE_UNIONFIND = 3;
+    public static final int STAGE_CLUSTERS = 4;
+    public static final int STAGE_FIT_QUADS = 5;
+    public static final int STAGE_DECODE = 6;
+    public static final int STAGE_RECONCILE = 7;
+    public static final int STAGE_OTHER = 8;
+    public static final int NUM_STAGES = 9;
+    /** Quads found by segmentation */
+    public static final int STAT_QUADS = NUM_STAGES;
+    /** Quads decoded as tags, before duplicates are removed */
+    public static final int STAT_DECODED = NUM_STAGES + 1;
+    /** Detections returned */
+    public static final int STAT_DETECTIONS = NUM_STAGES + 2;
+    /**
+     * First of the candidates rejected by each stage of the early-rejection cascade, at
+     * STAT_REJECTED + REJECT_*. The decoding stages count each quad once per tag family.
+     */
+    public static final int STAT_REJECTED = NUM_STAGES + 3;
+    /** Clusters with too few or too many pixels */
+    public static final int REJECT_CLUSTER_SIZE = 0;
+    /** Clusters whose bounding box is too small or too elongated */
+    public static final int REJECT_CLUSTER_SHAPE = 1;
+    /** Clusters no plausible quad fits */
+    public static final int REJECT_QUAD_FIT = 2;
+    /** Quads without contrast across the black border */
+    public static final int REJECT_BORDER = 3;
+    /** Quads given up on part way through decoding because too many bits were ambiguous */
+    public static final int REJECT_AMBIGUOUS = 4;
+    /** Quads that are not a codeword of the family */
+    public static final int REJECT_DECODE = 5;
+    public static final int NUM_REJECTS = 6;
+    public static final int STATS_LENGTH = STAT_REJECTED + NUM_REJECTS;
+
+    public static final String[] STAGE_NAMES = {
+            "decimate", "blur", "threshold", "unionfind", "clusters", "fit quads", "decode",
+            "reconcile", "other"
+    };
+
+    public static final String[] REJECT_NAMES = {
+            "cluster size", "cluster shape", "quad fit", "border", "ambiguous", "decode"
+    };
+
+    // Decoder strategies for the constructor and reconfigure, matching apriltag_decoder.h
+    /** The fastest strategy for the built-in families; currently multi-index hashing */
+    public static final int DECODER_AUTO = 0;
+    /** Precomputed table of every correctable codeword; at most 3 error bits */
+    public static final int DECODER_TABLE = 1;
+    /** Compare against every code; smallest, slowest for large families */
+    public static final int DECODER_SCAN = 2;
+    /** Multi-index hashing; fast and small for any number of error bits */
+    public static final int DECODER_MIH = 3;
+    // Passed to native_reconfigure to keep the detector's decoder
+    private static final int DECODER_KEEP = -1;
+
+    // Held for reading by every native call and for writing by close(), so the
+    // handle cannot be freed while it is in use.
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+    private long mHandle;
+
+    /**
+     * Create a detector using {@link #DECODER_AUTO}.
+     *
+     * @param tagFamilies one or more tag family names separated by commas, e.g. "tag36h11"
+     * @throws IllegalArgumentException if a tag family is not recognized
+     */
+    public AprilTagDetector(String tagFamilies, int errorBits, double decimateFactor,
+                            double blurSigma, int nthreads) {
+        this(tagFamilies, errorBits, DECODER_AUTO, decimateFactor, blurSigma, nthreads);
+    }
+
+    /**
+     * @param tagFamilies one or more tag family names separated by commas, e.g. "tag36h11"
+     * @param decoder     how sampled codewords are matched to tag codes, one of the DECODER_
+     *                    constants. All strategies find the same tags; they differ in speed
+     *                    and memory.
+     * @throws IllegalArgumentException if a tag family or the decoder is not recognized
+     */
+    public AprilTagDetector(String tagFamilies, int errorBits, int decoder, double decimateFactor,
+                            double blurSigma, int nthreads) {
+        mHandle = native_create(tagFamilies, errorBits, decoder, decimateFactor, blurSigma, nthreads);
+    }
+
+    /**
+     * Keep the tables of {@link #DECODER_TABLE} in dir, typically {@code Context.getCacheDir()}.
+     * A table is built the first time a tag family is used with a given number of error bits
+     * and mapped from its file afterwards, which makes creating detectors much faster,
+     * especially with 3 error bits. Without a directory, tables are built in memory every
+     * time. Applies to detectors created or reconfigured afterwards.
+     *
+     * @param dir a writable directory, or null
+     */
+    public static void setDecodeTableCacheDir(File dir) {
+        native_set_table_cache_dir(dir == null ? null : dir.getAbsolutePath());
+    }
+
+    /**
+     * Replace the configuration of this detector, keeping its decoder. The previous
+     * configuration stays in use until the new one is ready; on error it is kept.
+     *
+     * @throws IllegalArgumentException if a tag family is not recognized
+     */
+    public void reconfigure(String tagFamilies, int errorBits, double decimateFactor,
+                            double blurSigma, int nthreads) {
+        mLock.readLock().lock();
+        try {
+            native_reconfigure(checkHandle(), tagFamilies, errorBits, DECODER_KEEP, decimateFactor,
+                    blurSigma, nthreads);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the configuration of this detector, including its decoder; see
+     * {@link #AprilTagDetector(String, int, int, double, double, int)}.
+     *
+     * @throws IllegalArgumentException if a tag family or the decoder is not recognized
+     */
+    public void reconfigure(String tagFamilies, int errorBits, int decoder, double decimateFactor,
+                            double blurSigma, int nthreads) {
+        if (decoder == DECODER_KEEP) {
+            throw new IllegalArgumentException("invalid decoder type");
+        }
+        mLock.readLock().lock();
+        try {
+            native_reconfigure(checkHandle(), tagFamilies, errorBits, decoder, decimateFactor,
+                    blurSigma, nthreads);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Estimate the 6-DoF pose of every detected tag natively, as part of returning the
+     * results; see {@link DetectionBuffer#poses} and {@link ApriltagDetection#pose}. The camera
+     * looks down +z, with x to the right and y down the image. In tag coordinates, the tag lies
+     * in the z = 0 plane centered on the origin, with x towards its second and third corners and
+     * y towards its first and second.
+     *
+     * @param tagSize          side of the tag's outer black border; translations are in the
+     *                         same unit. 0 or less turns pose estimation off.
+     * @param fx               horizontal focal length in pixels
+     * @param fy               vertical focal length in pixels
+     * @param cx               principal point in pixels
+     * @param cy               principal point in pixels
+     * @param refineIterations iterations refining each pose by its reprojection error; 0 for none
+     * @throws IllegalArgumentException if a focal length is zero
+     */
+    public void setPoseEstimation(double tagSize, double fx, double fy, double cx, double cy,
+                                  int refineIterations) {
+        mLock.readLock().lock();
+        try {
+            native_set_pose(checkHandle(), tagSize, fx, fy, cx, cy, refineIterations);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Change the decimation, blur and thread count in place. Unlike {@link #reconfigure},
+     * this keeps the tag families and their decode tables, so it is cheap enough to call
+     * between frames. In pipelined mode, frames already segmented finish with the old
+     * parameters.
+     *
+     * @throws IllegalArgumentException if decimateFactor is below 1 or nthreads below 1
+     */
+    public void setParameters(double decimateFactor, double blurSigma, int nthreads) {
+        mLock.readLock().lock();
+        try {
+            native_set_params(checkHandle(), decimateFactor, blurSigma, nthreads);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Search for quads on a pyramid of images. Level 0 is decimated by the decimation factor
+     * and each further level by twice as much as the one before. Coarser levels are searched
+     * first, and each finer level skips the regions around quads already found, so near tags
+     * cost about as much as at the coarsest decimation while far tags are still found at the
+     * finest. Kept by {@link #reconfigure}.
+     *
+     * @param levels number of levels; 1 or less searches the decimated image only
+     */
+    public void setPyramidLevels(int levels) {
+        mLock.readLock().lock();
+        try {
+            native_set_pyramid(checkHandle(), levels);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reject candidates that cannot be tags before the expensive steps of fitting quads to
+     * them, refining and decoding them; see {@link #REJECT_NAMES} for the stages. Rejected
+     * candidates are counted in {@link #getLastFrameStats}. Off by default, since a tag
+     * close to a threshold can be rejected that would otherwise be found. Zero or less turns
+     * a check off. Kept by {@link #reconfigure}.
+     *
+     * @param minClusterSide     least length of the shorter side of a cluster's bounding box,
+     *                           in pixels of the decimated image
+     * @param maxClusterAspect   greatest ratio of the bounding box's longer side to its shorter
+     * @param minBorderContrast  least mean difference in gray levels between just outside and
+     *                           just inside a quad's black border
+     * @param ambiguousBitMargin gray levels around the decision threshold within which a bit
+     *                           is ambiguous; decoding gives up once too many are
+     */
+    public void setEarlyRejection(int minClusterSide, float maxClusterAspect, float minBorderContrast,
+                                  float ambiguousBitMargin) {
+        mLock.readLock().lock();
+        try {
+            native_set_rejection(checkHandle(), minClusterSide, maxClusterAspect, minBorderContrast,
+                    ambiguousBitMargin);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Enable or disable tracking mode. When tracking, the {@code detect} methods segment only
+     * the regions around tags found in the previous frame, and scan the whole frame every
+     * fullScanInterval frames or after a tag was lost. This assumes consecutive frames from
+     * one camera; new tags can take up to fullScanInterval frames to be found. Pipelined
+     * detection always scans the whole frame.
+     *
+     * @param fullScanInterval frames between full-frame scans; 0 or less turns tracking off
+     */
+    public void setTracking(int fullScanInterval) {
+        mLock.readLock().lock();
+        try {
+            native_set_tracking(checkHandle(), fullScanInterval);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Detect tags in the luma plane of an NV21 frame. */
+    public ArrayList<ApriltagDetection> detect(byte[] src, int width, int height) {
+        mLock.readLock().lock();
+        try {
+            return native_detect(checkHandle(), src, width, height);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Detect tags in a luma plane held in a direct ByteBuffer, without copying it. */
+    public ArrayList<ApriltagDetection> detect(ByteBuffer src, int offset, int width, int height, int stride) {
+        mLock.readLock().lock();
+        try {
+            return native_detect_direct(checkHandle(), src, offset, width, height, stride);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Detect tags in the luma plane of an NV21 frame, writing the results into out. */
+    public int detect(byte[] src, int width, int height, DetectionBuffer out) {
+        mLock.readLock().lock();
+        try {
+            return native_detect_into(checkHandle(), src, width, height, out);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Detect tags in a luma plane held in a direct ByteBuffer, writing the results into out. */
+    public int detect(ByteBuffer src, int offset, int width, int height, int stride, DetectionBuffer out) {
+        mLock.readLock().lock();
+        try {
+            return native_detect_direct_into(checkHandle(), src, offset, width, height, stride, out);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Detect tags in a crop of an image plane held in a direct ByteBuffer, such as the Y plane
+     * of a Camera2 {@code YUV_420_888} Image, reading it in place whatever its row padding.
+     * Pixel (x, y) of the plane is at offset + y * rowStride + x * pixelStride. Detections are
+     * written into out in the coordinates of the whole plane, not of the crop. In tracking mode
+     * the crop should stay the same from frame to frame.
+     *
+     * @throws IllegalArgumentException if pixelStride is not 1 or the crop does not fit in src
+     */
+    public int detectPlane(ByteBuffer src, int offset, int rowStride, int pixelStride, int cropLeft,
+                           int cropTop, int cropWidth, int cropHeight, DetectionBuffer out) {
+        mLock.readLock().lock();
+        try {
+            return native_detect_plane_into(checkHandle(), src, offset, rowStride, pixelStride,
+                    cropLeft, cropTop, cropWidth, cropHeight, out);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Detect tags in a batch of independent frames, such as recorded footage, in a single
+     * call. The frames share a size and stride; the luma plane of frame i starts at
+     * offsets[i] in src. Detections of all frames are written into out in frame order, with
+     * {@link DetectionBuffer#frames} holding the frame index of each.
+     * <p>
+     * The detector's threads are spread over frames, each frame detected by its own
+     * worker, so throughput scales with the thread count rather than with the parallelism
+     * within a single frame. Tracking does not apply. Afterwards,
+     * {@link #getLastFrameStats} returns the timings and counts summed over the batch.
+     * </p>
+     *
+     * @return the total number of detections
+     * @throws IllegalArgumentException if a frame does not fit in src
+     */
+    public int detectBatch(byte[] src, int[] offsets, int width, int height, int stride,
+                           DetectionBuffer out) {
+        mLock.readLock().lock();
+        try {
+            return native_detect_batch(checkHandle(), src, offsets, width, height, stride, out);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Same as {@link #detectBatch(byte[], int[], int, int, int, DetectionBuffer)}, for frames in a direct ByteBuffer. */
+    public int detectBatch(ByteBuffer src, int[] offsets, int width, int height, int stride,
+                           DetectionBuffer out) {
+        mLock.readLock().lock();
+        try {
+            return native_detect_batch_direct(checkHandle(), src, offsets, width, height, stride, out);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pipelined detection: queue a frame for detection and return without waiting for it.
+     * Segmentation of one frame overlaps with decoding of the previous one, on separate
+     * threads, which raises throughput at about the same per-frame latency. The luma plane
+     * is copied, so src can be reused once this returns.
+     *
+     * @return false if the pipeline already holds the maximum number of frames; call
+     * {@link #retrieve} and then submit again
+     */
+    public boolean submit(byte[] src, int width, int height) {
+        mLock.readLock().lock();
+        try {
+            return native_submit(checkHandle(), src, width, height);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Same as {@link #submit(byte[], int, int)}, for a luma plane held in a direct ByteBuffer. */
+    public boolean submit(ByteBuffer src, int offset, int width, int height, int stride) {
+        mLock.readLock().lock();
+        try {
+            return native_submit_direct(checkHandle(), src, offset, width, height, stride);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Wait for the oldest submitted frame and write its detections into out. Frames are
+     * returned in the order they were submitted. Other calls, such as {@link #submit}, don't
+     * wait for this one. Frames still in flight when the detector is reconfigured or closed
+     * are discarded, except the one a retrieve is already waiting for.
+     *
+     * @return the number of detections, or -1 if no frame is in flight
+     */
+    public int retrieve(DetectionBuffer out) {
+        mLock.readLock().lock();
+        try {
+            return native_retrieve_into(checkHandle(), out);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copy the per-stage timings and counts of the last frame detected, or retrieved in
+     * pipelined mode, into out, indexed by the STAGE_* and STAT_* constants and by
+     * STAT_REJECTED + REJECT_*. Timings have microsecond resolution.
+     *
+     * @param out an array of at least {@link #STATS_LENGTH} elements
+     * @return false if no frame has been detected yet
+     */
+    public boolean getLastFrameStats(long[] out) {
+        mLock.readLock().lock();
+        try {
+            return native_get_stats(checkHandle(), out);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Release the native detector. Waits for detections in progress; safe to call twice. */
+    @Override
+    public void close() {
+        mLock.writeLock().lock();
+        try {
+            if (mHandle != 0) {
+                native_destroy(mHandle);
+                mHandle = 0;
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private long checkHandle() {
+        if (mHandle == 0) {
+            throw new IllegalStateException("AprilTagDetector is closed");
+        }
+        return mHandle;
+    }
+
+    private static native long native_create(String tagFamilies, int errorBits, int decoder,
+                                             double decimateFactor, double blurSigma, int nthreads);
+
+    private static native void native_set_table_cache_dir(String dir);
+
+    private static native void native_reconfigure(long handle, String tagFamilies, int errorBits,
+                                                  int decoder, double decimateFactor, double blurSigma,
+                                                  int nthreads);
+
+    private static native void native_set_tracking(long handle, int fullScanInterval);
+
+    private static native void native_set_pose(long handle, double tagSize, double fx, double fy,
+                                               double cx, double cy, int refineIterations);
+
+    private static native void native_set_params(long handle, double decimateFactor, double blurSigma,
+                                                 int nthreads);
+
+    private static native void native_set_pyramid(long handle, int levels);
+
+    private static native void native_set_rejection(long handle, int minClusterSide, float maxClusterAspect,
+                                                    float minBorderContrast, float ambiguousBitMargin);
+
+    private static native void native_destroy(long handle);
+
+    private static native ArrayList<ApriltagDetection> native_detect(long handle, byte[] src,
+                                                                     int width, int height);
+
+    private static native ArrayList<ApriltagDetection> native_detect_direct(long handle, ByteBuffer src,
+                                                                            int offset, int width,
+                                                                            int height, int stride);
+
+    private static native int native_detect_into(long handle, byte[] src, int width, int height,
+                                                 DetectionBuffer out);
+
+    private static native int native_detect_direct_into(long handle, ByteBuffer src, int offset, int width,
+                                                        int height, int stride, DetectionBuffer out);
+
+    private static native int native_detect_plane_into(long handle, ByteBuffer src, int offset,
+                                                       int rowStride, int pixelStride, int cropLeft,
+                                                       int cropTop, int cropWidth, int cropHeight,
+                                                       DetectionBuffer out);
+
+    private static native int native_detect_batch(long handle, byte[] src, int[] offsets, int width,
+                                                  int height, int stride, DetectionBuffer out);
+
+    private static native int native_detect_batch_direct(long handle, ByteBuffer src, int[] offsets,
+                                                         int width, int height, int stride,
+                                                         DetectionBuffer out);
+
+    private static native boolean native_submit(long handle, byte[] src, int width, int height);
+
+    private static native boolean native_submit_direct(long handle, ByteBuffer src, int offset, int width,
+                                                       int height, int stride);
+
+    private static native int native_retrieve_into(long handle, DetectionBuffer out);
+
+    private static native boolean native_get_stats(long handle, long[] out);
+}
@@ -17,4 +17,12 @@ public class ApriltagDetection {
     // wrap counter-clock wise around the tag.
     // Flattened to [x0 y0 x1 y1 ...] for JNI convenience
     public double[] p = new double[8];
+
+    // The pose of the tag in camera coordinates, if pose estimation is enabled with
+    // AprilTagDetector.setPoseEstimation, else null: the rotation (row-major) from tag to
+    // camera coordinates followed by the position of the tag center, 12 values in all.
+    public double[] pose;
+
+    // Mean squared reprojection error of the corners under pose, in pixels^2
+    public double poseError;
 }
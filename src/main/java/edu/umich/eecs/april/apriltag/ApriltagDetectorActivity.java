@@ -6,6 +6,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v4.app.ActivityCompat;
@@ -30,8 +31,10 @@ import android.widget.TextView;
 
 public class ApriltagDetectorActivity extends AppCompatActivity {
     private static final String TAG = "AprilTag";
+    private AprilTagDetector mDetector;
     private DetectionThread mDetectionThread;
     private CameraPreviewThread mCameraPreviewThread;
+    private Camera2Capture mCamera2Capture;
 
     private static final int MY_PERMISSIONS_REQUEST_CAMERA = 77;
     private int has_camera_permissions = 0;
@@ -58,6 +61,9 @@ public class ApriltagDetectorActivity extends AppCompatActivity {
         Toolbar myToolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(myToolbar);
 
+        // Decode tables take long to build with many error bits; build each one only once
+        AprilTagDetector.setDecodeTableCacheDir(getCacheDir());
+
         // Make the screen stay awake
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
@@ -89,6 +95,10 @@ public class ApriltagDetectorActivity extends AppCompatActivity {
     }
 
     private void stopThreads() {
+        // Images stay valid until the detection thread has stopped
+        if (mCamera2Capture != null) {
+            mCamera2Capture.stop();
+        }
         if (mCameraPreviewThread != null) {
             mCameraPreviewThread.interrupt();
             mCameraPreviewThread.destroy();
@@ -109,6 +119,14 @@ public class ApriltagDetectorActivity extends AppCompatActivity {
             }
             mDetectionThread = null;
         }
+        if (mCamera2Capture != null) {
+            mCamera2Capture.close();
+            mCamera2Capture = null;
+        }
+        if (mDetector != null) {
+            mDetector.close();
+            mDetector = null;
+        }
     }
 
     /** (Re-)initialize the camera */
@@ -126,14 +144,33 @@ public class ApriltagDetectorActivity extends AppCompatActivity {
         verifyPreferences();
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         double decimation = Double.parseDouble(sharedPreferences.getString("decimation_list", "8"));
+        int pyramidLevels = Integer.parseInt(sharedPreferences.getString("pyramid_list", "1"));
         double sigma = Double.parseDouble(sharedPreferences.getString("sigma_value", "0"));
         int nthreads = Integer.parseInt(sharedPreferences.getString("nthreads_value", "4"));
         int max_hamming_error = Integer.parseInt(sharedPreferences.getString("max_hamming_error", "0"));
+        boolean pipelineEnabled = sharedPreferences.getBoolean("pipeline_enabled", false);
+        boolean trackingEnabled = sharedPreferences.getBoolean("tracking_enabled", false);
+        boolean earlyRejectionEnabled = sharedPreferences.getBoolean("early_rejection_enabled", false);
+        boolean camera2Enabled = sharedPreferences.getBoolean("camera2_enabled", false)
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
         boolean diagnosticsEnabled = sharedPreferences.getBoolean("diagnostics_enabled", false);
+        boolean adaptiveEnabled = sharedPreferences.getBoolean("adaptive_enabled", false);
+        double targetLatency = Double.parseDouble(sharedPreferences.getString("target_latency_ms", "33"));
         String tagFamily = sharedPreferences.getString("tag_family_list", "tag36h11");
         Log.i(TAG, String.format("decimation: %f | sigma: %f | nthreads: %d | tagFamily: %s",
                 decimation, sigma, nthreads, tagFamily));
-        ApriltagNative.apriltag_init(tagFamily, max_hamming_error, decimation, sigma, nthreads);
+        mDetector = new AprilTagDetector(tagFamily, max_hamming_error, decimation, sigma, nthreads);
+        mDetector.setPyramidLevels(pyramidLevels);
+        mDetector.setTracking(trackingEnabled ? 10 : 0);
+        if (earlyRejectionEnabled) {
+            // Thresholds that lost no tags on cluttered test scenes
+            mDetector.setEarlyRejection(4, 8, 10, 5);
+        }
+        DecimationController controller = null;
+        if (adaptiveEnabled && targetLatency > 0) {
+            controller = new DecimationController(targetLatency, decimation, sigma, nthreads);
+            mDetector.setParameters(controller.getDecimation(), sigma, controller.getThreads());
+        }
 
         // DIAGNOSTICS
         findViewById(R.id.detectionFpsTextView).setVisibility(diagnosticsEnabled ? View.VISIBLE : View.INVISIBLE);
@@ -147,7 +184,8 @@ public class ApriltagDetectorActivity extends AppCompatActivity {
         TextureView detectionSurface = (TextureView) findViewById(R.id.tagView);
         TextView detectionFpsTextView = (TextView) findViewById(R.id.detectionFpsTextView);
         stylizeText(detectionFpsTextView);
-        mDetectionThread = new DetectionThread(detectionSurface, detectionFpsTextView);
+        mDetectionThread = new DetectionThread(mDetector, pipelineEnabled, controller, camera2Enabled,
+                detectionSurface, detectionFpsTextView);
         mDetectionThread.initialize();
         mDetectionThread.start();
 
@@ -155,9 +193,16 @@ public class ApriltagDetectorActivity extends AppCompatActivity {
         SurfaceView previewSurface = (SurfaceView) findViewById(R.id.surfaceView);
         TextView previewFpsTextView = (TextView) findViewById(R.id.previewFpsTextView);
         stylizeText(previewFpsTextView);
-        mCameraPreviewThread = new CameraPreviewThread(previewSurface.getHolder(), mDetectionThread, previewFpsTextView);
-        mCameraPreviewThread.initialize();
-        mCameraPreviewThread.start();
+        if (camera2Enabled) {
+            mCamera2Capture = new Camera2Capture(this, previewSurface.getHolder(), mDetectionThread, previewFpsTextView);
+            if (mCamera2Capture.initialize()) {
+                mCamera2Capture.start();
+            }
+        } else {
+            mCameraPreviewThread = new CameraPreviewThread(previewSurface.getHolder(), mDetectionThread, previewFpsTextView);
+            mCameraPreviewThread.initialize();
+            mCameraPreviewThread.start();
+        }
     }
 
     private void stylizeText(TextView textView) {
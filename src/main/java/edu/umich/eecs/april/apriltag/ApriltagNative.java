@@ -3,6 +3,7 @@ package edu.umich.eecs.april.apriltag;
 import android.graphics.Bitmap;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
@@ -17,10 +18,56 @@ public class ApriltagNative {
 
     public static native void native_init();
 
+    // Referencing this class loads the native library; other classes call this to make
+    // sure that has happened before they use their own native methods.
+    static void ensureLoaded() {
+    }
+
+    /**
+     * Convert an NV21 frame to an ARGB_8888 bitmap in portrait orientation, rotated 90 degrees
+     * clockwise; dst must be height pixels wide and width pixels high.
+     */
     public static native void yuv_to_rgb(byte[] src, int width, int height, Bitmap dst);
 
+    /**
+     * Same as {@link #yuv_to_rgb(byte[], int, int, Bitmap)}, scaling the frame down by an
+     * integer factor in the same pass, e.g. to the size of the display; dst must be
+     * height/scale pixels wide and width/scale pixels high. Each output pixel is converted
+     * from the average of the block of pixels it covers.
+     *
+     * @throws IllegalArgumentException if scale is below 1 or larger than the frame
+     */
+    public static native void yuv_to_rgb(byte[] src, int width, int height, int scale, Bitmap dst);
+
     public static native void apriltag_init(String tagFamily, int errorBits, double decimateFactor,
                                             double blurSigma, int nthreads);
 
     public static native ArrayList<ApriltagDetection> apriltag_detect_yuv(byte[] src, int width, int height);
+
+    /**
+     * Detect tags in the luma plane of a frame held in a direct ByteBuffer. The buffer is
+     * read in place, without copying; row y of the image starts at offset + y*stride.
+     *
+     * @throws IllegalArgumentException if src is not direct or is too small for the frame
+     */
+    public static native ArrayList<ApriltagDetection> apriltag_detect_yuv(ByteBuffer src, int offset,
+                                                                          int width, int height, int stride);
+
+    /**
+     * Same as {@link #apriltag_detect_yuv(byte[], int, int)}, but writes the results into a
+     * caller-owned buffer instead of allocating new objects.
+     *
+     * @return the number of detections written to out
+     */
+    public static native int apriltag_detect_yuv_into(byte[] src, int width, int height,
+                                                      DetectionBuffer out);
+
+    /**
+     * Same as {@link #apriltag_detect_yuv(ByteBuffer, int, int, int, int)}, but writes the
+     * results into a caller-owned buffer instead of allocating new objects.
+     *
+     * @return the number of detections written to out
+     */
+    public static native int apriltag_detect_yuv_into(ByteBuffer src, int offset, int width,
+                                                      int height, int stride, DetectionBuffer out);
 }
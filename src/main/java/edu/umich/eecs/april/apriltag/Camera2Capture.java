@@ -0,0 +1,311 @@
+package edu.umich.eecs.april.apriltag;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.widget.TextView;
+
+import java.util.Arrays;
+
+/**
+ * Camera2 counterpart of {@link CameraPreviewThread}: shows the live preview and feeds
+ * {@code YUV_420_888} images from an {@link ImageReader} to the DetectionThread, which detects
+ * in their Y plane in place. The reader's fixed pool of images is the only frame memory; images
+ * go back to it when the detection thread is done with them or drops them.
+ * <p>
+ * Camera callbacks run on a thread of their own. Call {@link #stop} before stopping the
+ * detection thread and {@link #close} after, since closing the reader invalidates its images.
+ * </p>
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Capture {
+    private static final String TAG = "Camera2Capture";
+
+    // Images the reader hands out at once: enough to fill the image ring, plus one being
+    // detected and one just acquired
+    private static final int EXTRA_IMAGES = 2;
+
+    private final CameraManager mCameraManager;
+    private final SurfaceHolder mSurfaceHolder;
+    private final DetectionThread mDetectionThread;
+    private final TextView mFpsTextView;
+
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+    private String mCameraId;
+    private Size mSize;
+    private ImageReader mImageReader;
+
+    // Only touched on the camera thread
+    private CameraDevice mCamera;
+    private CameraCaptureSession mSession;
+    private boolean mSurfaceReady = false;
+
+    private long mLastRender = System.currentTimeMillis();
+    private int mFrameCount = 0;
+
+    private final SurfaceHolder.Callback mCallback = new SurfaceHolder.Callback() {
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+            // Wait for the size set in initialize
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            if (width != mSize.getWidth() || height != mSize.getHeight()) {
+                return;
+            }
+            mCameraHandler.post(() -> {
+                mSurfaceReady = true;
+                startSession();
+            });
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+            mCameraHandler.post(() -> {
+                mSurfaceReady = false;
+                closeSession();
+            });
+        }
+    };
+
+    private final ImageReader.OnImageAvailableListener mImageListener = reader -> {
+        Image image = reader.acquireNextImage();
+        if (image != null) {
+            mDetectionThread.enqueueImage(image);
+            previewFpsCallback();
+        }
+    };
+
+    public Camera2Capture(Context context, SurfaceHolder surfaceHolder, DetectionThread detectionThread,
+                          TextView fpsTextView) {
+        mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        mSurfaceHolder = surfaceHolder;
+        mDetectionThread = detectionThread;
+        mFpsTextView = fpsTextView;
+    }
+
+    /** Choose the back camera and the capture size; returns false if there is no usable camera. */
+    public boolean initialize() {
+        try {
+            for (String id : mCameraManager.getCameraIdList()) {
+                CameraCharacteristics info = mCameraManager.getCameraCharacteristics(id);
+                Integer facing = info.get(CameraCharacteristics.LENS_FACING);
+                if (mCameraId == null || (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK)) {
+                    mCameraId = id;
+                }
+            }
+            if (mCameraId == null) {
+                Log.e(TAG, "No camera");
+                return false;
+            }
+
+            CameraCharacteristics info = mCameraManager.getCameraCharacteristics(mCameraId);
+            StreamConfigurationMap map = info.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            for (Size candidateSize : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+                Log.i(TAG, " " + candidateSize + " (" + candidateSize.getWidth() * candidateSize.getHeight() + " area)");
+                if (candidateSize.getWidth() == candidateSize.getHeight()) {
+                    continue;
+                }
+                if (mSize == null || candidateSize.getWidth() * candidateSize.getHeight() > mSize.getWidth() * mSize.getHeight()) {
+                    mSize = candidateSize;
+                }
+            }
+            if (mSize == null) {
+                Log.e(TAG, "Camera " + mCameraId + " has no YUV_420_888 output");
+                return false;
+            }
+            Log.i(TAG, "using camera " + mCameraId + ", setting " + mSize);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Couldn't query cameras: " + e.getMessage());
+            return false;
+        }
+
+        mDetectionThread.setFrameSize(mSize.getWidth(), mSize.getHeight());
+        return true;
+    }
+
+    /** Open the camera and start delivering images once the preview surface is ready. */
+    @SuppressLint("MissingPermission")
+    public void start() {
+        mCameraThread = new HandlerThread(TAG);
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+
+        FrameRing<Image> imageRing = mDetectionThread.getImageRing();
+        imageRing.setRecycler(Image::close);
+        mImageReader = ImageReader.newInstance(mSize.getWidth(), mSize.getHeight(), ImageFormat.YUV_420_888,
+                imageRing.capacity() + EXTRA_IMAGES);
+        mImageReader.setOnImageAvailableListener(mImageListener, mCameraHandler);
+
+        mSurfaceHolder.addCallback(mCallback);
+        mSurfaceHolder.setFixedSize(mSize.getWidth(), mSize.getHeight());
+
+        try {
+            mCameraManager.openCamera(mCameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice camera) {
+                    mCamera = camera;
+                    startSession();
+                }
+
+                @Override
+                public void onDisconnected(CameraDevice camera) {
+                    Log.w(TAG, "Camera disconnected");
+                    closeCamera();
+                }
+
+                @Override
+                public void onError(CameraDevice camera, int error) {
+                    Log.e(TAG, "Camera error " + error);
+                    closeCamera();
+                }
+            }, mCameraHandler);
+        } catch (CameraAccessException | SecurityException e) {
+            Log.e(TAG, "Couldn't open camera: " + e.getMessage());
+        }
+    }
+
+    /** Stop the camera; no images are delivered once this returns. */
+    public void stop() {
+        mSurfaceHolder.removeCallback(mCallback);
+        if (mCameraThread == null) {
+            return;
+        }
+        mCameraHandler.post(() -> {
+            mImageReader.setOnImageAvailableListener(null, null);
+            closeCamera();
+        });
+        mCameraThread.quitSafely();
+        try {
+            mCameraThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while stopping the camera thread");
+        }
+        mCameraThread = null;
+    }
+
+    /** Release the images; the detection thread must not hold any. */
+    public void close() {
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+    }
+
+    // Both the camera and the preview surface must be ready
+    private void startSession() {
+        if (mCamera == null || !mSurfaceReady || mSession != null) {
+            return;
+        }
+
+        final Surface previewSurface = mSurfaceHolder.getSurface();
+        final Surface readerSurface = mImageReader.getSurface();
+        try {
+            mCamera.createCaptureSession(Arrays.asList(previewSurface, readerSurface),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(CameraCaptureSession session) {
+                            if (mCamera == null) {
+                                session.close();
+                                return;
+                            }
+                            mSession = session;
+                            try {
+                                CaptureRequest.Builder request = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                                request.addTarget(previewSurface);
+                                request.addTarget(readerSurface);
+                                setCaptureParameters(request);
+                                session.setRepeatingRequest(request.build(), null, mCameraHandler);
+                                Log.i(TAG, "Camera preview start");
+                            } catch (CameraAccessException | IllegalStateException e) {
+                                Log.e(TAG, "Error starting camera preview: " + e.getMessage());
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession session) {
+                            Log.e(TAG, "Couldn't configure capture session");
+                        }
+                    }, mCameraHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Error creating capture session: " + e.getMessage());
+        }
+    }
+
+    private void setCaptureParameters(CaptureRequest.Builder request) throws CameraAccessException {
+        CameraCharacteristics info = mCameraManager.getCameraCharacteristics(mCameraId);
+
+        boolean continuousVideo = false;
+        int[] afModes = info.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (afModes != null) {
+            for (int mode : afModes) {
+                continuousVideo |= mode == CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+            }
+        }
+        if (continuousVideo) {
+            request.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+            Log.i(TAG, "Setting focus mode for continuous video");
+        } else {
+            Log.i(TAG, "Focus mode for continuous video not supported, skipping");
+        }
+
+        // Same frame rate as the Camera1 preview
+        Range<Integer>[] fpsRanges = info.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (fpsRanges != null) {
+            for (Range<Integer> range : fpsRanges) {
+                if (range.getLower() == 15 && range.getUpper() == 15) {
+                    request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+                    Log.i(TAG, "Setting FPS range " + range);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void closeSession() {
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+    }
+
+    private void closeCamera() {
+        closeSession();
+        if (mCamera != null) {
+            mCamera.close();
+            mCamera = null;
+        }
+    }
+
+    private void previewFpsCallback() {
+        long now = System.currentTimeMillis();
+        long diff = now - mLastRender;
+        mFrameCount++;
+        if (diff >= 1000) {
+            final double fps = 1000.0 / diff * mFrameCount;
+            mFpsTextView.post(() -> mFpsTextView.setText(String.format("%.2f fps Camera", fps)));
+            mLastRender = now;
+            mFrameCount = 0;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package edu.umich.eecs.april.apriltag;
 
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -25,6 +26,15 @@ public class CameraPreviewThread extends Thread {
     private Camera mCamera;
     private final TextView mFpsTextView;
 
+    // Frame buffers are allocated once: enough to fill the frame ring, plus one being
+    // detected and one being filled by the camera.
+    private static final int EXTRA_FRAME_BUFFERS = 2;
+    private boolean mFrameBuffersAdded = false;
+
+    // Frame buffers come back from the detection thread; the camera must not be released
+    // while one is being returned.
+    private final Object mCameraLock = new Object();
+
     private long mLastRender = System.currentTimeMillis();
     private int mFrameCount = 0;
     private SurfaceHolder.Callback mCallback = new SurfaceHolder.Callback() {
@@ -33,14 +43,11 @@ public class CameraPreviewThread extends Thread {
             try {
                 mCamera.setPreviewDisplay(holder);
 
-                // Set the preview callback to receive camera frames asynchronously
-                mCamera.setPreviewCallback((data, camera) -> {
-                    try {
-                        mDetectionThread.enqueueCameraFrame(data, camera.getParameters().getPreviewSize());
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Interrupted while enqueuing camera frame: " + e.getMessage());
-                    }
+                addFrameBuffers();
 
+                // Receive camera frames asynchronously, in our own recycled buffers
+                mCamera.setPreviewCallbackWithBuffer((data, camera) -> {
+                    mDetectionThread.enqueueCameraFrame(data);
                     previewFpsCallback();
                 });
 
@@ -71,10 +78,37 @@ public class CameraPreviewThread extends Thread {
 
     public void destroy() {
         mSurfaceHolder.removeCallback(mCallback);
-        mCamera.setPreviewCallback(null);
-        mCamera.stopPreview();
-        mCamera.release();
-        mCamera = null;
+        synchronized (mCameraLock) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+            mCamera.stopPreview();
+            mCamera.release();
+            mCamera = null;
+        }
+    }
+
+    private void addFrameBuffers() {
+        Camera.Size size = mCamera.getParameters().getPreviewSize();
+        mDetectionThread.setFrameSize(size.width, size.height);
+
+        FrameRing<byte[]> frameRing = mDetectionThread.getFrameRing();
+        frameRing.setRecycler(this::recycleFrameBuffer);
+
+        if (mFrameBuffersAdded) {
+            return;
+        }
+        int frameSize = size.width * size.height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        for (int i = 0; i < frameRing.capacity() + EXTRA_FRAME_BUFFERS; i++) {
+            mCamera.addCallbackBuffer(new byte[frameSize]);
+        }
+        mFrameBuffersAdded = true;
+    }
+
+    private void recycleFrameBuffer(byte[] buffer) {
+        synchronized (mCameraLock) {
+            if (mCamera != null) {
+                mCamera.addCallbackBuffer(buffer);
+            }
+        }
     }
 
     private void previewFpsCallback() {
@@ -0,0 +1,156 @@
+package edu.umich.eecs.april.apriltag;
+
+/**
+ * Closed-loop choice of decimation and thread count that keeps detection time near a target.
+ * <p>
+ * Fed the detection time and results of every frame, it smooths the time and, at most once
+ * per settle period, takes one step: add threads or decimate harder when detection is too
+ * slow, decimate less when tags are small or lost and the cost of the finer image is
+ * predicted to fit the target, decimate harder when tags are large enough to be found anyway,
+ * and give back threads when detection is well under the target. Decimation moves along a
+ * fixed ladder; cost is assumed to grow with the number of decimated pixels.
+ * </p>
+ * <p>
+ * Apply changes with {@link AprilTagDetector#setParameters}. Not thread-safe.
+ * </p>
+ */
+public class DecimationController {
+    private static final double[] DECIMATIONS = {1, 1.5, 2, 3, 4, 6, 8};
+
+    // Smallest tag side, in decimated pixels, below which decimation is lowered for range,
+    // and above which it is raised for speed. Far enough apart that one step never crosses both.
+    private static final double SMALL_TAG_PIXELS = 12;
+    private static final double LARGE_TAG_PIXELS = 40;
+
+    // Frames without tags before decimation is lowered to look for them
+    private static final int LOST_FRAMES = 5;
+
+    // Frames to wait after a change, so that the time reflects the new parameters
+    private static final int SETTLE_FRAMES = 5;
+
+    // Weight of the newest frame in the smoothed detection time
+    private static final double SMOOTHING = 0.25;
+
+    // Over target by this factor is too slow; under it by UNDER_TARGET leaves threads to spare
+    private static final double OVER_TARGET = 1.1;
+    private static final double UNDER_TARGET = 0.5;
+
+    private final double mTargetNanos;
+    private final double mBlurSigma;
+    private final int mMaxThreads;
+
+    private int mLevel;
+    private int mThreads;
+
+    private double mAverageNanos = -1;
+    private int mSettle = SETTLE_FRAMES;
+    private int mLostFrames;
+
+    /**
+     * @param targetMillis      detection time to stay under, in milliseconds
+     * @param initialDecimation starting decimation; the nearest step of the ladder is used
+     * @param blurSigma         blur passed through unchanged to {@link #getBlurSigma}
+     * @param maxThreads        most threads to use; starts with this many
+     */
+    public DecimationController(double targetMillis, double initialDecimation, double blurSigma,
+                                int maxThreads) {
+        if (targetMillis <= 0 || maxThreads < 1) {
+            throw new IllegalArgumentException("target and thread count must be positive");
+        }
+        mTargetNanos = targetMillis * 1e6;
+        mBlurSigma = blurSigma;
+        mMaxThreads = maxThreads;
+        mThreads = maxThreads;
+
+        for (int i = 1; i < DECIMATIONS.length; i++) {
+            if (Math.abs(DECIMATIONS[i] - initialDecimation) < Math.abs(DECIMATIONS[mLevel] - initialDecimation)) {
+                mLevel = i;
+            }
+        }
+    }
+
+    public double getDecimation() {
+        return DECIMATIONS[mLevel];
+    }
+
+    public double getBlurSigma() {
+        return mBlurSigma;
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    /**
+     * Account for one detected frame.
+     *
+     * @param detectNanos time the detection took
+     * @param detections  the frame's detections, in full-resolution pixels
+     * @param count       number of detections in detections
+     * @return true if the decimation or thread count changed
+     */
+    public boolean update(long detectNanos, DetectionBuffer detections, int count) {
+        mAverageNanos = mAverageNanos < 0 ? detectNanos
+                : mAverageNanos + SMOOTHING * (detectNanos - mAverageNanos);
+        mLostFrames = count > 0 ? 0 : mLostFrames + 1;
+
+        if (mSettle > 0) {
+            mSettle--;
+            return false;
+        }
+
+        double decimation = DECIMATIONS[mLevel];
+        double smallest = smallestTagSide(detections, count) / decimation;
+        boolean top = mLevel == DECIMATIONS.length - 1;
+
+        if (mAverageNanos > OVER_TARGET * mTargetNanos) {
+            if (mThreads < mMaxThreads) {
+                mThreads++;
+            } else if (!top) {
+                mLevel++;
+            } else {
+                return false;
+            }
+        } else if (count > 0 && smallest > LARGE_TAG_PIXELS && !top) {
+            mLevel++;
+        } else if ((count > 0 && smallest < SMALL_TAG_PIXELS) || mLostFrames >= LOST_FRAMES) {
+            if (mLevel == 0) {
+                return false;
+            }
+            double ratio = decimation / DECIMATIONS[mLevel - 1];
+            if (mAverageNanos * ratio * ratio <= mTargetNanos) {
+                mLevel--;
+            } else if (mThreads < mMaxThreads) {
+                mThreads++;
+            } else {
+                return false;
+            }
+        } else if (mAverageNanos < UNDER_TARGET * mTargetNanos && mThreads > 1) {
+            mThreads--;
+        } else {
+            return false;
+        }
+
+        // start measuring the new parameters afresh
+        mAverageNanos = -1;
+        mSettle = SETTLE_FRAMES;
+        mLostFrames = 0;
+        return true;
+    }
+
+    // Shortest side of any detected tag in pixels, or 0 if there are none
+    private static double smallestTagSide(DetectionBuffer detections, int count) {
+        double smallest = Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            double[] c = detections.corners;
+            int p0 = i * 8;
+            for (int k = 0; k < 4; k++) {
+                int p1 = i * 8 + ((k + 1) % 4) * 2;
+                double dx = c[p1] - c[p0 + k * 2];
+                double dy = c[p1 + 1] - c[p0 + k * 2 + 1];
+                smallest = Math.min(smallest, Math.sqrt(dx * dx + dy * dy));
+            }
+        }
+        return count > 0 ? smallest : 0;
+    }
+}
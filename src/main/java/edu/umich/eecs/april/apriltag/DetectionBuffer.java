@@ -0,0 +1,90 @@
+package edu.umich.eecs.april.apriltag;
+
+/**
+ * Reusable, flat storage for detection results. Filled by
+ * {@link ApriltagNative#apriltag_detect_yuv_into}; detection i occupies index i of
+ * ids, hamming and decisionMargin, [8*i, 8*i+8) of corners and [2*i, 2*i+2) of centers.
+ * The arrays only grow, so a buffer held across frames stops allocating once it has
+ * seen the largest number of tags in view.
+ */
+public class DetectionBuffer {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // The decoded IDs of the tags
+    public int[] ids;
+
+    // How many error bits were corrected for each tag
+    public int[] hamming;
+
+    // Average difference between data bit intensities and the decision threshold
+    public float[] decisionMargin;
+
+    // Corners in image pixel coordinates, counter-clockwise, [x0 y0 x1 y1 x2 y2 x3 y3] per tag
+    public double[] corners;
+
+    // Centers in image pixel coordinates, [x y] per tag
+    public double[] centers;
+
+    // Index of the frame each tag was found in; only filled by batch detection, and null
+    // until then
+    public int[] frames;
+
+    // Only filled when pose estimation is enabled, and null until then:
+    // [R00 R01 R02 R10 .. R22 tx ty tz] per tag, the rotation and translation from tag to
+    // camera coordinates
+    public double[] poses;
+
+    // Mean squared reprojection error of the corners under each pose, in pixels^2; allocated
+    // with poses
+    public float[] poseErrors;
+
+    public DetectionBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DetectionBuffer(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    public int capacity() {
+        return ids.length;
+    }
+
+    /**
+     * Make room for at least n detections. When the buffer grows, every array is replaced and
+     * its existing contents are discarded, not copied; frames, poses and poseErrors become
+     * null until next filled.
+     */
+    public void ensureCapacity(int n) {
+        ensureCapacity(n, false, false);
+    }
+
+    /**
+     * Like {@link #ensureCapacity(int)}, also making room in frames if withFrames and in poses
+     * and poseErrors if withPoses, allocating them if needed. Called from native code before
+     * results are copied in.
+     */
+    public void ensureCapacity(int n, boolean withFrames, boolean withPoses) {
+        if (n > ids.length) {
+            allocate(Math.max(n, 2 * ids.length));
+        }
+        if (withFrames && frames == null) {
+            frames = new int[ids.length];
+        }
+        if (withPoses && poses == null) {
+            poses = new double[12 * ids.length];
+            poseErrors = new float[ids.length];
+        }
+    }
+
+    private void allocate(int capacity) {
+        ids = new int[capacity];
+        hamming = new int[capacity];
+        decisionMargin = new float[capacity];
+        corners = new double[8 * capacity];
+        centers = new double[2 * capacity];
+        frames = null;
+        poses = null;
+        poseErrors = null;
+    }
+}
@@ -0,0 +1,156 @@
+package edu.umich.eecs.april.apriltag;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Rolling percentiles of per-frame detection statistics over the last few frames: the stage
+ * timings and counts reported by {@link AprilTagDetector#getLastFrameStats}, the total
+ * detection time, and the number of camera frames dropped since the previous frame.
+ * <p>
+ * Series are indexed like the array filled by {@link AprilTagDetector#getLastFrameStats},
+ * plus {@link #SERIES_TOTAL} and {@link #SERIES_DROPPED}. Recording a frame and reading a
+ * percentile do not allocate. Not thread-safe.
+ * </p>
+ */
+public class DetectionMetrics {
+    /** Sum of all stage timings, in nanoseconds */
+    public static final int SERIES_TOTAL = AprilTagDetector.STATS_LENGTH;
+    /** Frames dropped between the previous frame and this one */
+    public static final int SERIES_DROPPED = AprilTagDetector.STATS_LENGTH + 1;
+    public static final int NUM_SERIES = AprilTagDetector.STATS_LENGTH + 2;
+
+    // One circular window of samples per series; mNext is the slot of the next frame
+    private final long[][] mSamples;
+    private final long[] mSorted;
+    private int mCount;
+    private int mNext;
+
+    private final long[] mStats = new long[AprilTagDetector.STATS_LENGTH];
+    private long mLastDropped = -1;
+
+    /** @param window number of most recent frames the percentiles are taken over */
+    public DetectionMetrics(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        mSamples = new long[NUM_SERIES][window];
+        mSorted = new long[window];
+    }
+
+    /**
+     * Record the last frame detected by detector.
+     *
+     * @param droppedFrames total number of frames dropped so far, e.g.
+     *                      {@link FrameRing#droppedFrames}
+     * @return false if the detector has not detected a frame yet
+     */
+    public boolean record(AprilTagDetector detector, long droppedFrames) {
+        if (!detector.getLastFrameStats(mStats)) {
+            return false;
+        }
+        record(mStats, droppedFrames);
+        return true;
+    }
+
+    /** Record one frame given the array filled by {@link AprilTagDetector#getLastFrameStats}. */
+    public void record(long[] stats, long droppedFrames) {
+        long total = 0;
+        for (int i = 0; i < AprilTagDetector.STATS_LENGTH; i++) {
+            mSamples[i][mNext] = stats[i];
+        }
+        for (int i = 0; i < AprilTagDetector.NUM_STAGES; i++) {
+            total += stats[i];
+        }
+        mSamples[SERIES_TOTAL][mNext] = total;
+        mSamples[SERIES_DROPPED][mNext] = mLastDropped < 0 ? 0 : droppedFrames - mLastDropped;
+        mLastDropped = droppedFrames;
+
+        mNext = (mNext + 1) % mSorted.length;
+        if (mCount < mSorted.length) {
+            mCount++;
+        }
+    }
+
+    /** Number of frames the percentiles are currently taken over. */
+    public int size() {
+        return mCount;
+    }
+
+    public void clear() {
+        mCount = 0;
+        mNext = 0;
+        mLastDropped = -1;
+    }
+
+    /** The value of a series for the most recently recorded frame, or 0 if none is. */
+    public long latest(int series) {
+        if (mCount == 0) {
+            return 0;
+        }
+        return mSamples[series][(mNext + mSorted.length - 1) % mSorted.length];
+    }
+
+    /**
+     * The nearest-rank percentile of a series over the recorded frames, or 0 if none are.
+     *
+     * @param percent between 0 and 100
+     */
+    public long percentile(int series, double percent) {
+        if (mCount == 0) {
+            return 0;
+        }
+        System.arraycopy(mSamples[series], 0, mSorted, 0, mCount);
+        Arrays.sort(mSorted, 0, mCount);
+        return rank(percent);
+    }
+
+    // Percentile of the first mCount elements of mSorted, which must be sorted
+    private long rank(double percent) {
+        int index = (int) Math.ceil(percent / 100 * mCount) - 1;
+        return mSorted[Math.max(0, Math.min(mCount - 1, index))];
+    }
+
+    /** p50/p95/p99 of every series, timings in milliseconds, on a single line. */
+    @Override
+    public String toString() {
+        if (mCount == 0) {
+            return "no frames";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%d frames p50/p95/p99:", mCount));
+        for (int series = 0; series < NUM_SERIES; series++) {
+            System.arraycopy(mSamples[series], 0, mSorted, 0, mCount);
+            Arrays.sort(mSorted, 0, mCount);
+            sb.append(' ').append(seriesName(series)).append(' ');
+            if (series < AprilTagDetector.NUM_STAGES || series == SERIES_TOTAL) {
+                sb.append(String.format(Locale.US, "%.1f/%.1f/%.1f ms",
+                        rank(50) / 1e6, rank(95) / 1e6, rank(99) / 1e6));
+            } else {
+                sb.append(rank(50)).append('/').append(rank(95)).append('/').append(rank(99));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String seriesName(int series) {
+        if (series < AprilTagDetector.NUM_STAGES) {
+            return AprilTagDetector.STAGE_NAMES[series];
+        }
+        if (series >= AprilTagDetector.STAT_REJECTED && series < AprilTagDetector.STATS_LENGTH) {
+            return "rejected " + AprilTagDetector.REJECT_NAMES[series - AprilTagDetector.STAT_REJECTED];
+        }
+        switch (series) {
+            case AprilTagDetector.STAT_QUADS:
+                return "quads";
+            case AprilTagDetector.STAT_DECODED:
+                return "decoded";
+            case AprilTagDetector.STAT_DETECTIONS:
+                return "detections";
+            case SERIES_TOTAL:
+                return "total";
+            default:
+                return "dropped";
+        }
+    }
+}
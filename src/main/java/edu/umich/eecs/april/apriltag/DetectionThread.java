@@ -1,89 +1,111 @@
 package edu.umich.eecs.april.apriltag;
 
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.PorterDuff;
-import android.graphics.SurfaceTexture;
-import android.hardware.Camera;
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.media.Image;
+import android.os.Build;
 import android.util.Log;
 import android.view.TextureView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
 public class DetectionThread extends Thread {
 
     private static final String TAG = "DetectionThread";
-    private TextureView mTextureView;
+    private final AprilTagDetector mDetector;
+    private final boolean mPipelined;
+    private final boolean mCamera2;
 
     private final TextView mFpsTextView;
     private long mLastFPSRender = System.currentTimeMillis();
-    private Camera.Size mCameraSize;
-    private static final int MAX_FRAME_QUEUE_SIZE = 1;
-
-    private BlockingQueue<byte[]> mCameraFrameQueue = new LinkedBlockingQueue<>();
-    private long mLastEnqueueFrameTime;
+    private volatile int mFrameWidth;
+    private volatile int mFrameHeight;
+
+    // Frames waiting for detection. Camera frames arrive faster than they can be processed,
+    // so only the newest few are kept. Only the ring of the camera backend in use is filled.
+    private static final int FRAME_RING_CAPACITY = 2;
+    private final FrameRing<byte[]> mFrameRing = new FrameRing<>(FRAME_RING_CAPACITY);
+    private final FrameRing<Image> mImageRing = new FrameRing<>(FRAME_RING_CAPACITY);
+    private volatile long mLastEnqueueFrameTime;
     private int mFrameCount = 0;
     private long mLastDetectLatency = 0;
 
-
-
-    public DetectionThread(TextureView textureView, TextView fpsTextView) {
-        mTextureView = textureView;
+    // Draws published detections on its own thread, so detection never waits for the display
+    private final OverlayRenderThread mRenderer;
+
+    // Reused for every frame so that detection does not allocate
+    private final DetectionBuffer mDetections = new DetectionBuffer();
+
+    // Per-stage timings of the last few seconds of frames, logged once a second
+    private static final int METRICS_WINDOW = 100;
+    private final DetectionMetrics mMetrics = new DetectionMetrics(METRICS_WINDOW);
+
+    // Adjusts the detector's decimation and threads to the measured latency; null when off
+    private final DecimationController mController;
+
+    /**
+     * @param controller if not null, tunes the parameters of detector after every frame
+     * @param camera2    if true, frames arrive as Camera2 images through {@link #enqueueImage}
+     *                   rather than as NV21 arrays through {@link #enqueueCameraFrame}
+     */
+    public DetectionThread(AprilTagDetector detector, boolean pipelined, DecimationController controller,
+                           boolean camera2, TextureView textureView, TextView fpsTextView) {
+        mDetector = detector;
+        mPipelined = pipelined;
+        mCamera2 = camera2;
+        mController = controller;
         mFpsTextView = fpsTextView;
-        mTextureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
-            @Override
-            public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
-                // Do nothing
-            }
-
-            @Override
-            public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
-                // Do nothing
-            }
+        mRenderer = new OverlayRenderThread(textureView);
+    }
 
-            @Override
-            public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
-                return true;
-            }
+    public void destroy() {
+        mFrameRing.setRecycler(null);
+        mFrameRing.clear();
+        // Queued images are closed, so that the reader they came from can be closed too
+        mImageRing.clear();
+        mImageRing.setRecycler(null);
+    }
 
-            @Override
-            public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-                // Do nothing
-            }
-        });
+    /**
+     * The ring that camera frames are passed through. The camera side sets its recycler so
+     * that frame buffers go back to the camera once they are detected or dropped.
+     */
+    public FrameRing<byte[]> getFrameRing() {
+        return mFrameRing;
     }
 
-    public void destroy() {
-        mCameraFrameQueue.clear();
-        mCameraFrameQueue = null;
+    /**
+     * The ring that Camera2 images are passed through. The camera side sets its recycler to
+     * close images once they are detected or dropped.
+     */
+    public FrameRing<Image> getImageRing() {
+        return mImageRing;
     }
 
-    public void enqueueCameraFrame(byte[] data, Camera.Size cameraSize) throws InterruptedException {
-        if (mCameraSize == null || mCameraSize.width != cameraSize.width || mCameraSize.height != cameraSize.height) {
-            mCameraFrameQueue.clear();
-            mCameraSize = cameraSize;
+    /** Set the size of the frames that follow; must be called before the first frame. */
+    public void setFrameSize(int width, int height) {
+        if (mFrameWidth != 0 && (mFrameWidth != width || mFrameHeight != height)) {
+            mFrameRing.clear();
+            mImageRing.clear();
             Log.w(TAG, "Camera size changed during preview");
         }
+        mFrameWidth = width;
+        mFrameHeight = height;
+    }
 
-        if (mCameraFrameQueue == null) {
-            Log.w(TAG, "Camera frame queue is null, skipping frame");
-            return;
-        }
-
-        if (mCameraFrameQueue.size() == MAX_FRAME_QUEUE_SIZE) {
-            mCameraFrameQueue.clear();
-            Log.w(TAG, "Camera frame queue is full, clearing buffer");
-        }
+    /** Called on the camera thread for every frame; never blocks or allocates. */
+    public void enqueueCameraFrame(byte[] data) {
+        mFrameRing.offer(data);
+        mLastEnqueueFrameTime = System.currentTimeMillis();
+    }
 
-        mCameraFrameQueue.put(data);
+    /** Called on the camera thread for every Camera2 image; never blocks or allocates. */
+    public void enqueueImage(Image image) {
+        mImageRing.offer(image);
         mLastEnqueueFrameTime = System.currentTimeMillis();
+    }
 
-        Log.i(TAG, "Buffer length: " + mCameraFrameQueue.size());
+    private long droppedFrames() {
+        return mCamera2 ? mImageRing.droppedFrames() : mFrameRing.droppedFrames();
     }
 
     private void updateFps() {
@@ -92,102 +114,106 @@ public class DetectionThread extends Thread {
         mFrameCount++;
         if (diff >= 1000) {
             final double fps = 1000.0 / diff * mFrameCount;
+            final long dropped = droppedFrames();
+            final double p50 = mMetrics.percentile(DetectionMetrics.SERIES_TOTAL, 50) / 1e6;
+            final double p95 = mMetrics.percentile(DetectionMetrics.SERIES_TOTAL, 95) / 1e6;
+            final double p99 = mMetrics.percentile(DetectionMetrics.SERIES_TOTAL, 99) / 1e6;
+            final String adaptive = mController == null ? "" : String.format("\nadaptive: decimation %.1f, %d threads",
+                    mController.getDecimation(), mController.getThreads());
+            final double renderFps = mRenderer.getFps();
             mFpsTextView.post(new Runnable() {
                 @Override
                 public void run() {
-                    mFpsTextView.setText(String.format("%.2f fps Detect+Render\n%d ms Detect+Render Latency", fps, mLastDetectLatency));
+                    mFpsTextView.setText(String.format("%.2f fps Detect, %.2f fps Render\n%d ms Detect Latency\n%.1f / %.1f / %.1f ms Detect p50/p95/p99\n%d frames dropped%s",
+                            fps, renderFps, mLastDetectLatency, p50, p95, p99, dropped, adaptive));
                 }
             });
+            Log.i(TAG, mMetrics.toString());
             mLastFPSRender = now;
             mFrameCount = 0;
         }
     }
 
-    private ArrayList<ApriltagDetection> processCameraFrame(byte[] data, Camera.Size cameraSize)  {
+    private int processCameraFrame(byte[] data)  {
         try {
-            return ApriltagNative.apriltag_detect_yuv(data, cameraSize.width, cameraSize.height);
+            int count = mDetector.detect(data, mFrameWidth, mFrameHeight, mDetections);
+            recordFrame(count);
+            return count;
         } catch (Exception e) {
             Log.e(TAG, "Unhandled exception when detecting tags: " + e);
-            return new ArrayList<>();
+            return 0;
         }
     }
 
-    private void renderDetection(ApriltagDetection detection, Canvas canvas) {
-        Paint fillPaint = new Paint();
-        fillPaint.setColor(Color.GREEN);
-        fillPaint.setAlpha(128);
-        fillPaint.setStyle(Paint.Style.FILL);
-
-        Paint borderPaint = new Paint();
-        final int[] borderColors = new int[]{Color.GREEN, Color.WHITE, Color.WHITE, Color.RED};
-        borderPaint.setStyle(Paint.Style.STROKE);
-        borderPaint.setStrokeWidth(10);
-
-        float scaleDetectionX = (float)(canvas.getHeight()) / mCameraSize.width; // Converts detection x to render y
-        float scaleDetectionY = (float)(canvas.getWidth()) / mCameraSize.height; // Converts detection y to render x (still needs offset)
-
-        double[] points = detection.p;
-        if (points == null || points.length != 8) {
-            Log.w(TAG, "invalid detection coordinates");
-            return;
-        }
-
-        // Convert detection points to canvas points
-        float[] xPointsCanvas = new float[4];
-        float[] yPointsCanvas = new float[4];
-        for (int i = 0; i < 4; i++) {
-            xPointsCanvas[i] = (float) (canvas.getWidth() - points[i * 2 + 1] * scaleDetectionY);
-            yPointsCanvas[i] = (float) (points[i * 2] * scaleDetectionX);
+    // Detect in the Y plane of the image where the camera wrote it, padding and all
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private int processImage(Image image) {
+        try {
+            Image.Plane luma = image.getPlanes()[0];
+            Rect crop = image.getCropRect();
+            int count = mDetector.detectPlane(luma.getBuffer(), 0, luma.getRowStride(), luma.getPixelStride(),
+                    crop.left, crop.top, crop.width(), crop.height(), mDetections);
+            recordFrame(count);
+            return count;
+        } catch (Exception e) {
+            Log.e(TAG, "Unhandled exception when detecting tags: " + e);
+            return 0;
         }
+    }
 
-        // Render filled outline of detections
-        Path fillPath = new Path();
-        for (int i = 0; i < 4; i++) {
-            if (i == 0) {
-                fillPath.moveTo(xPointsCanvas[i], yPointsCanvas[i]);
-            } else {
-                fillPath.lineTo(xPointsCanvas[i], yPointsCanvas[i]);
+    // Queue the frame, first draining finished frames (oldest first) while the pipeline is full
+    private void processCameraFramePipelined(byte[] data) {
+        try {
+            while (!mDetector.submit(data, mFrameWidth, mFrameHeight)) {
+                retrieveAndRender();
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Unhandled exception when detecting tags: " + e);
         }
-        fillPath.close();
-        canvas.drawPath(fillPath, fillPaint);
-
-        // Render stroke outline of detections
-        int colorIndex = 0;
-        for (int i = 0; i < 4; i++) {
-            Path borderPath = new Path();
-            borderPaint.setColor(borderColors[colorIndex++ % borderColors.length]);
-
-            borderPath.moveTo(xPointsCanvas[i], yPointsCanvas[i]);
-            borderPath.lineTo(xPointsCanvas[(i + 1) % 4], yPointsCanvas[(i + 1) % 4]);
-            canvas.drawPath(borderPath, borderPaint);
-        }
-
-        // Render tag ID in the center of the detection box
-        Paint textPaint = new Paint();
-        textPaint.setColor(Color.WHITE);
-        textPaint.setTextSize(100);
-        String tagId = String.valueOf(detection.id);
-        float textWidth = textPaint.measureText(tagId);
-        float textHeight = textPaint.getFontMetrics().descent - textPaint.getFontMetrics().ascent;
-        float textX = (float) (canvas.getWidth() - detection.c[1] * scaleDetectionY - textWidth / 2);
-        float textY = (float) (detection.c[0] * scaleDetectionX + textHeight / 2 - textPaint.getFontMetrics().descent);
-        canvas.drawText(tagId, textX, textY, textPaint);
     }
 
-    private void renderDetections(ArrayList<ApriltagDetection> detections) {
-        Canvas canvas = mTextureView.lockCanvas();
+    // Submitting copies the plane, so the whole of it is submitted to keep detections in
+    // image coordinates
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void processImagePipelined(Image image) {
         try {
-            canvas.drawColor(0, PorterDuff.Mode.CLEAR);
-            for (ApriltagDetection detection : detections) {
-                renderDetection(detection, canvas);
+            Image.Plane luma = image.getPlanes()[0];
+            while (!mDetector.submit(luma.getBuffer(), 0, image.getWidth(), image.getHeight(),
+                    luma.getRowStride())) {
+                retrieveAndRender();
             }
         } catch (Exception e) {
-            Log.e(TAG, "Error rendering detections: " + e.getMessage());
-        } finally {
-            if (canvas != null) {
-                mTextureView.unlockCanvasAndPost(canvas);
-            }
+            Log.e(TAG, "Unhandled exception when detecting tags: " + e);
+        }
+    }
+
+    private void retrieveAndRender() {
+        int count = mDetector.retrieve(mDetections);
+        recordFrame(count);
+        publishDetections(count);
+    }
+
+    private void publishDetections(int count) {
+        mRenderer.publish(mDetections, count, mFrameWidth, mFrameHeight);
+    }
+
+    private void recordFrame(int count) {
+        if (mMetrics.record(mDetector, droppedFrames())) {
+            adaptParameters(count);
+        }
+    }
+
+    // Feed the frame just recorded to the controller and apply what it decides
+    private void adaptParameters(int count) {
+        if (mController == null) {
+            return;
+        }
+        long detectNanos = mMetrics.latest(DetectionMetrics.SERIES_TOTAL);
+        if (mController.update(detectNanos, mDetections, count)) {
+            mDetector.setParameters(mController.getDecimation(), mController.getBlurSigma(),
+                    mController.getThreads());
+            Log.i(TAG, String.format("adaptive: decimation %.1f, %d threads",
+                    mController.getDecimation(), mController.getThreads()));
         }
     }
 
@@ -195,26 +221,61 @@ public class DetectionThread extends Thread {
         Log.i(TAG, "Detection thread initialize");
     }
 
+    // Submitting copies the frame, so its buffer can go back to the camera right away
+    private void runCameraFrame(byte[] data) {
+        if (mPipelined) {
+            processCameraFramePipelined(data);
+            mFrameRing.release(data);
+        } else {
+            int count = processCameraFrame(data);
+            mFrameRing.release(data);
+            publishDetections(count);
+        }
+    }
+
+    private void runImage(Image image) {
+        if (mPipelined) {
+            processImagePipelined(image);
+            mImageRing.release(image);
+        } else {
+            int count = processImage(image);
+            mImageRing.release(image);
+            publishDetections(count);
+        }
+    }
+
     @Override
     public void run() {
+        mRenderer.start();
+        try {
+            detectFrames();
+        } finally {
+            // Clear our own interrupt so that joining the renderer waits for it
+            Thread.interrupted();
+            mRenderer.interrupt();
+            try {
+                mRenderer.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while stopping the render thread");
+            }
+        }
+    }
+
+    private void detectFrames() {
         while (!isInterrupted()) {
             updateFps();
 
-            if (mCameraFrameQueue == null) {
-                continue;
-            }
-
-            byte[] data;
             try {
-                data = mCameraFrameQueue.take();
+                if (mCamera2) {
+                    runImage(mImageRing.take());
+                } else {
+                    runCameraFrame(mFrameRing.take());
+                }
             } catch (InterruptedException e) {
                 Log.i(TAG, "Interrupted while waiting for camera frame: " + e.getMessage());
                 break;
             }
 
-            ArrayList<ApriltagDetection> detections = processCameraFrame(data, mCameraSize);
-            renderDetections(detections);
-
             mLastDetectLatency = (System.currentTimeMillis() - mLastEnqueueFrameTime);
         }
     }
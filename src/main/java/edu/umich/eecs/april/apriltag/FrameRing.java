@@ -0,0 +1,136 @@
+package edu.umich.eecs.april.apriltag;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed-capacity ring of camera frames between one producer (the camera callback) and one
+ * consumer (the detection thread). It never allocates after construction and never blocks the
+ * producer: when the ring is full, the oldest frame is dropped and counted.
+ * <p>
+ * Frame buffers are owned by the caller. Every buffer that leaves the ring without being
+ * processed (dropped or cleared), and every buffer the consumer is done with
+ * ({@link #release}), is handed to the {@link Recycler}, typically
+ * {@code Camera.addCallbackBuffer} for byte[] frames or {@code Image.close} for Camera2
+ * images. Without a recycler such buffers are simply forgotten.
+ * </p>
+ *
+ * @param <T> the frame type, a byte[] or an {@code android.media.Image}
+ */
+public class FrameRing<T> {
+    public interface Recycler<T> {
+        void recycle(T buffer);
+    }
+
+    private final Object[] mSlots;
+    private volatile Recycler<T> mRecycler;
+
+    // Frames are in slots [head, tail). Only the producer advances tail; both sides advance
+    // head (the consumer to take a frame, the producer to drop one), so head moves by CAS.
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile Thread mConsumer;
+
+    public FrameRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mSlots = new Object[capacity];
+    }
+
+    public void setRecycler(Recycler<T> recycler) {
+        mRecycler = recycler;
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+
+    /** Number of frames dropped because the consumer fell behind. */
+    public long droppedFrames() {
+        return mDropped.get();
+    }
+
+    /** Producer: add a frame, dropping the oldest one if the ring is full. */
+    public void offer(T frame) {
+        long tail = mTail.get();
+        long head;
+        while (tail - (head = mHead.get()) == mSlots.length) {
+            // Full. Unless the consumer takes the oldest frame first, drop it.
+            T oldest = slot(head);
+            if (mHead.compareAndSet(head, head + 1)) {
+                recycle(oldest);
+                mDropped.incrementAndGet();
+            }
+        }
+
+        mSlots[(int) (tail % mSlots.length)] = frame;
+        mTail.set(tail + 1);
+
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /** Remove the oldest frame, or return null if the ring is empty. */
+    public T poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head == mTail.get()) {
+                return null;
+            }
+            // Read before claiming: the slot cannot be reused until head has moved past it
+            T frame = slot(head);
+            if (mHead.compareAndSet(head, head + 1)) {
+                return frame;
+            }
+        }
+    }
+
+    /** Consumer: wait for the oldest frame. */
+    public T take() throws InterruptedException {
+        mConsumer = Thread.currentThread();
+        try {
+            while (true) {
+                T frame = poll();
+                if (frame != null) {
+                    return frame;
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            mConsumer = null;
+        }
+    }
+
+    /** Consumer: hand back a frame returned by {@link #take} once it is no longer needed. */
+    public void release(T frame) {
+        recycle(frame);
+    }
+
+    /** Recycle all queued frames. */
+    public void clear() {
+        T frame;
+        while ((frame = poll()) != null) {
+            recycle(frame);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T slot(long index) {
+        return (T) mSlots[(int) (index % mSlots.length)];
+    }
+
+    private void recycle(T frame) {
+        Recycler<T> recycler = mRecycler;
+        if (recycler != null) {
+            recycler.recycle(frame);
+        }
+    }
+}
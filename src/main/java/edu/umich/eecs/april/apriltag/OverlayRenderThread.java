@@ -0,0 +1,237 @@
+package edu.umich.eecs.april.apriltag;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.util.Log;
+import android.view.TextureView;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Draws the outlines and IDs of detected tags over the camera preview, on a thread of its own
+ * so that the detector never waits for the display. The detection thread {@link #publish}es
+ * each frame's detections and carries on; this thread draws only the latest published frame
+ * and skips any it was too slow for.
+ * <p>
+ * Detections are handed over through three snapshots that the two threads exchange with a
+ * single atomic swap: one being filled by the detection thread, one being drawn, and the
+ * latest one published. Snapshots and all drawing objects are allocated once, so neither
+ * side allocates per frame.
+ * </p>
+ */
+public class OverlayRenderThread extends Thread {
+    private static final String TAG = "OverlayRenderThread";
+
+    private static final int[] BORDER_COLORS = new int[]{Color.GREEN, Color.WHITE, Color.WHITE, Color.RED};
+
+    // The detections of one frame, in the frame's pixel coordinates
+    private static class Snapshot {
+        int count;
+        int frameWidth;
+        int frameHeight;
+        int[] ids = new int[0];
+        double[] corners = new double[0];
+        double[] centers = new double[0];
+
+        // Set by the detection thread when published, cleared by the render thread once drawn
+        boolean fresh;
+
+        void copyFrom(DetectionBuffer detections, int n, int width, int height) {
+            if (n > ids.length) {
+                int capacity = Math.max(n, 2 * ids.length);
+                ids = new int[capacity];
+                corners = new double[8 * capacity];
+                centers = new double[2 * capacity];
+            }
+            System.arraycopy(detections.ids, 0, ids, 0, n);
+            System.arraycopy(detections.corners, 0, corners, 0, 8 * n);
+            System.arraycopy(detections.centers, 0, centers, 0, 2 * n);
+            count = n;
+            frameWidth = width;
+            frameHeight = height;
+        }
+    }
+
+    private final TextureView mTextureView;
+
+    // Owned by the detection thread
+    private Snapshot mBack = new Snapshot();
+    // The latest published snapshot, or the one last drawn if nothing was published since
+    private final AtomicReference<Snapshot> mLatest = new AtomicReference<>(new Snapshot());
+    // Owned by this thread
+    private Snapshot mFront = new Snapshot();
+
+    private final Paint mFillPaint = new Paint();
+    private final Paint mBorderPaint = new Paint();
+    private final Paint mTextPaint = new Paint();
+    private final float mTextHeight;
+    private final float mTextDescent;
+    private final Path mFillPath = new Path();
+    private final Path mBorderPath = new Path();
+    private final float[] mXPointsCanvas = new float[4];
+    private final float[] mYPointsCanvas = new float[4];
+    private final char[] mTagId = new char[11];
+
+    private long mLastRender = System.currentTimeMillis();
+    private int mFrameCount = 0;
+    private volatile double mFps;
+
+    public OverlayRenderThread(TextureView textureView) {
+        super(TAG);
+        mTextureView = textureView;
+        mTextureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
+            @Override
+            public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+                // Do nothing
+            }
+
+            @Override
+            public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+                // Do nothing
+            }
+
+            @Override
+            public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+                return true;
+            }
+
+            @Override
+            public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+                // Do nothing
+            }
+        });
+
+        mFillPaint.setColor(Color.GREEN);
+        mFillPaint.setAlpha(128);
+        mFillPaint.setStyle(Paint.Style.FILL);
+
+        mBorderPaint.setStyle(Paint.Style.STROKE);
+        mBorderPaint.setStrokeWidth(10);
+
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextSize(100);
+        Paint.FontMetrics fontMetrics = mTextPaint.getFontMetrics();
+        mTextHeight = fontMetrics.descent - fontMetrics.ascent;
+        mTextDescent = fontMetrics.descent;
+    }
+
+    /**
+     * Called on the detection thread with each frame's detections; copies them and returns
+     * without waiting for the display.
+     */
+    public void publish(DetectionBuffer detections, int count, int frameWidth, int frameHeight) {
+        mBack.copyFrom(detections, count, frameWidth, frameHeight);
+        mBack.fresh = true;
+        mBack = mLatest.getAndSet(mBack);
+        LockSupport.unpark(this);
+    }
+
+    /** Frames drawn per second over the last second or so. */
+    public double getFps() {
+        return mFps;
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            mFront = mLatest.getAndSet(mFront);
+            if (!mFront.fresh) {
+                // Nothing new since the last frame drawn
+                LockSupport.park(this);
+                continue;
+            }
+            mFront.fresh = false;
+
+            renderDetections(mFront);
+            updateFps();
+        }
+    }
+
+    private void updateFps() {
+        long now = System.currentTimeMillis();
+        long diff = now - mLastRender;
+        mFrameCount++;
+        if (diff >= 1000) {
+            mFps = 1000.0 / diff * mFrameCount;
+            mLastRender = now;
+            mFrameCount = 0;
+        }
+    }
+
+    private void renderDetections(Snapshot snapshot) {
+        Canvas canvas = mTextureView.lockCanvas();
+        if (canvas == null) {
+            return;
+        }
+        try {
+            canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+            for (int i = 0; i < snapshot.count; i++) {
+                renderDetection(snapshot, i, canvas);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error rendering detections: " + e.getMessage());
+        } finally {
+            mTextureView.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    private void renderDetection(Snapshot snapshot, int index, Canvas canvas) {
+        float scaleDetectionX = (float)(canvas.getHeight()) / snapshot.frameWidth; // Converts detection x to render y
+        float scaleDetectionY = (float)(canvas.getWidth()) / snapshot.frameHeight; // Converts detection y to render x (still needs offset)
+
+        double[] points = snapshot.corners;
+        int p0 = index * 8;
+
+        // Convert detection points to canvas points
+        for (int i = 0; i < 4; i++) {
+            mXPointsCanvas[i] = (float) (canvas.getWidth() - points[p0 + i * 2 + 1] * scaleDetectionY);
+            mYPointsCanvas[i] = (float) (points[p0 + i * 2] * scaleDetectionX);
+        }
+
+        // Render filled outline of detections
+        mFillPath.rewind();
+        mFillPath.moveTo(mXPointsCanvas[0], mYPointsCanvas[0]);
+        for (int i = 1; i < 4; i++) {
+            mFillPath.lineTo(mXPointsCanvas[i], mYPointsCanvas[i]);
+        }
+        mFillPath.close();
+        canvas.drawPath(mFillPath, mFillPaint);
+
+        // Render stroke outline of detections
+        for (int i = 0; i < 4; i++) {
+            mBorderPaint.setColor(BORDER_COLORS[i % BORDER_COLORS.length]);
+
+            mBorderPath.rewind();
+            mBorderPath.moveTo(mXPointsCanvas[i], mYPointsCanvas[i]);
+            mBorderPath.lineTo(mXPointsCanvas[(i + 1) % 4], mYPointsCanvas[(i + 1) % 4]);
+            canvas.drawPath(mBorderPath, mBorderPaint);
+        }
+
+        // Render tag ID in the center of the detection box
+        int start = formatId(snapshot.ids[index]);
+        int length = mTagId.length - start;
+        float textWidth = mTextPaint.measureText(mTagId, start, length);
+        float textX = (float) (canvas.getWidth() - snapshot.centers[index * 2 + 1] * scaleDetectionY - textWidth / 2);
+        float textY = (float) (snapshot.centers[index * 2] * scaleDetectionX + mTextHeight / 2 - mTextDescent);
+        canvas.drawText(mTagId, start, length, textX, textY, mTextPaint);
+    }
+
+    // Write the decimal digits of id right-aligned into mTagId; returns the index of the first
+    private int formatId(int id) {
+        int i = mTagId.length;
+        long value = Math.abs((long) id);
+        do {
+            mTagId[--i] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        if (id < 0) {
+            mTagId[--i] = '-';
+        }
+        return i;
+    }
+}
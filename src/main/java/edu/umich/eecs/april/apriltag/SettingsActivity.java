@@ -146,10 +146,12 @@ public class SettingsActivity extends PreferenceActivity {
             // updated to reflect the new value, per the Android Design
             // guidelines.
             bindPreferenceSummaryToValue(findPreference("decimation_list"));
+            bindPreferenceSummaryToValue(findPreference("pyramid_list"));
             bindPreferenceSummaryToValue(findPreference("sigma_value"));
             bindPreferenceSummaryToValue(findPreference("nthreads_value"));
             bindPreferenceSummaryToValue(findPreference("tag_family_list"));
             bindPreferenceSummaryToValue(findPreference("max_hamming_error"));
+            bindPreferenceSummaryToValue(findPreference("target_latency_ms"));
         }
 
         @Override
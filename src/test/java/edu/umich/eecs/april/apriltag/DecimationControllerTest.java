@@ -0,0 +1,143 @@
+package edu.umich.eecs.april.apriltag;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DecimationControllerTest {
+    private static final long MS = 1000000;
+
+    // Frames after a change (or the first frame) before the next one can be made
+    private static final int SETTLE = 5;
+
+    // One square tag with sides of the given length in full-resolution pixels
+    private static DetectionBuffer tag(double side) {
+        DetectionBuffer buffer = new DetectionBuffer();
+        double[] square = {100, 100, 100 + side, 100, 100 + side, 100 + side, 100, 100 + side};
+        System.arraycopy(square, 0, buffer.corners, 0, 8);
+        return buffer;
+    }
+
+    // Feed frames until the controller changes something; returns how many it took, or -1
+    private static int framesUntilChange(DecimationController controller, long nanos,
+                                         DetectionBuffer detections, int count, int maxFrames) {
+        for (int i = 1; i <= maxFrames; i++) {
+            if (controller.update(nanos, detections, count)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void tooSlow_stepsDecimationUp() {
+        DecimationController controller = new DecimationController(10, 2, 0, 1);
+        DetectionBuffer medium = tag(50); // 25 decimated pixels
+
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 20 * MS, medium, 1, 100));
+        assertEquals(3, controller.getDecimation(), 0);
+        assertEquals(1, controller.getThreads());
+    }
+
+    @Test
+    public void tooSlow_addsThreadsBeforeDecimating() {
+        DecimationController controller = new DecimationController(10, 2, 0, 2);
+        DetectionBuffer medium = tag(50);
+
+        // well under the target, a thread is given back...
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 2 * MS, medium, 1, 100));
+        assertEquals(1, controller.getThreads());
+
+        // ...and taken again before decimating harder
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 20 * MS, medium, 1, 100));
+        assertEquals(2, controller.getThreads());
+        assertEquals(2, controller.getDecimation(), 0);
+
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 20 * MS, medium, 1, 100));
+        assertEquals(3, controller.getDecimation(), 0);
+    }
+
+    @Test
+    public void smallTags_stepDecimationDownWhenAffordable() {
+        DecimationController controller = new DecimationController(10, 2, 0, 1);
+        DetectionBuffer small = tag(20); // 10 decimated pixels
+
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 4 * MS, small, 1, 100));
+        assertEquals(1.5, controller.getDecimation(), 0);
+
+        // at 1.5 the tag is 13 pixels, no longer small
+        assertEquals(-1, framesUntilChange(controller, 7 * MS, small, 1, 100));
+        assertEquals(1.5, controller.getDecimation(), 0);
+    }
+
+    @Test
+    public void smallTags_keepDecimationWhenTheFinerImageWouldBeTooSlow() {
+        DecimationController controller = new DecimationController(10, 2, 0, 1);
+
+        // (2 / 1.5)^2 * 8 ms is over the 10 ms target
+        assertEquals(-1, framesUntilChange(controller, 8 * MS, tag(20), 1, 100));
+        assertEquals(2, controller.getDecimation(), 0);
+    }
+
+    @Test
+    public void lostTags_stepDecimationDown() {
+        DecimationController controller = new DecimationController(10, 3, 0, 1);
+
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 2 * MS, tag(0), 0, 100));
+        assertEquals(2, controller.getDecimation(), 0);
+
+        // lost frames are counted afresh after a change
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 2 * MS, tag(0), 0, 100));
+        assertEquals(1.5, controller.getDecimation(), 0);
+    }
+
+    @Test
+    public void largeTags_stepDecimationUp() {
+        DecimationController controller = new DecimationController(10, 1, 0, 1);
+
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 5 * MS, tag(100), 1, 100));
+        assertEquals(1.5, controller.getDecimation(), 0);
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 5 * MS, tag(100), 1, 100));
+        assertEquals(2, controller.getDecimation(), 0);
+
+        // 50 pixels at 2 is still large; 33 at 3 is neither large nor small, so it stays
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 5 * MS, tag(100), 1, 100));
+        assertEquals(3, controller.getDecimation(), 0);
+        assertEquals(-1, framesUntilChange(controller, 5 * MS, tag(100), 1, 100));
+        assertEquals(3, controller.getDecimation(), 0);
+    }
+
+    @Test
+    public void hysteresis_holdsBetweenThresholds() {
+        DecimationController controller = new DecimationController(10, 2, 0, 2);
+        DetectionBuffer medium = tag(50);
+
+        // between half the target and 10% over it, with medium tags, nothing changes
+        assertEquals(-1, framesUntilChange(controller, 6 * MS, medium, 1, 100));
+        assertEquals(-1, framesUntilChange(controller, 10800000, medium, 1, 100));
+        assertEquals(2, controller.getDecimation(), 0);
+        assertEquals(2, controller.getThreads());
+    }
+
+    @Test
+    public void hysteresis_waitsForNewParametersToSettle() {
+        DecimationController controller = new DecimationController(10, 1, 0, 1);
+        DetectionBuffer medium = tag(50);
+
+        assertEquals(SETTLE + 1, framesUntilChange(controller, 30 * MS, medium, 1, 100));
+
+        // still far too slow, but the change is measured for SETTLE frames first
+        for (int i = 0; i < SETTLE; i++) {
+            assertFalse(controller.update(30 * MS, medium, 1));
+        }
+        assertTrue(controller.update(30 * MS, medium, 1));
+        assertEquals(2, controller.getDecimation(), 0);
+    }
+
+    @Test
+    public void initialDecimation_snapsToNearestStep() {
+        assertEquals(1.5, new DecimationController(10, 1.4, 0, 1).getDecimation(), 0);
+        assertEquals(3, new DecimationController(10, 3.2, 0, 1).getDecimation(), 0);
+        assertEquals(8, new DecimationController(10, 100, 0, 1).getDecimation(), 0);
+    }
+}
@@ -0,0 +1,98 @@
+package edu.umich.eecs.april.apriltag;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DetectionMetricsTest {
+    // A frame whose stage times add up to total nanoseconds
+    private static long[] frame(long total) {
+        long[] stats = new long[AprilTagDetector.STATS_LENGTH];
+        stats[AprilTagDetector.STAGE_DECODE] = total / 2;
+        stats[AprilTagDetector.STAGE_THRESHOLD] = total - total / 2;
+        stats[AprilTagDetector.STAT_DETECTIONS] = total % 7;
+        return stats;
+    }
+
+    @Test
+    public void percentile_isNearestRank() {
+        DetectionMetrics metrics = new DetectionMetrics(20);
+        // 1..20, out of order
+        for (int i = 0; i < 20; i++) {
+            metrics.record(frame(1 + (i * 7) % 20), 0);
+        }
+
+        assertEquals(20, metrics.size());
+        assertEquals(1, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 0));
+        assertEquals(1, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 5));
+        assertEquals(2, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 6));
+        assertEquals(10, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 50));
+        assertEquals(19, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 95));
+        assertEquals(20, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 99));
+        assertEquals(20, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 100));
+    }
+
+    @Test
+    public void percentile_ofEachSeries() {
+        DetectionMetrics metrics = new DetectionMetrics(4);
+        metrics.record(frame(10), 0);
+        metrics.record(frame(40), 0);
+
+        assertEquals(20, metrics.percentile(AprilTagDetector.STAGE_DECODE, 100));
+        assertEquals(5, metrics.percentile(AprilTagDetector.STAGE_THRESHOLD, 50));
+        assertEquals(3, metrics.percentile(AprilTagDetector.STAT_DETECTIONS, 50));
+        assertEquals(5, metrics.percentile(AprilTagDetector.STAT_DETECTIONS, 100));
+        assertEquals(0, metrics.percentile(AprilTagDetector.STAGE_BLUR, 100));
+    }
+
+    @Test
+    public void window_keepsMostRecentFrames() {
+        DetectionMetrics metrics = new DetectionMetrics(4);
+        for (int i = 1; i <= 10; i++) {
+            metrics.record(frame(i), 0);
+        }
+
+        assertEquals(4, metrics.size());
+        assertEquals(7, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 0));
+        assertEquals(8, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 50));
+        assertEquals(10, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 100));
+        assertEquals(10, metrics.latest(DetectionMetrics.SERIES_TOTAL));
+    }
+
+    @Test
+    public void dropped_countsFramesSincePreviousRecord() {
+        DetectionMetrics metrics = new DetectionMetrics(8);
+        // the first frame has no previous one to count from, so counts 0
+        long[] dropped = {5, 8, 8, 15};
+        for (long total : dropped) {
+            metrics.record(frame(1), total);
+        }
+
+        assertEquals(7, metrics.latest(DetectionMetrics.SERIES_DROPPED));
+        assertEquals(0, metrics.percentile(DetectionMetrics.SERIES_DROPPED, 50));
+        assertEquals(3, metrics.percentile(DetectionMetrics.SERIES_DROPPED, 75));
+        assertEquals(7, metrics.percentile(DetectionMetrics.SERIES_DROPPED, 100));
+    }
+
+    @Test
+    public void empty_reportsZero() {
+        DetectionMetrics metrics = new DetectionMetrics(4);
+        assertEquals(0, metrics.size());
+        assertEquals(0, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 50));
+        assertEquals(0, metrics.latest(DetectionMetrics.SERIES_TOTAL));
+
+        metrics.record(frame(3), 2);
+        metrics.clear();
+        assertEquals(0, metrics.size());
+        assertEquals(0, metrics.percentile(DetectionMetrics.SERIES_TOTAL, 50));
+
+        // dropped frames are counted afresh after clear
+        metrics.record(frame(3), 9);
+        assertEquals(0, metrics.latest(DetectionMetrics.SERIES_DROPPED));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void window_mustBePositive() {
+        new DetectionMetrics(0);
+    }
+}
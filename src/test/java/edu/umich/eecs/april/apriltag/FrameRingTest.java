@@ -0,0 +1,90 @@
+package edu.umich.eecs.april.apriltag;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class FrameRingTest {
+    @Test
+    public void offer_dropsOldestWhenFull() throws Exception {
+        FrameRing<Integer> ring = new FrameRing<>(3);
+        List<Integer> recycled = new ArrayList<>();
+        ring.setRecycler(recycled::add);
+
+        for (int i = 1; i <= 5; i++) {
+            ring.offer(i);
+        }
+
+        assertEquals(2, ring.droppedFrames());
+        assertEquals(Arrays.asList(1, 2), recycled);
+        assertEquals(Integer.valueOf(3), ring.take());
+        assertEquals(Integer.valueOf(4), ring.poll());
+        assertEquals(Integer.valueOf(5), ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void everyFrame_isRecycledExactlyOnce() throws Exception {
+        FrameRing<Integer> ring = new FrameRing<>(2);
+        int[] recycled = new int[6];
+        ring.setRecycler(frame -> recycled[frame]++);
+
+        // 0 and 1 are dropped, 2 is taken and released, 3 is taken but not yet released,
+        // 4 and 5 are cleared
+        for (int i = 0; i < 4; i++) {
+            ring.offer(i);
+        }
+        ring.release(ring.take());
+        Integer held = ring.take();
+        ring.offer(4);
+        ring.offer(5);
+        ring.clear();
+
+        assertArrayEquals(new int[]{1, 1, 1, 0, 1, 1}, recycled);
+        ring.release(held);
+        assertArrayEquals(new int[]{1, 1, 1, 1, 1, 1}, recycled);
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void concurrentProducer_recyclesEveryFrameExactlyOnce() throws Exception {
+        final int n = 200000;
+        for (int capacity = 1; capacity <= 3; capacity++) {
+            final FrameRing<Integer> ring = new FrameRing<>(capacity);
+            final AtomicIntegerArray recycled = new AtomicIntegerArray(n);
+            ring.setRecycler(recycled::incrementAndGet);
+
+            Thread consumer = new Thread(() -> {
+                try {
+                    while (true) {
+                        ring.release(ring.take());
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                }
+            });
+            consumer.start();
+
+            Integer[] frames = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                frames[i] = i;
+            }
+            for (int i = 0; i < n; i++) {
+                ring.offer(frames[i]);
+            }
+
+            consumer.interrupt();
+            consumer.join();
+            ring.clear();
+
+            for (int i = 0; i < n; i++) {
+                assertEquals("frame " + i + " with capacity " + capacity, 1, recycled.get(i));
+            }
+        }
+    }
+}